@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package android.app;
+
+import android.content.Context;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/**
+ * Measures the latency of app op checks and notes, alone and while other
+ * threads hammer the service with the same calls.
+ *
+ * Checks are normally answered from a lock-free cache in the service; the
+ * "Locked" variants turn it off to measure the service lock path as well.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class AppOpsManagerPerfTest {
+    private static final int CONTENDING_THREADS = 4;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private AppOpsManager mAppOps;
+    private String mPackageName;
+    private int mUid;
+
+    private final ArrayList<Thread> mContenders = new ArrayList<>();
+    private volatile boolean mContending;
+    private boolean mCheckCacheDisabled;
+
+    @Before
+    public void setUp() {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        mAppOps = context.getSystemService(AppOpsManager.class);
+        mPackageName = context.getPackageName();
+        mUid = Process.myUid();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mContending = false;
+        for (Thread thread : mContenders) {
+            thread.join();
+        }
+        mContenders.clear();
+        if (mCheckCacheDisabled) {
+            setCheckCacheEnabled(true);
+            mCheckCacheDisabled = false;
+        }
+    }
+
+    private void disableCheckCache() throws IOException {
+        setCheckCacheEnabled(false);
+        mCheckCacheDisabled = true;
+    }
+
+    private static void setCheckCacheEnabled(boolean enabled) throws IOException {
+        final ParcelFileDescriptor pfd = InstrumentationRegistry.getInstrumentation()
+                .getUiAutomation().executeShellCommand("cmd appops set-check-cache " + enabled);
+        // Wait for the command to finish.
+        try (FileInputStream in = new ParcelFileDescriptor.AutoCloseInputStream(pfd)) {
+            final byte[] buffer = new byte[256];
+            while (in.read(buffer) != -1) {
+            }
+        }
+    }
+
+    private void startContenders(boolean note) {
+        mContending = true;
+        for (int i = 0; i < CONTENDING_THREADS; i++) {
+            final Thread thread = new Thread(() -> {
+                while (mContending) {
+                    if (note) {
+                        mAppOps.noteOpNoThrow(AppOpsManager.OP_COARSE_LOCATION, mUid,
+                                mPackageName);
+                    } else {
+                        mAppOps.checkOpNoThrow(AppOpsManager.OP_COARSE_LOCATION, mUid,
+                                mPackageName);
+                    }
+                }
+            });
+            thread.start();
+            mContenders.add(thread);
+        }
+    }
+
+    @Test
+    public void timeCheckOp() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mAppOps.checkOpNoThrow(AppOpsManager.OP_COARSE_LOCATION, mUid, mPackageName);
+        }
+    }
+
+    @Test
+    public void timeCheckOpWithConcurrentChecks() {
+        startContenders(false);
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mAppOps.checkOpNoThrow(AppOpsManager.OP_COARSE_LOCATION, mUid, mPackageName);
+        }
+    }
+
+    @Test
+    public void timeCheckOpWithConcurrentNotes() {
+        startContenders(true);
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mAppOps.checkOpNoThrow(AppOpsManager.OP_COARSE_LOCATION, mUid, mPackageName);
+        }
+    }
+
+    @Test
+    public void timeCheckOpLocked() throws Exception {
+        disableCheckCache();
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mAppOps.checkOpNoThrow(AppOpsManager.OP_COARSE_LOCATION, mUid, mPackageName);
+        }
+    }
+
+    @Test
+    public void timeCheckOpLockedWithConcurrentChecks() throws Exception {
+        disableCheckCache();
+        startContenders(false);
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mAppOps.checkOpNoThrow(AppOpsManager.OP_COARSE_LOCATION, mUid, mPackageName);
+        }
+    }
+
+    @Test
+    public void timeCheckOpLockedWithConcurrentNotes() throws Exception {
+        disableCheckCache();
+        startContenders(true);
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mAppOps.checkOpNoThrow(AppOpsManager.OP_COARSE_LOCATION, mUid, mPackageName);
+        }
+    }
+
+    @Test
+    public void timeNoteOp() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mAppOps.noteOpNoThrow(AppOpsManager.OP_COARSE_LOCATION, mUid, mPackageName);
+        }
+    }
+
+    @Test
+    public void timeNoteOpWithConcurrentNotes() {
+        startContenders(true);
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mAppOps.noteOpNoThrow(AppOpsManager.OP_COARSE_LOCATION, mUid, mPackageName);
+        }
+    }
+}
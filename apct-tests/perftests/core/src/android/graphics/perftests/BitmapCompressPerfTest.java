@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.graphics.perftests;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.LinearGradient;
+import android.graphics.Paint;
+import android.graphics.Shader;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.filters.LargeTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Measures encoding a full and a half resolution screen-sized bitmap the way task snapshots are
+ * persisted, one after the other and concurrently.
+ */
+@LargeTest
+public class BitmapCompressPerfTest {
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 1920;
+    private static final float REDUCED_SCALE = 0.5f;
+    private static final int QUALITY = 95;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private Bitmap mBitmap;
+    private Bitmap mReduced;
+    private ExecutorService mExecutor;
+
+    @Before
+    public void setUp() {
+        mBitmap = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+        final Canvas canvas = new Canvas(mBitmap);
+        final Paint paint = new Paint();
+        paint.setShader(new LinearGradient(0, 0, WIDTH, HEIGHT, Color.BLUE, Color.YELLOW,
+                Shader.TileMode.CLAMP));
+        canvas.drawPaint(paint);
+        // Text-like detail so the encoder has edges to work on, as in a real app window.
+        paint.setShader(null);
+        paint.setColor(Color.BLACK);
+        paint.setTextSize(40);
+        for (int y = 60; y < HEIGHT; y += 60) {
+            canvas.drawText("The quick brown fox jumps over the lazy dog " + y, 20, y, paint);
+        }
+        mReduced = Bitmap.createScaledBitmap(mBitmap, (int) (WIDTH * REDUCED_SCALE),
+                (int) (HEIGHT * REDUCED_SCALE), true /* filter */);
+        mExecutor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        mExecutor.shutdown();
+        mBitmap.recycle();
+        mReduced.recycle();
+    }
+
+    @Test
+    public void timeCompressFull() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        while (state.keepRunning()) {
+            out.reset();
+            mBitmap.compress(Bitmap.CompressFormat.JPEG, QUALITY, out);
+        }
+    }
+
+    @Test
+    public void timeCompressReduced() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        while (state.keepRunning()) {
+            out.reset();
+            mReduced.compress(Bitmap.CompressFormat.JPEG, QUALITY, out);
+        }
+    }
+
+    @Test
+    public void timeCompressFullAndReducedSequential() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final ByteArrayOutputStream reducedOut = new ByteArrayOutputStream();
+        while (state.keepRunning()) {
+            out.reset();
+            reducedOut.reset();
+            mBitmap.compress(Bitmap.CompressFormat.JPEG, QUALITY, out);
+            mReduced.compress(Bitmap.CompressFormat.JPEG, QUALITY, reducedOut);
+        }
+    }
+
+    @Test
+    public void timeCompressFullAndReducedConcurrent() throws Exception {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final ByteArrayOutputStream reducedOut = new ByteArrayOutputStream();
+        while (state.keepRunning()) {
+            out.reset();
+            reducedOut.reset();
+            final Future<Boolean> reduced = mExecutor.submit(() ->
+                    mReduced.compress(Bitmap.CompressFormat.JPEG, QUALITY, reducedOut));
+            mBitmap.compress(Bitmap.CompressFormat.JPEG, QUALITY, out);
+            reduced.get();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package android.provider;
+
+import android.content.ContentResolver;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Measures what an app with a cold settings cache pays to read the settings it typically
+ * looks at during startup: one provider call per setting, versus a single prefetch call.
+ */
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class SettingsPerfTest {
+    private static final String[] STARTUP_SETTINGS = {
+            Settings.Global.ADB_ENABLED,
+            Settings.Global.AIRPLANE_MODE_ON,
+            Settings.Global.ANIMATOR_DURATION_SCALE,
+            Settings.Global.AUTO_TIME,
+            Settings.Global.AUTO_TIME_ZONE,
+            Settings.Global.BLUETOOTH_ON,
+            Settings.Global.DATA_ROAMING,
+            Settings.Global.DEBUG_VIEW_ATTRIBUTES,
+            Settings.Global.DEVELOPMENT_SETTINGS_ENABLED,
+            Settings.Global.DEVICE_PROVISIONED,
+            Settings.Global.HTTP_PROXY,
+            Settings.Global.MOBILE_DATA,
+            Settings.Global.NETWORK_PREFERENCE,
+            Settings.Global.STAY_ON_WHILE_PLUGGED_IN,
+            Settings.Global.TRANSITION_ANIMATION_SCALE,
+            Settings.Global.USB_MASS_STORAGE_ENABLED,
+            Settings.Global.WAIT_FOR_DEBUGGER,
+            Settings.Global.WIFI_ON,
+            Settings.Global.WIFI_SLEEP_POLICY,
+            Settings.Global.WINDOW_ANIMATION_SCALE,
+    };
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private ContentResolver mResolver;
+
+    @Before
+    public void setUp() {
+        mResolver = InstrumentationRegistry.getTargetContext().getContentResolver();
+    }
+
+    @Test
+    public void timeColdStartupReadsOneByOne() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            // Same provider call a cache miss in Settings.Global.getString() makes.
+            for (String name : STARTUP_SETTINGS) {
+                mResolver.call(Settings.Global.CONTENT_URI, Settings.CALL_METHOD_GET_GLOBAL,
+                        name, null);
+            }
+        }
+    }
+
+    @Test
+    public void timeColdStartupReadsPrefetched() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mResolver.call(Settings.Global.CONTENT_URI, Settings.CALL_METHOD_GET_ALL_GLOBAL,
+                    null, null);
+        }
+    }
+
+    @Test
+    public void timeWarmStartupReads() {
+        Settings.Global.prefetch(mResolver);
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            for (String name : STARTUP_SETTINGS) {
+                Settings.Global.getString(mResolver, name);
+            }
+        }
+    }
+}
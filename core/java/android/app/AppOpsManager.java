@@ -32,10 +32,16 @@ import android.os.RemoteException;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.util.ArrayMap;
+import android.util.Log;
+import android.util.MemoryIntArray;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.app.IAppOpsCallback;
 import com.android.internal.app.IAppOpsService;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -77,6 +83,11 @@ public class AppOpsManager {
 
     static IBinder sToken;
 
+    private static final String TAG = "AppOpsManager";
+
+    /** Modes returned by the service for checks made in this process. */
+    private static final ModeCache sModeCache = new ModeCache();
+
     /**
      * Result from {@link #checkOp}, {@link #noteOp}, {@link #startOp}: the given caller is
      * allowed to perform the given operation.
@@ -1709,7 +1720,7 @@ public class AppOpsManager {
      */
     public int checkOp(int op, int uid, String packageName) {
         try {
-            int mode = mService.checkOperation(op, uid, packageName);
+            int mode = checkOperationCached(op, uid, packageName);
             if (mode == MODE_ERRORED) {
                 throw new SecurityException(buildSecurityExceptionMsg(op, uid, packageName));
             }
@@ -1726,12 +1737,35 @@ public class AppOpsManager {
      */
     public int checkOpNoThrow(int op, int uid, String packageName) {
         try {
-            return mService.checkOperation(op, uid, packageName);
+            return checkOperationCached(op, uid, packageName);
         } catch (RemoteException e) {
             throw e.rethrowFromSystemServer();
         }
     }
 
+    private int checkOperationCached(int op, int uid, String packageName)
+            throws RemoteException {
+        // The service checks that the calling identity may ask about uid. In the system
+        // server it is called directly, under the identity of whichever binder call is being
+        // served, so one caller's answer can't be reused for another there.
+        if (mService instanceof Binder) {
+            return mService.checkOperation(op, uid, packageName);
+        }
+        final int generation = sModeCache.getGeneration(mService);
+        if (generation >= 0) {
+            final int mode = sModeCache.get(generation, op, uid, packageName);
+            if (mode >= 0) {
+                return mode;
+            }
+        }
+        final int mode = mService.checkOperation(op, uid, packageName);
+        // Only keep the result if nothing changed while the call was in flight.
+        if (generation >= 0 && sModeCache.getGeneration(mService) == generation) {
+            sModeCache.put(generation, op, uid, packageName, mode);
+        }
+        return mode;
+    }
+
     /**
      * Do a quick check to validate if a package name belongs to a UID.
      *
@@ -1947,4 +1981,128 @@ public class AppOpsManager {
     public void finishOp(int op) {
         finishOp(op, Process.myUid(), mContext.getOpPackageName());
     }
+
+    /**
+     * Per-process cache of (op, uid, package) to mode. Entries are valid for as long as the
+     * generation the service publishes in shared memory stays the same, so a cache hit costs a
+     * memory read instead of a binder call. Checks are never cached if the generation can't be
+     * read, or once the service has marked it as no longer maintained.
+     *
+     * Lookups take no lock: the cached modes are published as an immutable {@link Modes},
+     * which puts replace with a copy.
+     */
+    private static final class ModeCache {
+        /** Upper bound on cached entries; the cache is simply cleared when it is reached. */
+        private static final int MAX_ENTRIES = 256;
+
+        private final Object mLock = new Object();
+        @GuardedBy("mLock")
+        private boolean mGenerationRequested;
+        /** Null until requested from the service, and if caching is not available. */
+        private volatile MemoryIntArray mGenerationArray;
+        private volatile Modes mModes = new Modes(-1, new SparseArray<>(), 0);
+
+        /**
+         * @return the current generation, or -1 if caching is not available.
+         */
+        int getGeneration(IAppOpsService service) throws RemoteException {
+            MemoryIntArray array = mGenerationArray;
+            if (array == null) {
+                synchronized (mLock) {
+                    if (!mGenerationRequested) {
+                        mGenerationRequested = true;
+                        mGenerationArray = service.getModeGeneration();
+                    }
+                    array = mGenerationArray;
+                }
+                if (array == null) {
+                    return -1;
+                }
+            }
+            final int generation;
+            try {
+                generation = array.get(0);
+            } catch (IOException | IllegalStateException e) {
+                Log.e(TAG, "Error reading mode generation", e);
+                disable();
+                return -1;
+            }
+            if (generation < 0) {
+                // The service can't update the generation any more.
+                disable();
+                return -1;
+            }
+            return generation;
+        }
+
+        /**
+         * @return the mode cached at the given generation, or -1 if there is none.
+         */
+        int get(int generation, int op, int uid, String packageName) {
+            final Modes modes = mModes;
+            return modes.generation == generation ? modes.get(op, uid, packageName) : -1;
+        }
+
+        void put(int generation, int op, int uid, String packageName, int mode) {
+            synchronized (mLock) {
+                if (mGenerationArray == null) {
+                    return;
+                }
+                Modes modes = mModes;
+                if (generation < modes.generation) {
+                    return;
+                }
+                if (generation != modes.generation || modes.size >= MAX_ENTRIES) {
+                    modes = new Modes(generation, new SparseArray<>(), 0);
+                }
+                mModes = modes.with(op, uid, packageName, mode);
+            }
+        }
+
+        private void disable() {
+            synchronized (mLock) {
+                // The array may be owned by this process, so it is not closed here.
+                mGenerationArray = null;
+                mModes = new Modes(-1, new SparseArray<>(), 0);
+            }
+        }
+
+        /** Modes cached at one generation. Never changed once published. */
+        private static final class Modes {
+            final int generation;
+            final SparseArray<ArrayMap<String, SparseIntArray>> byUid;
+            final int size;
+
+            Modes(int generation, SparseArray<ArrayMap<String, SparseIntArray>> byUid,
+                    int size) {
+                this.generation = generation;
+                this.byUid = byUid;
+                this.size = size;
+            }
+
+            int get(int op, int uid, String packageName) {
+                final ArrayMap<String, SparseIntArray> packages = byUid.get(uid);
+                if (packages == null) {
+                    return -1;
+                }
+                final SparseIntArray ops = packages.get(packageName);
+                return ops != null ? ops.get(op, -1) : -1;
+            }
+
+            /** Returns a copy with the mode added, sharing what didn't change. */
+            Modes with(int op, int uid, String packageName, int mode) {
+                final SparseArray<ArrayMap<String, SparseIntArray>> newByUid = byUid.clone();
+                final ArrayMap<String, SparseIntArray> packages = byUid.get(uid);
+                final ArrayMap<String, SparseIntArray> newPackages = packages != null
+                        ? new ArrayMap<>(packages) : new ArrayMap<>(1);
+                final SparseIntArray ops = newPackages.get(packageName);
+                final SparseIntArray newOps = ops != null ? ops.clone() : new SparseIntArray(4);
+                final boolean added = newOps.indexOfKey(op) < 0;
+                newOps.put(op, mode);
+                newPackages.put(packageName, newOps);
+                newByUid.put(uid, newPackages);
+                return new Modes(generation, newByUid, added ? size + 1 : size);
+            }
+        }
+    }
 }
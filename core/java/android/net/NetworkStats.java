@@ -82,6 +82,9 @@ public class NetworkStats implements Parcelable {
     /** {@link #roaming} value where roaming data is accounted. */
     public static final int ROAMING_YES = 1;
 
+    /** Tables smaller than this are searched linearly instead of through {@link #rowIndex}. */
+    private static final int ROW_INDEX_MIN_SIZE = 16;
+
     // TODO: move fields to "mVariable" notation
 
     /**
@@ -103,6 +106,15 @@ public class NetworkStats implements Parcelable {
     private long[] txPackets;
     private long[] operations;
 
+    /**
+     * Open-addressed hash table over row keys, built lazily by {@link #findIndex}.
+     * Each slot holds a row index plus one, or zero when empty. Only the first
+     * {@link #rowIndexSize} rows have been indexed; rows appended since then are
+     * indexed on the next lookup. Never parceled.
+     */
+    private int[] rowIndex;
+    private int rowIndexSize;
+
     public static class Entry {
         public String iface;
         public int uid;
@@ -440,16 +452,87 @@ public class NetworkStats implements Parcelable {
      * Find first stats index that matches the requested parameters.
      */
     public int findIndex(String iface, int uid, int set, int tag, int metered, int roaming) {
-        for (int i = 0; i < size; i++) {
-            if (uid == this.uid[i] && set == this.set[i] && tag == this.tag[i]
-                    && metered == this.metered[i] && roaming == this.roaming[i]
-                    && Objects.equals(iface, this.iface[i])) {
-                return i;
+        if (size < ROW_INDEX_MIN_SIZE) {
+            for (int i = 0; i < size; i++) {
+                if (rowMatches(i, iface, uid, set, tag, metered, roaming)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        updateRowIndex();
+        final int mask = rowIndex.length - 1;
+        int slot = hashRow(iface, uid, set, tag, metered, roaming) & mask;
+        int value;
+        while ((value = rowIndex[slot]) != 0) {
+            if (rowMatches(value - 1, iface, uid, set, tag, metered, roaming)) {
+                return value - 1;
             }
+            slot = (slot + 1) & mask;
         }
         return -1;
     }
 
+    private boolean rowMatches(int i, String iface, int uid, int set, int tag, int metered,
+            int roaming) {
+        return uid == this.uid[i] && set == this.set[i] && tag == this.tag[i]
+                && metered == this.metered[i] && roaming == this.roaming[i]
+                && Objects.equals(iface, this.iface[i]);
+    }
+
+    private static int hashRow(String iface, int uid, int set, int tag, int metered,
+            int roaming) {
+        int hash = Objects.hashCode(iface);
+        hash = 31 * hash + uid;
+        hash = 31 * hash + set;
+        hash = 31 * hash + tag;
+        hash = 31 * hash + metered;
+        hash = 31 * hash + roaming;
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Bring {@link #rowIndex} up to date with all current rows, growing it to
+     * keep the load factor at or below one half.
+     */
+    private void updateRowIndex() {
+        if (rowIndex == null || size * 2 > rowIndex.length) {
+            rowIndex = new int[Integer.highestOneBit(size) << 2];
+            rowIndexSize = 0;
+        }
+        final int mask = rowIndex.length - 1;
+        for (int i = rowIndexSize; i < size; i++) {
+            int slot = hashRow(iface[i], uid[i], set[i], tag[i], metered[i], roaming[i]) & mask;
+            int value;
+            boolean duplicate = false;
+            while ((value = rowIndex[slot]) != 0) {
+                // keep pointing at the first matching row
+                if (rowMatches(value - 1, iface[i], uid[i], set[i], tag[i], metered[i],
+                        roaming[i])) {
+                    duplicate = true;
+                    break;
+                }
+                slot = (slot + 1) & mask;
+            }
+            if (!duplicate) {
+                rowIndex[slot] = i + 1;
+            }
+        }
+        rowIndexSize = size;
+    }
+
+    /**
+     * Forget all indexed rows, keeping the table around for reuse. Must be
+     * called whenever existing rows are removed or their keys change.
+     */
+    private void clearRowIndex() {
+        if (rowIndex != null) {
+            Arrays.fill(rowIndex, 0);
+        }
+        rowIndexSize = 0;
+    }
+
     /**
      * Find first stats index that matches the requested parameters, starting
      * search around the hinted index as an optimization.
@@ -457,6 +540,16 @@ public class NetworkStats implements Parcelable {
     @VisibleForTesting
     public int findIndexHinted(String iface, int uid, int set, int tag, int metered, int roaming,
             int hintIndex) {
+        if (size >= ROW_INDEX_MIN_SIZE) {
+            // snapshots usually list rows in the same order, so try the hint
+            // before falling back to the hashed lookup
+            if (hintIndex >= 0 && hintIndex < size
+                    && rowMatches(hintIndex, iface, uid, set, tag, metered, roaming)) {
+                return hintIndex;
+            }
+            return findIndex(iface, uid, set, tag, metered, roaming);
+        }
+
         for (int offset = 0; offset < size; offset++) {
             final int halfOffset = offset / 2;
 
@@ -661,6 +754,7 @@ public class NetworkStats implements Parcelable {
         if (recycle != null && recycle.capacity >= left.size) {
             result = recycle;
             result.size = 0;
+            result.clearRowIndex();
             result.elapsedRealtime = deltaRealtime;
         } else {
             result = new NetworkStats(deltaRealtime, left.size);
@@ -169,6 +169,17 @@ public class DropBoxManager {
             mFlags = flags;
         }
 
+        /**
+         * @return an entry with the same contents that holds its own duplicate of the file
+         * descriptor, so that it stays readable after this one is closed.  Entries held in
+         * memory are returned as is.
+         * @hide
+         */
+        public Entry dup() throws IOException {
+            if (mFileDescriptor == null) return this;
+            return new Entry(mTag, mTimeMillis, mFileDescriptor.dup(), mFlags);
+        }
+
         /** Close the input stream associated with this entry. */
         public void close() {
             try { if (mFileDescriptor != null) mFileDescriptor.close(); } catch (IOException e) { }
@@ -183,6 +194,15 @@ public class DropBoxManager {
         /** @return flags describing the content returned by {@link #getInputStream()}. */
         public int getFlags() { return mFlags & ~IS_GZIPPED; }  // getInputStream() decompresses.
 
+        /**
+         * @return the uncompressed contents of the entry if they are held in memory, or null
+         * if they are streamed, compressed or lost.  The array must not be modified.
+         * @hide
+         */
+        public byte[] getByteArray() {
+            return (mFlags & IS_GZIPPED) == 0 ? mData : null;
+        }
+
         /**
          * @param maxBytes of string to return (will truncate at this length).
          * @return the uncompressed text contents of the entry, null if the entry is not text.
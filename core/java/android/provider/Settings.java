@@ -1448,6 +1448,21 @@ public final class Settings {
      */
     public static final String CALL_METHOD_GET_GLOBAL = "GET_global";
 
+    /**
+     * @hide - Private call() method on SettingsProvider to read all of the 'system' table.
+     */
+    public static final String CALL_METHOD_GET_ALL_SYSTEM = "GET_ALL_system";
+
+    /**
+     * @hide - Private call() method on SettingsProvider to read all of the 'secure' table.
+     */
+    public static final String CALL_METHOD_GET_ALL_SECURE = "GET_ALL_secure";
+
+    /**
+     * @hide - Private call() method on SettingsProvider to read all of the 'global' table.
+     */
+    public static final String CALL_METHOD_GET_ALL_GLOBAL = "GET_ALL_global";
+
     /**
      * @hide - Specifies that the caller of the fast-path call()-based flow tracks
      * the settings generation in order to cache values locally. If this key is
@@ -1478,6 +1493,45 @@ public final class Settings {
      */
     public static final String CALL_METHOD_GENERATION_KEY = "_generation";
 
+    /**
+     * @hide Key with the number of per-name generation buckets that follow the table
+     * generation in the {@link android.util.MemoryIntArray}. The value is an integer.
+     *
+     * @see #getGenerationBucket
+     */
+    public static final String CALL_METHOD_GENERATION_BUCKET_COUNT_KEY = "_generation_buckets";
+
+    /**
+     * @hide Key with the generations of the per-name buckets of the table, as they were
+     * before the values in the response were read. The value is an int array.
+     *
+     * @see #CALL_METHOD_GENERATION_BUCKET_COUNT_KEY
+     */
+    public static final String CALL_METHOD_NAME_GENERATIONS_KEY = "_name_generations";
+
+    /**
+     * @hide - String array argument extra to the get-all call()-based requests limiting
+     * the result to names starting with one of the given prefixes.
+     */
+    public static final String CALL_METHOD_PREFIXES_KEY = "_prefixes";
+
+    /**
+     * @hide - String array with the setting names in a get-all call() response.
+     */
+    public static final String CALL_METHOD_NAMES_KEY = "_names";
+
+    /**
+     * @hide - String array with the setting values in a get-all call() response, in the
+     * same order as {@link #CALL_METHOD_NAMES_KEY}.
+     */
+    public static final String CALL_METHOD_VALUES_KEY = "_values";
+
+    /**
+     * @hide - Boolean in a get-all call() response that is true if every matching setting
+     * the caller may read was returned, so names not in the response are not set.
+     */
+    public static final String CALL_METHOD_COMPLETE_KEY = "_complete";
+
     /**
      * @hide - User handle argument extra to the fast-path call()-based requests
      */
@@ -1669,6 +1723,14 @@ public final class Settings {
         }
     }
 
+    /**
+     * @hide Returns which of {@code bucketCount} generation buckets the setting
+     * {@code name} is tracked in. Shared by SettingsProvider and its clients.
+     */
+    public static int getGenerationBucket(String name, int bucketCount) {
+        return (name.hashCode() & Integer.MAX_VALUE) % bucketCount;
+    }
+
     /** @hide */
     public static boolean isInSystemServer() {
         synchronized (sInSystemServerLock) {
@@ -1713,18 +1775,20 @@ public final class Settings {
         private final MemoryIntArray mArray;
         private final Runnable mErrorHandler;
         private final int mIndex;
+        private final int mBucketCount;
         private int mCurrentGeneration;
 
-        public GenerationTracker(@NonNull MemoryIntArray array, int index,
+        public GenerationTracker(@NonNull MemoryIntArray array, int index, int bucketCount,
                 int generation, Runnable errorHandler) {
             mArray = array;
             mIndex = index;
+            mBucketCount = bucketCount;
             mErrorHandler = errorHandler;
             mCurrentGeneration = generation;
         }
 
         public boolean isGenerationChanged() {
-            final int currentGeneration = readCurrentGeneration();
+            final int currentGeneration = readGeneration(mIndex);
             if (currentGeneration >= 0) {
                 if (currentGeneration == mCurrentGeneration) {
                     return false;
@@ -1734,9 +1798,54 @@ public final class Settings {
             return true;
         }
 
-        private int readCurrentGeneration() {
+        /**
+         * @return which entry of {@link #getNameGenerations} tracks {@code name}.
+         */
+        public int getBucket(String name) {
+            return mBucketCount > 0 ? getGenerationBucket(name, mBucketCount) : 0;
+        }
+
+        /**
+         * @return the generation of the bucket {@code name} is tracked in, or -1 if it
+         * can't be read. Always 0 if the table is tracked as a whole.
+         */
+        public int getNameGeneration(String name) {
+            if (mBucketCount <= 0) {
+                return 0;
+            }
+            return readGeneration(mIndex + 1 + getBucket(name));
+        }
+
+        /**
+         * @return the generations of all buckets, or null if they can't be read.
+         */
+        public int[] getNameGenerations() {
+            final int[] generations = new int[Math.max(mBucketCount, 1)];
+            for (int i = 0; i < mBucketCount; i++) {
+                generations[i] = readGeneration(mIndex + 1 + i);
+                if (generations[i] < 0) {
+                    return null;
+                }
+            }
+            return generations;
+        }
+
+        /**
+         * @return the bucket generations a get-all response was read at, or null if it
+         * doesn't have them.
+         */
+        public int[] getNameGenerations(Bundle b) {
+            if (mBucketCount <= 0) {
+                return new int[1];
+            }
+            final int[] generations = b.getIntArray(CALL_METHOD_NAME_GENERATIONS_KEY);
+            return (generations != null && generations.length == mBucketCount)
+                    ? generations : null;
+        }
+
+        private int readGeneration(int index) {
             try {
-                return mArray.get(mIndex);
+                return mArray.get(index);
             } catch (IOException e) {
                 Log.e(TAG, "Error getting current generation", e);
                 if (mErrorHandler != null) {
@@ -1794,21 +1903,35 @@ public final class Settings {
         // Must synchronize on 'this' to access mValues and mValuesVersion.
         private final HashMap<String, String> mValues = new HashMap<>();
 
+        // Generation of the name bucket each value in mValues was read at.
+        @GuardedBy("this")
+        private final HashMap<String, Integer> mValueGenerations = new HashMap<>();
+
         private final Uri mUri;
         private final ContentProviderHolder mProviderHolder;
 
         // The method we'll call (or null, to not use) on the provider
         // for the fast path of retrieving settings.
         private final String mCallGetCommand;
+        private final String mCallGetAllCommand;
         private final String mCallSetCommand;
 
         @GuardedBy("this")
         private GenerationTracker mGenerationTracker;
 
-        public NameValueCache(Uri uri, String getCommand, String setCommand,
-                ContentProviderHolder providerHolder) {
+        // Set by a complete prefetch: names matching these prefixes (all names if null)
+        // that are not in mValues are known to be unset, as long as their bucket is still
+        // at the generation recorded here.
+        @GuardedBy("this")
+        private String[] mPrefetchedPrefixes;
+        @GuardedBy("this")
+        private int[] mPrefetchedGenerations;
+
+        public NameValueCache(Uri uri, String getCommand, String getAllCommand,
+                String setCommand, ContentProviderHolder providerHolder) {
             mUri = uri;
             mCallGetCommand = getCommand;
+            mCallGetAllCommand = getAllCommand;
             mCallSetCommand = setCommand;
             mProviderHolder = providerHolder;
         }
@@ -1836,6 +1959,7 @@ public final class Settings {
 
         public String getStringForUser(ContentResolver cr, String name, final int userHandle) {
             final boolean isSelf = (userHandle == UserHandle.myUserId());
+            int nameGeneration = -1;
             if (isSelf) {
                 synchronized (NameValueCache.this) {
                     if (mGenerationTracker != null) {
@@ -1845,9 +1969,20 @@ public final class Settings {
                                         + mUri.getPath() + " in package:"
                                         + cr.getPackageName() +" and user:" + userHandle);
                             }
-                            mValues.clear();
-                        } else if (mValues.containsKey(name)) {
-                            return mValues.get(name);
+                            clearLocked();
+                        }
+                        // Null if reading the generation failed.
+                        if (mGenerationTracker != null) {
+                            nameGeneration = mGenerationTracker.getNameGeneration(name);
+                        }
+                        if (nameGeneration >= 0) {
+                            if (mValues.containsKey(name)) {
+                                if (mValueGenerations.get(name) == nameGeneration) {
+                                    return mValues.get(name);
+                                }
+                            } else if (isKnownUnsetLocked(name, nameGeneration)) {
+                                return null;
+                            }
                         }
                     }
                 }
@@ -1884,62 +2019,20 @@ public final class Settings {
                             }
                         }
                     }
-                    Bundle b;
-                    // If we're in system server and in a binder transaction we need to clear the
-                    // calling uid. This works around code in system server that did not call
-                    // clearCallingIdentity, previously this wasn't needed because reading settings
-                    // did not do permission checking but thats no longer the case.
-                    // Long term this should be removed and callers should properly call
-                    // clearCallingIdentity or use a ContentResolver from the caller as needed.
-                    if (Settings.isInSystemServer() && Binder.getCallingUid() != Process.myUid()) {
-                        final long token = Binder.clearCallingIdentity();
-                        try {
-                            b = cp.call(cr.getPackageName(), mCallGetCommand, name, args);
-                        } finally {
-                            Binder.restoreCallingIdentity(token);
-                        }
-                    } else {
-                        b = cp.call(cr.getPackageName(), mCallGetCommand, name, args);
-                    }
+                    Bundle b = callProvider(cp, cr, mCallGetCommand, name, args);
                     if (b != null) {
                         String value = b.getString(Settings.NameValueTable.VALUE);
                         // Don't update our cache for reads of other users' data
                         if (isSelf) {
                             synchronized (NameValueCache.this) {
                                 if (needsGenerationTracker) {
-                                    MemoryIntArray array = b.getParcelable(
-                                            CALL_METHOD_TRACK_GENERATION_KEY);
-                                    final int index = b.getInt(
-                                            CALL_METHOD_GENERATION_INDEX_KEY, -1);
-                                    if (array != null && index >= 0) {
-                                        final int generation = b.getInt(
-                                                CALL_METHOD_GENERATION_KEY, 0);
-                                        if (DEBUG) {
-                                            Log.i(TAG, "Received generation tracker for type:"
-                                                    + mUri.getPath() + " in package:"
-                                                    + cr.getPackageName() + " and user:"
-                                                    + userHandle + " with index:" + index);
-                                        }
-                                        if (mGenerationTracker != null) {
-                                            mGenerationTracker.destroy();
-                                        }
-                                        mGenerationTracker = new GenerationTracker(array, index,
-                                                generation, () -> {
-                                            synchronized (NameValueCache.this) {
-                                                Log.e(TAG, "Error accessing generation"
-                                                        + " tracker - removing");
-                                                if (mGenerationTracker != null) {
-                                                    GenerationTracker generationTracker =
-                                                            mGenerationTracker;
-                                                    mGenerationTracker = null;
-                                                    generationTracker.destroy();
-                                                    mValues.clear();
-                                                }
-                                            }
-                                        });
-                                    }
+                                    // The value isn't cached: by the time the generation
+                                    // can be read here it may already be newer than the
+                                    // value. Reads from now on cache what they get.
+                                    maybeCreateGenerationTrackerLocked(b, cr, userHandle);
+                                } else {
+                                    putValueLocked(name, value, nameGeneration);
                                 }
-                                mValues.put(name, value);
                             }
                         } else {
                             if (LOCAL_LOGV) Log.i(TAG, "call-query of user " + userHandle
@@ -1979,8 +2072,10 @@ public final class Settings {
                 }
 
                 String value = c.moveToNext() ? c.getString(0) : null;
-                synchronized (NameValueCache.this) {
-                    mValues.put(name, value);
+                if (isSelf) {
+                    synchronized (NameValueCache.this) {
+                        putValueLocked(name, value, nameGeneration);
+                    }
                 }
                 if (LOCAL_LOGV) {
                     Log.v(TAG, "cache miss [" + mUri.getLastPathSegment() + "]: " +
@@ -1994,6 +2089,177 @@ public final class Settings {
                 if (c != null) c.close();
             }
         }
+
+        /**
+         * Reads all settings of the calling user, or those whose names start with one of
+         * {@code prefixes}, in a single call and caches them.
+         */
+        public void prefetch(ContentResolver cr, String[] prefixes) {
+            if (mCallGetAllCommand == null) {
+                return;
+            }
+            final int userHandle = UserHandle.myUserId();
+            final Bundle args = new Bundle();
+            if (prefixes != null) {
+                args.putStringArray(CALL_METHOD_PREFIXES_KEY, prefixes);
+            }
+
+            // Generations are read before the call so that anything changing while it is in
+            // flight is refetched on the next read.
+            final GenerationTracker tracker;
+            int[] generations = null;
+            synchronized (NameValueCache.this) {
+                if (mGenerationTracker != null && mGenerationTracker.isGenerationChanged()) {
+                    clearLocked();
+                }
+                tracker = mGenerationTracker;
+                if (tracker != null) {
+                    generations = tracker.getNameGenerations();
+                } else {
+                    args.putString(CALL_METHOD_TRACK_GENERATION_KEY, null);
+                }
+            }
+
+            final Bundle b;
+            try {
+                b = callProvider(mProviderHolder.getProvider(cr), cr, mCallGetAllCommand, null,
+                        args);
+            } catch (RemoteException e) {
+                Log.w(TAG, "Can't prefetch " + mUri, e);
+                return;
+            }
+            if (b == null) {
+                return;
+            }
+            final String[] names = b.getStringArray(CALL_METHOD_NAMES_KEY);
+            final String[] values = b.getStringArray(CALL_METHOD_VALUES_KEY);
+            if (names == null || values == null || names.length != values.length) {
+                return;
+            }
+
+            synchronized (NameValueCache.this) {
+                if (tracker == null) {
+                    if (mGenerationTracker == null) {
+                        maybeCreateGenerationTrackerLocked(b, cr, userHandle);
+                    }
+                    // Use the generations the provider read before the values; reading
+                    // them now could pick up changes the values miss.
+                    if (mGenerationTracker != null) {
+                        generations = mGenerationTracker.getNameGenerations(b);
+                    }
+                } else if (tracker != mGenerationTracker
+                        || mGenerationTracker.isGenerationChanged()) {
+                    clearLocked();
+                    return;
+                }
+                if (mGenerationTracker == null || generations == null) {
+                    return;
+                }
+
+                for (int i = 0; i < names.length; i++) {
+                    putValueLocked(names[i], values[i],
+                            generations[mGenerationTracker.getBucket(names[i])]);
+                }
+                if (b.getBoolean(CALL_METHOD_COMPLETE_KEY)) {
+                    mPrefetchedPrefixes = prefixes;
+                    mPrefetchedGenerations = generations;
+                }
+                if (DEBUG) {
+                    Log.i(TAG, "Prefetched " + names.length + " settings for type:"
+                            + mUri.getPath() + " in package:" + cr.getPackageName());
+                }
+            }
+        }
+
+        private Bundle callProvider(IContentProvider cp, ContentResolver cr, String method,
+                String name, Bundle args) throws RemoteException {
+            // If we're in system server and in a binder transaction we need to clear the
+            // calling uid. This works around code in system server that did not call
+            // clearCallingIdentity, previously this wasn't needed because reading settings
+            // did not do permission checking but thats no longer the case.
+            // Long term this should be removed and callers should properly call
+            // clearCallingIdentity or use a ContentResolver from the caller as needed.
+            if (Settings.isInSystemServer() && Binder.getCallingUid() != Process.myUid()) {
+                final long token = Binder.clearCallingIdentity();
+                try {
+                    return cp.call(cr.getPackageName(), method, name, args);
+                } finally {
+                    Binder.restoreCallingIdentity(token);
+                }
+            }
+            return cp.call(cr.getPackageName(), method, name, args);
+        }
+
+        @GuardedBy("this")
+        private void maybeCreateGenerationTrackerLocked(Bundle b, ContentResolver cr,
+                int userHandle) {
+            MemoryIntArray array = b.getParcelable(CALL_METHOD_TRACK_GENERATION_KEY);
+            final int index = b.getInt(CALL_METHOD_GENERATION_INDEX_KEY, -1);
+            if (array == null || index < 0) {
+                return;
+            }
+            final int generation = b.getInt(CALL_METHOD_GENERATION_KEY, 0);
+            final int bucketCount = b.getInt(CALL_METHOD_GENERATION_BUCKET_COUNT_KEY, 0);
+            if (DEBUG) {
+                Log.i(TAG, "Received generation tracker for type:"
+                        + mUri.getPath() + " in package:"
+                        + cr.getPackageName() + " and user:"
+                        + userHandle + " with index:" + index);
+            }
+            if (mGenerationTracker != null) {
+                mGenerationTracker.destroy();
+            }
+            mGenerationTracker = new GenerationTracker(array, index, bucketCount,
+                    generation, () -> {
+                synchronized (NameValueCache.this) {
+                    Log.e(TAG, "Error accessing generation"
+                            + " tracker - removing");
+                    if (mGenerationTracker != null) {
+                        GenerationTracker generationTracker =
+                                mGenerationTracker;
+                        mGenerationTracker = null;
+                        generationTracker.destroy();
+                        clearLocked();
+                    }
+                }
+            });
+        }
+
+        @GuardedBy("this")
+        private void putValueLocked(String name, String value, int nameGeneration) {
+            // Without the generation the value was read at there is no way to validate it.
+            if (nameGeneration < 0) {
+                return;
+            }
+            mValues.put(name, value);
+            mValueGenerations.put(name, nameGeneration);
+        }
+
+        @GuardedBy("this")
+        private boolean isKnownUnsetLocked(String name, int nameGeneration) {
+            if (mPrefetchedGenerations == null
+                    || mPrefetchedGenerations[mGenerationTracker.getBucket(name)]
+                            != nameGeneration) {
+                return false;
+            }
+            if (mPrefetchedPrefixes == null) {
+                return true;
+            }
+            for (String prefix : mPrefetchedPrefixes) {
+                if (name.startsWith(prefix)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @GuardedBy("this")
+        private void clearLocked() {
+            mValues.clear();
+            mValueGenerations.clear();
+            mPrefetchedPrefixes = null;
+            mPrefetchedGenerations = null;
+        }
     }
 
     /**
@@ -2039,6 +2305,7 @@ public final class Settings {
         private static final NameValueCache sNameValueCache = new NameValueCache(
                 CONTENT_URI,
                 CALL_METHOD_GET_SYSTEM,
+                CALL_METHOD_GET_ALL_SYSTEM,
                 CALL_METHOD_PUT_SYSTEM,
                 sProviderHolder);
 
@@ -2208,6 +2475,18 @@ public final class Settings {
             return sNameValueCache.getStringForUser(resolver, name, userHandle);
         }
 
+        /**
+         * Reads all of this table, or only the settings whose names start with one of
+         * {@code prefixes}, into the local cache with a single call to the settings
+         * provider. Call this before reading many settings, e.g. during startup.
+         * @param resolver to access the database with
+         * @param prefixes limit the settings read to these name prefixes; all if empty
+         * @hide
+         */
+        public static void prefetch(ContentResolver resolver, String... prefixes) {
+            sNameValueCache.prefetch(resolver, prefixes.length > 0 ? prefixes : null);
+        }
+
         /**
          * Store a name/value pair into the database.
          * @param resolver to access the database with
@@ -4824,6 +5103,7 @@ public final class Settings {
         private static final NameValueCache sNameValueCache = new NameValueCache(
                 CONTENT_URI,
                 CALL_METHOD_GET_SECURE,
+                CALL_METHOD_GET_ALL_SECURE,
                 CALL_METHOD_PUT_SECURE,
                 sProviderHolder);
 
@@ -5011,6 +5291,18 @@ public final class Settings {
             return sNameValueCache.getStringForUser(resolver, name, userHandle);
         }
 
+        /**
+         * Reads all of this table, or only the settings whose names start with one of
+         * {@code prefixes}, into the local cache with a single call to the settings
+         * provider. Call this before reading many settings, e.g. during startup.
+         * @param resolver to access the database with
+         * @param prefixes limit the settings read to these name prefixes; all if empty
+         * @hide
+         */
+        public static void prefetch(ContentResolver resolver, String... prefixes) {
+            sNameValueCache.prefetch(resolver, prefixes.length > 0 ? prefixes : null);
+        }
+
         /**
          * Store a name/value pair into the database.
          * @param resolver to access the database with
@@ -10395,6 +10687,7 @@ public final class Settings {
         private static final NameValueCache sNameValueCache = new NameValueCache(
                     CONTENT_URI,
                     CALL_METHOD_GET_GLOBAL,
+                    CALL_METHOD_GET_ALL_GLOBAL,
                     CALL_METHOD_PUT_GLOBAL,
                     sProviderHolder);
 
@@ -10431,6 +10724,18 @@ public final class Settings {
             return sNameValueCache.getStringForUser(resolver, name, userHandle);
         }
 
+        /**
+         * Reads all of this table, or only the settings whose names start with one of
+         * {@code prefixes}, into the local cache with a single call to the settings
+         * provider. Call this before reading many settings, e.g. during startup.
+         * @param resolver to access the database with
+         * @param prefixes limit the settings read to these name prefixes; all if empty
+         * @hide
+         */
+        public static void prefetch(ContentResolver resolver, String... prefixes) {
+            sNameValueCache.prefetch(resolver, prefixes.length > 0 ? prefixes : null);
+        }
+
         /**
          * Store a name/value pair into the database.
          * @param resolver to access the database with
@@ -264,6 +264,10 @@ public abstract class NotificationListenerService extends Service {
 
     @GuardedBy("mLock")
     private RankingMap mRankingMap;
+    // True from asking for a ranking snapshot until one arrives. The deltas that were already on
+    // their way are dropped quietly in the meantime.
+    @GuardedBy("mLock")
+    private boolean mRankingSnapshotRequested;
 
     private INotificationManager mNoMan;
 
@@ -1295,6 +1299,30 @@ public abstract class NotificationListenerService extends Service {
      * @hide
      */
     public final void applyUpdateLocked(NotificationRankingUpdate update) {
+        if (update.isDelta()) {
+            final NotificationRankingUpdate merged =
+                    update.applyTo(mRankingMap != null ? mRankingMap.mRankingUpdate : null);
+            if (merged == null) {
+                // Missed the update this delta builds on; keep what we have until the system
+                // sends a full snapshot.
+                if (mRankingSnapshotRequested) {
+                    return;
+                }
+                mRankingSnapshotRequested = true;
+                Log.w(TAG, "Ranking update " + update.getVersion() + " doesn't apply on top of "
+                        + (mRankingMap != null ? mRankingMap.mRankingUpdate.getVersion() : "none")
+                        + ", requesting a snapshot");
+                try {
+                    getNotificationInterface().requestRankingSnapshotFromListener(mWrapper);
+                } catch (android.os.RemoteException ex) {
+                    Log.v(TAG, "Unable to contact notification manager", ex);
+                }
+                return;
+            }
+            update = merged;
+        } else {
+            mRankingSnapshotRequested = false;
+        }
         mRankingMap = new RankingMap(update);
     }
 
@@ -18,12 +18,25 @@ package android.service.notification;
 import android.os.Bundle;
 import android.os.Parcel;
 import android.os.Parcelable;
+import android.util.ArraySet;
+
+import java.util.ArrayList;
+import java.util.Collections;
 
 /**
+ * Ranking of the notifications visible to a listener.
+ *
+ * <p>An update is either a full snapshot or a delta against the update with version
+ * {@link #getBaseVersion()}. A delta still carries the complete key order, intercepted keys and
+ * importances, but its bundles only hold entries for {@link #getChangedKeys()}; a changed key
+ * missing from a bundle has no value for it anymore.
+ *
  * @hide
  */
 public class NotificationRankingUpdate implements Parcelable {
-    // TODO: Support incremental updates.
+    /** Base version of a full snapshot. */
+    public static final int NO_BASE_VERSION = -1;
+
     private final String[] mKeys;
     private final String[] mInterceptedKeys;
     private final Bundle mVisibilityOverrides;
@@ -35,12 +48,29 @@ public class NotificationRankingUpdate implements Parcelable {
     private final Bundle mOverridePeople;
     private final Bundle mSnoozeCriteria;
     private final Bundle mShowBadge;
+    private final int mVersion;
+    private final int mBaseVersion;
+    private final String[] mChangedKeys;
 
     public NotificationRankingUpdate(String[] keys, String[] interceptedKeys,
             Bundle visibilityOverrides, Bundle suppressedVisualEffects,
             int[] importance, Bundle explanation, Bundle overrideGroupKeys,
             Bundle channels, Bundle overridePeople, Bundle snoozeCriteria,
             Bundle showBadge) {
+        this(keys, interceptedKeys, visibilityOverrides, suppressedVisualEffects, importance,
+                explanation, overrideGroupKeys, channels, overridePeople, snoozeCriteria,
+                showBadge, 0, NO_BASE_VERSION, null);
+    }
+
+    /**
+     * @param changedKeys the keys whose entries the bundles describe if this is a delta, or null
+     *     for a full snapshot.
+     */
+    public NotificationRankingUpdate(String[] keys, String[] interceptedKeys,
+            Bundle visibilityOverrides, Bundle suppressedVisualEffects,
+            int[] importance, Bundle explanation, Bundle overrideGroupKeys,
+            Bundle channels, Bundle overridePeople, Bundle snoozeCriteria,
+            Bundle showBadge, int version, int baseVersion, String[] changedKeys) {
         mKeys = keys;
         mInterceptedKeys = interceptedKeys;
         mVisibilityOverrides = visibilityOverrides;
@@ -52,6 +82,9 @@ public class NotificationRankingUpdate implements Parcelable {
         mOverridePeople = overridePeople;
         mSnoozeCriteria = snoozeCriteria;
         mShowBadge = showBadge;
+        mVersion = version;
+        mBaseVersion = changedKeys == null ? NO_BASE_VERSION : baseVersion;
+        mChangedKeys = changedKeys;
     }
 
     public NotificationRankingUpdate(Parcel in) {
@@ -67,6 +100,9 @@ public class NotificationRankingUpdate implements Parcelable {
         mOverridePeople = in.readBundle();
         mSnoozeCriteria = in.readBundle();
         mShowBadge = in.readBundle();
+        mVersion = in.readInt();
+        mBaseVersion = in.readInt();
+        mChangedKeys = in.readStringArray();
     }
 
     @Override
@@ -87,6 +123,9 @@ public class NotificationRankingUpdate implements Parcelable {
         out.writeBundle(mOverridePeople);
         out.writeBundle(mSnoozeCriteria);
         out.writeBundle(mShowBadge);
+        out.writeInt(mVersion);
+        out.writeInt(mBaseVersion);
+        out.writeStringArray(mChangedKeys);
     }
 
     public static final Parcelable.Creator<NotificationRankingUpdate> CREATOR
@@ -143,4 +182,63 @@ public class NotificationRankingUpdate implements Parcelable {
     public Bundle getShowBadge() {
         return mShowBadge;
     }
+
+    public int getVersion() {
+        return mVersion;
+    }
+
+    public int getBaseVersion() {
+        return mBaseVersion;
+    }
+
+    public boolean isDelta() {
+        return mChangedKeys != null;
+    }
+
+    public String[] getChangedKeys() {
+        return mChangedKeys;
+    }
+
+    /**
+     * Applies this delta on top of {@code previous}.
+     *
+     * @return the resulting full snapshot, or null if {@code previous} isn't the update this
+     *     delta was made against.
+     */
+    public NotificationRankingUpdate applyTo(NotificationRankingUpdate previous) {
+        if (!isDelta()) {
+            return this;
+        }
+        if (previous == null || previous.mVersion != mBaseVersion) {
+            return null;
+        }
+        final ArraySet<String> keys = new ArraySet<>(mKeys.length);
+        Collections.addAll(keys, mKeys);
+        final ArraySet<String> changed = new ArraySet<>(mChangedKeys.length);
+        Collections.addAll(changed, mChangedKeys);
+        return new NotificationRankingUpdate(mKeys, mInterceptedKeys,
+                merge(previous.mVisibilityOverrides, mVisibilityOverrides, keys, changed),
+                merge(previous.mSuppressedVisualEffects, mSuppressedVisualEffects, keys, changed),
+                mImportance,
+                merge(previous.mImportanceExplanation, mImportanceExplanation, keys, changed),
+                merge(previous.mOverrideGroupKeys, mOverrideGroupKeys, keys, changed),
+                merge(previous.mChannels, mChannels, keys, changed),
+                merge(previous.mOverridePeople, mOverridePeople, keys, changed),
+                merge(previous.mSnoozeCriteria, mSnoozeCriteria, keys, changed),
+                merge(previous.mShowBadge, mShowBadge, keys, changed),
+                mVersion, NO_BASE_VERSION, null);
+    }
+
+    private static Bundle merge(Bundle previous, Bundle delta, ArraySet<String> keys,
+            ArraySet<String> changed) {
+        final Bundle merged = new Bundle(previous);
+        // Drop entries of notifications that are gone, and stale ones of changed notifications.
+        for (String key : new ArrayList<>(merged.keySet())) {
+            if (!keys.contains(key) || changed.contains(key)) {
+                merged.remove(key);
+            }
+        }
+        merged.putAll(delta);
+        return merged;
+    }
 }
@@ -24,9 +24,11 @@ public class NetworkStatsBenchmark {
     private static final String TUN_IFACE = "tun0";
     private static final int TUN_UID = 999999999;
 
-    @Param({"100", "1000"})
+    @Param({"100", "1000", "10000"})
     private int mSize;
     private NetworkStats mNetworkStats;
+    private NetworkStats mNextNetworkStats;
+    private NetworkStats mRecycle;
 
     @BeforeExperiment
     protected void setUp() throws Exception {
@@ -58,6 +60,23 @@ public class NetworkStatsBenchmark {
         recycle.txPackets = 1200 * mSize;
         recycle.operations = 0;
         mNetworkStats.addValues(recycle);
+
+        // Build a later snapshot listing the same rows in reverse order, plus
+        // some new rows, so that subtract() can't rely on matching positions.
+        mNextNetworkStats = new NetworkStats(1000, mNetworkStats.size() + mSize / 10);
+        for (int i = mNetworkStats.size() - 1; i >= 0; i--) {
+            recycle = mNetworkStats.getValues(i, recycle);
+            recycle.rxBytes += 1000;
+            recycle.txBytes += 2000;
+            mNextNetworkStats.addValues(recycle);
+        }
+        for (int i = 0; i < mSize / 10; i++) {
+            recycle.iface = UNDERLYING_IFACE;
+            recycle.uid = TUN_UID + 1 + i;
+            recycle.set = NetworkStats.SET_DEFAULT;
+            recycle.tag = NetworkStats.TAG_NONE;
+            mNextNetworkStats.addValues(recycle);
+        }
     }
 
     public void timeMigrateTun(int reps) {
@@ -77,4 +96,31 @@ public class NetworkStatsBenchmark {
             NetworkStats stats = mNetworkStats.clone();
         }
     }
+
+    public void timeSubtract(int reps) {
+        for (int i = 0; i < reps; i++) {
+            // Clone the old snapshot so each rep starts without a built row index.
+            NetworkStats.subtract(mNextNetworkStats, mNetworkStats.clone(), null, null);
+        }
+    }
+
+    public void timeSubtractRecycled(int reps) {
+        for (int i = 0; i < reps; i++) {
+            mRecycle = NetworkStats.subtract(
+                    mNextNetworkStats, mNetworkStats.clone(), null, null, mRecycle);
+        }
+    }
+
+    public void timeGroupedByUid(int reps) {
+        for (int i = 0; i < reps; i++) {
+            mNextNetworkStats.groupedByUid();
+        }
+    }
+
+    public void timeCombineAllValues(int reps) {
+        for (int i = 0; i < reps; i++) {
+            NetworkStats stats = mNetworkStats.clone();
+            stats.combineAllValues(mNextNetworkStats);
+        }
+    }
 }
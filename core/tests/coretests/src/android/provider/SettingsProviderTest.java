@@ -26,9 +26,11 @@ import android.content.pm.ResolveInfo;
 import android.content.pm.UserInfo;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Bundle;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.test.AndroidTestCase;
+import android.util.MemoryIntArray;
 import android.test.suitebuilder.annotation.MediumTest;
 import android.test.suitebuilder.annotation.SmallTest;
 import android.test.suitebuilder.annotation.Suppress;
@@ -187,6 +189,50 @@ public class SettingsProviderTest extends AndroidTestCase {
         }
     }
 
+    @MediumTest
+    public void testProfileSoundGenerationChangesWithSyncParentSounds() throws Exception {
+        UserManager um = (UserManager) getContext().getSystemService(Context.USER_SERVICE);
+        ContentResolver r = getContext().getContentResolver();
+
+        UserInfo profile = um.createProfileForUser("TestProfile", UserInfo.FLAG_MANAGED_PROFILE,
+                UserHandle.myUserId());
+        if (profile == null) {
+            // Managed profiles aren't supported on this device.
+            return;
+        }
+        try {
+            // Read the profile's own ringtone, as the profile's cache would.
+            Settings.Secure.putIntForUser(r, Settings.Secure.SYNC_PARENT_SOUNDS, 0, profile.id);
+            Bundle args = new Bundle();
+            args.putInt(Settings.CALL_METHOD_USER_KEY, profile.id);
+            args.putString(Settings.CALL_METHOD_TRACK_GENERATION_KEY, null);
+            Bundle b = r.call(Settings.System.CONTENT_URI, Settings.CALL_METHOD_GET_SYSTEM,
+                    Settings.System.RINGTONE, args);
+            assertNotNull(b);
+            MemoryIntArray generations = b.getParcelable(Settings.CALL_METHOD_TRACK_GENERATION_KEY);
+            assertNotNull(generations);
+            try {
+                int index = b.getInt(Settings.CALL_METHOD_GENERATION_INDEX_KEY);
+                int bucketCount = b.getInt(Settings.CALL_METHOD_GENERATION_BUCKET_COUNT_KEY);
+                if (bucketCount > 0) {
+                    index += 1 + Settings.getGenerationBucket(Settings.System.RINGTONE,
+                            bucketCount);
+                }
+                int generation = generations.get(index);
+
+                // Now the ringtone is read from the parent, so the cached one is stale.
+                Settings.Secure.putIntForUser(r, Settings.Secure.SYNC_PARENT_SOUNDS, 1,
+                        profile.id);
+                assertTrue("Ringtone generation of the profile didn't change",
+                        generations.get(index) != generation);
+            } finally {
+                generations.close();
+            }
+        } finally {
+            um.removeUser(profile.id);
+        }
+    }
+
     @MediumTest
     @Suppress  // Settings.Bookmarks uses a query format that's not supported now.
     public void testRowNumberContentUri() {
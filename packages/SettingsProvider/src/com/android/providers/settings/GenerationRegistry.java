@@ -30,12 +30,23 @@ import java.io.IOException;
  * This class tracks changes for global/secure/system tables on a
  * per user basis and updates a shared memory region which client
  * processes can read to determine if their local caches are stale,
+ * <p>
+ * Each table gets a block of slots: the first holds the table generation,
+ * which changes when the table as a whole changes, and the rest hold the
+ * generations of buckets of setting names (see
+ * {@link Settings#getGenerationBucket}), so that changing one setting only
+ * invalidates cached values that hash to the same bucket.
+ * </p>
  */
 final class GenerationRegistry {
     private static final String LOG_TAG = "GenerationRegistry";
 
     private static final boolean DEBUG = false;
 
+    // Upper bound on name buckets per table; fewer are used if the tables would not
+    // fit in a MemoryIntArray.
+    private static final int MAX_NAME_BUCKET_COUNT = 31;
+
     private final Object mLock;
 
     @GuardedBy("mLock")
@@ -44,17 +55,31 @@ final class GenerationRegistry {
     @GuardedBy("mLock")
     private MemoryIntArray mBackingStore;
 
+    @GuardedBy("mLock")
+    private int mBucketCount;
+
     public GenerationRegistry(Object lock) {
         mLock = lock;
     }
 
     public void incrementGeneration(int key) {
+        incrementGeneration(key, null);
+    }
+
+    /**
+     * Marks a setting as changed, or the whole table if {@code name} is null.
+     */
+    public void incrementGeneration(int key, String name) {
         synchronized (mLock) {
             MemoryIntArray backingStore = getBackingStoreLocked();
             if (backingStore != null) {
                 try {
-                    final int index = getKeyIndexLocked(key, mKeyToIndexMap, backingStore);
+                    int index = getKeyIndexLocked(key, mKeyToIndexMap, backingStore,
+                            mBucketCount);
                     if (index >= 0) {
+                        if (name != null && mBucketCount > 0) {
+                            index += 1 + Settings.getGenerationBucket(name, mBucketCount);
+                        }
                         final int generation = backingStore.get(index) + 1;
                         backingStore.set(index, generation);
                     }
@@ -71,13 +96,24 @@ final class GenerationRegistry {
             MemoryIntArray backingStore = getBackingStoreLocked();
             try {
                 if (backingStore != null) {
-                    final int index = getKeyIndexLocked(key, mKeyToIndexMap, backingStore);
+                    final int index = getKeyIndexLocked(key, mKeyToIndexMap, backingStore,
+                            mBucketCount);
                     if (index >= 0) {
                         bundle.putParcelable(Settings.CALL_METHOD_TRACK_GENERATION_KEY,
                                 backingStore);
                         bundle.putInt(Settings.CALL_METHOD_GENERATION_INDEX_KEY, index);
                         bundle.putInt(Settings.CALL_METHOD_GENERATION_KEY,
                                 backingStore.get(index));
+                        bundle.putInt(Settings.CALL_METHOD_GENERATION_BUCKET_COUNT_KEY,
+                                mBucketCount);
+                        if (mBucketCount > 0) {
+                            final int[] nameGenerations = new int[mBucketCount];
+                            for (int i = 0; i < mBucketCount; i++) {
+                                nameGenerations[i] = backingStore.get(index + 1 + i);
+                            }
+                            bundle.putIntArray(Settings.CALL_METHOD_NAME_GENERATIONS_KEY,
+                                    nameGenerations);
+                        }
                         if (DEBUG) {
                             Slog.i(LOG_TAG, "Exported index:" + index + " for key:"
                                     + SettingsProvider.keyToString(key));
@@ -98,11 +134,13 @@ final class GenerationRegistry {
                 try {
                     final int secureKey = SettingsProvider.makeKey(
                             SettingsProvider.SETTINGS_TYPE_SECURE, userId);
-                    resetSlotForKeyLocked(secureKey, mKeyToIndexMap, backingStore);
+                    resetSlotForKeyLocked(secureKey, mKeyToIndexMap, backingStore,
+                            mBucketCount);
 
                     final int systemKey = SettingsProvider.makeKey(
                             SettingsProvider.SETTINGS_TYPE_SYSTEM, userId);
-                    resetSlotForKeyLocked(systemKey, mKeyToIndexMap, backingStore);
+                    resetSlotForKeyLocked(systemKey, mKeyToIndexMap, backingStore,
+                            mBucketCount);
                 } catch (IOException e) {
                     Slog.e(LOG_TAG, "Error cleaning up for user", e);
                     destroyBackingStore();
@@ -117,9 +155,12 @@ final class GenerationRegistry {
             // managed profile (managed profile is not included in the max user
             // count), ten for partially deleted users if users are quickly removed,
             // and twice max user count for system and secure.
-            final int size = 1 + 2 + 10 + 2 * UserManager.getMaxSupportedUsers();
+            final int tableCount = 1 + 2 + 10 + 2 * UserManager.getMaxSupportedUsers();
+            final int blockSize = Math.max(1, Math.min(1 + MAX_NAME_BUCKET_COUNT,
+                    MemoryIntArray.getMaxSize() / tableCount));
             try {
-                mBackingStore = new MemoryIntArray(size);
+                mBackingStore = new MemoryIntArray(tableCount * blockSize);
+                mBucketCount = blockSize - 1;
                 if (DEBUG) {
                     Slog.e(LOG_TAG, "Created backing store " + mBackingStore);
                 }
@@ -145,11 +186,13 @@ final class GenerationRegistry {
     }
 
     private static void resetSlotForKeyLocked(int key, SparseIntArray keyToIndexMap,
-            MemoryIntArray backingStore) throws IOException {
+            MemoryIntArray backingStore, int bucketCount) throws IOException {
         final int index = keyToIndexMap.get(key, -1);
         if (index >= 0) {
             keyToIndexMap.delete(key);
-            backingStore.set(index, 0);
+            for (int i = 0; i <= bucketCount; i++) {
+                backingStore.set(index + i, 0);
+            }
             if (DEBUG) {
                 Slog.i(LOG_TAG, "Freed index:" + index + " for key:"
                         + SettingsProvider.keyToString(key));
@@ -158,10 +201,10 @@ final class GenerationRegistry {
     }
 
     private static int getKeyIndexLocked(int key, SparseIntArray keyToIndexMap,
-            MemoryIntArray backingStore) throws IOException {
+            MemoryIntArray backingStore, int bucketCount) throws IOException {
         int index = keyToIndexMap.get(key, -1);
         if (index < 0) {
-            index = findNextEmptyIndex(backingStore);
+            index = findNextEmptyIndex(backingStore, bucketCount + 1);
             if (index >= 0) {
                 backingStore.set(index, 1);
                 keyToIndexMap.append(key, index);
@@ -176,9 +219,10 @@ final class GenerationRegistry {
         return index;
     }
 
-    private static int findNextEmptyIndex(MemoryIntArray backingStore) throws IOException {
+    private static int findNextEmptyIndex(MemoryIntArray backingStore, int blockSize)
+            throws IOException {
         final int size = backingStore.size();
-        for (int i = 0; i < size; i++) {
+        for (int i = 0; i + blockSize <= size; i += blockSize) {
             if (backingStore.get(i) == 0) {
                 return i;
             }
@@ -39,6 +39,7 @@ class SettingsProtoDumpUtil {
                 SettingsProvider.SETTINGS_TYPE_GLOBAL, UserHandle.USER_SYSTEM);
         long globalSettingsToken = proto.start(SettingsServiceDumpProto.GLOBAL_SETTINGS);
         dumpProtoGlobalSettingsLocked(globalSettings, proto);
+        globalSettings.dumpProtoPersistenceStats(proto, GlobalSettingsProto.PERSISTENCE_STATS);
         proto.end(globalSettingsToken);
 
         // Per-user settings
@@ -69,12 +70,14 @@ class SettingsProtoDumpUtil {
                 SettingsProvider.SETTINGS_TYPE_SECURE, user.getIdentifier());
         long secureSettingsToken = proto.start(UserSettingsProto.SECURE_SETTINGS);
         dumpProtoSecureSettingsLocked(secureSettings, proto);
+        secureSettings.dumpProtoPersistenceStats(proto, SecureSettingsProto.PERSISTENCE_STATS);
         proto.end(secureSettingsToken);
 
         SettingsState systemSettings = settingsRegistry.getSettingsLocked(
                 SettingsProvider.SETTINGS_TYPE_SYSTEM, user.getIdentifier());
         long systemSettingsToken = proto.start(UserSettingsProto.SYSTEM_SETTINGS);
         dumpProtoSystemSettingsLocked(systemSettings, proto);
+        systemSettings.dumpProtoPersistenceStats(proto, SystemSettingsProto.PERSISTENCE_STATS);
         proto.end(systemSettingsToken);
     }
 
@@ -354,6 +354,29 @@ public class SettingsProvider extends ContentProvider {
                 return packageValueForCallResult(setting, isTrackingGeneration(args));
             }
 
+            case Settings.CALL_METHOD_GET_ALL_GLOBAL: {
+                Bundle result = newValuesCallResult(
+                        makeKey(SETTINGS_TYPE_GLOBAL, UserHandle.USER_SYSTEM), args);
+                return packageValuesForCallResult(result, getAllGlobalSettings(null), args,
+                        true);
+            }
+
+            case Settings.CALL_METHOD_GET_ALL_SECURE: {
+                Bundle result = newValuesCallResult(
+                        makeKey(SETTINGS_TYPE_SECURE, requestingUserId), args);
+                return packageValuesForCallResult(result,
+                        getAllSecureSettings(requestingUserId, null), args,
+                        !hasSettingsClonedFromParent(requestingUserId));
+            }
+
+            case Settings.CALL_METHOD_GET_ALL_SYSTEM: {
+                Bundle result = newValuesCallResult(
+                        makeKey(SETTINGS_TYPE_SYSTEM, requestingUserId), args);
+                return packageValuesForCallResult(result,
+                        getAllSystemSettings(requestingUserId, null), args,
+                        !hasSettingsClonedFromParent(requestingUserId));
+            }
+
             case Settings.CALL_METHOD_PUT_GLOBAL: {
                 String value = getSettingValue(args);
                 String tag = getSettingTag(args);
@@ -690,6 +713,7 @@ public class SettingsProvider extends ContentProvider {
                 dumpSettingsLocked(globalSettings, pw);
                 pw.println();
                 globalSettings.dumpHistoricalOperations(pw);
+                globalSettings.dumpPersistenceStats(pw);
             }
         }
 
@@ -700,6 +724,7 @@ public class SettingsProvider extends ContentProvider {
             dumpSettingsLocked(secureSettings, pw);
             pw.println();
             secureSettings.dumpHistoricalOperations(pw);
+            secureSettings.dumpPersistenceStats(pw);
         }
 
         pw.println("SYSTEM SETTINGS (user " + userId + ")");
@@ -709,6 +734,7 @@ public class SettingsProvider extends ContentProvider {
             dumpSettingsLocked(systemSettings, pw);
             pw.println();
             systemSettings.dumpHistoricalOperations(pw);
+            systemSettings.dumpPersistenceStats(pw);
         }
     }
 
@@ -1689,15 +1715,15 @@ public class SettingsProvider extends ContentProvider {
         }
     }
 
-    private List<String> getSettingsNamesLocked(int settingsType, int userId) {
-        boolean instantApp;
+    private boolean isCallerInstantApp() {
         if (UserHandle.getAppId(Binder.getCallingUid()) < Process.FIRST_APPLICATION_UID) {
-            instantApp = false;
-        } else {
-            ApplicationInfo ai = getCallingApplicationInfoOrThrow();
-            instantApp = ai.isInstantApp();
+            return false;
         }
-        if (instantApp) {
+        return getCallingApplicationInfoOrThrow().isInstantApp();
+    }
+
+    private List<String> getSettingsNamesLocked(int settingsType, int userId) {
+        if (isCallerInstantApp()) {
             return new ArrayList<String>(getInstantAppAccessibleSettings(settingsType));
         } else {
             return mSettingsRegistry.getSettingsNamesLocked(settingsType, userId);
@@ -1910,6 +1936,73 @@ public class SettingsProvider extends ContentProvider {
         return result;
     }
 
+    /**
+     * Starts the result of a get-all call. The generations are added before the table is
+     * read, so that a write racing with the read leaves the caller with values that are
+     * newer than their generations, which are only refetched, never stale ones.
+     */
+    private Bundle newValuesCallResult(int key, Bundle args) {
+        Bundle result = new Bundle();
+        if (isTrackingGeneration(args)) {
+            mSettingsRegistry.mGenerationRegistry.addGenerationData(result, key);
+        }
+        return result;
+    }
+
+    /**
+     * Packs the rows of a whole-table query, optionally limited to names starting with one of
+     * {@link Settings#CALL_METHOD_PREFIXES_KEY}, into parallel name and value arrays.
+     * @param complete whether the table holds every setting the caller can read
+     */
+    private Bundle packageValuesForCallResult(Bundle result, Cursor cursor, Bundle args,
+            boolean complete) {
+        final String[] prefixes = (args != null)
+                ? args.getStringArray(Settings.CALL_METHOD_PREFIXES_KEY) : null;
+        final ArrayList<String> names = new ArrayList<>(cursor.getCount());
+        final ArrayList<String> values = new ArrayList<>(cursor.getCount());
+        try {
+            final int nameColumn = cursor.getColumnIndexOrThrow(Settings.NameValueTable.NAME);
+            final int valueColumn = cursor.getColumnIndexOrThrow(Settings.NameValueTable.VALUE);
+            while (cursor.moveToNext()) {
+                final String name = cursor.getString(nameColumn);
+                if (prefixes != null && !startsWithAny(name, prefixes)) {
+                    continue;
+                }
+                names.add(name);
+                values.add(cursor.getString(valueColumn));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        result.putStringArray(Settings.CALL_METHOD_NAMES_KEY,
+                names.toArray(new String[names.size()]));
+        result.putStringArray(Settings.CALL_METHOD_VALUES_KEY,
+                values.toArray(new String[values.size()]));
+        // Instant apps only see a subset of the table, so absence means nothing to them.
+        result.putBoolean(Settings.CALL_METHOD_COMPLETE_KEY, complete && !isCallerInstantApp());
+        return result;
+    }
+
+    /**
+     * Returns true if the user is a profile, some of whose secure and system settings are
+     * read from its parent rather than its own tables.
+     */
+    private boolean hasSettingsClonedFromParent(int userId) {
+        synchronized (mLock) {
+            return getGroupParentLocked(userId) != userId;
+        }
+    }
+
+    private static boolean startsWithAny(String name, String[] prefixes) {
+        for (String prefix : prefixes) {
+            if (name.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private static int getRequestingUserId(Bundle args) {
         final int callingUserId = UserHandle.getCallingUserId();
         return (args != null) ? args.getInt(Settings.CALL_METHOD_USER_KEY, callingUserId)
@@ -2765,7 +2858,7 @@ public class SettingsProvider extends ContentProvider {
             final int userId = getUserIdFromKey(key);
             Uri uri = getNotificationUriFor(key, name);
 
-            mGenerationRegistry.incrementGeneration(key);
+            mGenerationRegistry.incrementGeneration(key, name);
 
             mHandler.obtainMessage(MyHandler.MSG_NOTIFY_URI_CHANGED,
                     userId, 0, uri).sendToTarget();
@@ -2773,11 +2866,13 @@ public class SettingsProvider extends ContentProvider {
             if (isSecureSettingsKey(key)) {
                 maybeNotifyProfiles(getTypeFromKey(key), userId, uri, name,
                         sSecureCloneToManagedSettings);
-                maybeNotifyProfiles(SETTINGS_TYPE_SYSTEM, userId, uri, name,
-                        sSystemCloneFromParentOnDependency.values());
+                maybeNotifyDependents(userId, uri, name);
             } else if (isSystemSettingsKey(key)) {
                 maybeNotifyProfiles(getTypeFromKey(key), userId, uri, name,
                         sSystemCloneToManagedSettings);
+                // Profiles that sync with their parent read these from the parent.
+                maybeNotifyProfiles(getTypeFromKey(key), userId, uri, name,
+                        sSystemCloneFromParentOnDependency.keySet());
             }
 
             mHandler.obtainMessage(MyHandler.MSG_NOTIFY_DATA_CHANGED).sendToTarget();
@@ -2792,7 +2887,7 @@ public class SettingsProvider extends ContentProvider {
                         mHandler.obtainMessage(MyHandler.MSG_NOTIFY_URI_CHANGED,
                                 profileId, 0, uri).sendToTarget();
                         final int key = makeKey(type, profileId);
-                        mGenerationRegistry.incrementGeneration(key);
+                        mGenerationRegistry.incrementGeneration(key, name);
 
                         mHandler.obtainMessage(MyHandler.MSG_NOTIFY_DATA_CHANGED).sendToTarget();
                     }
@@ -2800,6 +2895,32 @@ public class SettingsProvider extends ContentProvider {
             }
         }
 
+        /**
+         * Invalidates the system settings of {@code userId} and its profiles that are cloned
+         * from the parent depending on the secure setting {@code dependency}, as changing it
+         * changes which user their values are read from.
+         */
+        private void maybeNotifyDependents(int userId, Uri uri, String dependency) {
+            if (!sSystemCloneFromParentOnDependency.containsValue(dependency)) {
+                return;
+            }
+            for (int profileId : mUserManager.getProfileIdsWithDisabled(userId)) {
+                final int key = makeKey(SETTINGS_TYPE_SYSTEM, profileId);
+                for (Map.Entry<String, String> entry
+                        : sSystemCloneFromParentOnDependency.entrySet()) {
+                    if (dependency.equals(entry.getValue())) {
+                        mGenerationRegistry.incrementGeneration(key, entry.getKey());
+                    }
+                }
+                // the notification for userId has already been sent.
+                if (profileId != userId) {
+                    mHandler.obtainMessage(MyHandler.MSG_NOTIFY_URI_CHANGED,
+                            profileId, 0, uri).sendToTarget();
+                    mHandler.obtainMessage(MyHandler.MSG_NOTIFY_DATA_CHANGED).sendToTarget();
+                }
+            }
+        }
+
         private boolean isGlobalSettingsKey(int key) {
             return getTypeFromKey(key) == SETTINGS_TYPE_GLOBAL;
         }
@@ -34,9 +34,11 @@ import android.os.SystemClock;
 import android.os.UserHandle;
 import android.provider.Settings;
 import android.providers.settings.GlobalSettingsProto;
+import android.providers.settings.SettingsPersistenceStatsProto;
 import android.providers.settings.SettingsOperationProto;
 import android.text.TextUtils;
 import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.AtomicFile;
 import android.util.Base64;
 import android.util.Slog;
@@ -55,6 +57,12 @@ import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlSerializer;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -65,12 +73,19 @@ import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
+import java.util.zip.CRC32;
 
 /**
  * This class contains the state for one type of settings. It is responsible
  * for saving the state asynchronously to an XML file after a mutation and
  * loading the from an XML file on construction.
  * <p>
+ * Mutations are not written by rewriting the XML file each time. Instead the
+ * current state of each changed setting is appended to a journal next to it,
+ * and the journal is compacted into a new XML snapshot once it grows large.
+ * On load the journal is replayed on top of the snapshot.
+ * </p>
+ * <p>
  * This class uses the same lock as the settings provider to ensure that
  * multiple changes made by the settings provider, e,g, upgrade, bulk insert,
  * etc, are atomically persisted since the asynchronous persistence is using
@@ -90,6 +105,17 @@ final class SettingsState {
     private static final long WRITE_SETTINGS_DELAY_MILLIS = 200;
     private static final long MAX_WRITE_SETTINGS_DELAY_MILLIS = 2000;
 
+    private static final String JOURNAL_SUFFIX = ".journal";
+
+    // Compact the journal into a new snapshot once this many bytes were appended.
+    private static final int MAX_JOURNAL_BYTES = 64 * 1024;
+
+    // Anything larger than this in a journal record header is treated as corruption.
+    private static final int MAX_JOURNAL_RECORD_BYTES = 1024 * 1024;
+
+    private static final byte JOURNAL_OP_PUT = 1;
+    private static final byte JOURNAL_OP_DELETE = 2;
+
     public static final int MAX_BYTES_PER_APP_PACKAGE_UNLIMITED = -1;
     public static final int MAX_BYTES_PER_APP_PACKAGE_LIMITED = 20000;
 
@@ -135,6 +161,8 @@ final class SettingsState {
 
     private static final String NULL_VALUE = "null";
 
+    private static final byte[] EMPTY_RECORDS = new byte[0];
+
     private static final Object sLock = new Object();
 
     @GuardedBy("sLock")
@@ -164,6 +192,8 @@ final class SettingsState {
     @GuardedBy("mLock")
     private final File mStatePersistFile;
 
+    private final File mJournalFile;
+
     private final Setting mNullSetting = new Setting(null, null, false, null, null) {
         @Override
         public boolean isNull() {
@@ -195,6 +225,44 @@ final class SettingsState {
     @GuardedBy("mLock")
     private int mNextHistoricalOpIdx;
 
+    // Settings changed since the last write, journaled with their state at write time.
+    @GuardedBy("mLock")
+    private final ArraySet<String> mJournalPendingNames = new ArraySet<>();
+
+    @GuardedBy("mLock")
+    private int mJournalBytesSinceSnapshot;
+
+    // Whether the next write must be a full snapshot rather than a journal append.
+    @GuardedBy("mLock")
+    private boolean mSnapshotNeeded;
+
+    @GuardedBy("mLock")
+    private long mMutationCount;
+
+    // Writes queued in mutation order; drained in that order by whichever writer gets
+    // mWriteLock first so the journal never goes back in time.
+    @GuardedBy("mPendingWrites")
+    private final ArrayList<PendingWrite> mPendingWrites = new ArrayList<>();
+
+    // Set when the journal tail may be garbage; nothing is appended until the next snapshot.
+    @GuardedBy("mWriteLock")
+    private boolean mJournalCorrupt;
+
+    @GuardedBy("mWriteLock")
+    private int mSnapshotWriteCount;
+
+    @GuardedBy("mWriteLock")
+    private long mSnapshotBytesWritten;
+
+    @GuardedBy("mWriteLock")
+    private int mJournalWriteCount;
+
+    @GuardedBy("mWriteLock")
+    private int mJournalRecordCount;
+
+    @GuardedBy("mWriteLock")
+    private long mJournalBytesWritten;
+
     public SettingsState(Context context, Object lock, File file, int key,
             int maxBytesPerAppPackage, Looper looper) {
         // It is important that we use the same lock as the settings provider
@@ -203,6 +271,7 @@ final class SettingsState {
         mContext = context;
         mLock = lock;
         mStatePersistFile = file;
+        mJournalFile = new File(file.getPath() + JOURNAL_SUFFIX);
         mKey = key;
         mHandler = new MyHandler(looper);
         if (maxBytesPerAppPackage == MAX_BYTES_PER_APP_PACKAGE_LIMITED) {
@@ -237,6 +306,8 @@ final class SettingsState {
         }
         mVersion = version;
 
+        // The version lives in the snapshot only.
+        mSnapshotNeeded = true;
         scheduleWriteIfNeededLocked();
     }
 
@@ -255,6 +326,7 @@ final class SettingsState {
             Setting setting = mSettings.valueAt(i);
             if (packageName.equals(setting.packageName)) {
                 mSettings.removeAt(i);
+                journalSettingLocked(name);
                 removedSomething = true;
             }
         }
@@ -309,6 +381,7 @@ final class SettingsState {
             mSettings.put(name, newSetting);
             updateMemoryUsagePerPackageLocked(newSetting.getPackageName(), oldValue,
                     newSetting.getValue(), oldDefaultValue, newSetting.getDefaultValue());
+            journalSettingLocked(name);
             scheduleWriteIfNeededLocked();
         }
     }
@@ -340,6 +413,7 @@ final class SettingsState {
         updateMemoryUsagePerPackageLocked(packageName, oldValue, value,
                 oldDefaultValue, newState.getDefaultValue());
 
+        journalSettingLocked(name);
         scheduleWriteIfNeededLocked();
 
         return true;
@@ -364,6 +438,7 @@ final class SettingsState {
 
         addHistoricalOperationLocked(HISTORICAL_OPERATION_DELETE, oldState);
 
+        journalSettingLocked(name);
         scheduleWriteIfNeededLocked();
 
         return true;
@@ -393,6 +468,7 @@ final class SettingsState {
 
         addHistoricalOperationLocked(HISTORICAL_OPERATION_RESET, oldSetting);
 
+        journalSettingLocked(name);
         scheduleWriteIfNeededLocked();
 
         return true;
@@ -492,6 +568,57 @@ final class SettingsState {
         }
     }
 
+    /**
+     * Dump how much was written to disk as a proto buf.
+     *
+     * @param proto The proto buf stream to dump to
+     * @param fieldId The field to write the {@link SettingsPersistenceStatsProto} into
+     */
+    void dumpProtoPersistenceStats(@NonNull ProtoOutputStream proto, long fieldId) {
+        synchronized (mLock) {
+            final long token = proto.start(fieldId);
+            proto.write(SettingsPersistenceStatsProto.MUTATION_COUNT, mMutationCount);
+            synchronized (mWriteLock) {
+                proto.write(SettingsPersistenceStatsProto.SNAPSHOT_WRITE_COUNT,
+                        mSnapshotWriteCount);
+                proto.write(SettingsPersistenceStatsProto.SNAPSHOT_BYTES_WRITTEN,
+                        mSnapshotBytesWritten);
+                proto.write(SettingsPersistenceStatsProto.JOURNAL_WRITE_COUNT,
+                        mJournalWriteCount);
+                proto.write(SettingsPersistenceStatsProto.JOURNAL_RECORD_COUNT,
+                        mJournalRecordCount);
+                proto.write(SettingsPersistenceStatsProto.JOURNAL_BYTES_WRITTEN,
+                        mJournalBytesWritten);
+            }
+            proto.end(token);
+        }
+    }
+
+    public void dumpPersistenceStats(PrintWriter pw) {
+        synchronized (mLock) {
+            pw.println("Persistence");
+            pw.print("  mutations=");
+            pw.println(mMutationCount);
+            synchronized (mWriteLock) {
+                pw.print("  snapshots=");
+                pw.print(mSnapshotWriteCount);
+                pw.print(" bytes=");
+                pw.println(mSnapshotBytesWritten);
+                pw.print("  journal appends=");
+                pw.print(mJournalWriteCount);
+                pw.print(" records=");
+                pw.print(mJournalRecordCount);
+                pw.print(" bytes=");
+                pw.println(mJournalBytesWritten);
+                if (mMutationCount > 0) {
+                    pw.print("  bytes per mutation=");
+                    pw.println((mSnapshotBytesWritten + mJournalBytesWritten) / mMutationCount);
+                }
+            }
+            pw.println();
+        }
+    }
+
     private void updateMemoryUsagePerPackageLocked(String packageName, String oldValue,
             String newValue, String oldDefaultValue, String newDefaultValue) {
         if (mMaxBytesPerAppPackage == MAX_BYTES_PER_APP_PACKAGE_UNLIMITED) {
@@ -531,6 +658,11 @@ final class SettingsState {
         return mSettings.indexOfKey(name) >= 0;
     }
 
+    private void journalSettingLocked(String name) {
+        mJournalPendingNames.add(name);
+        mMutationCount++;
+    }
+
     private void scheduleWriteIfNeededLocked() {
         // If dirty then we have a write already scheduled.
         if (!mDirty) {
@@ -569,71 +701,239 @@ final class SettingsState {
     }
 
     private void doWriteState() {
-        boolean wroteState = false;
-        final int version;
-        final ArrayMap<String, Setting> settings;
-
         synchronized (mLock) {
-            version = mVersion;
-            settings = new ArrayMap<>(mSettings);
+            final byte[] records = encodeJournalRecordsLocked();
+            mJournalBytesSinceSnapshot += records.length;
+
+            ArrayMap<String, Setting> settings = null;
+            if (mSnapshotNeeded || mJournalBytesSinceSnapshot >= MAX_JOURNAL_BYTES) {
+                settings = new ArrayMap<>(mSettings);
+                mSnapshotNeeded = false;
+                mJournalBytesSinceSnapshot = 0;
+            }
             mDirty = false;
             mWriteScheduled = false;
+
+            synchronized (mPendingWrites) {
+                mPendingWrites.add(new PendingWrite(records, mJournalPendingNames.size(),
+                        mVersion, settings));
+            }
+            mJournalPendingNames.clear();
         }
 
+        boolean wroteState = false;
+        boolean failed = false;
+
         synchronized (mWriteLock) {
-            if (DEBUG_PERSISTENCE) {
-                Slog.i(LOG_TAG, "[PERSIST START]");
+            final ArrayList<PendingWrite> writes;
+            synchronized (mPendingWrites) {
+                writes = new ArrayList<>(mPendingWrites);
+                mPendingWrites.clear();
             }
 
-            AtomicFile destination = new AtomicFile(mStatePersistFile);
-            FileOutputStream out = null;
-            try {
-                out = destination.startWrite();
-
-                XmlSerializer serializer = Xml.newSerializer();
-                serializer.setOutput(out, StandardCharsets.UTF_8.name());
-                serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output",
-                        true);
-                serializer.startDocument(null, true);
-                serializer.startTag(null, TAG_SETTINGS);
-                serializer.attribute(null, ATTR_VERSION, String.valueOf(version));
-
-                final int settingCount = settings.size();
-                for (int i = 0; i < settingCount; i++) {
-                    Setting setting = settings.valueAt(i);
-
-                    writeSingleSetting(mVersion, serializer, setting.getId(), setting.getName(),
-                            setting.getValue(), setting.getDefaultValue(), setting.getPackageName(),
-                            setting.getTag(), setting.isDefaultFromSystem());
-
-                    if (DEBUG_PERSISTENCE) {
-                        Slog.i(LOG_TAG, "[PERSISTED]" + setting.getName() + "="
-                                + setting.getValue());
+            // Another writer may already have drained our write.
+            if (!writes.isEmpty()) {
+                int snapshotIndex = -1;
+                for (int i = writes.size() - 1; i >= 0; i--) {
+                    if (writes.get(i).settings != null) {
+                        snapshotIndex = i;
+                        break;
                     }
                 }
 
-                serializer.endTag(null, TAG_SETTINGS);
-                serializer.endDocument();
-                destination.finishWrite(out);
+                if (snapshotIndex >= 0) {
+                    // Journal the changes the snapshot covers first, so that replaying a
+                    // journal left behind by a crash before it is deleted yields the same state.
+                    appendJournal(writes, 0, snapshotIndex + 1);
+                    final PendingWrite snapshot = writes.get(snapshotIndex);
+                    if (writeSnapshot(snapshot.version, snapshot.settings)) {
+                        mJournalFile.delete();
+                        mJournalCorrupt = false;
+                    } else {
+                        failed = true;
+                    }
+                }
+                if (!appendJournal(writes, snapshotIndex + 1, writes.size())) {
+                    failed = true;
+                }
+                wroteState = !failed;
+            }
+        }
+
+        if (wroteState || failed) {
+            synchronized (mLock) {
+                if (wroteState) {
+                    addHistoricalOperationLocked(HISTORICAL_OPERATION_PERSIST, null);
+                }
+                if (failed) {
+                    mSnapshotNeeded = true;
+                }
+            }
+        }
+    }
+
+    @GuardedBy("mWriteLock")
+    private boolean appendJournal(ArrayList<PendingWrite> writes, int start, int end) {
+        int recordCount = 0;
+        int byteCount = 0;
+        for (int i = start; i < end; i++) {
+            recordCount += writes.get(i).recordCount;
+            byteCount += writes.get(i).records.length;
+        }
+        if (recordCount == 0) {
+            return true;
+        }
+        if (mJournalCorrupt) {
+            return false;
+        }
+
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(mJournalFile, true);
+            for (int i = start; i < end; i++) {
+                out.write(writes.get(i).records);
+            }
+            out.getFD().sync();
+
+            mJournalWriteCount++;
+            mJournalRecordCount += recordCount;
+            mJournalBytesWritten += byteCount;
+
+            if (DEBUG_PERSISTENCE) {
+                Slog.i(LOG_TAG, "[JOURNALED] " + recordCount + " settings, "
+                        + byteCount + " bytes");
+            }
+            return true;
+        } catch (IOException e) {
+            Slog.e(LOG_TAG, "Failed to append to settings journal " + mJournalFile, e);
+            mJournalCorrupt = true;
+            return false;
+        } finally {
+            IoUtils.closeQuietly(out);
+        }
+    }
+
+    @GuardedBy("mWriteLock")
+    private boolean writeSnapshot(int version, ArrayMap<String, Setting> settings) {
+        if (DEBUG_PERSISTENCE) {
+            Slog.i(LOG_TAG, "[PERSIST START]");
+        }
+
+        AtomicFile destination = new AtomicFile(mStatePersistFile);
+        FileOutputStream out = null;
+        try {
+            out = destination.startWrite();
+
+            XmlSerializer serializer = Xml.newSerializer();
+            serializer.setOutput(out, StandardCharsets.UTF_8.name());
+            serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output",
+                    true);
+            serializer.startDocument(null, true);
+            serializer.startTag(null, TAG_SETTINGS);
+            serializer.attribute(null, ATTR_VERSION, String.valueOf(version));
 
-                wroteState = true;
+            final int settingCount = settings.size();
+            for (int i = 0; i < settingCount; i++) {
+                Setting setting = settings.valueAt(i);
+
+                writeSingleSetting(mVersion, serializer, setting.getId(), setting.getName(),
+                        setting.getValue(), setting.getDefaultValue(), setting.getPackageName(),
+                        setting.getTag(), setting.isDefaultFromSystem());
 
                 if (DEBUG_PERSISTENCE) {
-                    Slog.i(LOG_TAG, "[PERSIST END]");
+                    Slog.i(LOG_TAG, "[PERSISTED]" + setting.getName() + "="
+                            + setting.getValue());
                 }
-            } catch (Throwable t) {
-                Slog.wtf(LOG_TAG, "Failed to write settings, restoring backup", t);
-                destination.failWrite(out);
-            } finally {
-                IoUtils.closeQuietly(out);
             }
+
+            serializer.endTag(null, TAG_SETTINGS);
+            serializer.endDocument();
+            destination.finishWrite(out);
+
+            mSnapshotWriteCount++;
+            mSnapshotBytesWritten += mStatePersistFile.length();
+
+            if (DEBUG_PERSISTENCE) {
+                Slog.i(LOG_TAG, "[PERSIST END]");
+            }
+            return true;
+        } catch (Throwable t) {
+            Slog.wtf(LOG_TAG, "Failed to write settings, restoring backup", t);
+            destination.failWrite(out);
+            return false;
+        } finally {
+            IoUtils.closeQuietly(out);
         }
+    }
 
-        if (wroteState) {
-            synchronized (mLock) {
-                addHistoricalOperationLocked(HISTORICAL_OPERATION_PERSIST, null);
+    /**
+     * Encodes the current state of every setting changed since the last write as journal
+     * records: {@code [int length][long crc32][payload]}, where the payload is an op byte, the
+     * name and, for puts, the remaining setting fields.
+     */
+    private byte[] encodeJournalRecordsLocked() {
+        final int nameCount = mJournalPendingNames.size();
+        if (nameCount == 0) {
+            return EMPTY_RECORDS;
+        }
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        final ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream();
+        final DataOutputStream payload = new DataOutputStream(payloadBytes);
+        final CRC32 crc = new CRC32();
+        try {
+            for (int i = 0; i < nameCount; i++) {
+                final String name = mJournalPendingNames.valueAt(i);
+                final Setting setting = mSettings.get(name);
+                payloadBytes.reset();
+                if (setting != null) {
+                    payload.writeByte(JOURNAL_OP_PUT);
+                    writeJournalString(payload, name);
+                    writeJournalString(payload, setting.getId());
+                    writeJournalString(payload, setting.getValue());
+                    writeJournalString(payload, setting.getDefaultValue());
+                    writeJournalString(payload, setting.getPackageName());
+                    writeJournalString(payload, setting.getTag());
+                    payload.writeBoolean(setting.isDefaultFromSystem());
+                } else {
+                    payload.writeByte(JOURNAL_OP_DELETE);
+                    writeJournalString(payload, name);
+                }
+                payload.flush();
+
+                crc.reset();
+                crc.update(payloadBytes.toByteArray());
+                out.writeInt(payloadBytes.size());
+                out.writeLong(crc.getValue());
+                payloadBytes.writeTo(out);
             }
+            out.flush();
+        } catch (IOException e) {
+            // In-memory streams don't throw.
+            throw new IllegalStateException(e);
         }
+        return bytes.toByteArray();
+    }
+
+    private static void writeJournalString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        final byte[] bytes = toBytes(s);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readJournalString(DataInputStream in) throws IOException {
+        final int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return fromBytes(bytes);
     }
 
     static void writeSingleSetting(int version, XmlSerializer serializer, String id,
@@ -708,6 +1008,9 @@ final class SettingsState {
         if (!mStatePersistFile.exists()) {
             Slog.i(LOG_TAG, "No settings state " + mStatePersistFile);
             addHistoricalOperationLocked(HISTORICAL_OPERATION_INITIALIZE, null);
+            // A journal only makes sense on top of the snapshot it was written against.
+            mJournalFile.delete();
+            mSnapshotNeeded = true;
             return;
         }
         try {
@@ -729,6 +1032,101 @@ final class SettingsState {
         } finally {
             IoUtils.closeQuietly(in);
         }
+        replayJournalLocked();
+    }
+
+    /**
+     * Applies the journal on top of the snapshot just read. A torn or corrupt record ends the
+     * replay; everything after it is dropped and the next write compacts the journal away.
+     */
+    private void replayJournalLocked() {
+        if (!mJournalFile.exists()) {
+            return;
+        }
+        DataInputStream in = null;
+        int recordCount = 0;
+        boolean complete = false;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mJournalFile)));
+            final CRC32 crc = new CRC32();
+            while (true) {
+                final int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    complete = true;
+                    break;
+                }
+                if (length <= 0 || length > MAX_JOURNAL_RECORD_BYTES) {
+                    break;
+                }
+                final long checksum = in.readLong();
+                final byte[] payload = new byte[length];
+                in.readFully(payload);
+                crc.reset();
+                crc.update(payload);
+                if (crc.getValue() != checksum) {
+                    break;
+                }
+                applyJournalRecordLocked(new DataInputStream(new ByteArrayInputStream(payload)));
+                recordCount++;
+            }
+        } catch (IOException e) {
+            Slog.w(LOG_TAG, "Failed reading settings journal " + mJournalFile, e);
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+
+        mJournalBytesSinceSnapshot = (int) Math.min(mJournalFile.length(), Integer.MAX_VALUE);
+        if (!complete) {
+            Slog.w(LOG_TAG, "Dropping settings journal tail after " + recordCount
+                    + " records: " + mJournalFile);
+            synchronized (mWriteLock) {
+                mJournalCorrupt = true;
+            }
+            mSnapshotNeeded = true;
+            scheduleWriteIfNeededLocked();
+        }
+        if (DEBUG_PERSISTENCE) {
+            Slog.i(LOG_TAG, "[REPLAYED] " + recordCount + " settings from " + mJournalFile);
+        }
+    }
+
+    private void applyJournalRecordLocked(DataInputStream in) throws IOException {
+        final byte op = in.readByte();
+        final String name = readJournalString(in);
+        if (name == null) {
+            throw new IOException("Journal record without a name");
+        }
+        switch (op) {
+            case JOURNAL_OP_PUT: {
+                final String id = readJournalString(in);
+                final String value = readJournalString(in);
+                final String defaultValue = readJournalString(in);
+                final String packageName = readJournalString(in);
+                final String tag = readJournalString(in);
+                final boolean fromSystem = in.readBoolean();
+                if (id == null) {
+                    throw new IOException("Journal record without an id: " + name);
+                }
+                mSettings.put(name, new Setting(name, value, defaultValue, packageName, tag,
+                        fromSystem, id));
+                if (DEBUG_PERSISTENCE) {
+                    Slog.i(LOG_TAG, "[REPLAYED] " + name + "=" + value);
+                }
+            } break;
+
+            case JOURNAL_OP_DELETE: {
+                mSettings.remove(name);
+                if (DEBUG_PERSISTENCE) {
+                    Slog.i(LOG_TAG, "[REPLAYED] delete " + name);
+                }
+            } break;
+
+            default: {
+                throw new IOException("Unknown journal op " + op);
+            }
+        }
     }
 
     private void parseStateLocked(XmlPullParser parser)
@@ -808,6 +1206,22 @@ final class SettingsState {
         }
     }
 
+    private static final class PendingWrite {
+        final byte[] records;
+        final int recordCount;
+        final int version;
+        // Non-null if this write compacts the journal into a new snapshot.
+        final ArrayMap<String, Setting> settings;
+
+        PendingWrite(byte[] records, int recordCount, int version,
+                ArrayMap<String, Setting> settings) {
+            this.records = records;
+            this.recordCount = recordCount;
+            this.version = version;
+            this.settings = settings;
+        }
+    }
+
     private class HistoricalOperation {
         final long mTimestamp;
         final String mOperation;
@@ -148,6 +148,80 @@ public class SettingsStateTest extends AndroidTestCase {
         }
     }
 
+    /**
+     * Make sure changes after the first write go to the journal and are replayed on load.
+     */
+    public void testJournalReplay() {
+        final File file = new File(getContext().getCacheDir(), "setting.xml");
+        final File journal = new File(file.getPath() + ".journal");
+        file.delete();
+        journal.delete();
+        final Object lock = new Object();
+
+        final SettingsState ssWriter = new SettingsState(getContext(), lock, file, 1,
+                SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
+        synchronized (lock) {
+            ssWriter.setVersionLocked(SettingsState.SETTINGS_VERSION_NEW_ENCODING);
+            ssWriter.insertSettingLocked("k1", "v1", null, false, "p1");
+            ssWriter.insertSettingLocked("k2", "v2", null, false, "p1");
+            ssWriter.persistSyncLocked();
+        }
+        // The first write is always a full snapshot.
+        assertTrue(file.exists());
+        assertFalse(journal.exists());
+
+        synchronized (lock) {
+            ssWriter.insertSettingLocked("k1", "v1b", null, false, "p1");
+            ssWriter.deleteSettingLocked("k2");
+            ssWriter.insertSettingLocked("k3", CRAZY_STRING, null, false, "p3");
+            ssWriter.persistSyncLocked();
+        }
+        assertTrue(journal.exists());
+
+        final SettingsState ssReader = new SettingsState(getContext(), lock, file, 1,
+                SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
+        synchronized (lock) {
+            assertEquals("v1b", ssReader.getSettingLocked("k1").getValue());
+            assertTrue(ssReader.getSettingLocked("k2").isNull());
+            assertEquals(CRAZY_STRING, ssReader.getSettingLocked("k3").getValue());
+            assertEquals("p3", ssReader.getSettingLocked("k3").getPackageName());
+        }
+    }
+
+    /**
+     * A torn journal tail must not lose the records before it, and must be compacted away.
+     */
+    public void testJournalTornTail() throws Exception {
+        final File file = new File(getContext().getCacheDir(), "setting.xml");
+        final File journal = new File(file.getPath() + ".journal");
+        file.delete();
+        journal.delete();
+        final Object lock = new Object();
+
+        final SettingsState ssWriter = new SettingsState(getContext(), lock, file, 1,
+                SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
+        synchronized (lock) {
+            ssWriter.setVersionLocked(SettingsState.SETTINGS_VERSION_NEW_ENCODING);
+            ssWriter.insertSettingLocked("k1", "v1", null, false, "p1");
+            ssWriter.persistSyncLocked();
+            ssWriter.insertSettingLocked("k1", "v1b", null, false, "p1");
+            ssWriter.persistSyncLocked();
+        }
+
+        // Half of a record header, as if the device died mid-append.
+        final FileOutputStream os = new FileOutputStream(journal, true);
+        os.write(new byte[] {0, 0, 0, 42, 0, 0});
+        os.close();
+
+        final SettingsState ssReader = new SettingsState(getContext(), lock, file, 1,
+                SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
+        synchronized (lock) {
+            assertEquals("v1b", ssReader.getSettingLocked("k1").getValue());
+            ssReader.persistSyncLocked();
+        }
+        assertFalse(journal.exists());
+    }
+
     /**
      * In version 120, value "null" meant {code NULL}.
      */
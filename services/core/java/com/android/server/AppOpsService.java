@@ -60,6 +60,7 @@ import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.AtomicFile;
 import android.util.Log;
+import android.util.MemoryIntArray;
 import android.util.Slog;
 import android.util.SparseArray;
 import android.util.SparseIntArray;
@@ -111,6 +112,27 @@ public class AppOpsService extends IAppOpsService.Stub {
 
     private final SparseArray<UidState> mUidStates = new SparseArray<>();
 
+    /*
+     * Immutable per-UID views of the modes in mUidStates, so that checkOperation() can be
+     * answered without taking the service lock. Entries are built lazily under the lock, and the
+     * whole array is replaced (never mutated) whenever an entry is added or any mode or
+     * restriction changes.
+     */
+    private volatile SparseArray<ModeSnapshot> mModeSnapshots = new SparseArray<>();
+
+    /*
+     * Whether checkOperation() may answer from mModeSnapshots. Only turned off from the shell, to
+     * measure the locked path.
+     */
+    private volatile boolean mModeSnapshotsEnabled = true;
+
+    /*
+     * Single-slot shared memory counter, bumped whenever mModeSnapshots is invalidated. Clients
+     * map it read-only and use it to validate the modes AppOpsManager caches in their process.
+     * Null if the backing store could not be created or was destroyed after an error.
+     */
+    private MemoryIntArray mModeGeneration;
+
     /*
      * These are app op restrictions imposed per user from various parties.
      */
@@ -148,6 +170,25 @@ public class AppOpsService extends IAppOpsService.Stub {
         }
     }
 
+    /**
+     * Read-only copy of the modes that apply to one UID. Never modified after construction.
+     */
+    private static final class ModeSnapshot {
+        /** Per-UID modes, keyed by switch op, or null if none are set. */
+        final SparseIntArray uidModes;
+        /** Per-package modes, keyed by op, or null if the UID has no package state. */
+        final ArrayMap<String, SparseIntArray> packageModes;
+        /** Ops restricted for this UID's user by any client, ignoring exemptions. */
+        final boolean[] restrictedOps;
+
+        ModeSnapshot(SparseIntArray uidModes, ArrayMap<String, SparseIntArray> packageModes,
+                boolean[] restrictedOps) {
+            this.uidModes = uidModes;
+            this.packageModes = packageModes;
+            this.restrictedOps = restrictedOps;
+        }
+    }
+
     public final static class Op {
         public final int uid;
         public final String packageName;
@@ -239,6 +280,11 @@ public class AppOpsService extends IAppOpsService.Stub {
         LockGuard.installLock(this, LockGuard.INDEX_APP_OPS);
         mFile = new AtomicFile(storagePath);
         mHandler = handler;
+        try {
+            mModeGeneration = new MemoryIntArray(1);
+        } catch (IOException e) {
+            Slog.e(TAG, "Error creating mode generation tracker", e);
+        }
         readState();
     }
 
@@ -296,6 +342,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                 }
             }
             if (changed) {
+                invalidateModeSnapshotsLocked();
                 scheduleFastWriteLocked();
             }
         }
@@ -369,6 +416,7 @@ public class AppOpsService extends IAppOpsService.Stub {
             }
 
             if (changed) {
+                invalidateModeSnapshotsLocked();
                 scheduleFastWriteLocked();
             }
         }
@@ -378,6 +426,7 @@ public class AppOpsService extends IAppOpsService.Stub {
         synchronized (this) {
             if (mUidStates.indexOfKey(uid) >= 0) {
                 mUidStates.remove(uid);
+                invalidateModeSnapshotsLocked();
                 scheduleFastWriteLocked();
             }
         }
@@ -567,11 +616,13 @@ public class AppOpsService extends IAppOpsService.Stub {
                 uidState.opModes = new SparseIntArray();
                 uidState.opModes.put(code, mode);
                 mUidStates.put(uid, uidState);
+                invalidateModeSnapshotsLocked();
                 scheduleWriteLocked();
             } else if (uidState.opModes == null) {
                 if (mode != defaultMode) {
                     uidState.opModes = new SparseIntArray();
                     uidState.opModes.put(code, mode);
+                    invalidateModeSnapshotsLocked();
                     scheduleWriteLocked();
                 }
             } else {
@@ -586,6 +637,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                 } else {
                     uidState.opModes.put(code, mode);
                 }
+                invalidateModeSnapshotsLocked();
                 scheduleWriteLocked();
             }
         }
@@ -691,6 +743,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                         // if there is nothing else interesting in it.
                         pruneOp(op, uid, packageName);
                     }
+                    invalidateModeSnapshotsLocked();
                     scheduleFastWriteLocked();
                 }
             }
@@ -848,6 +901,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                 }
             }
 
+            invalidateModeSnapshotsLocked();
             if (changed) {
                 scheduleFastWriteLocked();
             }
@@ -945,6 +999,18 @@ public class AppOpsService extends IAppOpsService.Stub {
         if (resolvedPackageName == null) {
             return AppOpsManager.MODE_IGNORED;
         }
+        if (mModeSnapshotsEnabled) {
+            ModeSnapshot snapshot = mModeSnapshots.get(uid);
+            if (snapshot == null) {
+                synchronized (this) {
+                    snapshot = getModeSnapshotLocked(uid);
+                }
+            }
+            if (snapshot.restrictedOps == null || !snapshot.restrictedOps[code]) {
+                return checkOperationFromSnapshot(snapshot, code, resolvedPackageName);
+            }
+        }
+        // Restrictions depend on package exemptions and privilege; take the slow path.
         synchronized (this) {
             if (isOpRestrictedLocked(uid, code, resolvedPackageName)) {
                 return AppOpsManager.MODE_IGNORED;
@@ -963,6 +1029,24 @@ public class AppOpsService extends IAppOpsService.Stub {
         }
     }
 
+    /**
+     * Same resolution as the locked part of {@link #checkOperation}, for an op that is known
+     * not to be restricted for the UID.
+     */
+    private static int checkOperationFromSnapshot(ModeSnapshot snapshot, int code,
+            String packageName) {
+        code = AppOpsManager.opToSwitch(code);
+        if (snapshot.uidModes != null && snapshot.uidModes.indexOfKey(code) >= 0) {
+            return snapshot.uidModes.get(code);
+        }
+        final SparseIntArray packageModes = snapshot.packageModes != null
+                ? snapshot.packageModes.get(packageName) : null;
+        if (packageModes == null || packageModes.indexOfKey(code) < 0) {
+            return AppOpsManager.opToDefaultMode(code);
+        }
+        return packageModes.get(code);
+    }
+
     @Override
     public int checkAudioOperation(int code, int usage, int uid, String packageName) {
         boolean suspended;
@@ -1270,6 +1354,105 @@ public class AppOpsService extends IAppOpsService.Stub {
         return uidState;
     }
 
+    /**
+     * Return the published {@link ModeSnapshot} for the UID, building and publishing one if
+     * needed. Publishing copies the snapshot array, so concurrent readers never see it change.
+     */
+    private ModeSnapshot getModeSnapshotLocked(int uid) {
+        ModeSnapshot snapshot = mModeSnapshots.get(uid);
+        if (snapshot != null) {
+            return snapshot;
+        }
+
+        SparseIntArray uidModes = null;
+        ArrayMap<String, SparseIntArray> packageModes = null;
+        final UidState uidState = mUidStates.get(uid);
+        if (uidState != null) {
+            if (uidState.opModes != null) {
+                uidModes = uidState.opModes.clone();
+            }
+            if (uidState.pkgOps != null) {
+                final int packageCount = uidState.pkgOps.size();
+                packageModes = new ArrayMap<>(packageCount);
+                for (int i = 0; i < packageCount; i++) {
+                    final Ops ops = uidState.pkgOps.valueAt(i);
+                    final int opCount = ops.size();
+                    final SparseIntArray modes = new SparseIntArray(opCount);
+                    for (int j = 0; j < opCount; j++) {
+                        modes.append(ops.keyAt(j), ops.valueAt(j).mode);
+                    }
+                    packageModes.put(uidState.pkgOps.keyAt(i), modes);
+                }
+            }
+        }
+
+        boolean[] restrictedOps = null;
+        final int userId = UserHandle.getUserId(uid);
+        final int restrictionSetCount = mOpUserRestrictions.size();
+        for (int i = 0; i < restrictionSetCount; i++) {
+            final ClientRestrictionState restrictionState = mOpUserRestrictions.valueAt(i);
+            final boolean[] restrictions = restrictionState.perUserRestrictions != null
+                    ? restrictionState.perUserRestrictions.get(userId) : null;
+            if (restrictions == null) {
+                continue;
+            }
+            if (restrictedOps == null) {
+                restrictedOps = new boolean[AppOpsManager._NUM_OP];
+            }
+            for (int code = 0; code < restrictions.length; code++) {
+                restrictedOps[code] |= restrictions[code];
+            }
+        }
+
+        snapshot = new ModeSnapshot(uidModes, packageModes, restrictedOps);
+        final SparseArray<ModeSnapshot> snapshots = mModeSnapshots.clone();
+        snapshots.put(uid, snapshot);
+        mModeSnapshots = snapshots;
+        return snapshot;
+    }
+
+    /**
+     * Drop all published {@link ModeSnapshot}s. Must be called, with the lock held, whenever a
+     * mode or restriction that {@link #checkOperation} depends on changes. Also advances the
+     * shared generation so that modes cached by clients are dropped.
+     */
+    private void invalidateModeSnapshotsLocked() {
+        if (mModeSnapshots.size() > 0) {
+            mModeSnapshots = new SparseArray<>();
+        }
+        if (mModeGeneration != null) {
+            try {
+                // Negative values tell clients to stop caching, so never wrap to one.
+                mModeGeneration.set(0, (mModeGeneration.get(0) + 1) & Integer.MAX_VALUE);
+            } catch (IOException e) {
+                Slog.e(TAG, "Error updating mode generation", e);
+                destroyModeGenerationLocked();
+            }
+        }
+    }
+
+    private void destroyModeGenerationLocked() {
+        // Clients would otherwise keep trusting a generation that no longer moves.
+        try {
+            mModeGeneration.set(0, -1);
+        } catch (IOException | RuntimeException e) {
+            Slog.e(TAG, "Error invalidating mode generation", e);
+        }
+        try {
+            mModeGeneration.close();
+        } catch (IOException e) {
+            Slog.e(TAG, "Error closing mode generation tracker", e);
+        }
+        mModeGeneration = null;
+    }
+
+    @Override
+    public MemoryIntArray getModeGeneration() {
+        synchronized (this) {
+            return mModeGeneration;
+        }
+    }
+
     private Ops getOpsRawLocked(int uid, String packageName, boolean edit) {
         UidState uidState = getUidStateLocked(uid, edit);
         if (uidState == null) {
@@ -1413,6 +1596,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                 }
                 boolean success = false;
                 mUidStates.clear();
+                invalidateModeSnapshotsLocked();
                 try {
                     XmlPullParser parser = Xml.newPullParser();
                     parser.setInput(stream, StandardCharsets.UTF_8.name());
@@ -1922,6 +2106,9 @@ public class AppOpsService extends IAppOpsService.Stub {
         pw.println("    Immediately write pending changes to storage.");
         pw.println("  read-settings");
         pw.println("    Read the last written settings, replacing current state in RAM.");
+        pw.println("  set-check-cache <true|false>");
+        pw.println("    Answer mode checks from a lock-free cache (the default), or always take");
+        pw.println("    the service lock. Only meant for measuring the locked path.");
         pw.println("  options:");
         pw.println("    <PACKAGE> an Android package name.");
         pw.println("    <OP>      an AppOps operation.");
@@ -2121,6 +2308,20 @@ public class AppOpsService extends IAppOpsService.Stub {
                     }
                     return 0;
                 }
+                case "set-check-cache": {
+                    shell.mInternal.mContext.enforcePermission(
+                            android.Manifest.permission.UPDATE_APP_OPS_STATS,
+                            Binder.getCallingPid(), Binder.getCallingUid(), null);
+                    final String value = shell.getNextArgRequired();
+                    if (!"true".equals(value) && !"false".equals(value)) {
+                        err.println("Error: expected true or false, not " + value);
+                        return -1;
+                    }
+                    shell.mInternal.mModeSnapshotsEnabled = Boolean.parseBoolean(value);
+                    pw.println("Check cache " + (shell.mInternal.mModeSnapshotsEnabled
+                            ? "enabled." : "disabled."));
+                    return 0;
+                }
                 default:
                     return shell.handleDefaultCommands(cmd);
             }
@@ -2396,6 +2597,7 @@ public class AppOpsService extends IAppOpsService.Stub {
             }
 
             if (restrictionState.setRestriction(code, restricted, exceptionPackages, userHandle)) {
+                invalidateModeSnapshotsLocked();
                 notifyChange = true;
             }
 
@@ -2449,6 +2651,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                 opRestrictions.removeUser(userHandle);
             }
             removeUidsForUserLocked(userHandle);
+            invalidateModeSnapshotsLocked();
         }
     }
 
@@ -2593,6 +2796,7 @@ public class AppOpsService extends IAppOpsService.Stub {
         public void binderDied() {
             synchronized (AppOpsService.this) {
                 mOpUserRestrictions.remove(token);
+                invalidateModeSnapshotsLocked();
                 if (perUserRestrictions == null) {
                     return;
                 }
@@ -134,6 +134,7 @@ import com.android.server.connectivity.NetworkDiagnostics;
 import com.android.server.connectivity.NetworkMonitor;
 import com.android.server.connectivity.NetworkNotificationManager;
 import com.android.server.connectivity.NetworkNotificationManager.NotificationType;
+import com.android.server.connectivity.NetworkRequestIndex;
 import com.android.server.connectivity.PacManager;
 import com.android.server.connectivity.PermissionMonitor;
 import com.android.server.connectivity.Tethering;
@@ -688,6 +689,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
         mDefaultRequest = createInternetRequestForTransport(-1, NetworkRequest.Type.REQUEST);
         NetworkRequestInfo defaultNRI = new NetworkRequestInfo(null, mDefaultRequest, new Binder());
         mNetworkRequests.put(mDefaultRequest, defaultNRI);
+        mNetworkRequestIndex.add(mDefaultRequest);
         mNetworkRequestInfoLogs.log("REGISTER " + defaultNRI);
 
         mDefaultMobileDataRequest = createInternetRequestForTransport(
@@ -1937,6 +1939,10 @@ public class ConnectivityService extends IConnectivityManager.Stub
             pw.println(nri.toString());
         }
         pw.println();
+        mNetworkRequestIndex.dump(pw);
+        pw.println("Rematch: evaluated " + mRematchRequestsEvaluated + " requests, skipped "
+                + mRematchRequestsSkipped);
+        pw.println();
         pw.decreaseIndent();
 
         mLegacyTypeTracker.dump(pw);
@@ -2389,6 +2395,9 @@ public class ConnectivityService extends IConnectivityManager.Stub
 
     private void handleRegisterNetworkRequest(NetworkRequestInfo nri) {
         mNetworkRequests.put(nri.request, nri);
+        if (!nri.request.isListen()) {
+            mNetworkRequestIndex.add(nri.request);
+        }
         mNetworkRequestInfoLogs.log("REGISTER " + nri);
         if (nri.request.isListen()) {
             for (NetworkAgentInfo network : mNetworkAgentInfos.values()) {
@@ -2499,6 +2508,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
         }
         nri.unlinkDeathRecipient();
         mNetworkRequests.remove(nri.request);
+        mNetworkRequestIndex.remove(nri.request);
         synchronized (mUidToNetworkRequestCount) {
             int requests = mUidToNetworkRequestCount.get(nri.mUid, 0);
             if (requests < 1) {
@@ -3930,6 +3940,12 @@ public class ConnectivityService extends IConnectivityManager.Stub
             new HashMap<Messenger, NetworkFactoryInfo>();
     private final HashMap<NetworkRequest, NetworkRequestInfo> mNetworkRequests =
             new HashMap<NetworkRequest, NetworkRequestInfo>();
+    // The requests (but not listens) in mNetworkRequests, indexed so that rematching a network
+    // only looks at the requests it could satisfy. Only accessed on the handler thread.
+    private final NetworkRequestIndex mNetworkRequestIndex = new NetworkRequestIndex();
+    // Requests looked at by rematchNetworkAndRequests, and requests it did not need to look at.
+    private long mRematchRequestsEvaluated;
+    private long mRematchRequestsSkipped;
 
     private static final int MAX_NETWORK_REQUESTS_PER_UID = 100;
     // Map from UID to number of NetworkRequests that UID has filed.
@@ -4830,12 +4846,25 @@ public class ConnectivityService extends IConnectivityManager.Stub
         ArrayList<NetworkRequestInfo> addedRequests = new ArrayList<NetworkRequestInfo>();
         NetworkCapabilities nc = newNetwork.networkCapabilities;
         if (VDBG) log(" network has: " + nc);
-        for (NetworkRequestInfo nri : mNetworkRequests.values()) {
+        // Only the requests the network may satisfy, and the ones it is currently satisfying in
+        // case it stopped, need to be looked at. The others can neither move to this network nor
+        // be removed from it. The index returns each request once; the network's own requests
+        // are only added if the index didn't return them already.
+        final ArrayList<NetworkRequest> candidates = new ArrayList<>();
+        mNetworkRequestIndex.getCandidates(nc, candidates);
+        for (int i = 0; i < newNetwork.numNetworkRequests(); i++) {
+            final NetworkRequest nr = newNetwork.requestAt(i);
+            if (!nr.isListen() && !mNetworkRequestIndex.isCandidate(nr, nc)) candidates.add(nr);
+        }
+        mRematchRequestsEvaluated += candidates.size();
+        mRematchRequestsSkipped += Math.max(0, mNetworkRequestIndex.size() - candidates.size());
+        for (int j = 0; j < candidates.size(); j++) {
+            final NetworkRequestInfo nri = mNetworkRequests.get(candidates.get(j));
             // Process requests in the first pass and listens in the second pass. This allows us to
             // change a network's capabilities depending on which requests it has. This is only
             // correct if the change in capabilities doesn't affect whether the network satisfies
             // requests or not, and doesn't affect the network's score.
-            if (nri.request.isListen()) continue;
+            if (nri == null || nri.request.isListen()) continue;
 
             final NetworkAgentInfo currentNetwork = mNetworkForRequestId.get(nri.request.requestId);
             final boolean satisfies = newNetwork.satisfies(nri.request);
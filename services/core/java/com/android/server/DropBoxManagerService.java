@@ -30,17 +30,20 @@ import android.os.DropBoxManager;
 import android.os.FileUtils;
 import android.os.Handler;
 import android.os.Message;
+import android.os.Process;
 import android.os.StatFs;
 import android.os.SystemClock;
 import android.os.UserHandle;
 import android.provider.Settings;
 import android.text.format.Time;
+import android.util.ArrayMap;
 import android.util.Slog;
 
 import libcore.io.IoUtils;
 
 import com.android.internal.os.IDropBoxManagerService;
 import com.android.internal.util.DumpUtils;
+import com.android.internal.util.TokenBucket;
 
 import java.io.BufferedOutputStream;
 import java.io.File;
@@ -51,7 +54,11 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.SortedSet;
 import java.util.TreeSet;
@@ -69,15 +76,21 @@ public final class DropBoxManagerService extends SystemService {
     private static final int DEFAULT_QUOTA_PERCENT = 10;
     private static final int DEFAULT_RESERVE_PERCENT = 10;
     private static final int QUOTA_RESCAN_MILLIS = 5000;
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    // Limits on entries waiting to be written out by the add thread.
+    private static final int MAX_PENDING_ENTRIES = 64;
+    private static final int TAG_RATE_LIMIT_FILL_MILLIS = 1000;
+    private static final int TAG_RATE_LIMIT_BURST = 20;
 
     // mHandler 'what' value.
     private static final int MSG_SEND_BROADCAST = 1;
 
     private static final boolean PROFILE_DUMP = false;
 
-    // TODO: This implementation currently uses one file per entry, which is
-    // inefficient for smallish entries -- consider using a single queue file
-    // per tag (or even globally) instead.
+    // Entries smaller than a block are packed into per-tag segment files (see
+    // Segment) so that small, frequent entries don't each cost an inode and a
+    // block.  Bigger entries still get one (possibly compressed) file each.
 
     // The cached context and derived objects
 
@@ -89,6 +102,13 @@ public final class DropBoxManagerService extends SystemService {
     private FileList mAllFiles = null;
     private HashMap<String, FileList> mFilesByTag = null;
 
+    // The segments currently being appended to for each tag, one for entries and one for
+    // tombstones, and the id for the next one.
+
+    private HashMap<String, Segment> mActiveSegments = null;
+    private HashMap<String, Segment> mActiveTombstoneSegments = null;
+    private long mNextSegmentId = 1;
+
     // Various bits of disk information
 
     private StatFs mStatFs = null;
@@ -101,6 +121,25 @@ public final class DropBoxManagerService extends SystemService {
     // Provide a way to perform sendBroadcast asynchronously to avoid deadlocks.
     private final Handler mHandler;
 
+    // Entries queued by add(), and the thread that writes them out.  mAddLock is
+    // held while entries are being written, so readers can wait for the queue to
+    // be flushed before looking at what is on disk.
+
+    private final Handler mAddHandler;
+    private final Object mAddLock = new Object();
+    private final ArrayDeque<PendingEntry> mPendingEntries = new ArrayDeque<PendingEntry>();
+    private final ArrayMap<String, TokenBucket> mTagBuckets = new ArrayMap<>();
+    private int mCoalescedCount = 0;
+    private int mRateLimitedCount = 0;
+    private int mOverflowCount = 0;
+
+    private final Runnable mFlushPendingEntries = new Runnable() {
+        @Override
+        public void run() {
+            flushPendingEntries();
+        }
+    };
+
     /** Receives events that might indicate a need to clean up files. */
     private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
         @Override
@@ -176,6 +215,11 @@ public final class DropBoxManagerService extends SystemService {
                 }
             }
         };
+
+        ServiceThread addThread = new ServiceThread(TAG + ".add",
+                Process.THREAD_PRIORITY_BACKGROUND, true /* allowIo */);
+        addThread.start();
+        mAddHandler = new Handler(addThread.getLooper());
     }
 
     @Override
@@ -215,17 +259,97 @@ public final class DropBoxManagerService extends SystemService {
         return mStub;
     }
 
+    /**
+     * Queues an entry to be written out on the add thread, so that callers (often in the
+     * middle of reporting a crash) don't wait for it to be copied and compressed.  Text
+     * entries that repeat one still in the queue, apart from their headers, are coalesced
+     * into it.  Other entries beyond the tag's rate limit, or beyond the size of the
+     * queue, are dropped.
+     */
     public void add(DropBoxManager.Entry entry) {
+        if ((entry.getFlags() & DropBoxManager.IS_EMPTY) != 0) {
+            entry.close();
+            throw new IllegalArgumentException();
+        }
+
+        final String tag = entry.getTag();
+        if (!isTagEnabled(tag)) {
+            entry.close();
+            return;
+        }
+
+        // Callers in this process pass their own entry, which they close as soon as this
+        // returns, so queue a duplicate of its file descriptor instead.
+        final DropBoxManager.Entry original = entry;
+        try {
+            entry = original.dup();
+        } catch (IOException e) {
+            Slog.e(TAG, "Can't duplicate: " + tag, e);
+            original.close();
+            return;
+        }
+        if (entry != original) original.close();
+
+        final byte[] text = (entry.getFlags() & DropBoxManager.IS_TEXT) != 0
+                ? entry.getByteArray() : null;
+        final PendingEntry pending = new PendingEntry(entry, text);
+        synchronized (mPendingEntries) {
+            if (text != null) {
+                for (PendingEntry queued : mPendingEntries) {
+                    if (queued.isDuplicate(pending)) {
+                        queued.duplicates++;
+                        mCoalescedCount++;
+                        entry.close();
+                        return;
+                    }
+                }
+            }
+
+            TokenBucket bucket = mTagBuckets.get(tag);
+            if (bucket == null) {
+                bucket = new TokenBucket(TAG_RATE_LIMIT_FILL_MILLIS, TAG_RATE_LIMIT_BURST);
+                mTagBuckets.put(tag, bucket);
+            }
+            if (!bucket.get()) {
+                mRateLimitedCount++;
+                entry.close();
+                return;
+            }
+            if (mPendingEntries.size() >= MAX_PENDING_ENTRIES) {
+                Slog.w(TAG, "Dropping: " + tag + " (too many pending entries)");
+                mOverflowCount++;
+                entry.close();
+                return;
+            }
+
+            mPendingEntries.add(pending);
+            if (mPendingEntries.size() == 1) mAddHandler.post(mFlushPendingEntries);
+        }
+    }
+
+    /** Writes out all entries queued by add(), waiting for any being written already. */
+    private void flushPendingEntries() {
+        synchronized (mAddLock) {
+            while (true) {
+                final PendingEntry pending;
+                synchronized (mPendingEntries) {
+                    pending = mPendingEntries.poll();
+                }
+                if (pending == null) break;
+                writeEntry(pending.getEntry());
+            }
+        }
+    }
+
+    private void writeEntry(DropBoxManager.Entry entry) {
         File temp = null;
         InputStream input = null;
         OutputStream output = null;
         final String tag = entry.getTag();
         try {
             int flags = entry.getFlags();
-            if ((flags & DropBoxManager.IS_EMPTY) != 0) throw new IllegalArgumentException();
 
             init();
-            if (!isTagEnabled(tag)) return;
             long max = trimToFit();
             long lastTrim = System.currentTimeMillis();
 
@@ -242,49 +366,62 @@ public final class DropBoxManagerService extends SystemService {
                 read += n;
             }
 
-            // If we have at least one block, compress it -- otherwise, just write
-            // the data in uncompressed form.
+            // Entries that fit in a block along with their record header are appended
+            // to the tag's current segment as-is.  Anything bigger gets its own file,
+            // compressed if we have at least one block -- otherwise, the data is
+            // written in uncompressed form.
 
-            temp = new File(mDropBoxDir, "drop" + Thread.currentThread().getId() + ".tmp");
-            int bufferSize = mBlockSize;
-            if (bufferSize > 4096) bufferSize = 4096;
-            if (bufferSize < 512) bufferSize = 512;
-            FileOutputStream foutput = new FileOutputStream(temp);
-            output = new BufferedOutputStream(foutput, bufferSize);
-            if (read == buffer.length && ((flags & DropBoxManager.IS_GZIPPED) == 0)) {
-                output = new GZIPOutputStream(output);
-                flags = flags | DropBoxManager.IS_GZIPPED;
-            }
+            long time;
+            if (read < buffer.length && read + Segment.HEADER_SIZE <= mBlockSize) {
+                if (read > max) {
+                    Slog.w(TAG, "Dropping: " + tag + " (" + read + " > " + max + " bytes)");
+                    time = createEntry(null, tag, flags);
+                } else {
+                    time = createSegmentEntry(buffer, read, tag, flags);
+                }
+            } else {
+                temp = new File(mDropBoxDir, "drop" + Thread.currentThread().getId() + ".tmp");
+                int bufferSize = mBlockSize;
+                if (bufferSize > 4096) bufferSize = 4096;
+                if (bufferSize < 512) bufferSize = 512;
+                FileOutputStream foutput = new FileOutputStream(temp);
+                output = new BufferedOutputStream(foutput, bufferSize);
+                if (read == buffer.length && ((flags & DropBoxManager.IS_GZIPPED) == 0)) {
+                    output = new GZIPOutputStream(output);
+                    flags = flags | DropBoxManager.IS_GZIPPED;
+                }
 
-            do {
-                output.write(buffer, 0, read);
+                do {
+                    output.write(buffer, 0, read);
 
-                long now = System.currentTimeMillis();
-                if (now - lastTrim > 30 * 1000) {
-                    max = trimToFit();  // In case data dribbles in slowly
-                    lastTrim = now;
-                }
+                    long now = System.currentTimeMillis();
+                    if (now - lastTrim > 30 * 1000) {
+                        max = trimToFit();  // In case data dribbles in slowly
+                        lastTrim = now;
+                    }
 
-                read = input.read(buffer);
-                if (read <= 0) {
-                    FileUtils.sync(foutput);
-                    output.close();  // Get a final size measurement
-                    output = null;
-                } else {
-                    output.flush();  // So the size measurement is pseudo-reasonable
-                }
+                    read = input.read(buffer);
+                    if (read <= 0) {
+                        FileUtils.sync(foutput);
+                        output.close();  // Get a final size measurement
+                        output = null;
+                    } else {
+                        output.flush();  // So the size measurement is pseudo-reasonable
+                    }
 
-                long len = temp.length();
-                if (len > max) {
-                    Slog.w(TAG, "Dropping: " + tag + " (" + temp.length() + " > " + max + " bytes)");
-                    temp.delete();
-                    temp = null;  // Pass temp = null to createEntry() to leave a tombstone
-                    break;
-                }
-            } while (read > 0);
+                    long len = temp.length();
+                    if (len > max) {
+                        Slog.w(TAG, "Dropping: " + tag + " (" + temp.length() + " > " + max
+                                + " bytes)");
+                        temp.delete();
+                        temp = null;  // Pass temp = null to createEntry() to leave a tombstone
+                        break;
+                    }
+                } while (read > 0);
 
-            long time = createEntry(temp, tag, flags);
-            temp = null;
+                time = createEntry(temp, tag, flags);
+                temp = null;
+            }
 
             final Intent dropboxIntent = new Intent(DropBoxManager.ACTION_DROPBOX_ENTRY_ADDED);
             dropboxIntent.putExtra(DropBoxManager.EXTRA_TAG, tag);
@@ -317,12 +454,17 @@ public final class DropBoxManagerService extends SystemService {
         }
     }
 
-    public synchronized DropBoxManager.Entry getNextEntry(String tag, long millis) {
+    public DropBoxManager.Entry getNextEntry(String tag, long millis) {
         if (getContext().checkCallingOrSelfPermission(android.Manifest.permission.READ_LOGS)
                 != PackageManager.PERMISSION_GRANTED) {
             throw new SecurityException("READ_LOGS permission required");
         }
 
+        flushPendingEntries();
+        return findNextEntry(tag, millis);
+    }
+
+    private synchronized DropBoxManager.Entry findNextEntry(String tag, long millis) {
         try {
             init();
         } catch (IOException e) {
@@ -339,8 +481,7 @@ public final class DropBoxManagerService extends SystemService {
                 return new DropBoxManager.Entry(entry.tag, entry.timestampMillis);
             }
             try {
-                return new DropBoxManager.Entry(
-                        entry.tag, entry.timestampMillis, entry.file, entry.flags);
+                return openEntry(entry);
             } catch (IOException e) {
                 Slog.e(TAG, "Can't read: " + entry.file, e);
                 // Continue to next file
@@ -350,9 +491,14 @@ public final class DropBoxManagerService extends SystemService {
         return null;
     }
 
-    public synchronized void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+    public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
         if (!DumpUtils.checkDumpAndUsageStatsPermission(getContext(), TAG, pw)) return;
 
+        flushPendingEntries();
+        dumpEntries(pw, args);
+    }
+
+    private synchronized void dumpEntries(PrintWriter pw, String[] args) {
         try {
             init();
         } catch (IOException e) {
@@ -387,6 +533,11 @@ public final class DropBoxManagerService extends SystemService {
         }
 
         out.append("Drop box contents: ").append(mAllFiles.contents.size()).append(" entries\n");
+        synchronized (mPendingEntries) {
+            out.append("Entries coalesced: ").append(mCoalescedCount)
+                    .append(", rate limited: ").append(mRateLimitedCount)
+                    .append(", dropped when queue full: ").append(mOverflowCount).append("\n");
+        }
 
         if (!searchArgs.isEmpty()) {
             out.append("Searching for:");
@@ -420,20 +571,22 @@ public final class DropBoxManagerService extends SystemService {
                 out.append(" (");
                 if ((entry.flags & DropBoxManager.IS_GZIPPED) != 0) out.append("compressed ");
                 out.append((entry.flags & DropBoxManager.IS_TEXT) != 0 ? "text" : "data");
-                out.append(", ").append(entry.file.length()).append(" bytes)\n");
+                long length = entry.segment != null ? entry.length : entry.file.length();
+                out.append(", ").append(length).append(" bytes)\n");
             }
 
             if (doFile || (doPrint && (entry.flags & DropBoxManager.IS_TEXT) == 0)) {
                 if (!doPrint) out.append("    ");
-                out.append(entry.file.getPath()).append("\n");
+                out.append(entry.file.getPath());
+                if (entry.segment != null) out.append(" @").append(entry.offset);
+                out.append("\n");
             }
 
             if ((entry.flags & DropBoxManager.IS_TEXT) != 0 && (doPrint || !doFile)) {
                 DropBoxManager.Entry dbe = null;
                 InputStreamReader isr = null;
                 try {
-                    dbe = new DropBoxManager.Entry(
-                             entry.tag, entry.timestampMillis, entry.file, entry.flags);
+                    dbe = openEntry(entry);
 
                     if (doPrint) {
                         isr = new InputStreamReader(dbe.getInputStream());
@@ -494,6 +647,61 @@ public final class DropBoxManagerService extends SystemService {
 
     ///////////////////////////////////////////////////////////////////////////
 
+    /** An entry waiting in the add queue. */
+    private static final class PendingEntry {
+        public final DropBoxManager.Entry entry;
+        public final byte[] text;  // Null unless a text entry held in memory
+        public final int bodyOffset;  // Start of the text after any header lines
+        public final int bodyHash;
+        public int duplicates = 0;
+
+        public PendingEntry(DropBoxManager.Entry entry, byte[] text) {
+            this.entry = entry;
+            this.text = text;
+
+            // Crash reports start with "Key: value" headers (process, pid, ...) which
+            // differ between repeats; only the text after the first blank line is compared.
+            int offset = 0;
+            int hash = 0;
+            if (text != null) {
+                for (int i = 1; i < text.length; i++) {
+                    if (text[i] == '\n' && text[i - 1] == '\n') {
+                        offset = i + 1;
+                        break;
+                    }
+                }
+                for (int i = offset; i < text.length; i++) {
+                    hash = 31 * hash + text[i];
+                }
+            }
+            this.bodyOffset = offset;
+            this.bodyHash = hash;
+        }
+
+        /** Returns true if the other entry repeats this one apart from its headers. */
+        public boolean isDuplicate(PendingEntry o) {
+            if (text == null || o.text == null || bodyHash != o.bodyHash) return false;
+            if (!entry.getTag().equals(o.entry.getTag())) return false;
+            if (text.length - bodyOffset != o.text.length - o.bodyOffset) return false;
+            for (int i = bodyOffset, j = o.bodyOffset; i < text.length; i++, j++) {
+                if (text[i] != o.text[j]) return false;
+            }
+            return true;
+        }
+
+        /** Returns the entry to write, noting how many duplicates were coalesced into it. */
+        public DropBoxManager.Entry getEntry() {
+            if (duplicates == 0) return entry;
+
+            byte[] header = ("Dropped-Duplicates: " + duplicates + "\n").getBytes();
+            byte[] data = new byte[header.length + text.length];
+            System.arraycopy(header, 0, data, 0, header.length);
+            System.arraycopy(text, 0, data, header.length, text.length);
+            return new DropBoxManager.Entry(
+                    entry.getTag(), entry.getTimeMillis(), data, entry.getFlags());
+        }
+    }
+
     /** Chronologically sorted list of {@link EntryFile} */
     private static final class FileList implements Comparable<FileList> {
         public int blocks = 0;
@@ -509,19 +717,28 @@ public final class DropBoxManagerService extends SystemService {
         }
     }
 
-    /** Metadata describing an on-disk log file. */
+    /** Metadata describing an on-disk log file, or a record in a {@link Segment}. */
     private static final class EntryFile implements Comparable<EntryFile> {
         public final String tag;
         public final long timestampMillis;
         public final int flags;
         public final File file;
         public final int blocks;
+        public final Segment segment;  // Null unless this entry is a record in a segment
+        public final long offset;  // Offset of the record header within the segment
+        public final int length;  // Length of the record contents
 
         /** Sorts earlier EntryFile instances before later ones. */
         public final int compareTo(EntryFile o) {
             if (timestampMillis < o.timestampMillis) return -1;
             if (timestampMillis > o.timestampMillis) return 1;
-            if (file != null && o.file != null) return file.compareTo(o.file);
+            if (file != null && o.file != null) {
+                int fileOrder = file.compareTo(o.file);
+                if (fileOrder != 0) return fileOrder;
+                if (offset < o.offset) return -1;
+                if (offset > o.offset) return 1;
+                return 0;
+            }
             if (o.file != null) return -1;
             if (file != null) return 1;
             if (this == o) return 0;
@@ -550,6 +767,9 @@ public final class DropBoxManagerService extends SystemService {
             this.file = new File(dir, Uri.encode(tag) + "@" + timestampMillis +
                     ((flags & DropBoxManager.IS_TEXT) != 0 ? ".txt" : ".dat") +
                     ((flags & DropBoxManager.IS_GZIPPED) != 0 ? ".gz" : ""));
+            this.segment = null;
+            this.offset = 0;
+            this.length = 0;
 
             if (!temp.renameTo(this.file)) {
                 throw new IOException("Can't rename " + temp + " to " + this.file);
@@ -558,19 +778,24 @@ public final class DropBoxManagerService extends SystemService {
         }
 
         /**
-         * Creates a zero-length tombstone for a file whose contents were lost.
-         * @param dir to store file in
-         * @param tag to use for new log file name
+         * Describes a record in a segment file.  The segment's block is accounted
+         * for separately, so the entry itself takes up no blocks.
+         * @param segment holding the record
+         * @param offset of the record header within the segment
          * @param timestampMillis of log entry
-         * @throws IOException if the file can't be created.
+         * @param flags for the entry data
+         * @param length of the record contents
          */
-        public EntryFile(File dir, String tag, long timestampMillis) throws IOException {
-            this.tag = tag;
+        public EntryFile(Segment segment, long offset, long timestampMillis, int flags,
+                int length) {
+            this.tag = segment.tag;
             this.timestampMillis = timestampMillis;
-            this.flags = DropBoxManager.IS_EMPTY;
-            this.file = new File(dir, Uri.encode(tag) + "@" + timestampMillis + ".lost");
+            this.flags = flags;
+            this.file = segment.file;
             this.blocks = 0;
-            new FileOutputStream(this.file).close();
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
         }
 
         /**
@@ -581,6 +806,9 @@ public final class DropBoxManagerService extends SystemService {
         public EntryFile(File file, int blockSize) {
             this.file = file;
             this.blocks = (int) ((this.file.length() + blockSize - 1) / blockSize);
+            this.segment = null;
+            this.offset = 0;
+            this.length = 0;
 
             String name = file.getName();
             int at = name.lastIndexOf('@');
@@ -627,6 +855,99 @@ public final class DropBoxManagerService extends SystemService {
             this.flags = DropBoxManager.IS_EMPTY;
             this.file = null;
             this.blocks = 0;
+            this.segment = null;
+            this.offset = 0;
+            this.length = 0;
+        }
+    }
+
+    /**
+     * A file holding the records of several small entries for one tag, each preceded
+     * by a header with its timestamp, flags and length.  A segment never grows past
+     * one block, and that block counts against the overall quota while the file exists.
+     * It also counts against its tag's share while it holds the contents of any entry.
+     * Tombstones are kept in segments of their own.  A segment that held entries can then
+     * be deleted once they are all gone, instead of being kept for the tombstones
+     * written in their place.  The file is deleted along with its last record.
+     */
+    private static final class Segment {
+        /** Size of the timestamp, flags and length header before each record. */
+        public static final int HEADER_SIZE = 16;
+
+        public final String tag;
+        public final File file;
+        public final long id;
+        public long length = 0;
+        public final ArrayList<EntryFile> entries = new ArrayList<EntryFile>();
+        public int dataRecords = 0;  // Entries that are not tombstones
+
+        public Segment(String tag, File file, long id) {
+            this.tag = tag;
+            this.file = file;
+            this.id = id;
+        }
+
+        /**
+         * Appends a record to the end of the segment and syncs it to disk.
+         * @param data for the record, null for a tombstone
+         * @throws IOException if the record can't be written
+         */
+        public void append(long timestampMillis, int flags, byte[] data, int length)
+                throws IOException {
+            ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + length);
+            record.putLong(timestampMillis).putInt(flags).putInt(length);
+            if (length > 0) record.put(data, 0, length);
+            write(record.array());
+        }
+
+        /**
+         * Appends tombstones for {@code count} timestamps starting at {@code start}
+         * in one write, and syncs them to disk.
+         * @throws IOException if the records can't be written
+         */
+        public void appendTombstones(long[] timestamps, int start, int count)
+                throws IOException {
+            ByteBuffer records = ByteBuffer.allocate(HEADER_SIZE * count);
+            for (int i = start; i < start + count; i++) {
+                records.putLong(timestamps[i]).putInt(DropBoxManager.IS_EMPTY).putInt(0);
+            }
+            write(records.array());
+        }
+
+        private void write(byte[] records) throws IOException {
+            FileOutputStream output = new FileOutputStream(file, true);
+            try {
+                output.write(records);
+                FileUtils.sync(output);
+            } finally {
+                IoUtils.closeQuietly(output);
+            }
+            this.length += records.length;
+        }
+
+        /** Reads the contents of the record at the given offset. */
+        public byte[] read(long offset, int length) throws IOException {
+            byte[] data = new byte[length];
+            RandomAccessFile input = new RandomAccessFile(file, "r");
+            try {
+                input.seek(offset + HEADER_SIZE);
+                input.readFully(data);
+            } finally {
+                IoUtils.closeQuietly(input);
+            }
+            return data;
+        }
+
+        /** Rewrites the timestamp of the record at the given offset. */
+        public void writeTimestamp(long offset, long timestampMillis) throws IOException {
+            RandomAccessFile output = new RandomAccessFile(file, "rw");
+            try {
+                output.seek(offset);
+                output.writeLong(timestampMillis);
+                output.getFD().sync();
+            } finally {
+                IoUtils.closeQuietly(output);
+            }
         }
     }
 
@@ -652,6 +973,9 @@ public final class DropBoxManagerService extends SystemService {
 
             mAllFiles = new FileList();
             mFilesByTag = new HashMap<String, FileList>();
+            mActiveSegments = new HashMap<String, Segment>();
+            mActiveTombstoneSegments = new HashMap<String, Segment>();
+            mNextSegmentId = 1;
 
             // Scan pre-existing files.
             for (File file : files) {
@@ -661,6 +985,11 @@ public final class DropBoxManagerService extends SystemService {
                     continue;
                 }
 
+                if (file.getName().endsWith(SEGMENT_SUFFIX)) {
+                    loadSegment(file);
+                    continue;
+                }
+
                 EntryFile entry = new EntryFile(file, mBlockSize);
                 if (entry.tag == null) {
                     Slog.w(TAG, "Unrecognized file: " + file);
@@ -676,27 +1005,216 @@ public final class DropBoxManagerService extends SystemService {
         }
     }
 
+    /**
+     * Enrolls the records of an existing segment file.  Only the record headers are
+     * read; a torn record at the end (from a write interrupted by a crash) is cut off.
+     */
+    private synchronized void loadSegment(File file) {
+        String name = file.getName();
+        int at = name.lastIndexOf('@');
+        long id = 0;
+        if (at > 0) {
+            try {
+                id = Long.parseLong(
+                        name.substring(at + 1, name.length() - SEGMENT_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                id = 0;
+            }
+        }
+        if (id <= 0) {
+            Slog.w(TAG, "Invalid filename: " + file);
+            file.delete();
+            return;
+        }
+
+        Segment segment = new Segment(Uri.decode(name.substring(0, at)), file, id);
+        boolean complete = false;
+        RandomAccessFile input = null;
+        try {
+            input = new RandomAccessFile(file, "rw");
+            long fileLength = input.length();
+            long offset = 0;
+            while (offset + Segment.HEADER_SIZE <= fileLength) {
+                input.seek(offset);
+                long timestampMillis = input.readLong();
+                int flags = input.readInt();
+                int length = input.readInt();
+                if (length < 0 || offset + Segment.HEADER_SIZE + length > fileLength) break;
+
+                if (timestampMillis > 0) {
+                    enrollSegmentEntry(new EntryFile(segment, offset, timestampMillis, flags,
+                            length));
+                }
+                offset += Segment.HEADER_SIZE + length;
+            }
+            if (offset < fileLength) {
+                Slog.w(TAG, "Truncating torn record: " + file);
+                input.setLength(offset);
+            }
+            segment.length = offset;
+            complete = true;
+        } catch (IOException e) {
+            Slog.e(TAG, "Can't read segment: " + file, e);
+        } finally {
+            IoUtils.closeQuietly(input);
+        }
+
+        if (segment.entries.isEmpty()) {
+            file.delete();
+            return;
+        }
+
+        // Keep filling the newest segments of each tag across restarts.  Segments written
+        // before tombstones were kept apart may hold both; they are only appended to
+        // with entries, and their tombstones are moved out when they are trimmed.
+        HashMap<String, Segment> actives =
+                segment.dataRecords > 0 ? mActiveSegments : mActiveTombstoneSegments;
+        Segment active = actives.get(segment.tag);
+        if (complete && (active == null || active.id < segment.id)) {
+            actives.put(segment.tag, segment);
+        }
+        mNextSegmentId = Math.max(mNextSegmentId, id + 1);
+    }
+
+    /** Returns the per-tag accounting for a tag, creating it if needed. */
+    private synchronized FileList getTagFiles(String tag) {
+        FileList tagFiles = mFilesByTag.get(tag);
+        if (tagFiles == null) {
+            tagFiles = new FileList();
+            mFilesByTag.put(tag, tagFiles);
+        }
+        return tagFiles;
+    }
+
     /** Adds a disk log file to in-memory tracking for accounting and enumeration. */
     private synchronized void enrollEntry(EntryFile entry) {
         mAllFiles.contents.add(entry);
         mAllFiles.blocks += entry.blocks;
 
-        // mFilesByTag is used for trimming, so don't list empty files.
+        // mFilesByTag is used for trimming, so don't list entries without data.
         // (Zero-length/lost files are trimmed by date from mAllFiles.)
 
-        if (entry.tag != null && entry.file != null && entry.blocks > 0) {
-            FileList tagFiles = mFilesByTag.get(entry.tag);
-            if (tagFiles == null) {
-                tagFiles = new FileList();
-                mFilesByTag.put(entry.tag, tagFiles);
-            }
+        if (entry.tag != null && entry.file != null && (entry.blocks > 0
+                || (entry.segment != null && (entry.flags & DropBoxManager.IS_EMPTY) == 0))) {
+            FileList tagFiles = getTagFiles(entry.tag);
             tagFiles.contents.add(entry);
             tagFiles.blocks += entry.blocks;
         }
     }
 
-    /** Moves a temporary file to a final log filename and enrolls it. */
-    private synchronized long createEntry(File temp, String tag, int flags) throws IOException {
+    /** Adds a segment record to in-memory tracking, charging for the segment if needed. */
+    private synchronized void enrollSegmentEntry(EntryFile entry) {
+        Segment segment = entry.segment;
+        if (segment.entries.isEmpty()) {
+            // The segment's one block is used on disk until its file is deleted.
+            mAllFiles.blocks++;
+        }
+        if ((entry.flags & DropBoxManager.IS_EMPTY) == 0 && segment.dataRecords++ == 0) {
+            // ...and charged to its tag, for trimming, while any contents are left.
+            getTagFiles(segment.tag).blocks++;
+        }
+        segment.entries.add(entry);
+        enrollEntry(entry);
+    }
+
+    /**
+     * Removes an entry from in-memory tracking and deletes its data.  Segment files
+     * are deleted along with their last record.
+     */
+    private synchronized void removeEntry(EntryFile entry) {
+        FileList tagFiles = mFilesByTag.get(entry.tag);
+        if (tagFiles != null && tagFiles.contents.remove(entry)) tagFiles.blocks -= entry.blocks;
+        if (mAllFiles.contents.remove(entry)) mAllFiles.blocks -= entry.blocks;
+
+        Segment segment = entry.segment;
+        if (segment == null) {
+            if (entry.file != null) entry.file.delete();
+            return;
+        }
+
+        if (!segment.entries.remove(entry)) return;
+        if ((entry.flags & DropBoxManager.IS_EMPTY) == 0 && --segment.dataRecords == 0) {
+            if (tagFiles != null) tagFiles.blocks--;
+        }
+        if (segment.entries.isEmpty()) {
+            mAllFiles.blocks--;
+            if (mActiveSegments.get(segment.tag) == segment) mActiveSegments.remove(segment.tag);
+            if (mActiveTombstoneSegments.get(segment.tag) == segment) {
+                mActiveTombstoneSegments.remove(segment.tag);
+            }
+            segment.file.delete();
+        }
+    }
+
+    /**
+     * Returns the tag's current segment for entries or for tombstones, starting a new one
+     * if a record won't fit.
+     */
+    private synchronized Segment getActiveSegment(String tag, boolean tombstones,
+            int recordSize) {
+        HashMap<String, Segment> actives = tombstones ? mActiveTombstoneSegments : mActiveSegments;
+        Segment segment = actives.get(tag);
+        if (segment == null || segment.length + recordSize > mBlockSize) {
+            long id = mNextSegmentId++;
+            segment = new Segment(tag,
+                    new File(mDropBoxDir, Uri.encode(tag) + "@" + id + SEGMENT_SUFFIX), id);
+            actives.put(tag, segment);
+        }
+        return segment;
+    }
+
+    /**
+     * Appends a record to the tag's current segment, starting a new segment if the
+     * record doesn't fit, and enrolls it.
+     * @param data for the record, null for a tombstone
+     */
+    private synchronized void appendRecord(String tag, long timestampMillis, int flags,
+            byte[] data, int length) throws IOException {
+        boolean tombstone = (flags & DropBoxManager.IS_EMPTY) != 0;
+        Segment segment = getActiveSegment(tag, tombstone, Segment.HEADER_SIZE + length);
+        long offset = segment.length;
+        try {
+            segment.append(timestampMillis, flags, data, length);
+        } catch (IOException e) {
+            // The tail of the segment is unknown now; start over in a new one.
+            (tombstone ? mActiveTombstoneSegments : mActiveSegments).remove(tag);
+            throw e;
+        }
+        enrollSegmentEntry(new EntryFile(segment, offset, timestampMillis, flags, length));
+    }
+
+    /**
+     * Writes tombstones in place of entries whose contents were lost, filling the tag's
+     * current tombstone segment with as many as fit in each write.
+     * @param timestamps of the lost entries, the first {@code count} of which are used
+     */
+    private synchronized void writeTombstones(String tag, long[] timestamps, int count) {
+        int written = 0;
+        try {
+            while (written < count) {
+                Segment segment = getActiveSegment(tag, true, Segment.HEADER_SIZE);
+                int n = Math.min(count - written,
+                        (int) ((mBlockSize - segment.length) / Segment.HEADER_SIZE));
+                long offset = segment.length;
+                try {
+                    segment.appendTombstones(timestamps, written, n);
+                } catch (IOException e) {
+                    mActiveTombstoneSegments.remove(tag);
+                    throw e;
+                }
+                for (int i = 0; i < n; i++) {
+                    enrollSegmentEntry(new EntryFile(segment, offset + i * Segment.HEADER_SIZE,
+                            timestamps[written + i], DropBoxManager.IS_EMPTY, 0));
+                }
+                written += n;
+            }
+        } catch (IOException e) {
+            Slog.e(TAG, "Can't write tombstones", e);
+        }
+    }
+
+    /** Picks a unique timestamp for a new entry. */
+    private synchronized long nextTimestamp() throws IOException {
         long t = System.currentTimeMillis();
 
         // Require each entry to have a unique timestamp; if there are entries
@@ -721,23 +1239,56 @@ public final class DropBoxManagerService extends SystemService {
                 if (tagFiles != null && tagFiles.contents.remove(late)) {
                     tagFiles.blocks -= late.blocks;
                 }
-                if ((late.flags & DropBoxManager.IS_EMPTY) == 0) {
+                if (late.segment != null) {
+                    // Rewrite the record in place; the segment stays charged as before.
+                    late.segment.writeTimestamp(late.offset, t);
+                    EntryFile moved = new EntryFile(
+                            late.segment, late.offset, t++, late.flags, late.length);
+                    late.segment.entries.set(late.segment.entries.indexOf(late), moved);
+                    enrollEntry(moved);
+                } else if ((late.flags & DropBoxManager.IS_EMPTY) == 0) {
                     enrollEntry(new EntryFile(
                             late.file, mDropBoxDir, late.tag, t++, late.flags, mBlockSize));
                 } else {
-                    enrollEntry(new EntryFile(mDropBoxDir, late.tag, t++));
+                    late.file.delete();
+                    appendRecord(late.tag, t++, DropBoxManager.IS_EMPTY, null, 0);
                 }
             }
         }
+        return t;
+    }
 
+    /** Moves a temporary file to a final log filename and enrolls it. */
+    private synchronized long createEntry(File temp, String tag, int flags) throws IOException {
+        long t = nextTimestamp();
         if (temp == null) {
-            enrollEntry(new EntryFile(mDropBoxDir, tag, t));
+            appendRecord(tag, t, DropBoxManager.IS_EMPTY, null, 0);
         } else {
             enrollEntry(new EntryFile(temp, mDropBoxDir, tag, t, flags, mBlockSize));
         }
         return t;
     }
 
+    /** Appends a small entry to the tag's current segment and enrolls it. */
+    private synchronized long createSegmentEntry(byte[] data, int length, String tag, int flags)
+            throws IOException {
+        long t = nextTimestamp();
+        appendRecord(tag, t, flags, data, length);
+        return t;
+    }
+
+    /**
+     * Opens the contents of an entry.  Segment records are smaller than a block, so
+     * they are read up front; entries with their own file are streamed from it.
+     */
+    private static DropBoxManager.Entry openEntry(EntryFile entry) throws IOException {
+        if (entry.segment != null) {
+            return new DropBoxManager.Entry(entry.tag, entry.timestampMillis,
+                    entry.segment.read(entry.offset, entry.length), entry.flags);
+        }
+        return new DropBoxManager.Entry(entry.tag, entry.timestampMillis, entry.file, entry.flags);
+    }
+
     /**
      * Trims the files on disk to make sure they aren't using too much space.
      * @return the overall quota for storage (in bytes)
@@ -753,11 +1304,7 @@ public final class DropBoxManagerService extends SystemService {
         while (!mAllFiles.contents.isEmpty()) {
             EntryFile entry = mAllFiles.contents.first();
             if (entry.timestampMillis > cutoffMillis && mAllFiles.contents.size() < maxFiles) break;
-
-            FileList tag = mFilesByTag.get(entry.tag);
-            if (tag != null && tag.contents.remove(entry)) tag.blocks -= entry.blocks;
-            if (mAllFiles.contents.remove(entry)) mAllFiles.blocks -= entry.blocks;
-            if (entry.file != null) entry.file.delete();
+            removeEntry(entry);
         }
 
         // Compute overall quota (a fraction of available free space) in blocks.
@@ -798,8 +1345,13 @@ public final class DropBoxManagerService extends SystemService {
         // kernel crash dumps, and 100KB+ ANR reports) without swamping small,
         // well-behaved data streams (event statistics, profile data, etc).
         //
-        // Deleted files are replaced with zero-length tombstones to mark what
-        // was lost.  Tombstones are expunged by age (see above).
+        // Deleted entries are replaced with empty tombstone records to mark what
+        // was lost.  Tombstones are packed into segments of their own; those count
+        // against the overall quota but not against any tag's share, and are expunged
+        // by age and file count (see above).
+        //
+        // A segment only frees its block once all of its records are gone, so small
+        // entries are evicted a whole segment at a time.
 
         if (mAllFiles.blocks > mCachedQuotaBlocks) {
             // Find a fair share amount of space to limit each tag
@@ -814,21 +1366,28 @@ public final class DropBoxManagerService extends SystemService {
             }
             int tagQuota = (mCachedQuotaBlocks - unsqueezed) / squeezed;
 
-            // Remove old items from each tag until it meets the per-tag quota.
+            // Remove old items from each tag until it meets the per-tag quota,
+            // then mark them all lost in one go.
+            long[] lost = new long[16];
             for (FileList tag : tags) {
                 if (mAllFiles.blocks < mCachedQuotaBlocks) break;
+                String tagName = null;
+                int numLost = 0;
                 while (tag.blocks > tagQuota && !tag.contents.isEmpty()) {
                     EntryFile entry = tag.contents.first();
-                    if (tag.contents.remove(entry)) tag.blocks -= entry.blocks;
-                    if (mAllFiles.contents.remove(entry)) mAllFiles.blocks -= entry.blocks;
-
-                    try {
-                        if (entry.file != null) entry.file.delete();
-                        enrollEntry(new EntryFile(mDropBoxDir, entry.tag, entry.timestampMillis));
-                    } catch (IOException e) {
-                        Slog.e(TAG, "Can't write tombstone file", e);
+                    tagName = entry.tag;
+                    EntryFile[] records = entry.segment == null ? new EntryFile[] { entry }
+                            : entry.segment.entries.toArray(
+                                    new EntryFile[entry.segment.entries.size()]);
+                    for (EntryFile record : records) {
+                        // Tombstones only share a segment with entries if it was written
+                        // before they were kept apart; move them out with the rest.
+                        removeEntry(record);
+                        if (numLost == lost.length) lost = Arrays.copyOf(lost, numLost * 2);
+                        lost[numLost++] = record.timestampMillis;
                     }
                 }
+                if (numLost > 0) writeTombstones(tagName, lost, numLost);
             }
         }
 
@@ -2191,6 +2191,8 @@ public class LockSettingsService extends ILockSettings.Stub {
         pw.println("Current lock settings service state:");
         pw.println(String.format("SP Enabled = %b",
                 mLockPatternUtils.isSyntheticPasswordEnabled()));
+        pw.println(String.format("Storage cache: %d hits, %d misses",
+                mStorage.getCacheHitCount(), mStorage.getCacheMissCount()));
 
         List<UserInfo> users = mUserManager.getUsers();
         for (int user = 0; user < users.size(); user++) {
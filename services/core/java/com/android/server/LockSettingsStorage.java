@@ -30,6 +30,7 @@ import android.os.storage.StorageManager;
 import android.util.ArrayMap;
 import android.util.Log;
 import android.util.Slog;
+import android.util.SparseArray;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.ArrayUtils;
@@ -76,6 +77,11 @@ class LockSettingsStorage {
     private final Cache mCache = new Cache();
     private final Object mFileWriteLock = new Object();
 
+    // Key-value writes waiting for the next transaction, by user.  Only one transaction
+    // is committed at a time, under mKeyValueWriteLock.
+    private final SparseArray<PendingWrite> mPendingWrites = new SparseArray<>();
+    private final Object mKeyValueWriteLock = new Object();
+
     @VisibleForTesting
     public static class CredentialHash {
         static final int VERSION_LEGACY = 0;
@@ -123,8 +129,16 @@ class LockSettingsStorage {
     }
 
     public LockSettingsStorage(Context context) {
+        this(context, DatabaseHelper.DATABASE_NAME);
+    }
+
+    /**
+     * @param databaseName name of the database file, or null for an in-memory database
+     */
+    @VisibleForTesting
+    LockSettingsStorage(Context context, String databaseName) {
         mContext = context;
-        mOpenHelper = new DatabaseHelper(context);
+        mOpenHelper = new DatabaseHelper(context, databaseName);
     }
 
     public void setDatabaseOnCreateCallback(Callback callback) {
@@ -132,34 +146,124 @@ class LockSettingsStorage {
     }
 
     public void writeKeyValue(String key, String value, int userId) {
-        writeKeyValue(mOpenHelper.getWritableDatabase(), key, value, userId);
+        ArrayMap<String, String> values = new ArrayMap<>(1);
+        values.put(key, value);
+        writeKeyValues(values, userId);
+    }
+
+    /**
+     * Writes several key-value pairs of a user in one transaction.  Writes to the same user
+     * that come in while another transaction is being committed are folded into the next
+     * one; every call still returns only once its own values are stored, and throws if the
+     * transaction they were folded into failed.  Values of a failed transaction are dropped,
+     * not retried with later writes.
+     */
+    public void writeKeyValues(ArrayMap<String, String> values, int userId) {
+        final PendingWrite write;
+        synchronized (mPendingWrites) {
+            PendingWrite pending = mPendingWrites.get(userId);
+            if (pending == null) {
+                pending = new PendingWrite(values.size());
+                mPendingWrites.put(userId, pending);
+            }
+            pending.values.putAll(values);
+            write = pending;
+        }
+
+        synchronized (mKeyValueWriteLock) {
+            synchronized (mPendingWrites) {
+                if (mPendingWrites.get(userId) == write) {
+                    mPendingWrites.remove(userId);
+                }
+            }
+            // An earlier writer may have committed our values already, or failed to.
+            if (write.done) {
+                if (write.failure != null) {
+                    throw new IllegalStateException("Failed to write key-values for user "
+                            + userId, write.failure);
+                }
+                return;
+            }
+
+            write.done = true;
+            try {
+                writeKeyValues(mOpenHelper.getWritableDatabase(), write.values, userId);
+            } catch (RuntimeException e) {
+                write.failure = e;
+                throw e;
+            }
+        }
     }
 
     public void writeKeyValue(SQLiteDatabase db, String key, String value, int userId) {
-        ContentValues cv = new ContentValues();
-        cv.put(COLUMN_KEY, key);
-        cv.put(COLUMN_USERID, userId);
-        cv.put(COLUMN_VALUE, value);
+        db.beginTransaction();
+        try {
+            putKeyValue(db, key, value, userId);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        mCache.putKeyValue(key, value, userId);
+    }
 
+    private void writeKeyValues(SQLiteDatabase db, ArrayMap<String, String> values, int userId) {
         db.beginTransaction();
         try {
-            db.delete(TABLE, COLUMN_KEY + "=? AND " + COLUMN_USERID + "=?",
-                    new String[] {key, Integer.toString(userId)});
-            db.insert(TABLE, null, cv);
+            for (int i = 0; i < values.size(); i++) {
+                putKeyValue(db, values.keyAt(i), values.valueAt(i), userId);
+            }
             db.setTransactionSuccessful();
-            mCache.putKeyValue(key, value, userId);
         } finally {
             db.endTransaction();
         }
+        // Only cache the values once they are committed, so that a failed transaction
+        // doesn't leave values behind that aren't stored.
+        for (int i = 0; i < values.size(); i++) {
+            mCache.putKeyValue(values.keyAt(i), values.valueAt(i), userId);
+        }
+    }
 
+    /**
+     * Replaces a key-value pair; must be called within a transaction on {@code db}.  The cache
+     * is left to the caller to update once the transaction is committed.
+     */
+    private void putKeyValue(SQLiteDatabase db, String key, String value, int userId) {
+        ContentValues cv = new ContentValues();
+        cv.put(COLUMN_KEY, key);
+        cv.put(COLUMN_USERID, userId);
+        cv.put(COLUMN_VALUE, value);
+
+        db.delete(TABLE, COLUMN_KEY + "=? AND " + COLUMN_USERID + "=?",
+                new String[] {key, Integer.toString(userId)});
+        db.insert(TABLE, null, cv);
     }
 
     public String readKeyValue(String key, String defaultValue, int userId) {
+        synchronized (mCache) {
+            if (mCache.hasKeyValue(key, userId)) {
+                mCache.recordHit();
+                return mCache.peekKeyValue(key, defaultValue, userId);
+            }
+            if (mCache.isFetched(userId)) {
+                // The user's key-values are all cached, so the key doesn't exist.
+                mCache.recordHit();
+                return defaultValue;
+            }
+            mCache.recordMiss();
+        }
+
+        // Callers usually read a number of keys in a row; load all of the user's
+        // key-values at once rather than querying for them one by one.
+        fetchUserKeyValues(userId);
+
         int version;
         synchronized (mCache) {
             if (mCache.hasKeyValue(key, userId)) {
                 return mCache.peekKeyValue(key, defaultValue, userId);
             }
+            if (mCache.isFetched(userId)) {
+                return defaultValue;
+            }
             version = mCache.getVersion();
         }
 
@@ -180,31 +284,54 @@ class LockSettingsStorage {
     }
 
     public void prefetchUser(int userId) {
+        if (mCache.isFetched(userId)) {
+            return;
+        }
+        fetchUserKeyValues(userId);
+
+        // Populate cache by reading the password and pattern files.
+        readCredentialHash(userId);
+    }
+
+    /**
+     * Loads all key-value pairs of a user into the cache with a single query.  Once that
+     * has succeeded, reads of keys the user doesn't have are answered from the cache too.
+     * If the cache changed while loading, the snapshot is discarded and later reads fall
+     * back to querying key by key.
+     */
+    private void fetchUserKeyValues(int userId) {
+        // Opening the database may run the onCreate callback, which writes to the cache.
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
         int version;
         synchronized (mCache) {
             if (mCache.isFetched(userId)) {
                 return;
             }
-            mCache.setFetched(userId);
             version = mCache.getVersion();
         }
 
+        ArrayMap<String, String> values = new ArrayMap<>();
         Cursor cursor;
-        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
         if ((cursor = db.query(TABLE, COLUMNS_FOR_PREFETCH,
                 COLUMN_USERID + "=?",
                 new String[] { Integer.toString(userId) },
                 null, null, null)) != null) {
             while (cursor.moveToNext()) {
-                String key = cursor.getString(0);
-                String value = cursor.getString(1);
-                mCache.putKeyValueIfUnchanged(key, value, userId, version);
+                values.put(cursor.getString(0), cursor.getString(1));
             }
             cursor.close();
         }
+        mCache.putUserKeyValuesIfUnchanged(values, userId, version);
+    }
 
-        // Populate cache by reading the password and pattern files.
-        readCredentialHash(userId);
+    @VisibleForTesting
+    int getCacheHitCount() {
+        return mCache.getHitCount();
+    }
+
+    @VisibleForTesting
+    int getCacheMissCount() {
+        return mCache.getMissCount();
     }
 
     private CredentialHash readPasswordHashIfExists(int userId) {
@@ -519,20 +646,31 @@ class LockSettingsStorage {
         mCache.clear();
     }
 
+    /** Key-value writes of a user that are committed together, guarded by mKeyValueWriteLock. */
+    private static class PendingWrite {
+        final ArrayMap<String, String> values;
+        boolean done;
+        RuntimeException failure;
+
+        PendingWrite(int capacity) {
+            values = new ArrayMap<>(capacity);
+        }
+    }
+
     public interface Callback {
         void initialize(SQLiteDatabase db);
     }
 
     class DatabaseHelper extends SQLiteOpenHelper {
         private static final String TAG = "LockSettingsDB";
-        private static final String DATABASE_NAME = "locksettings.db";
+        static final String DATABASE_NAME = "locksettings.db";
 
         private static final int DATABASE_VERSION = 2;
 
         private Callback mCallback;
 
-        public DatabaseHelper(Context context) {
-            super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        public DatabaseHelper(Context context, String name) {
+            super(context, name, null, DATABASE_VERSION);
             setWriteAheadLoggingEnabled(true);
         }
 
@@ -589,6 +727,8 @@ class LockSettingsStorage {
         private final ArrayMap<CacheKey, Object> mCache = new ArrayMap<>();
         private final CacheKey mCacheKey = new CacheKey();
         private int mVersion = 0;
+        private int mHitCount = 0;
+        private int mMissCount = 0;
 
         String peekKeyValue(String key, String defaultValue, int userId) {
             Object cached = peek(CacheKey.TYPE_KEY_VALUE, key, userId);
@@ -628,9 +768,41 @@ class LockSettingsStorage {
         }
 
         boolean isFetched(int userId) {
-            return contains(CacheKey.TYPE_FETCHED, "", userId);
+            return contains(CacheKey.TYPE_FETCHED, "isFetched", userId);
+        }
+
+        /**
+         * Caches a snapshot of all of a user's key-values and marks the user fetched, unless
+         * the cache changed since {@code version}.  Keys cached already are left alone.
+         */
+        synchronized void putUserKeyValuesIfUnchanged(ArrayMap<String, String> values,
+                int userId, int version) {
+            if (mVersion != version) {
+                return;
+            }
+            for (int i = 0; i < values.size(); i++) {
+                if (!contains(CacheKey.TYPE_KEY_VALUE, values.keyAt(i), userId)) {
+                    put(CacheKey.TYPE_KEY_VALUE, values.keyAt(i), values.valueAt(i), userId);
+                }
+            }
+            setFetched(userId);
+        }
+
+        synchronized void recordHit() {
+            mHitCount++;
         }
 
+        synchronized void recordMiss() {
+            mMissCount++;
+        }
+
+        synchronized int getHitCount() {
+            return mHitCount;
+        }
+
+        synchronized int getMissCount() {
+            return mMissCount;
+        }
 
         private synchronized void put(int type, String key, Object value, int userId) {
             // Create a new CachKey here because it may be saved in the map if the key is absent.
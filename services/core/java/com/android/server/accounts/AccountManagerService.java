@@ -236,6 +236,14 @@ public class AccountManagerService
         private final HashMap<Account, AtomicReference<String>> previousNameCache =
                 new HashMap<Account, AtomicReference<String>>();
 
+        /**
+         * protected by the {@link #cacheLock}
+         *
+         * Grants of every account, keyed by account and then by grantee uid, or {@code null} if
+         * they have not been loaded since they last changed.
+         */
+        private Map<Account, Map<Integer, Set<String>>> grantsCache;
+
         private int debugDbInsertionPoint = -1;
         private SQLiteStatement statementForLogging; // TODO Move to AccountsDb
 
@@ -1185,6 +1193,7 @@ public class AccountManagerService
                             accounts.authTokenCache.remove(account);
                             accounts.accountTokenCaches.remove(account);
                             accounts.visibilityCache.remove(account);
+                            accounts.grantsCache = null;
 
                             for (Entry<String, Integer> packageToVisibility :
                                     packagesToVisibility.entrySet()) {
@@ -1328,6 +1337,7 @@ public class AccountManagerService
                     Log.d(TAG, "deleting grants for UID " + uid
                             + " because its package is no longer installed");
                     accounts.accountsDb.deleteGrantsByUid(uid);
+                    accounts.grantsCache = null;
                 }
             }
         }
@@ -1487,7 +1497,17 @@ public class AccountManagerService
             synchronized (accounts.cacheLock) {
                 AtomicReference<String> previousNameRef = accounts.previousNameCache.get(account);
                 if (previousNameRef == null) {
-                    String previousName = accounts.accountsDb.findDeAccountPreviousName(account);
+                    // Renames are usually followed by a LOGIN_ACCOUNTS_CHANGED broadcast that
+                    // makes clients ask about every account, so load them all at once.
+                    Map<Account, String> previousNames =
+                            accounts.accountsDb.findAllDeAccountPreviousNames();
+                    for (Entry<Account, String> entry : previousNames.entrySet()) {
+                        if (!accounts.previousNameCache.containsKey(entry.getKey())) {
+                            accounts.previousNameCache.put(entry.getKey(),
+                                    new AtomicReference<>(entry.getValue()));
+                        }
+                    }
+                    String previousName = previousNames.get(account);
                     previousNameRef = new AtomicReference<>(previousName);
                     accounts.previousNameCache.put(account, previousNameRef);
                     return previousName;
@@ -1799,6 +1819,17 @@ public class AccountManagerService
                             accounts, callingUid);
 
                     insertAccountIntoCacheLocked(accounts, account);
+                    // The new account's rows were all written above, so seed its caches
+                    // rather than have the first read go back to the database.
+                    final Map<String, String> userDataForAccount = new HashMap<>();
+                    if (extras != null) {
+                        for (String key : extras.keySet()) {
+                            userDataForAccount.put(key, extras.getString(key));
+                        }
+                    }
+                    accounts.userDataCache.put(account, userDataForAccount);
+                    accounts.authTokenCache.put(account, new HashMap<>());
+                    accounts.previousNameCache.put(account, new AtomicReference<>(null));
                 } finally {
                     accounts.accountsDb.endTransaction();
                 }
@@ -5517,15 +5548,15 @@ public class AccountManagerService
         UserAccounts accounts = getUserAccounts(UserHandle.getUserId(callerUid));
         synchronized (accounts.dbLock) {
             synchronized (accounts.cacheLock) {
-                long grantsCount;
-                if (authTokenType != null) {
-                    grantsCount = accounts.accountsDb
-                            .findMatchingGrantsCount(callerUid, authTokenType, account);
-                } else {
-                    grantsCount = accounts.accountsDb.findMatchingGrantsCountAnyToken(callerUid,
-                            account);
+                if (accounts.grantsCache == null) {
+                    accounts.grantsCache = accounts.accountsDb.findAllGrants();
                 }
-                final boolean permissionGranted = grantsCount > 0;
+                final Map<Integer, Set<String>> grantsForAccount =
+                        accounts.grantsCache.get(account);
+                final Set<String> authTokenTypes =
+                        grantsForAccount != null ? grantsForAccount.get(callerUid) : null;
+                final boolean permissionGranted = authTokenTypes != null
+                        && (authTokenType == null || authTokenTypes.contains(authTokenType));
 
                 if (!permissionGranted && ActivityManager.isRunningInTestHarness()) {
                     // TODO: Skip this check when running automated tests. Replace this
@@ -5655,6 +5686,7 @@ public class AccountManagerService
                 long accountId = accounts.accountsDb.findDeAccountId(account);
                 if (accountId >= 0) {
                     accounts.accountsDb.insertGrant(accountId, authTokenType, uid);
+                    accounts.grantsCache = null;
                 }
                 cancelNotification(
                         getCredentialPermissionNotificationId(account, authTokenType, uid),
@@ -5694,6 +5726,7 @@ public class AccountManagerService
                         accounts.accountsDb.deleteGrantsByAccountIdAuthTokenTypeAndUid(
                                 accountId, authTokenType, uid);
                         accounts.accountsDb.setTransactionSuccessful();
+                        accounts.grantsCache = null;
                     }
                 } finally {
                     accounts.accountsDb.endTransaction();
@@ -5733,6 +5766,9 @@ public class AccountManagerService
         accounts.authTokenCache.remove(account);
         accounts.previousNameCache.remove(account);
         accounts.visibilityCache.remove(account);
+        // Grants follow the account id, so a rename or removal changes which account they
+        // belong to.
+        accounts.grantsCache = null;
     }
 
     /**
@@ -5908,8 +5944,8 @@ public class AccountManagerService
             Account account, String key, String value) {
         Map<String, String> userDataForAccount = accounts.userDataCache.get(account);
         if (userDataForAccount == null) {
-            userDataForAccount = accounts.accountsDb.findUserExtrasForAccount(account);
-            accounts.userDataCache.put(account, userDataForAccount);
+            userDataForAccount = loadCacheLocked(accounts, accounts.userDataCache,
+                    accounts.accountsDb.findAllUserExtras(), account);
         }
         if (value == null) {
             userDataForAccount.remove(key);
@@ -5937,8 +5973,8 @@ public class AccountManagerService
             Account account, String key, String value) {
         Map<String, String> authTokensForAccount = accounts.authTokenCache.get(account);
         if (authTokensForAccount == null) {
-            authTokensForAccount = accounts.accountsDb.findAuthTokensByAccount(account);
-            accounts.authTokenCache.put(account, authTokensForAccount);
+            authTokensForAccount = loadCacheLocked(accounts, accounts.authTokenCache,
+                    accounts.accountsDb.findAllAuthTokens(), account);
         }
         if (value == null) {
             authTokensForAccount.remove(key);
@@ -5962,14 +5998,45 @@ public class AccountManagerService
                 Map<String, String> authTokensForAccount = accounts.authTokenCache.get(account);
                 if (authTokensForAccount == null) {
                     // need to populate the cache for this account
-                    authTokensForAccount = accounts.accountsDb.findAuthTokensByAccount(account);
-                    accounts.authTokenCache.put(account, authTokensForAccount);
+                    authTokensForAccount = loadCacheLocked(accounts, accounts.authTokenCache,
+                            accounts.accountsDb.findAllAuthTokens(), account);
                 }
                 return authTokensForAccount.get(authTokenType);
             }
         }
     }
 
+    /**
+     * Fills {@code cache} with the values loaded for every account of the user, so that one
+     * query warms the cache for all accounts instead of one query per account. Entries that
+     * are already cached are kept, since they are written through on every change.
+     *
+     * protected by the {@code dbLock}, {@code cacheLock}
+     *
+     * @return the cached values of {@code account}.
+     */
+    private static Map<String, String> loadCacheLocked(UserAccounts accounts,
+            Map<Account, Map<String, String>> cache, Map<Account, Map<String, String>> loaded,
+            Account account) {
+        for (Account[] accountsForType : accounts.accountCache.values()) {
+            for (Account cur : accountsForType) {
+                if (!cache.containsKey(cur)) {
+                    final Map<String, String> values = loaded.get(cur);
+                    cache.put(cur, values != null ? values : new HashMap<>());
+                }
+            }
+        }
+        Map<String, String> valuesForAccount = cache.get(account);
+        if (valuesForAccount == null) {
+            valuesForAccount = loaded.get(account);
+            if (valuesForAccount == null) {
+                valuesForAccount = new HashMap<>();
+            }
+            cache.put(account, valuesForAccount);
+        }
+        return valuesForAccount;
+    }
+
     private String readUserDataInternal(UserAccounts accounts, Account account, String key) {
         Map<String, String> userDataForAccount;
         // Fast path - check if data is already cached
@@ -5983,8 +6050,8 @@ public class AccountManagerService
                     userDataForAccount = accounts.userDataCache.get(account);
                     if (userDataForAccount == null) {
                         // need to populate the cache for this account
-                        userDataForAccount = accounts.accountsDb.findUserExtrasForAccount(account);
-                        accounts.userDataCache.put(account, userDataForAccount);
+                        userDataForAccount = loadCacheLocked(accounts, accounts.userDataCache,
+                                accounts.accountsDb.findAllUserExtras(), account);
                     }
                 }
             }
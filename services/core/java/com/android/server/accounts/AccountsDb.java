@@ -36,9 +36,11 @@ import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Persistence layer abstraction for accessing accounts_ce/accounts_de databases.
@@ -161,6 +163,12 @@ class AccountsDb implements AutoCloseable {
     private static final String SELECTION_ACCOUNTS_ID_BY_ACCOUNT =
         "accounts_id=(select _id FROM accounts WHERE name=? AND type=?)";
 
+    private static final String ALL_GRANTS = ""
+            + "SELECT " + ACCOUNTS_NAME + ", " + ACCOUNTS_TYPE
+            + ", " + GRANTS_GRANTEE_UID + ", " + GRANTS_AUTH_TOKEN_TYPE
+            + " FROM " + TABLE_GRANTS + ", " + TABLE_ACCOUNTS
+            + " WHERE " + GRANTS_ACCOUNTS_ID + "=" + ACCOUNTS_ID;
+
     private static final String[] COLUMNS_AUTHTOKENS_TYPE_AND_AUTHTOKEN =
             {AUTHTOKENS_TYPE, AUTHTOKENS_AUTHTOKEN};
 
@@ -352,6 +360,36 @@ class AccountsDb implements AutoCloseable {
         return authTokensForAccount;
     }
 
+    /**
+     * Returns the auth tokens of every account, keyed by account. Accounts without auth tokens
+     * are not included.
+     */
+    Map<Account, Map<String, String>> findAllAuthTokens() {
+        SQLiteDatabase db = mDeDatabase.getReadableDatabaseUserIsUnlocked();
+        HashMap<Account, Map<String, String>> authTokens = new HashMap<>();
+        try (Cursor cursor = db.rawQuery(
+                "SELECT " + CE_TABLE_ACCOUNTS + "." + ACCOUNTS_NAME
+                        + ", " + CE_TABLE_ACCOUNTS + "." + ACCOUNTS_TYPE
+                        + ", " + CE_TABLE_AUTHTOKENS + "." + AUTHTOKENS_TYPE
+                        + ", " + CE_TABLE_AUTHTOKENS + "." + AUTHTOKENS_AUTHTOKEN
+                        + " FROM " + CE_TABLE_ACCOUNTS
+                        + " JOIN " + CE_TABLE_AUTHTOKENS
+                        + " ON " + CE_TABLE_ACCOUNTS + "." + ACCOUNTS_ID
+                        + " = " + CE_TABLE_AUTHTOKENS + "." + AUTHTOKENS_ACCOUNTS_ID,
+                null)) {
+            while (cursor.moveToNext()) {
+                final Account account = new Account(cursor.getString(0), cursor.getString(1));
+                Map<String, String> authTokensForAccount = authTokens.get(account);
+                if (authTokensForAccount == null) {
+                    authTokensForAccount = new HashMap<>();
+                    authTokens.put(account, authTokensForAccount);
+                }
+                authTokensForAccount.put(cursor.getString(2), cursor.getString(3));
+            }
+        }
+        return authTokens;
+    }
+
     boolean deleteAuthtokensByAccountIdAndType(long accountId, String authtokenType) {
         SQLiteDatabase db = mDeDatabase.getWritableDatabaseUserIsUnlocked();
         return db.delete(CE_TABLE_AUTHTOKENS,
@@ -453,6 +491,36 @@ class AccountsDb implements AutoCloseable {
         return userExtrasForAccount;
     }
 
+    /**
+     * Returns the user data of every account, keyed by account. Accounts without user data are
+     * not included.
+     */
+    Map<Account, Map<String, String>> findAllUserExtras() {
+        SQLiteDatabase db = mDeDatabase.getReadableDatabaseUserIsUnlocked();
+        Map<Account, Map<String, String>> userExtras = new HashMap<>();
+        try (Cursor cursor = db.rawQuery(
+                "SELECT " + CE_TABLE_ACCOUNTS + "." + ACCOUNTS_NAME
+                        + ", " + CE_TABLE_ACCOUNTS + "." + ACCOUNTS_TYPE
+                        + ", " + CE_TABLE_EXTRAS + "." + EXTRAS_KEY
+                        + ", " + CE_TABLE_EXTRAS + "." + EXTRAS_VALUE
+                        + " FROM " + CE_TABLE_ACCOUNTS
+                        + " JOIN " + CE_TABLE_EXTRAS
+                        + " ON " + CE_TABLE_ACCOUNTS + "." + ACCOUNTS_ID
+                        + " = " + CE_TABLE_EXTRAS + "." + EXTRAS_ACCOUNTS_ID,
+                null)) {
+            while (cursor.moveToNext()) {
+                final Account account = new Account(cursor.getString(0), cursor.getString(1));
+                Map<String, String> userExtrasForAccount = userExtras.get(account);
+                if (userExtrasForAccount == null) {
+                    userExtrasForAccount = new HashMap<>();
+                    userExtras.put(account, userExtrasForAccount);
+                }
+                userExtrasForAccount.put(cursor.getString(2), cursor.getString(3));
+            }
+        }
+        return userExtras;
+    }
+
     long findCeAccountId(Account account) {
         SQLiteDatabase db = mDeDatabase.getReadableDatabaseUserIsUnlocked();
         String[] columns = { ACCOUNTS_ID };
@@ -827,6 +895,23 @@ class AccountsDb implements AutoCloseable {
         return null;
     }
 
+    /**
+     * Returns the previous name of every account, keyed by account. Accounts that were never
+     * renamed map to {@code null}.
+     */
+    Map<Account, String> findAllDeAccountPreviousNames() {
+        SQLiteDatabase db = mDeDatabase.getReadableDatabase();
+        HashMap<Account, String> previousNames = new HashMap<>();
+        String[] columns = {ACCOUNTS_NAME, ACCOUNTS_TYPE, ACCOUNTS_PREVIOUS_NAME};
+        try (Cursor cursor = db.query(TABLE_ACCOUNTS, columns, null, null, null, null, null)) {
+            while (cursor.moveToNext()) {
+                final Account account = new Account(cursor.getString(0), cursor.getString(1));
+                previousNames.put(account, cursor.getString(2));
+            }
+        }
+        return previousNames;
+    }
+
     long insertDeAccount(Account account, long accountId) {
         SQLiteDatabase db = mDeDatabase.getWritableDatabase();
         ContentValues values = new ContentValues();
@@ -884,6 +969,33 @@ class AccountsDb implements AutoCloseable {
         return DatabaseUtils.longForQuery(db, COUNT_OF_MATCHING_GRANTS_ANY_TOKEN, args);
     }
 
+    /**
+     * Returns every grant, keyed by account and then by grantee uid. The innermost set holds
+     * the granted auth token types.
+     */
+    Map<Account, Map<Integer, Set<String>>> findAllGrants() {
+        SQLiteDatabase db = mDeDatabase.getReadableDatabase();
+        HashMap<Account, Map<Integer, Set<String>>> grants = new HashMap<>();
+        try (Cursor cursor = db.rawQuery(ALL_GRANTS, null)) {
+            while (cursor.moveToNext()) {
+                final Account account = new Account(cursor.getString(0), cursor.getString(1));
+                Map<Integer, Set<String>> grantsForAccount = grants.get(account);
+                if (grantsForAccount == null) {
+                    grantsForAccount = new HashMap<>();
+                    grants.put(account, grantsForAccount);
+                }
+                final int uid = cursor.getInt(2);
+                Set<String> authTokenTypes = grantsForAccount.get(uid);
+                if (authTokenTypes == null) {
+                    authTokenTypes = new HashSet<>();
+                    grantsForAccount.put(uid, authTokenTypes);
+                }
+                authTokenTypes.add(cursor.getString(3));
+            }
+        }
+        return grants;
+    }
+
     long insertGrant(long accountId, String authTokenType, int uid) {
         SQLiteDatabase db = mDeDatabase.getWritableDatabase();
         ContentValues values = new ContentValues();
@@ -553,6 +553,9 @@ public class ActivityManagerService extends IActivityManager.Stub
     // Maximum number of persisted Uri grants a package is allowed
     static final int MAX_PERSISTED_URI_GRANTS = 128;
 
+    // How many of the tasks returned by getRecentTasks() get their snapshots loaded ahead of time
+    static final int MAX_PRELOADED_TASK_SNAPSHOTS = 4;
+
     static final int MY_PID = myPid();
 
     static final String[] EMPTY_STRING_ARRAY = new String[0];
@@ -9876,10 +9879,31 @@ public class ActivityManagerService extends IActivityManager.Stub
                     maxNum--;
                 }
             }
+            if (checkCallingPermission(READ_FRAME_BUFFER) == PackageManager.PERMISSION_GRANTED) {
+                preloadTaskSnapshotsLocked(res);
+            }
             return new ParceledListSlice<>(res);
         }
     }
 
+    /**
+     * Recents asks for the snapshots of the tasks it just listed right after listing them, so
+     * start restoring the first few from disk now.
+     */
+    private void preloadTaskSnapshotsLocked(ArrayList<ActivityManager.RecentTaskInfo> tasks) {
+        final int count = Math.min(tasks.size(), MAX_PRELOADED_TASK_SNAPSHOTS);
+        if (count == 0) {
+            return;
+        }
+        final int[] taskIds = new int[count];
+        final int[] userIds = new int[count];
+        for (int i = 0; i < count; i++) {
+            taskIds[i] = tasks.get(i).persistentId;
+            userIds[i] = tasks.get(i).userId;
+        }
+        mWindowManager.preloadTaskSnapshots(taskIds, userIds);
+    }
+
     @Override
     public ActivityManager.TaskThumbnail getTaskThumbnail(int id) {
         synchronized (this) {
@@ -15379,6 +15403,12 @@ public class ActivityManagerService extends IActivityManager.Stub
         if (!printedAnything) {
             pw.println("  (nothing)");
         }
+
+        if (mRecentTasks != null && dumpPackage == null) {
+            pw.println();
+            pw.println("  Persister:");
+            mRecentTasks.dumpPersister(pw, "    ");
+        }
     }
 
     void dumpAssociationsLocked(FileDescriptor fd, PrintWriter pw, String[] args,
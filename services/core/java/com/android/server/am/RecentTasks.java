@@ -47,6 +47,7 @@ import android.util.SparseArray;
 import android.util.SparseBooleanArray;
 
 import java.io.File;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -208,6 +209,10 @@ class RecentTasks extends ArrayList<TaskRecord> {
         mTaskPersister.flush();
     }
 
+    void dumpPersister(PrintWriter pw, String prefix) {
+        mTaskPersister.dump(pw, prefix);
+    }
+
     /**
      * Returns all userIds for which recents from persistent storage are loaded into this list.
      *
@@ -29,6 +29,7 @@ import android.util.AtomicFile;
 import android.util.Slog;
 import android.util.SparseArray;
 import android.util.SparseBooleanArray;
+import android.util.SparseLongArray;
 import android.util.Xml;
 
 import com.android.internal.annotations.VisibleForTesting;
@@ -48,11 +49,14 @@ import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.zip.CRC32;
 
 import static android.app.ActivityManager.StackId.HOME_STACK_ID;
 import static android.app.ActivityManager.StackId.INVALID_STACK_ID;
@@ -105,6 +109,22 @@ public class TaskPersister {
 
     private final LazyTaskWriterThread mLazyTaskWriterThread;
 
+    /**
+     * CRC of the xml last written for each task, so that a task whose persisted state didn't
+     * change isn't written again. Only accessed with this lock held.
+     */
+    private final SparseLongArray mWrittenTaskChecksums = new SparseLongArray();
+
+    // Write statistics, guarded by this.
+    private int mTaskWriteRequests;
+    private int mTaskWritesCoalesced;
+    private int mTaskWrites;
+    private int mTaskWritesUnchanged;
+    private int mImageWriteRequests;
+    private int mImageWritesCoalesced;
+    private int mImageWritesDropped;
+    private int mImageWrites;
+
     private static class WriteQueueItem {}
 
     private static class TaskWriteQueueItem extends WriteQueueItem {
@@ -178,6 +198,7 @@ public class TaskPersister {
                                 " from write queue");
                     }
                     mWriteQueue.remove(queueNdx);
+                    mImageWritesDropped++;
                 }
             }
         }
@@ -251,6 +272,24 @@ public class TaskPersister {
 
     void unloadUserDataFromMemory(int userId) {
         mTaskIdsInFile.delete(userId);
+        synchronized (this) {
+            // The checksums aren't kept per user; forgetting them only costs a rewrite.
+            mWrittenTaskChecksums.clear();
+        }
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        synchronized (this) {
+            pw.print(prefix); pw.print("Task writes: requested="); pw.print(mTaskWriteRequests);
+                    pw.print(" coalesced="); pw.print(mTaskWritesCoalesced);
+                    pw.print(" unchanged="); pw.print(mTaskWritesUnchanged);
+                    pw.print(" written="); pw.println(mTaskWrites);
+            pw.print(prefix); pw.print("Image writes: requested="); pw.print(mImageWriteRequests);
+                    pw.print(" coalesced="); pw.print(mImageWritesCoalesced);
+                    pw.print(" dropped="); pw.print(mImageWritesDropped);
+                    pw.print(" written="); pw.println(mImageWrites);
+            pw.print(prefix); pw.print("Queued: "); pw.println(mWriteQueue.size());
+        }
     }
 
     void wakeup(TaskRecord task, boolean flush) {
@@ -268,8 +307,13 @@ public class TaskPersister {
                         break;
                     }
                 }
+                if (task.isPersistable) {
+                    mTaskWriteRequests++;
+                }
                 if (queueNdx < 0 && task.isPersistable) {
                     mWriteQueue.add(new TaskWriteQueueItem(task));
+                } else if (queueNdx >= 0) {
+                    mTaskWritesCoalesced++;
                 }
             } else {
                 // Dummy. Ensures removeObsoleteFiles is called when LazyTaskThreadWriter is
@@ -313,10 +357,12 @@ public class TaskPersister {
                     if (imageWriteQueueItem.mFilePath.equals(filePath)) {
                         // replace the Bitmap with the new one.
                         imageWriteQueueItem.mImage = image;
+                        mImageWritesCoalesced++;
                         break;
                     }
                 }
             }
+            mImageWriteRequests++;
             if (queueNdx < 0) {
                 mWriteQueue.add(new ImageWriteQueueItem(filePath, image));
             }
@@ -599,6 +645,27 @@ public class TaskPersister {
             removeObsoleteFiles(persistentTaskIds, getUserImagesDir(userId).listFiles());
             removeObsoleteFiles(persistentTaskIds, getUserTasksDir(userId).listFiles());
         }
+        synchronized (this) {
+            // The files of these tasks are gone, so they must be written if they come back.
+            for (int i = mWrittenTaskChecksums.size() - 1; i >= 0; i--) {
+                if (!persistentTaskIds.contains(mWrittenTaskChecksums.keyAt(i))) {
+                    mWrittenTaskChecksums.removeAt(i);
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes the next item to write off the queue. Task xml is small and describes what recents
+     * shows, so it goes ahead of queued images rather than waiting for them to be compressed.
+     */
+    private WriteQueueItem removeNextWriteQueueItemLocked() {
+        for (int queueNdx = 0; queueNdx < mWriteQueue.size(); ++queueNdx) {
+            if (!(mWriteQueue.get(queueNdx) instanceof ImageWriteQueueItem)) {
+                return mWriteQueue.remove(queueNdx);
+            }
+        }
+        return mWriteQueue.remove(0);
     }
 
     static Bitmap restoreImage(String filename) {
@@ -702,7 +769,7 @@ public class TaskPersister {
                         // Invariant: mNextWriteTime is either FLUSH_QUEUE or PRE_WRITE_DELAY_MS
                         // from now.
                     }
-                    item = mWriteQueue.remove(0);
+                    item = removeNextWriteQueueItemLocked();
 
                     long now = SystemClock.uptimeMillis();
                     if (DEBUG) Slog.d(TAG, "LazyTaskWriter: now=" + now + " mNextWriteTime=" +
@@ -738,6 +805,9 @@ public class TaskPersister {
                     } finally {
                         IoUtils.closeQuietly(imageFile);
                     }
+                    synchronized (TaskPersister.this) {
+                        mImageWrites++;
+                    }
                 } else if (item instanceof TaskWriteQueueItem) {
                     // Write out one task.
                     StringWriter stringWriter = null;
@@ -755,6 +825,21 @@ public class TaskPersister {
                         }
                     }
                     if (stringWriter != null) {
+                        final byte[] bytes =
+                                stringWriter.toString().getBytes(StandardCharsets.UTF_8);
+                        final CRC32 crc = new CRC32();
+                        crc.update(bytes);
+                        final long checksum = crc.getValue();
+                        synchronized (TaskPersister.this) {
+                            final int ndx = mWrittenTaskChecksums.indexOfKey(task.taskId);
+                            if (ndx >= 0 && mWrittenTaskChecksums.valueAt(ndx) == checksum) {
+                                if (DEBUG) Slog.d(TAG, "Unchanged task=" + task);
+                                mTaskWritesUnchanged++;
+                                continue;
+                            }
+                            // Forget the old checksum until the new file is in place.
+                            mWrittenTaskChecksums.delete(task.taskId);
+                        }
                         // Write out xml file while not holding mService lock.
                         FileOutputStream file = null;
                         AtomicFile atomicFile = null;
@@ -763,9 +848,13 @@ public class TaskPersister {
                                     getUserTasksDir(task.userId),
                                     String.valueOf(task.taskId) + TASK_FILENAME_SUFFIX));
                             file = atomicFile.startWrite();
-                            file.write(stringWriter.toString().getBytes());
+                            file.write(bytes);
                             file.write('\n');
                             atomicFile.finishWrite(file);
+                            synchronized (TaskPersister.this) {
+                                mWrittenTaskChecksums.put(task.taskId, checksum);
+                                mTaskWrites++;
+                            }
                         } catch (IOException e) {
                             if (file != null) {
                                 atomicFile.failWrite(file);
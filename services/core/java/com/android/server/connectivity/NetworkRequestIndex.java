@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity;
+
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.util.SparseArray;
+
+import com.android.internal.util.BitUtils;
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * Groups NetworkRequests by the transports and capabilities they ask for, so that the requests a
+ * network could satisfy can be found without checking every request.
+ *
+ * Most requests are filed with one of a handful of capability sets, so the number of groups stays
+ * small however many requests there are. A network is only compared against the groups, and the
+ * requests of a group are returned only if the network has all of its capabilities and one of its
+ * transports, if it names any. Everything else is left to {@link NetworkAgentInfo#satisfies}.
+ *
+ * This class is not thread-safe; ConnectivityService only uses it on its handler thread.
+ */
+public class NetworkRequestIndex {
+
+    private final ArrayList<Group> mGroups = new ArrayList<>();
+    // The group each request was added to, by request ID. NetworkRequest#hashCode and #equals
+    // cover the capabilities, so keying on the ID keeps requests findable even if their
+    // capabilities were changed in place.
+    private final SparseArray<Group> mGroupForRequest = new SparseArray<>();
+
+    public void add(NetworkRequest request) {
+        if (mGroupForRequest.get(request.requestId) != null) return;
+        final long transports = BitUtils.packBits(request.networkCapabilities.getTransportTypes());
+        final long capabilities = BitUtils.packBits(request.networkCapabilities.getCapabilities());
+        Group group = null;
+        for (int i = 0; i < mGroups.size(); i++) {
+            final Group g = mGroups.get(i);
+            if (g.transports == transports && g.capabilities == capabilities) {
+                group = g;
+                break;
+            }
+        }
+        if (group == null) {
+            group = new Group(transports, capabilities);
+            mGroups.add(group);
+        }
+        group.requests.put(request.requestId, request);
+        mGroupForRequest.put(request.requestId, group);
+    }
+
+    public void remove(NetworkRequest request) {
+        final Group group = mGroupForRequest.get(request.requestId);
+        if (group == null) return;
+        mGroupForRequest.remove(request.requestId);
+        group.requests.remove(request.requestId);
+        if (group.requests.size() == 0) {
+            mGroups.remove(group);
+        }
+    }
+
+    public int size() {
+        return mGroupForRequest.size();
+    }
+
+    public int numGroups() {
+        return mGroups.size();
+    }
+
+    /**
+     * Adds to {@code out} every indexed request that a network with capabilities {@code nc} may
+     * satisfy. Requests that are not added are guaranteed not to be satisfied by it.
+     */
+    public void getCandidates(NetworkCapabilities nc, Collection<NetworkRequest> out) {
+        final long transports = BitUtils.packBits(nc.getTransportTypes());
+        final long capabilities = BitUtils.packBits(nc.getCapabilities());
+        for (int i = 0; i < mGroups.size(); i++) {
+            final Group g = mGroups.get(i);
+            if (!g.matches(transports, capabilities)) continue;
+            for (int j = 0; j < g.requests.size(); j++) {
+                out.add(g.requests.valueAt(j));
+            }
+        }
+    }
+
+    /**
+     * Returns whether {@link #getCandidates} adds {@code request} for a network with capabilities
+     * {@code nc}, so that callers can add other requests without adding any of them twice.
+     */
+    public boolean isCandidate(NetworkRequest request, NetworkCapabilities nc) {
+        final Group group = mGroupForRequest.get(request.requestId);
+        return group != null && group.matches(BitUtils.packBits(nc.getTransportTypes()),
+                BitUtils.packBits(nc.getCapabilities()));
+    }
+
+    public void dump(IndentingPrintWriter pw) {
+        pw.println("NetworkRequestIndex: " + size() + " requests in " + numGroups() + " groups");
+        pw.increaseIndent();
+        for (int i = 0; i < mGroups.size(); i++) {
+            final Group g = mGroups.get(i);
+            pw.println("transports=0x" + Long.toHexString(g.transports)
+                    + " capabilities=0x" + Long.toHexString(g.capabilities)
+                    + " requests=" + g.requests.size());
+        }
+        pw.decreaseIndent();
+    }
+
+    private static class Group {
+        final long transports;
+        final long capabilities;
+        // By request ID.
+        final SparseArray<NetworkRequest> requests = new SparseArray<>();
+
+        Group(long transports, long capabilities) {
+            this.transports = transports;
+            this.capabilities = capabilities;
+        }
+
+        boolean matches(long networkTransports, long networkCapabilities) {
+            if ((capabilities & networkCapabilities) != capabilities) return false;
+            return transports == 0 || (transports & networkTransports) != 0;
+        }
+    }
+}
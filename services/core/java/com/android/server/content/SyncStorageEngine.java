@@ -35,6 +35,7 @@ import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.FileUtils;
 import android.os.Handler;
 import android.os.Message;
 import android.os.Parcel;
@@ -51,6 +52,11 @@ import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlSerializer;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -62,6 +68,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
 import java.util.TimeZone;
+import java.util.zip.CRC32;
 
 /**
  * Singleton that tracks the sync data and overall sync
@@ -136,6 +143,20 @@ public class SyncStorageEngine extends Handler {
     private static final int MSG_WRITE_STATISTICS = 2;
     private static final long WRITE_STATISTICS_DELAY = 1000*60*30; // 1/2 hour
 
+    private static final int MSG_WRITE_ACCOUNT_INFO = 3;
+    private static final long WRITE_ACCOUNT_INFO_DELAY = 200; // 200 ms
+
+    private static final int MSG_REPORT_CHANGE = 4;
+
+    // Compact the status journal into the status file once this many bytes were appended.
+    private static final int MAX_STATUS_JOURNAL_BYTES = 64 * 1024;
+
+    // Length and CRC of the parceled status that follows in each journal record.
+    private static final int STATUS_JOURNAL_HEADER_SIZE = 12;
+
+    // Anything larger than this in a journal record header is treated as corruption.
+    private static final int MAX_STATUS_JOURNAL_RECORD_BYTES = 64 * 1024;
+
     private static final boolean SYNC_ENABLED_DEFAULT = false;
 
     // the version of the accounts xml file format
@@ -436,7 +457,8 @@ public class SyncStorageEngine extends Handler {
     /**
      * This file contains the core engine state: all accounts and the
      * settings for them.  It must never be lost, and should be changed
-     * infrequently, so it is stored as an XML file.
+     * infrequently, so it is stored as an XML file.  Changes made in quick
+     * succession are written together after {@link #WRITE_ACCOUNT_INFO_DELAY}.
      */
     private final AtomicFile mAccountInfoFile;
 
@@ -447,6 +469,20 @@ public class SyncStorageEngine extends Handler {
      */
     private final AtomicFile mStatusFile;
 
+    /**
+     * The status of single authorities written since {@link #mStatusFile} was
+     * last rewritten, as length-prefixed, CRC-checked parcels.  A sync result
+     * that must be persisted right away is appended here rather than
+     * rewriting the status of every authority.  Replayed on top of the status
+     * file when it is read.
+     */
+    private final File mStatusJournalFile;
+
+    private int mStatusJournalBytes;
+
+    /** Observer types changed since observers were last told, protected by mAuthorities. */
+    private int mPendingChanges;
+
     /**
      * This file contains sync statistics.  This is purely debugging information
      * so is written infrequently and can be thrown away at any time.
@@ -479,6 +515,7 @@ public class SyncStorageEngine extends Handler {
 
         mAccountInfoFile = new AtomicFile(new File(syncDir, "accounts.xml"));
         mStatusFile = new AtomicFile(new File(syncDir, "status.bin"));
+        mStatusJournalFile = new File(syncDir, "status.journal");
         mStatisticsFile = new AtomicFile(new File(syncDir, "stats.bin"));
 
         readAccountInfoLocked();
@@ -536,6 +573,12 @@ public class SyncStorageEngine extends Handler {
             synchronized (mAuthorities) {
                 writeStatisticsLocked();
             }
+        } else if (msg.what == MSG_WRITE_ACCOUNT_INFO) {
+            synchronized (mAuthorities) {
+                writeAccountInfoLocked();
+            }
+        } else if (msg.what == MSG_REPORT_CHANGE) {
+            dispatchChanges();
         }
     }
 
@@ -577,7 +620,35 @@ public class SyncStorageEngine extends Handler {
         }
     }
 
+    /**
+     * Tells observers that state of the given type changed.  Changes reported
+     * before observers are called back are coalesced, so a burst of changes
+     * results in a single callback per type.
+     */
     void reportChange(int which) {
+        synchronized (mAuthorities) {
+            if (mPendingChanges == 0) {
+                sendEmptyMessage(MSG_REPORT_CHANGE);
+            }
+            mPendingChanges |= which;
+        }
+    }
+
+    private void dispatchChanges() {
+        int changes;
+        synchronized (mAuthorities) {
+            changes = mPendingChanges;
+            mPendingChanges = 0;
+        }
+        // Observers expect a single type per callback.
+        while (changes != 0) {
+            final int which = Integer.lowestOneBit(changes);
+            changes &= ~which;
+            dispatchChange(which);
+        }
+    }
+
+    private void dispatchChange(int which) {
         ArrayList<ISyncStatusObserver> reports = null;
         synchronized (mAuthorities) {
             int i = mChangeListeners.beginBroadcast();
@@ -659,7 +730,7 @@ public class SyncStorageEngine extends Handler {
                 authority.syncable = AuthorityInfo.NOT_INITIALIZED;
             }
             authority.enabled = sync;
-            writeAccountInfoLocked();
+            scheduleWriteAccountInfoLocked();
         }
 
         if (sync) {
@@ -722,7 +793,7 @@ public class SyncStorageEngine extends Handler {
                 return;
             }
             aInfo.syncable = syncable;
-            writeAccountInfoLocked();
+            scheduleWriteAccountInfoLocked();
         }
         if (syncable == AuthorityInfo.SYNCABLE) {
             requestSync(aInfo, SyncOperation.REASON_IS_SYNCABLE, new Bundle());
@@ -881,7 +952,7 @@ public class SyncStorageEngine extends Handler {
                 }
                 authority.periodicSyncs.clear();
             }
-            writeAccountInfoLocked();
+            scheduleWriteAccountInfoLocked();
         }
         return true;
     }
@@ -893,7 +964,7 @@ public class SyncStorageEngine extends Handler {
                 return;
             }
             mMasterSyncAutomatically.put(userId, flag);
-            writeAccountInfoLocked();
+            scheduleWriteAccountInfoLocked();
         }
         if (flag) {
             requestSync(null, userId, SyncOperation.REASON_MASTER_SYNC_AUTO, null,
@@ -1185,8 +1256,9 @@ public class SyncStorageEngine extends Handler {
             }
 
             if (writeStatusNow) {
-                writeStatusLocked();
-            } else if (!hasMessages(MSG_WRITE_STATUS)) {
+                writeStatusLocked(status);
+            }
+            if (!hasMessages(MSG_WRITE_STATUS)) {
                 sendMessageDelayed(obtainMessage(MSG_WRITE_STATUS),
                         WRITE_STATUS_DELAY);
             }
@@ -1414,7 +1486,7 @@ public class SyncStorageEngine extends Handler {
         authority = new AuthorityInfo(info, ident);
         mAuthorities.put(ident, authority);
         if (doWrite) {
-            writeAccountInfoLocked();
+            scheduleWriteAccountInfoLocked();
         }
         return authority;
     }
@@ -1441,7 +1513,7 @@ public class SyncStorageEngine extends Handler {
                 }
                 mAuthorities.remove(authorityInfo.ident);
                 if (doWrite) {
-                    writeAccountInfoLocked();
+                    scheduleWriteAccountInfoLocked();
                 }
             }
         }
@@ -1458,7 +1530,9 @@ public class SyncStorageEngine extends Handler {
 
     public void writeAllState() {
         synchronized (mAuthorities) {
-            // Account info is always written so no need to do it here.
+            if (hasMessages(MSG_WRITE_ACCOUNT_INFO)) {
+                writeAccountInfoLocked();
+            }
             writeStatusLocked();
             writeStatisticsLocked();
         }
@@ -1842,6 +1916,17 @@ public class SyncStorageEngine extends Handler {
         }
     }
 
+    /**
+     * Write all account information to the account file shortly, together
+     * with any other changes made in the meantime.
+     */
+    private void scheduleWriteAccountInfoLocked() {
+        if (!hasMessages(MSG_WRITE_ACCOUNT_INFO)) {
+            sendMessageDelayed(obtainMessage(MSG_WRITE_ACCOUNT_INFO),
+                    WRITE_ACCOUNT_INFO_DELAY);
+        }
+    }
+
     /**
      * Write all account information to the account file.
      */
@@ -1849,6 +1934,11 @@ public class SyncStorageEngine extends Handler {
         if (Log.isLoggable(TAG_FILE, Log.VERBOSE)) {
             Slog.v(TAG_FILE, "Writing new " + mAccountInfoFile.getBaseFile());
         }
+
+        // The file is being written, so we don't need to have a scheduled
+        // write until the next change.
+        removeMessages(MSG_WRITE_ACCOUNT_INFO);
+
         FileOutputStream fos = null;
 
         try {
@@ -2074,6 +2164,100 @@ public class SyncStorageEngine extends Handler {
         } catch (java.io.IOException e) {
             Slog.i(TAG, "No initial status");
         }
+        readStatusJournalLocked();
+    }
+
+    /**
+     * Replay the status journal on top of the status read from the status
+     * file.  A torn or corrupt record ends the replay; nothing more is
+     * appended until the next full write of the status file discards it.
+     */
+    private void readStatusJournalLocked() {
+        mStatusJournalBytes = 0;
+        if (!mStatusJournalFile.exists()) {
+            return;
+        }
+        boolean clean = false;
+        if (Log.isLoggable(TAG_FILE, Log.VERBOSE)) {
+            Slog.v(TAG_FILE, "Reading " + mStatusJournalFile);
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(mStatusJournalFile)))) {
+            while (true) {
+                final int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    clean = true;
+                    break;
+                }
+                final long checksum = in.readLong();
+                if (length < 0 || length > MAX_STATUS_JOURNAL_RECORD_BYTES) {
+                    Slog.w(TAG, "Bad status journal record length: " + length);
+                    break;
+                }
+                final byte[] data = new byte[length];
+                in.readFully(data);
+                final CRC32 crc = new CRC32();
+                crc.update(data);
+                if (crc.getValue() != checksum) {
+                    Slog.w(TAG, "Bad status journal record checksum");
+                    break;
+                }
+                Parcel parcel = Parcel.obtain();
+                parcel.unmarshall(data, 0, data.length);
+                parcel.setDataPosition(0);
+                SyncStatusInfo status = new SyncStatusInfo(parcel);
+                parcel.recycle();
+                if (mAuthorities.indexOfKey(status.authorityId) >= 0) {
+                    status.pending = false;
+                    mSyncStatus.put(status.authorityId, status);
+                }
+                mStatusJournalBytes += STATUS_JOURNAL_HEADER_SIZE + length;
+            }
+        } catch (EOFException e) {
+            Slog.w(TAG, "Torn status journal record");
+        } catch (java.io.IOException e) {
+            Slog.w(TAG, "Error reading status journal", e);
+        }
+        if (!clean) {
+            mStatusJournalBytes = MAX_STATUS_JOURNAL_BYTES;
+        }
+    }
+
+    /**
+     * Append the sync status of a single authority to the status journal.
+     * Falls back to writing all sync status once the journal is large.
+     */
+    private void writeStatusLocked(SyncStatusInfo status) {
+        if (mStatusJournalBytes >= MAX_STATUS_JOURNAL_BYTES) {
+            writeStatusLocked();
+            return;
+        }
+        if (Log.isLoggable(TAG_FILE, Log.VERBOSE)) {
+            Slog.v(TAG_FILE, "Appending status for id " + status.authorityId);
+        }
+        Parcel out = Parcel.obtain();
+        status.writeToParcel(out, 0);
+        final byte[] data = out.marshall();
+        out.recycle();
+        final CRC32 crc = new CRC32();
+        crc.update(data);
+
+        try (FileOutputStream fos = new FileOutputStream(mStatusJournalFile, true)) {
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(fos));
+            dos.writeInt(data.length);
+            dos.writeLong(crc.getValue());
+            dos.write(data);
+            dos.flush();
+            FileUtils.sync(fos);
+            mStatusJournalBytes += STATUS_JOURNAL_HEADER_SIZE + data.length;
+        } catch (java.io.IOException e) {
+            // The journal tail may now be garbage; a full write discards it.
+            Slog.w(TAG, "Error appending status", e);
+            mStatusJournalBytes = MAX_STATUS_JOURNAL_BYTES;
+            writeStatusLocked();
+        }
     }
 
     /**
@@ -2103,6 +2287,10 @@ public class SyncStorageEngine extends Handler {
             out.recycle();
 
             mStatusFile.finishWrite(fos);
+
+            // Everything in the journal is now in the status file.
+            mStatusJournalFile.delete();
+            mStatusJournalBytes = 0;
         } catch (java.io.IOException e1) {
             Slog.w(TAG, "Error writing status", e1);
             if (fos != null) {
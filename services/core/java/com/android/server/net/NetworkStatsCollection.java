@@ -52,8 +52,10 @@ import com.google.android.collect.Maps;
 import libcore.io.IoUtils;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -81,6 +83,7 @@ public class NetworkStatsCollection implements FileRotator.Reader {
     private static final int VERSION_UID_WITH_SET = 4;
 
     private static final int VERSION_UNIFIED_INIT = 16;
+    private static final int VERSION_UNIFIED_INDEXED = 17;
 
     private ArrayMap<Key, NetworkStatsHistory> mStats = new ArrayMap<>();
 
@@ -329,6 +332,20 @@ public class NetworkStatsCollection implements FileRotator.Reader {
     }
 
     public void read(DataInputStream in) throws IOException {
+        read(in, null);
+    }
+
+    /**
+     * Read only the {@link NetworkStatsHistory} matching the requested
+     * parameters, as used by {@link #getHistory}. When the stream uses the
+     * indexed format, non-matching histories are skipped without being parsed.
+     */
+    public void readMatching(InputStream in, NetworkTemplate template, int uid, int set, int tag,
+            long start, long end) throws IOException {
+        read(new DataInputStream(in), new HistoryFilter(template, uid, set, tag, start, end));
+    }
+
+    private void read(DataInputStream in, HistoryFilter filter) throws IOException {
         // verify file magic header intact
         final int magic = in.readInt();
         if (magic != FILE_MAGIC) {
@@ -351,7 +368,51 @@ public class NetworkStatsCollection implements FileRotator.Reader {
 
                         final Key key = new Key(ident, uid, set, tag);
                         final NetworkStatsHistory history = new NetworkStatsHistory(in);
-                        recordHistory(key, history);
+                        if (filter == null || filter.matches(key, history.getStart(),
+                                history.getEnd())) {
+                            recordHistory(key, history);
+                        }
+                    }
+                }
+                break;
+            }
+            case VERSION_UNIFIED_INDEXED: {
+                // uid := size *(NetworkIdentitySet size *(uid set tag start end length))
+                //        *(NetworkStatsHistory)
+                // keys that don't match are recorded as null, and their
+                // history is skipped below.
+                final ArrayList<Key> keys = new ArrayList<>();
+                final IntArray lengths = new IntArray();
+                final int identSize = in.readInt();
+                for (int i = 0; i < identSize; i++) {
+                    final NetworkIdentitySet ident = new NetworkIdentitySet(in);
+
+                    final int size = in.readInt();
+                    for (int j = 0; j < size; j++) {
+                        final int uid = in.readInt();
+                        final int set = in.readInt();
+                        final int tag = in.readInt();
+                        final long historyStart = in.readLong();
+                        final long historyEnd = in.readLong();
+                        final int length = in.readInt();
+
+                        final Key key = new Key(ident, uid, set, tag);
+                        if (filter == null || filter.matches(key, historyStart, historyEnd)) {
+                            keys.add(key);
+                        } else {
+                            keys.add(null);
+                        }
+                        lengths.add(length);
+                    }
+                }
+
+                // histories follow in index order
+                for (int i = 0; i < keys.size(); i++) {
+                    final Key key = keys.get(i);
+                    if (key != null) {
+                        recordHistory(key, new NetworkStatsHistory(in));
+                    } else {
+                        skipFully(in, lengths.get(i));
                     }
                 }
                 break;
@@ -362,6 +423,17 @@ public class NetworkStatsCollection implements FileRotator.Reader {
         }
     }
 
+    private static void skipFully(DataInputStream in, int length) throws IOException {
+        int remaining = length;
+        while (remaining > 0) {
+            final int skipped = in.skipBytes(remaining);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            remaining -= skipped;
+        }
+    }
+
     public void write(DataOutputStream out) throws IOException {
         // cluster key lists grouped by ident
         final HashMap<NetworkIdentitySet, ArrayList<Key>> keysByIdent = Maps.newHashMap();
@@ -374,8 +446,13 @@ public class NetworkStatsCollection implements FileRotator.Reader {
             keys.add(key);
         }
 
+        // serialize histories first so the index can record their lengths,
+        // letting readers skip straight past any history they don't need.
+        final ByteArrayOutputStream histories = new ByteArrayOutputStream();
+        final DataOutputStream historiesOut = new DataOutputStream(histories);
+
         out.writeInt(FILE_MAGIC);
-        out.writeInt(VERSION_UNIFIED_INIT);
+        out.writeInt(VERSION_UNIFIED_INDEXED);
 
         out.writeInt(keysByIdent.size());
         for (NetworkIdentitySet ident : keysByIdent.keySet()) {
@@ -385,13 +462,20 @@ public class NetworkStatsCollection implements FileRotator.Reader {
             out.writeInt(keys.size());
             for (Key key : keys) {
                 final NetworkStatsHistory history = mStats.get(key);
+                final int before = historiesOut.size();
+                history.writeToStream(historiesOut);
+
                 out.writeInt(key.uid);
                 out.writeInt(key.set);
                 out.writeInt(key.tag);
-                history.writeToStream(out);
+                out.writeLong(history.getStart());
+                out.writeLong(history.getEnd());
+                out.writeInt(historiesOut.size() - before);
             }
         }
 
+        historiesOut.flush();
+        histories.writeTo(out);
         out.flush();
     }
 
@@ -642,6 +726,35 @@ public class NetworkStatsCollection implements FileRotator.Reader {
         return false;
     }
 
+    /**
+     * Parameters of a {@link #getHistory} query, used to avoid loading
+     * histories from disk that could never contribute to its result.
+     */
+    private static class HistoryFilter {
+        private final NetworkTemplate template;
+        private final int uid;
+        private final int set;
+        private final int tag;
+        private final long start;
+        private final long end;
+
+        public HistoryFilter(NetworkTemplate template, int uid, int set, int tag, long start,
+                long end) {
+            this.template = template;
+            this.uid = uid;
+            this.set = set;
+            this.tag = tag;
+            this.start = start;
+            this.end = end;
+        }
+
+        public boolean matches(Key key, long historyStart, long historyEnd) {
+            return key.uid == uid && NetworkStats.setMatches(set, key.set) && key.tag == tag
+                    && historyStart <= end && start <= historyEnd
+                    && templateMatches(template, key.ident);
+        }
+    }
+
     private static class Key implements Comparable<Key> {
         public final NetworkIdentitySet ident;
         public final int uid;
@@ -82,6 +82,8 @@ public class NetworkStatsRecorder {
 
     private long mPersistThresholdBytes = 2 * MB_IN_BYTES;
     private NetworkStats mLastSnapshot;
+    /** Recycled between polls to hold the delta between snapshots. */
+    private NetworkStats mScratchDelta;
 
     private final NetworkStatsCollection mPending;
     private final NetworkStatsCollection mSinceBoot;
@@ -137,6 +139,7 @@ public class NetworkStatsRecorder {
 
     public void resetLocked() {
         mLastSnapshot = null;
+        mScratchDelta = null;
         if (mPending != null) {
             mPending.reset();
         }
@@ -182,6 +185,43 @@ public class NetworkStatsRecorder {
         return res;
     }
 
+    /**
+     * Combine all {@link NetworkStatsHistory} matching the requested
+     * parameters. Uses the cached complete history when available, otherwise
+     * reads only the matching histories from disk instead of loading
+     * everything.
+     */
+    public NetworkStatsHistory getHistoryLocked(NetworkTemplate template, int uid, int set,
+            int tag, int fields, long start, long end,
+            @NetworkStatsAccess.Level int accessLevel, int callerUid) {
+        checkNotNull(mRotator, "missing FileRotator");
+        NetworkStatsCollection res = mComplete != null ? mComplete.get() : null;
+        if (res == null) {
+            res = loadMatchingLocked(template, uid, set, tag, start, end);
+        }
+        return res.getHistory(template, uid, set, tag, fields, start, end, accessLevel,
+                callerUid);
+    }
+
+    private NetworkStatsCollection loadMatchingLocked(NetworkTemplate template, int uid,
+            int set, int tag, long start, long end) {
+        if (LOGD) Slog.d(TAG, "loadMatchingLocked() reading uid " + uid + " for " + mCookie);
+        final NetworkStatsCollection res = new NetworkStatsCollection(mBucketDuration);
+        try {
+            mRotator.readMatching(
+                    in -> res.readMatching(in, template, uid, set, tag, start, end),
+                    start, end);
+            res.recordCollection(mPending);
+        } catch (IOException e) {
+            Log.wtf(TAG, "problem reading network stats", e);
+            recoverFromWtf();
+        } catch (OutOfMemoryError e) {
+            Log.wtf(TAG, "problem reading network stats", e);
+            recoverFromWtf();
+        }
+        return res;
+    }
+
     private NetworkStatsCollection loadLocked(long start, long end) {
         if (LOGD) Slog.d(TAG, "loadLocked() reading from disk for " + mCookie);
         final NetworkStatsCollection res = new NetworkStatsCollection(mBucketDuration);
@@ -225,7 +265,8 @@ public class NetworkStatsRecorder {
         final NetworkStatsCollection complete = mComplete != null ? mComplete.get() : null;
 
         final NetworkStats delta = NetworkStats.subtract(
-                snapshot, mLastSnapshot, mObserver, mCookie);
+                snapshot, mLastSnapshot, mObserver, mCookie, mScratchDelta);
+        mScratchDelta = delta;
         final long end = currentTimeMillis;
         final long start = end - delta.getElapsedRealtime();
 
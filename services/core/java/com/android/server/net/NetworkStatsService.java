@@ -575,17 +575,35 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                 }
             }
 
+            /**
+             * Query a single UID's history, reading only the matching
+             * histories from disk unless this session already holds the
+             * complete collection.
+             */
+            private NetworkStatsHistory getUidHistory(NetworkTemplate template, int uid,
+                    int set, int tag, int fields, long start, long end,
+                    @NetworkStatsAccess.Level int accessLevel) {
+                final int callerUid = Binder.getCallingUid();
+                synchronized (mStatsLock) {
+                    final NetworkStatsCollection complete =
+                            (tag == TAG_NONE) ? mUidComplete : mUidTagComplete;
+                    if (complete != null) {
+                        return complete.getHistory(template, uid, set, tag, fields, start, end,
+                                accessLevel, callerUid);
+                    }
+                    final NetworkStatsRecorder recorder =
+                            (tag == TAG_NONE) ? mUidRecorder : mUidTagRecorder;
+                    return recorder.getHistoryLocked(template, uid, set, tag, fields, start, end,
+                            accessLevel, callerUid);
+                }
+            }
+
             @Override
             public NetworkStatsHistory getHistoryForUid(
                     NetworkTemplate template, int uid, int set, int tag, int fields) {
                 @NetworkStatsAccess.Level int accessLevel = checkAccessLevel(mCallingPackage);
-                if (tag == TAG_NONE) {
-                    return getUidComplete().getHistory(template, uid, set, tag, fields,
-                            accessLevel);
-                } else {
-                    return getUidTagComplete().getHistory(template, uid, set, tag, fields,
-                            accessLevel);
-                }
+                return getUidHistory(template, uid, set, tag, fields, Long.MIN_VALUE,
+                        Long.MAX_VALUE, accessLevel);
             }
 
             @Override
@@ -593,12 +611,9 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                     NetworkTemplate template, int uid, int set, int tag, int fields,
                     long start, long end) {
                 @NetworkStatsAccess.Level int accessLevel = checkAccessLevel(mCallingPackage);
-                if (tag == TAG_NONE) {
-                    return getUidComplete().getHistory(template, uid, set, tag, fields, start, end,
+                if (tag == TAG_NONE || uid == Binder.getCallingUid()) {
+                    return getUidHistory(template, uid, set, tag, fields, start, end,
                             accessLevel);
-                } else if (uid == Binder.getCallingUid()) {
-                    return getUidTagComplete().getHistory(template, uid, set, tag, fields,
-                            start, end, accessLevel);
                 } else {
                     throw new SecurityException("Calling package " + mCallingPackage
                             + " cannot access tag information from a different uid");
@@ -313,6 +313,14 @@ public class NotificationManagerService extends SystemService {
     @GuardedBy("mNotificationLock")
     final ArrayMap<String, NotificationRecord> mNotificationsByKey =
             new ArrayMap<String, NotificationRecord>();
+    // Posted notifications by user and package, and by group key, so that per-package and
+    // per-group queries don't scan mNotificationList. Kept in step with mNotificationList.
+    @GuardedBy("mNotificationLock")
+    final ArrayMap<String, ArraySet<NotificationRecord>> mNotificationsByPackage =
+            new ArrayMap<>();
+    @GuardedBy("mNotificationLock")
+    final ArrayMap<String, ArraySet<NotificationRecord>> mNotificationsByGroupKey =
+            new ArrayMap<>();
     @GuardedBy("mNotificationLock")
     final ArrayList<NotificationRecord> mEnqueuedNotifications = new ArrayList<>();
     @GuardedBy("mNotificationLock")
@@ -1013,6 +1021,7 @@ public class NotificationManagerService extends SystemService {
     @VisibleForTesting
     void addNotification(NotificationRecord r) {
         mNotificationList.add(r);
+        indexNotificationLocked(r);
         mNotificationsByKey.put(r.sbn.getKey(), r);
         if (r.sbn.isGroup()) {
             mSummaryByGroupKey.put(r.getGroupKey(), r);
@@ -2308,6 +2317,15 @@ public class NotificationManagerService extends SystemService {
             }
         }
 
+        @Override
+        public void requestRankingSnapshotFromListener(INotificationListener token) {
+            synchronized (mNotificationLock) {
+                final ManagedServiceInfo info = mListeners.checkServiceTokenLocked(token);
+                if (info == null) return;
+                mListeners.sendRankingSnapshotLocked(info);
+            }
+        }
+
         @Override
         public int getZenMode() {
             return mZenModeHelper.getZenMode();
@@ -2788,7 +2806,9 @@ public class NotificationManagerService extends SystemService {
         if (n == null) {
             return;
         }
+        removeFromIndex(mNotificationsByGroupKey, n.getGroupKey(), n);
         n.setOverrideGroupKey(GroupHelper.AUTOGROUP_KEY);
+        addToIndex(mNotificationsByGroupKey, n.getGroupKey(), n);
         EventLogTags.writeNotificationAutogrouped(key);
     }
 
@@ -2798,7 +2818,9 @@ public class NotificationManagerService extends SystemService {
         if (n == null) {
             return;
         }
+        removeFromIndex(mNotificationsByGroupKey, n.getGroupKey(), n);
         n.setOverrideGroupKey(null);
+        addToIndex(mNotificationsByGroupKey, n.getGroupKey(), n);
         EventLogTags.writeNotificationUnautogrouped(key);
     }
 
@@ -3090,6 +3112,17 @@ public class NotificationManagerService extends SystemService {
                 }
             }
 
+            pw.print("\n  Indexed packages: "); pw.print(mNotificationsByPackage.size());
+                    pw.print(" groups: "); pw.println(mNotificationsByGroupKey.size());
+            int indexed = 0;
+            for (int i = mNotificationsByPackage.size() - 1; i >= 0; i--) {
+                indexed += mNotificationsByPackage.valueAt(i).size();
+            }
+            if (indexed != mNotificationList.size()) {
+                pw.println("!!!!!!LEAK: " + indexed + " records indexed by package, "
+                        + mNotificationList.size() + " posted.");
+            }
+
             if (!zenOnly) {
                 pw.println("\n  Usage Stats:");
                 mUsageStats.dump(pw, "    ", filter);
@@ -3141,7 +3174,7 @@ public class NotificationManagerService extends SystemService {
             // initially *and* force remove FLAG_FOREGROUND_SERVICE.
             sbn.getNotification().flags =
                     (r.mOriginalFlags & ~Notification.FLAG_FOREGROUND_SERVICE);
-            mRankingHelper.sort(mNotificationList);
+            mRankingHelper.sort(mNotificationList, r);
             mListeners.notifyPostedLocked(sbn, sbn /* oldSbn */);
             mGroupHelper.onNotificationPosted(sbn);
         }
@@ -3299,24 +3332,25 @@ public class NotificationManagerService extends SystemService {
                             + " cannot create notifications");
                 }
 
-                int count = 0;
-                final int N = mNotificationList.size();
-                for (int i=0; i<N; i++) {
-                    final NotificationRecord existing = mNotificationList.get(i);
-                    if (existing.sbn.getPackageName().equals(pkg)
-                            && existing.sbn.getUserId() == userId) {
+                final ArraySet<NotificationRecord> posted =
+                        mNotificationsByPackage.get(packageIndexKey(userId, pkg));
+                final int count = posted == null ? 0 : posted.size();
+                if (count >= MAX_PACKAGE_NOTIFICATIONS) {
+                    boolean isUpdate = false;
+                    for (int i = 0; i < count; i++) {
+                        final NotificationRecord existing = posted.valueAt(i);
                         if (existing.sbn.getId() == id
                                 && TextUtils.equals(existing.sbn.getTag(), tag)) {
-                            break;  // Allow updating existing notification
-                        }
-                        count++;
-                        if (count >= MAX_PACKAGE_NOTIFICATIONS) {
-                            mUsageStats.registerOverCountQuota(pkg);
-                            Slog.e(TAG, "Package has already posted " + count
-                                    + " notifications.  Not showing more.  package=" + pkg);
-                            return false;
+                            isUpdate = true;  // Allow updating existing notification
+                            break;
                         }
                     }
+                    if (!isUpdate) {
+                        mUsageStats.registerOverCountQuota(pkg);
+                        Slog.e(TAG, "Package has already posted " + count
+                                + " notifications.  Not showing more.  package=" + pkg);
+                        return false;
+                    }
                 }
             }
         }
@@ -3538,12 +3572,14 @@ public class NotificationManagerService extends SystemService {
                     } else {
                         old = mNotificationList.get(index);
                         mNotificationList.set(index, r);
+                        unindexNotificationLocked(old);
                         mUsageStats.registerUpdatedByApp(r, old);
                         // Make sure we don't lose the foreground service state.
                         notification.flags |=
                                 old.getNotification().flags & Notification.FLAG_FOREGROUND_SERVICE;
                         r.isUpdate = true;
                     }
+                    indexNotificationLocked(r);
 
                     mNotificationsByKey.put(n.getKey(), r);
 
@@ -3555,7 +3591,7 @@ public class NotificationManagerService extends SystemService {
                     }
 
                     applyZenModeLocked(r);
-                    mRankingHelper.sort(mNotificationList);
+                    mRankingHelper.sort(mNotificationList, r);
 
                     if (notification.getSmallIcon() != null) {
                         StatusBarNotification oldSbn = (old != null) ? old.sbn : null;
@@ -4007,7 +4043,7 @@ public class NotificationManagerService extends SystemService {
             int visibilityBefore = record.getPackageVisibilityOverride();
             recon.applyChangesLocked(record);
             applyZenModeLocked(record);
-            mRankingHelper.sort(mNotificationList);
+            mRankingHelper.sort(mNotificationList, record);
             int indexAfter = findNotificationRecordIndexLocked(record);
             boolean interceptAfter = record.isIntercepted();
             int visibilityAfter = record.getPackageVisibilityOverride();
@@ -4040,8 +4076,8 @@ public class NotificationManagerService extends SystemService {
                 groupOverrideBefore.add(r.sbn.getGroupKey());
                 visibilities[i] = r.getPackageVisibilityOverride();
                 showBadges[i] = r.canShowBadge();
-                mRankingHelper.extractSignals(r);
             }
+            mRankingHelper.extractSignals(mNotificationList);
             mRankingHelper.sort(mNotificationList);
             for (int i = 0; i < N; i++) {
                 final NotificationRecord r = mNotificationList.get(i);
@@ -4225,6 +4261,7 @@ public class NotificationManagerService extends SystemService {
         if ((recordInList = findNotificationByListLocked(mNotificationList, r.getKey()))
                 != null) {
             mNotificationList.remove(recordInList);
+            unindexNotificationLocked(recordInList);
             mNotificationsByKey.remove(recordInList.sbn.getKey());
             wasPosted = true;
         }
@@ -4478,6 +4515,11 @@ public class NotificationManagerService extends SystemService {
             int callingUid, int callingPid, String pkg, boolean nullPkgIndicatesUserSwitch,
             String channelId, FlagChecker flagChecker, boolean includeCurrentProfiles, int userId,
             boolean sendDelete, int reason, String listenerName, boolean wasPosted) {
+        if (notificationList == mNotificationList && pkg != null && !includeCurrentProfiles
+                && userId != UserHandle.USER_ALL
+                && !hasPostedNotificationsLocked(userId, pkg, channelId)) {
+            return;
+        }
         ArrayList<NotificationRecord> canceledNotifications = null;
         for (int i = notificationList.size() - 1; i >= 0; --i) {
             NotificationRecord r = notificationList.get(i);
@@ -4506,6 +4548,9 @@ public class NotificationManagerService extends SystemService {
                 canceledNotifications = new ArrayList<>();
             }
             notificationList.remove(i);
+            if (notificationList == mNotificationList) {
+                unindexNotificationLocked(r);
+            }
             canceledNotifications.add(r);
             cancelNotificationLocked(r, sendDelete, reason, wasPosted);
         }
@@ -4606,6 +4651,14 @@ public class NotificationManagerService extends SystemService {
         final String pkg = parentNotification.sbn.getPackageName();
         final int userId = parentNotification.getUserId();
         final int reason = REASON_GROUP_SUMMARY_CANCELED;
+        if (notificationList == mNotificationList) {
+            final ArraySet<NotificationRecord> group =
+                    mNotificationsByGroupKey.get(parentNotification.getGroupKey());
+            // Nothing to do when the summary is alone in its group.
+            if (group == null || group.size() == 1 && group.contains(parentNotification)) {
+                return;
+            }
+        }
         for (int i = notificationList.size() - 1; i >= 0; i--) {
             final NotificationRecord childR = notificationList.get(i);
             final StatusBarNotification childSbn = childR.sbn;
@@ -4615,6 +4668,9 @@ public class NotificationManagerService extends SystemService {
                 EventLogTags.writeNotificationCancel(callingUid, callingPid, pkg, childSbn.getId(),
                         childSbn.getTag(), userId, 0, 0, reason, listenerName);
                 notificationList.remove(i);
+                if (notificationList == mNotificationList) {
+                    unindexNotificationLocked(childR);
+                }
                 cancelNotificationLocked(childR, sendDelete, reason, wasPosted);
             }
         }
@@ -4662,6 +4718,17 @@ public class NotificationManagerService extends SystemService {
     private @NonNull List<NotificationRecord> findGroupNotificationByListLocked(
             ArrayList<NotificationRecord> list, String pkg, String groupKey, int userId) {
         List<NotificationRecord> records = new ArrayList<>();
+        if (list == mNotificationList) {
+            final ArraySet<NotificationRecord> group = mNotificationsByGroupKey.get(groupKey);
+            final int len = group == null ? 0 : group.size();
+            for (int i = 0; i < len; i++) {
+                NotificationRecord r = group.valueAt(i);
+                if (notificationMatchesUserId(r, userId) && r.sbn.getPackageName().equals(pkg)) {
+                    records.add(r);
+                }
+            }
+            return records;
+        }
         final int len = list.size();
         for (int i = 0; i < len; i++) {
             NotificationRecord r = list.get(i);
@@ -4704,6 +4771,19 @@ public class NotificationManagerService extends SystemService {
     @GuardedBy("mNotificationLock")
     private NotificationRecord findNotificationByListLocked(ArrayList<NotificationRecord> list,
             String pkg, String tag, int id, int userId) {
+        if (list == mNotificationList && userId != UserHandle.USER_ALL) {
+            // Only notifications of this user or to all users can match.
+            final NotificationRecord mine = findNotificationById(
+                    mNotificationsByPackage.get(packageIndexKey(userId, pkg)), tag, id);
+            final NotificationRecord all = findNotificationById(
+                    mNotificationsByPackage.get(packageIndexKey(UserHandle.USER_ALL, pkg)),
+                    tag, id);
+            if (mine == null || all == null) {
+                return mine != null ? mine : all;
+            }
+            // Both match; the scan below returned whichever came first.
+            return list.indexOf(mine) < list.indexOf(all) ? mine : all;
+        }
         final int len = list.size();
         for (int i = 0; i < len; i++) {
             NotificationRecord r = list.get(i);
@@ -4727,8 +4807,77 @@ public class NotificationManagerService extends SystemService {
         return null;
     }
 
+    private static NotificationRecord findNotificationById(
+            ArraySet<NotificationRecord> records, String tag, int id) {
+        final int len = records == null ? 0 : records.size();
+        for (int i = 0; i < len; i++) {
+            final NotificationRecord r = records.valueAt(i);
+            if (r.sbn.getId() == id && TextUtils.equals(r.sbn.getTag(), tag)) {
+                return r;
+            }
+        }
+        return null;
+    }
+
+    @GuardedBy("mNotificationLock")
+    private boolean hasPostedNotificationsLocked(int userId, String pkg, String channelId) {
+        for (int user : new int[] {userId, UserHandle.USER_ALL}) {
+            final ArraySet<NotificationRecord> records =
+                    mNotificationsByPackage.get(packageIndexKey(user, pkg));
+            final int len = records == null ? 0 : records.size();
+            for (int i = 0; i < len; i++) {
+                if (channelId == null
+                        || channelId.equals(records.valueAt(i).getChannel().getId())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static String packageIndexKey(int userId, String pkg) {
+        return userId + "|" + pkg;
+    }
+
+    @GuardedBy("mNotificationLock")
+    private void indexNotificationLocked(NotificationRecord r) {
+        addToIndex(mNotificationsByPackage,
+                packageIndexKey(r.sbn.getUserId(), r.sbn.getPackageName()), r);
+        addToIndex(mNotificationsByGroupKey, r.getGroupKey(), r);
+    }
+
+    @GuardedBy("mNotificationLock")
+    private void unindexNotificationLocked(NotificationRecord r) {
+        removeFromIndex(mNotificationsByPackage,
+                packageIndexKey(r.sbn.getUserId(), r.sbn.getPackageName()), r);
+        removeFromIndex(mNotificationsByGroupKey, r.getGroupKey(), r);
+    }
+
+    private static void addToIndex(ArrayMap<String, ArraySet<NotificationRecord>> index,
+            String key, NotificationRecord r) {
+        ArraySet<NotificationRecord> records = index.get(key);
+        if (records == null) {
+            records = new ArraySet<>();
+            index.put(key, records);
+        }
+        records.add(r);
+    }
+
+    private static void removeFromIndex(
+            ArrayMap<String, ArraySet<NotificationRecord>> index, String key,
+            NotificationRecord r) {
+        final ArraySet<NotificationRecord> records = index.get(key);
+        if (records != null && records.remove(r) && records.isEmpty()) {
+            index.remove(key);
+        }
+    }
+
     @GuardedBy("mNotificationLock")
     int indexOfNotificationLocked(String key) {
+        if (!mNotificationsByKey.containsKey(key)) {
+            // Every posted record is in mNotificationsByKey, so this one isn't posted.
+            return -1;
+        }
         final int N = mNotificationList.size();
         for (int i = 0; i < N; i++) {
             if (key.equals(mNotificationList.get(i).getKey())) {
@@ -4838,53 +4987,14 @@ public class NotificationManagerService extends SystemService {
     @GuardedBy("mNotificationLock")
     private NotificationRankingUpdate makeRankingUpdateLocked(ManagedServiceInfo info) {
         final int N = mNotificationList.size();
-        ArrayList<String> keys = new ArrayList<String>(N);
-        ArrayList<String> interceptedKeys = new ArrayList<String>(N);
-        ArrayList<Integer> importance = new ArrayList<>(N);
-        Bundle overrideGroupKeys = new Bundle();
-        Bundle visibilityOverrides = new Bundle();
-        Bundle suppressedVisualEffects = new Bundle();
-        Bundle explanation = new Bundle();
-        Bundle channels = new Bundle();
-        Bundle overridePeople = new Bundle();
-        Bundle snoozeCriteria = new Bundle();
-        Bundle showBadge = new Bundle();
+        final ArrayList<NotificationRecord> records = new ArrayList<>(N);
         for (int i = 0; i < N; i++) {
             NotificationRecord record = mNotificationList.get(i);
-            if (!isVisibleToListener(record.sbn, info)) {
-                continue;
-            }
-            final String key = record.sbn.getKey();
-            keys.add(key);
-            importance.add(record.getImportance());
-            if (record.getImportanceExplanation() != null) {
-                explanation.putCharSequence(key, record.getImportanceExplanation());
+            if (isVisibleToListener(record.sbn, info)) {
+                records.add(record);
             }
-            if (record.isIntercepted()) {
-                interceptedKeys.add(key);
-
-            }
-            suppressedVisualEffects.putInt(key, record.getSuppressedVisualEffects());
-            if (record.getPackageVisibilityOverride()
-                    != NotificationListenerService.Ranking.VISIBILITY_NO_OVERRIDE) {
-                visibilityOverrides.putInt(key, record.getPackageVisibilityOverride());
-            }
-            overrideGroupKeys.putString(key, record.sbn.getOverrideGroupKey());
-            channels.putParcelable(key, record.getChannel());
-            overridePeople.putStringArrayList(key, record.getPeopleOverride());
-            snoozeCriteria.putParcelableArrayList(key, record.getSnoozeCriteria());
-            showBadge.putBoolean(key, record.canShowBadge());
         }
-        final int M = keys.size();
-        String[] keysAr = keys.toArray(new String[M]);
-        String[] interceptedKeysAr = interceptedKeys.toArray(new String[interceptedKeys.size()]);
-        int[] importanceAr = new int[M];
-        for (int i = 0; i < M; i++) {
-            importanceAr[i] = importance.get(i);
-        }
-        return new NotificationRankingUpdate(keysAr, interceptedKeysAr, visibilityOverrides,
-                suppressedVisualEffects, importanceAr, explanation, overrideGroupKeys,
-                channels, overridePeople, snoozeCriteria, showBadge);
+        return mListeners.getRankingTrackerLocked(info).makeUpdate(records);
     }
 
     boolean hasCompanionDevice(ManagedServiceInfo info) {
@@ -5073,6 +5183,9 @@ public class NotificationManagerService extends SystemService {
     public class NotificationListeners extends ManagedServices {
 
         private final ArraySet<ManagedServiceInfo> mLightTrimListeners = new ArraySet<>();
+        @GuardedBy("mNotificationLock")
+        private final ArrayMap<ManagedServiceInfo, RankingUpdateTracker> mRankingTrackers =
+                new ArrayMap<>();
 
         public NotificationListeners() {
             super(getContext(), mHandler, mNotificationLock, mUserProfiles);
@@ -5105,6 +5218,7 @@ public class NotificationManagerService extends SystemService {
             final INotificationListener listener = (INotificationListener) info.service;
             final NotificationRankingUpdate update;
             synchronized (mNotificationLock) {
+                getRankingTrackerLocked(info).reset();
                 update = makeRankingUpdateLocked(info);
             }
             try {
@@ -5122,6 +5236,32 @@ public class NotificationManagerService extends SystemService {
                 updateEffectsSuppressorLocked();
             }
             mLightTrimListeners.remove(removed);
+            mRankingTrackers.remove(removed);
+        }
+
+        @GuardedBy("mNotificationLock")
+        RankingUpdateTracker getRankingTrackerLocked(ManagedServiceInfo info) {
+            RankingUpdateTracker tracker = mRankingTrackers.get(info);
+            if (tracker == null) {
+                tracker = new RankingUpdateTracker();
+                mRankingTrackers.put(info, tracker);
+            }
+            return tracker;
+        }
+
+        /**
+         * Sends {@code info} the full ranking, for a listener that couldn't apply a delta.
+         */
+        @GuardedBy("mNotificationLock")
+        public void sendRankingSnapshotLocked(ManagedServiceInfo info) {
+            getRankingTrackerLocked(info).reset();
+            final NotificationRankingUpdate update = makeRankingUpdateLocked(info);
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    notifyRankingUpdate(info, update);
+                }
+            });
         }
 
         @GuardedBy("mNotificationLock")
@@ -5310,6 +5450,14 @@ public class NotificationManagerService extends SystemService {
         private void notifyRemoved(ManagedServiceInfo info, StatusBarNotification sbn,
                 NotificationRankingUpdate rankingUpdate, int reason) {
             if (!info.enabledAndUserMatches(sbn.getUserId())) {
+                // rankingUpdate won't reach the listener, so later deltas wouldn't apply to what
+                // it has; make the next update it gets a full one instead.
+                synchronized (mNotificationLock) {
+                    final RankingUpdateTracker tracker = mRankingTrackers.get(info);
+                    if (tracker != null) {
+                        tracker.reset();
+                    }
+                }
                 return;
             }
             final INotificationListener listener = (INotificationListener) info.service;
@@ -32,11 +32,14 @@ import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.pm.ParceledListSlice;
 import android.metrics.LogMaker;
 import android.os.Build;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.provider.Settings.Secure;
 import android.service.notification.NotificationListenerService.Ranking;
 import android.text.TextUtils;
 import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.Log;
 import android.util.Slog;
 import android.util.SparseBooleanArray;
 
@@ -54,6 +57,11 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -83,12 +91,26 @@ public class RankingHelper implements RankingConfig {
     private static final int DEFAULT_IMPORTANCE = NotificationManager.IMPORTANCE_UNSPECIFIED;
     private static final boolean DEFAULT_SHOW_BADGE = true;
 
+    /** Below this many records, handing signal extraction to other threads isn't worth it. */
+    private static final int PARALLEL_EXTRACTION_MIN_RECORDS = 32;
+    private static final int MAX_EXTRACTION_THREADS = 2;
+
     private final NotificationSignalExtractor[] mSignalExtractors;
+    private final ExtractorStats[] mExtractorStats;
+    private final ThreadPoolExecutor mExtractionExecutor = new ThreadPoolExecutor(
+            MAX_EXTRACTION_THREADS, MAX_EXTRACTION_THREADS, 60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>());
     private final NotificationComparator mPreliminaryComparator;
     private final GlobalSortKeyComparator mFinalComparator = new GlobalSortKeyComparator();
 
     private final ArrayMap<String, Record> mRecords = new ArrayMap<>(); // pkg|uid => Record
     private final ArrayMap<String, NotificationRecord> mProxyByGroupTmp = new ArrayMap<>();
+    // The records of the last sort in preliminary order, so that a single changed record can be
+    // re-positioned without comparing all the others again.
+    private final ArrayList<NotificationRecord> mPreliminaryOrder = new ArrayList<>();
+    private final ArraySet<NotificationRecord> mSortedTmp = new ArraySet<>();
+    private boolean mPreliminaryOrderValid;
+    private boolean mVerifyIncrementalSort = Log.isLoggable(TAG, Log.VERBOSE);
     private final ArrayMap<String, Record> mRestoredWithoutUids = new ArrayMap<>(); // pkg => Record
 
     private final Context mContext;
@@ -106,8 +128,14 @@ public class RankingHelper implements RankingConfig {
 
         updateBadgingEnabled();
 
+        mExtractionExecutor.allowCoreThreadTimeOut(true);
+
         final int N = extractorNames.length;
         mSignalExtractors = new NotificationSignalExtractor[N];
+        mExtractorStats = new ExtractorStats[N];
+        for (int i = 0; i < N; i++) {
+            mExtractorStats[i] = new ExtractorStats();
+        }
         for (int i = 0; i < N; i++) {
             try {
                 Class<?> extractorClass = mContext.getClassLoader().loadClass(extractorNames[i]);
@@ -142,14 +170,64 @@ public class RankingHelper implements RankingConfig {
         final int N = mSignalExtractors.length;
         for (int i = 0; i < N; i++) {
             NotificationSignalExtractor extractor = mSignalExtractors[i];
+            final long start = SystemClock.elapsedRealtimeNanos();
+            RankingReconsideration recon = null;
             try {
-                RankingReconsideration recon = extractor.process(r);
+                recon = extractor.process(r);
                 if (recon != null) {
                     mRankingHandler.requestReconsideration(recon);
                 }
             } catch (Throwable t) {
                 Slog.w(TAG, "NotificationSignalExtractor failed.", t);
             }
+            mExtractorStats[i].record(SystemClock.elapsedRealtimeNanos() - start, recon != null);
+        }
+    }
+
+    /**
+     * Extracts signals for each of the given records. Extractors of a single record may depend
+     * on each other (intrusiveness looks at importance), but records don't, so large lists are
+     * split across a small pool with the calling thread taking the first share.
+     */
+    public void extractSignals(ArrayList<NotificationRecord> records) {
+        final int N = records.size();
+        if (N < PARALLEL_EXTRACTION_MIN_RECORDS) {
+            for (int i = 0; i < N; i++) {
+                extractSignals(records.get(i));
+            }
+            return;
+        }
+        final int chunkSize = (N + MAX_EXTRACTION_THREADS) / (MAX_EXTRACTION_THREADS + 1);
+        final ArrayList<Future<?>> futures = new ArrayList<>(MAX_EXTRACTION_THREADS);
+        for (int start = chunkSize; start < N; start += chunkSize) {
+            final int from = start;
+            final int to = Math.min(N, start + chunkSize);
+            futures.add(mExtractionExecutor.submit(() -> {
+                for (int i = from; i < to; i++) {
+                    extractSignals(records.get(i));
+                }
+            }));
+        }
+        for (int i = 0; i < chunkSize; i++) {
+            extractSignals(records.get(i));
+        }
+        // The records must not be touched by the pool once this returns.
+        boolean interrupted = false;
+        for (int i = 0; i < futures.size(); i++) {
+            while (true) {
+                try {
+                    futures.get(i).get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    Slog.w(TAG, "Signal extraction failed.", e);
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
         }
     }
 
@@ -412,10 +490,101 @@ public class RankingHelper implements RankingConfig {
         // rank each record individually
         Collections.sort(notificationList, mPreliminaryComparator);
 
+        synchronized (mPreliminaryOrder) {
+            mPreliminaryOrder.clear();
+            mPreliminaryOrder.addAll(notificationList);
+            mPreliminaryOrderValid = true;
+        }
+
+        assignGlobalSortKeys(notificationList);
+
+        // Do a second ranking pass, using group proxies
+        Collections.sort(notificationList, mFinalComparator);
+    }
+
+    /**
+     * Sorts {@code notificationList} after {@code changed} was added to it or updated in place,
+     * assuming nothing that ranks any of the other records changed since the last sort. Records
+     * removed since then are dropped from the ranking. Falls back to a full {@link #sort} when
+     * that assumption visibly doesn't hold.
+     */
+    public void sort(ArrayList<NotificationRecord> notificationList, NotificationRecord changed) {
+        synchronized (mPreliminaryOrder) {
+            if (mPreliminaryOrderValid && repositionLocked(notificationList, changed)) {
+                assignGlobalSortKeys(mPreliminaryOrder);
+                // The list is mostly in order already, which keeps this pass close to linear.
+                Collections.sort(notificationList, mFinalComparator);
+                return;
+            }
+            mPreliminaryOrderValid = false;
+            mPreliminaryOrder.clear();
+        }
+        sort(notificationList);
+    }
+
+    private boolean repositionLocked(ArrayList<NotificationRecord> notificationList,
+            NotificationRecord changed) {
+        final int N = notificationList.size();
+        mSortedTmp.clear();
+        mSortedTmp.addAll(notificationList);
+        try {
+            if (!mSortedTmp.contains(changed)) {
+                return false;
+            }
+            // Drop cancelled records and the stale position of the changed one.
+            int kept = 0;
+            for (int i = 0; i < mPreliminaryOrder.size(); i++) {
+                final NotificationRecord record = mPreliminaryOrder.get(i);
+                if (record != changed && mSortedTmp.contains(record)) {
+                    mPreliminaryOrder.set(kept++, record);
+                }
+            }
+            for (int i = mPreliminaryOrder.size() - 1; i >= kept; i--) {
+                mPreliminaryOrder.remove(i);
+            }
+        } finally {
+            mSortedTmp.clear();
+        }
+        if (mPreliminaryOrder.size() != N - 1) {
+            // Something else was added without being sorted.
+            return false;
+        }
+        int index = Collections.binarySearch(mPreliminaryOrder, changed, mPreliminaryComparator);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        mPreliminaryOrder.add(index, changed);
+
+        if (mVerifyIncrementalSort) {
+            final ArrayList<NotificationRecord> expected = new ArrayList<>(notificationList);
+            Collections.sort(expected, mPreliminaryComparator);
+            for (int i = 0; i < N; i++) {
+                if (mPreliminaryComparator.compare(expected.get(i), mPreliminaryOrder.get(i))
+                        != 0) {
+                    Slog.wtf(TAG, "Incremental sort diverged at " + i + " after "
+                            + changed.getKey() + ": expected " + expected.get(i).getKey()
+                            + " but was " + mPreliminaryOrder.get(i).getKey());
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    @VisibleForTesting
+    void setVerifyIncrementalSort(boolean verify) {
+        mVerifyIncrementalSort = verify;
+    }
+
+    /**
+     * Assigns authoritative ranks and global sort keys from a list in preliminary order.
+     */
+    private void assignGlobalSortKeys(ArrayList<NotificationRecord> preliminaryOrder) {
+        final int N = preliminaryOrder.size();
         synchronized (mProxyByGroupTmp) {
             // record individual ranking result and nominate proxies for each group
             for (int i = N - 1; i >= 0; i--) {
-                final NotificationRecord record = notificationList.get(i);
+                final NotificationRecord record = preliminaryOrder.get(i);
                 record.setAuthoritativeRank(i);
                 final String groupKey = record.getGroupKey();
                 NotificationRecord existingProxy = mProxyByGroupTmp.get(groupKey);
@@ -427,7 +596,7 @@ public class RankingHelper implements RankingConfig {
             // assign global sort key:
             //   is_recently_intrusive:group_rank:is_group_summary:group_sort_key:rank
             for (int i = 0; i < N; i++) {
-                final NotificationRecord record = notificationList.get(i);
+                final NotificationRecord record = preliminaryOrder.get(i);
                 NotificationRecord groupProxy = mProxyByGroupTmp.get(record.getGroupKey());
                 String groupSortKey = record.getNotification().getSortKey();
 
@@ -458,9 +627,6 @@ public class RankingHelper implements RankingConfig {
             }
             mProxyByGroupTmp.clear();
         }
-
-        // Do a second ranking pass, using group proxies
-        Collections.sort(notificationList, mFinalComparator);
     }
 
     public int indexOf(ArrayList<NotificationRecord> notificationList, NotificationRecord target) {
@@ -876,7 +1042,9 @@ public class RankingHelper implements RankingConfig {
             for (int i = 0; i < N; i++) {
                 pw.print(prefix);
                 pw.print("  ");
-                pw.println(mSignalExtractors[i]);
+                pw.print(mSignalExtractors[i]);
+                pw.print(" ");
+                mExtractorStats[i].dump(pw);
             }
         }
         if (filter == null) {
@@ -1154,7 +1322,8 @@ public class RankingHelper implements RankingConfig {
                 .setPackageName(pkg);
     }
 
-    public void updateBadgingEnabled() {
+    // Synchronized since badging is looked up from the signal extraction threads.
+    public synchronized void updateBadgingEnabled() {
         if (mBadgingEnabled == null) {
             mBadgingEnabled = new SparseBooleanArray();
         }
@@ -1174,7 +1343,7 @@ public class RankingHelper implements RankingConfig {
         }
     }
 
-    public boolean badgingEnabled(UserHandle userHandle) {
+    public synchronized boolean badgingEnabled(UserHandle userHandle) {
         int userId = userHandle.getIdentifier();
         if (userId == UserHandle.USER_ALL) {
             return false;
@@ -1189,6 +1358,29 @@ public class RankingHelper implements RankingConfig {
     }
 
 
+    private static final class ExtractorStats {
+        private int mCount;
+        private int mReconsiderations;
+        private long mTotalNanos;
+        private long mMaxNanos;
+
+        synchronized void record(long nanos, boolean reconsideration) {
+            mCount++;
+            mTotalNanos += nanos;
+            mMaxNanos = Math.max(mMaxNanos, nanos);
+            if (reconsideration) {
+                mReconsiderations++;
+            }
+        }
+
+        synchronized void dump(PrintWriter pw) {
+            pw.print("count="); pw.print(mCount);
+            pw.print(" avg="); pw.print(mCount > 0 ? mTotalNanos / mCount / 1000 : 0);
+            pw.print("us max="); pw.print(mMaxNanos / 1000);
+            pw.print("us reconsiderations="); pw.println(mReconsiderations);
+        }
+    }
+
     private static class Record {
         static int UNKNOWN_UID = UserHandle.USER_NULL;
 
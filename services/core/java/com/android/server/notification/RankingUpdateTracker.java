@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.server.notification;
+
+import android.app.NotificationChannel;
+import android.os.Bundle;
+import android.os.Parcel;
+import android.service.notification.NotificationListenerService;
+import android.service.notification.NotificationRankingUpdate;
+import android.service.notification.SnoozeCriterion;
+import android.text.TextUtils;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Builds the ranking updates for one notification listener, remembering what it was sent so
+ * that the next update only carries the entries that changed since.
+ *
+ * <p>Updates for a listener are built under the notification lock and delivered in that order
+ * over its oneway binder, so the last update built is the one the listener holds when the next
+ * one arrives. A listener that finds otherwise asks for a snapshot, see {@link #reset()}.
+ */
+final class RankingUpdateTracker {
+    private final ArrayMap<String, Entry> mSentEntries = new ArrayMap<>();
+    private int mVersion;
+    private boolean mHasBase;
+
+    /** Makes the next update a full snapshot. */
+    void reset() {
+        mHasBase = false;
+        mSentEntries.clear();
+    }
+
+    int getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * @param records the records visible to the listener, in ranking order.
+     */
+    NotificationRankingUpdate makeUpdate(List<NotificationRecord> records) {
+        final boolean full = !mHasBase;
+        final int N = records.size();
+        final String[] keys = new String[N];
+        final ArrayList<String> interceptedKeys = new ArrayList<>(N);
+        final int[] importance = new int[N];
+        final ArrayList<String> changedKeys = full ? null : new ArrayList<>();
+        final Bundle overrideGroupKeys = new Bundle();
+        final Bundle visibilityOverrides = new Bundle();
+        final Bundle suppressedVisualEffects = new Bundle();
+        final Bundle explanation = new Bundle();
+        final Bundle channels = new Bundle();
+        final Bundle overridePeople = new Bundle();
+        final Bundle snoozeCriteria = new Bundle();
+        final Bundle showBadge = new Bundle();
+        for (int i = 0; i < N; i++) {
+            final NotificationRecord record = records.get(i);
+            final String key = record.sbn.getKey();
+            keys[i] = key;
+            importance[i] = record.getImportance();
+            if (record.isIntercepted()) {
+                interceptedKeys.add(key);
+            }
+            if (!full) {
+                final Entry sent = mSentEntries.get(key);
+                if (sent != null && sent.matches(record)) {
+                    continue;
+                }
+                changedKeys.add(key);
+            }
+            mSentEntries.put(key, new Entry(record));
+
+            if (record.getImportanceExplanation() != null) {
+                explanation.putCharSequence(key, record.getImportanceExplanation());
+            }
+            suppressedVisualEffects.putInt(key, record.getSuppressedVisualEffects());
+            if (record.getPackageVisibilityOverride()
+                    != NotificationListenerService.Ranking.VISIBILITY_NO_OVERRIDE) {
+                visibilityOverrides.putInt(key, record.getPackageVisibilityOverride());
+            }
+            overrideGroupKeys.putString(key, record.sbn.getOverrideGroupKey());
+            channels.putParcelable(key, record.getChannel());
+            overridePeople.putStringArrayList(key, record.getPeopleOverride());
+            snoozeCriteria.putParcelableArrayList(key, record.getSnoozeCriteria());
+            showBadge.putBoolean(key, record.canShowBadge());
+        }
+        if (mSentEntries.size() > N) {
+            final ArraySet<String> current = new ArraySet<>(N);
+            for (int i = 0; i < N; i++) {
+                current.add(keys[i]);
+            }
+            mSentEntries.retainAll(current);
+        }
+
+        final int baseVersion = mVersion;
+        mVersion++;
+        mHasBase = true;
+        return new NotificationRankingUpdate(keys,
+                interceptedKeys.toArray(new String[interceptedKeys.size()]), visibilityOverrides,
+                suppressedVisualEffects, importance, explanation, overrideGroupKeys, channels,
+                overridePeople, snoozeCriteria, showBadge, mVersion, baseVersion,
+                full ? null : changedKeys.toArray(new String[changedKeys.size()]));
+    }
+
+    /**
+     * The per-notification ranking values a listener was last sent. Channels and lists are
+     * copied, since the record's may be changed in place.
+     */
+    private static final class Entry {
+        final CharSequence mExplanation;
+        final int mSuppressedVisualEffects;
+        final int mVisibilityOverride;
+        final String mOverrideGroupKey;
+        final NotificationChannel mChannel;
+        final ArrayList<String> mOverridePeople;
+        final ArrayList<SnoozeCriterion> mSnoozeCriteria;
+        final boolean mShowBadge;
+
+        Entry(NotificationRecord record) {
+            mExplanation = record.getImportanceExplanation();
+            mSuppressedVisualEffects = record.getSuppressedVisualEffects();
+            mVisibilityOverride = record.getPackageVisibilityOverride();
+            mOverrideGroupKey = record.sbn.getOverrideGroupKey();
+            mChannel = copyOf(record.getChannel());
+            mOverridePeople = record.getPeopleOverride() == null
+                    ? null : new ArrayList<>(record.getPeopleOverride());
+            mSnoozeCriteria = record.getSnoozeCriteria() == null
+                    ? null : new ArrayList<>(record.getSnoozeCriteria());
+            mShowBadge = record.canShowBadge();
+        }
+
+        boolean matches(NotificationRecord record) {
+            return mSuppressedVisualEffects == record.getSuppressedVisualEffects()
+                    && mVisibilityOverride == record.getPackageVisibilityOverride()
+                    && mShowBadge == record.canShowBadge()
+                    && TextUtils.equals(mExplanation, record.getImportanceExplanation())
+                    && Objects.equals(mOverrideGroupKey, record.sbn.getOverrideGroupKey())
+                    && Objects.equals(mChannel, record.getChannel())
+                    && Objects.equals(mOverridePeople, record.getPeopleOverride())
+                    && Objects.equals(mSnoozeCriteria, record.getSnoozeCriteria());
+        }
+
+        private static NotificationChannel copyOf(NotificationChannel channel) {
+            if (channel == null) {
+                return null;
+            }
+            final Parcel parcel = Parcel.obtain();
+            try {
+                channel.writeToParcel(parcel, 0);
+                parcel.setDataPosition(0);
+                return NotificationChannel.CREATOR.createFromParcel(parcel);
+            } finally {
+                parcel.recycle();
+            }
+        }
+    }
+}
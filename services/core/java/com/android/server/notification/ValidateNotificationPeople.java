@@ -194,16 +194,19 @@ public class ValidateNotificationPeople implements NotificationSignalExtractor {
     }
 
     private Context getContextAsUser(UserHandle userHandle) {
-        Context context = mUserToContextMap.get(userHandle.getIdentifier());
-        if (context == null) {
-            try {
-                context = mBaseContext.createPackageContextAsUser("android", 0, userHandle);
-                mUserToContextMap.put(userHandle.getIdentifier(), context);
-            } catch (PackageManager.NameNotFoundException e) {
-                Log.e(TAG, "failed to create package context for lookups", e);
+        // Records may be processed on several threads at once.
+        synchronized (mUserToContextMap) {
+            Context context = mUserToContextMap.get(userHandle.getIdentifier());
+            if (context == null) {
+                try {
+                    context = mBaseContext.createPackageContextAsUser("android", 0, userHandle);
+                    mUserToContextMap.put(userHandle.getIdentifier(), context);
+                } catch (PackageManager.NameNotFoundException e) {
+                    Log.e(TAG, "failed to create package context for lookups", e);
+                }
             }
+            return context;
         }
-        return context;
     }
 
     private RankingReconsideration validatePeople(Context context,
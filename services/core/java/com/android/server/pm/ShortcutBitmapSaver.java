@@ -36,15 +36,13 @@ import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.Deque;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 /**
- * Class to save shortcut bitmaps on a worker thread.
+ * Class to compress and save shortcut bitmaps on a worker thread.
  *
  * The methods with the "Locked" prefix must be called with the service lock held.
  */
@@ -64,7 +62,10 @@ public class ShortcutBitmapSaver {
     private final ShortcutService mService;
 
     /**
-     * Bitmaps are saved on this thread.
+     * Bitmaps are compressed and saved on this thread, so that publishing a shortcut with an
+     * icon doesn't compress it with the service lock held.  Saves run one at a time, in the
+     * order they were requested, so that when a shortcut's icon is updated again before the
+     * last save finished, the newest icon is the one that ends up in its bitmap path.
      *
      * Note: Just before saving shortcuts into the XML, we need to wait on all pending saves to
      * finish, and we need to do it with the service lock held, which would still block incoming
@@ -75,29 +76,37 @@ public class ShortcutBitmapSaver {
      * In order to reduce the conflict, we use an own thread for this purpose, rather than
      * reusing existing background threads, and also to avoid possible deadlocks.
      */
-    private final Executor mExecutor = new ThreadPoolExecutor(0, 1, 60L, TimeUnit.SECONDS,
-            new LinkedBlockingQueue<>());
+    private final ThreadPoolExecutor mExecutor = new ThreadPoolExecutor(1, 1, 60L,
+            TimeUnit.SECONDS, new LinkedBlockingQueue<>());
 
     /** Represents a bitmap to save. */
     private static class PendingItem {
         /** Hosting shortcut. */
         public final ShortcutInfo shortcut;
 
-        /** Compressed bitmap data. */
-        public final byte[] bytes;
+        /** Original bitmap, not compressed yet. */
+        public final Bitmap bitmap;
+
+        public final int maxDimension;
+        public final CompressFormat format;
+        public final int quality;
 
         /** Instantiated time, only for dogfooding. */
         private final long mInstantiatedUptimeMillis; // Only for dumpsys.
 
-        private PendingItem(ShortcutInfo shortcut, byte[] bytes) {
+        private PendingItem(ShortcutInfo shortcut, Bitmap bitmap, int maxDimension,
+                CompressFormat format, int quality) {
             this.shortcut = shortcut;
-            this.bytes = bytes;
+            this.bitmap = bitmap;
+            this.maxDimension = maxDimension;
+            this.format = format;
+            this.quality = quality;
             mInstantiatedUptimeMillis = SystemClock.uptimeMillis();
         }
 
         @Override
         public String toString() {
-            return "PendingItem{size=" + bytes.length
+            return "PendingItem{size=" + bitmap.getWidth() + "x" + bitmap.getHeight()
                     + " age=" + (SystemClock.uptimeMillis() - mInstantiatedUptimeMillis) + "ms"
                     + " shortcut=" + shortcut.toInsecureString()
                     + "}";
@@ -107,24 +116,36 @@ public class ShortcutBitmapSaver {
     @GuardedBy("mPendingItems")
     private final Deque<PendingItem> mPendingItems = new LinkedBlockingDeque<>();
 
+    /** # of items taken from {@link #mPendingItems} but not saved yet. */
+    @GuardedBy("mPendingItems")
+    private int mSavesInProgress;
+
     public ShortcutBitmapSaver(ShortcutService service) {
         mService = service;
         // mLock = lock;
+        mExecutor.allowCoreThreadTimeOut(true);
     }
 
     public boolean waitForAllSavesLocked() {
-        final CountDownLatch latch = new CountDownLatch(1);
-
-        mExecutor.execute(() -> latch.countDown());
-
-        try {
-            if (latch.await(SAVE_WAIT_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+        final long deadline = SystemClock.uptimeMillis() + SAVE_WAIT_TIMEOUT_MS;
+        synchronized (mPendingItems) {
+            while (mPendingItems.size() > 0 || mSavesInProgress > 0) {
+                final long timeout = deadline - SystemClock.uptimeMillis();
+                if (timeout <= 0) {
+                    break;
+                }
+                try {
+                    mPendingItems.wait(timeout);
+                } catch (InterruptedException e) {
+                    Slog.w(TAG, "interrupted");
+                    return false;
+                }
+            }
+            if (mPendingItems.size() == 0 && mSavesInProgress == 0) {
                 return true;
             }
-            mService.wtf("Timed out waiting on saving bitmaps.");
-        } catch (InterruptedException e) {
-            Slog.w(TAG, "interrupted");
         }
+        mService.wtf("Timed out waiting on saving bitmaps.");
         return false;
     }
 
@@ -163,29 +184,6 @@ public class ShortcutBitmapSaver {
             return;
         }
 
-        // Compress it and enqueue to the requests.
-        final byte[] bytes;
-        try {
-            final Bitmap shrunk = mService.shrinkBitmap(original, maxDimension);
-            try {
-                try (final ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024)) {
-                    if (!shrunk.compress(format, quality, out)) {
-                        Slog.wtf(ShortcutService.TAG, "Unable to compress bitmap");
-                    }
-                    out.flush();
-                    bytes = out.toByteArray();
-                    out.close();
-                }
-            } finally {
-                if (shrunk != original) {
-                    shrunk.recycle();
-                }
-            }
-        } catch (IOException | RuntimeException | OutOfMemoryError e) {
-            Slog.wtf(ShortcutService.TAG, "Unable to write bitmap to file", e);
-            return;
-        }
-
         shortcut.addFlags(
                 ShortcutInfo.FLAG_HAS_ICON_FILE | ShortcutInfo.FLAG_ICON_FILE_PENDING_SAVE);
 
@@ -193,8 +191,9 @@ public class ShortcutBitmapSaver {
             shortcut.addFlags(ShortcutInfo.FLAG_ADAPTIVE_BITMAP);
         }
 
-        // Enqueue a pending save.
-        final PendingItem item = new PendingItem(shortcut, bytes);
+        // Enqueue a pending save.  The bitmap is compressed on the worker thread too.
+        final PendingItem item = new PendingItem(shortcut, original, maxDimension, format,
+                quality);
         synchronized (mPendingItems) {
             mPendingItems.add(item);
         }
@@ -232,8 +231,9 @@ public class ShortcutBitmapSaver {
         // Ideally we should be holding the service lock when accessing shortcut instances,
         // but that could cause a deadlock so we don't do it.
         //
-        // Instead, waitForAllSavesLocked() uses a latch to make sure changes made on this
-        // thread is visible on the caller thread.
+        // Instead, waitForAllSavesLocked() waits on mPendingItems, which is also locked here
+        // after each save, to make sure changes made on this thread are visible on the caller
+        // thread.
 
         ShortcutInfo shortcut = null;
         try {
@@ -244,6 +244,7 @@ public class ShortcutBitmapSaver {
                     return false;
                 }
                 item = mPendingItems.pop();
+                mSavesInProgress++;
             }
 
             shortcut = item.shortcut;
@@ -257,6 +258,11 @@ public class ShortcutBitmapSaver {
                 Slog.d(TAG, "Saving bitmap: " + item);
             }
 
+            final byte[] bytes = compress(item);
+            if (bytes == null) {
+                return true;
+            }
+
             File file = null;
             try {
                 final FileOutputStreamWithPath out = mService.openIconFileForWrite(
@@ -264,7 +270,7 @@ public class ShortcutBitmapSaver {
                 file = out.getFile();
 
                 try {
-                    out.write(item.bytes);
+                    out.write(bytes);
                 } finally {
                     IoUtils.closeQuietly(out);
                 }
@@ -290,16 +296,52 @@ public class ShortcutBitmapSaver {
 
                 // Whatever happened, remove this flag.
                 shortcut.clearFlags(ShortcutInfo.FLAG_ICON_FILE_PENDING_SAVE);
+
+                synchronized (mPendingItems) {
+                    mSavesInProgress--;
+                    if (mPendingItems.size() == 0 && mSavesInProgress == 0) {
+                        mPendingItems.notifyAll();
+                    }
+                }
             }
         }
         return true;
     }
 
+    /**
+     * Shrink and compress the bitmap of a {@link PendingItem}.
+     *
+     * @return the compressed data, or null on failure.
+     */
+    @Nullable
+    private byte[] compress(PendingItem item) {
+        try {
+            final Bitmap shrunk = mService.shrinkBitmap(item.bitmap, item.maxDimension);
+            try {
+                try (final ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024)) {
+                    if (!shrunk.compress(item.format, item.quality, out)) {
+                        Slog.wtf(ShortcutService.TAG, "Unable to compress bitmap");
+                    }
+                    out.flush();
+                    return out.toByteArray();
+                }
+            } finally {
+                if (shrunk != item.bitmap) {
+                    shrunk.recycle();
+                }
+            }
+        } catch (IOException | RuntimeException | OutOfMemoryError e) {
+            Slog.wtf(ShortcutService.TAG, "Unable to write bitmap to file", e);
+            return null;
+        }
+    }
+
     public void dumpLocked(@NonNull PrintWriter pw, @NonNull String prefix) {
         synchronized (mPendingItems) {
             final int N = mPendingItems.size();
             pw.print(prefix);
-            pw.println("Pending saves: Num=" + N + " Executor=" + mExecutor);
+            pw.println("Pending saves: Num=" + N + " InProgress=" + mSavesInProgress
+                    + " Executor=" + mExecutor);
 
             for (PendingItem item : mPendingItems) {
                 pw.print(prefix);
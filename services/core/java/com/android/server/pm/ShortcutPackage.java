@@ -63,6 +63,7 @@ class ShortcutPackage extends ShortcutPackageItem {
     private static final String TAG_VERIFY = ShortcutService.TAG + ".verify";
 
     static final String TAG_ROOT = "package";
+    static final String TAG_SHORTCUTS = "shortcuts";
     private static final String TAG_INTENT_EXTRAS_LEGACY = "intent-extras";
     private static final String TAG_INTENT = "intent";
     private static final String TAG_EXTRAS = "extras";
@@ -72,6 +73,7 @@ class ShortcutPackage extends ShortcutPackageItem {
     private static final String ATTR_NAME = "name";
     private static final String ATTR_CALL_COUNT = "call-count";
     private static final String ATTR_LAST_RESET = "last-reset";
+    private static final String ATTR_SHORTCUTS_FILE = "shortcuts-file";
     private static final String ATTR_ID = "id";
     private static final String ATTR_ACTIVITY = "activity";
     private static final String ATTR_TITLE = "title";
@@ -104,10 +106,21 @@ class ShortcutPackage extends ShortcutPackageItem {
     private static final String KEY_BITMAP_BYTES = "bitmapBytes";
 
     /**
-     * All the shortcuts from the package, keyed on IDs.
+     * All the shortcuts from the package, keyed on IDs.  Use {@link #getShortcutMap()}, as they
+     * may not have been read from the package's shortcuts file yet.
      */
     final private ArrayMap<String, ShortcutInfo> mShortcuts = new ArrayMap<>();
 
+    /**
+     * False while {@link #mShortcuts} still needs to be read from the package's own file.
+     */
+    private boolean mShortcutsLoaded = true;
+
+    /**
+     * CRC32 of the package's shortcuts file as last read or written, or -1 if unknown.
+     */
+    private long mShortcutsFileChecksum = -1;
+
     /**
      * # of times the package has called rate-limited APIs.
      */
@@ -134,6 +147,40 @@ class ShortcutPackage extends ShortcutPackageItem {
         this(shortcutUser, packageUserId, packageName, null);
     }
 
+    /**
+     * Return all the shortcuts, reading them from the package's shortcuts file on first access.
+     */
+    private ArrayMap<String, ShortcutInfo> getShortcutMap() {
+        if (!mShortcutsLoaded) {
+            mShortcutsLoaded = true;
+            mShortcutUser.mService.loadPackageShortcutsLocked(this);
+        }
+        return mShortcuts;
+    }
+
+    /**
+     * @return false if the shortcuts haven't been read from the package's shortcuts file yet, in
+     * which case they haven't been changed either.
+     */
+    public boolean isShortcutsLoaded() {
+        return mShortcutsLoaded;
+    }
+
+    public long getShortcutsFileChecksum() {
+        return mShortcutsFileChecksum;
+    }
+
+    public void setShortcutsFileChecksum(long checksum) {
+        mShortcutsFileChecksum = checksum;
+    }
+
+    /**
+     * @return false if {@link #saveToXml} would write nothing for this package.
+     */
+    public boolean hasDataToSave() {
+        return !mShortcutsLoaded || mShortcuts.size() > 0 || mApiCallCount > 0;
+    }
+
     @Override
     public int getOwnerUserId() {
         // For packages, always owner user == package user.
@@ -153,7 +200,7 @@ class ShortcutPackage extends ShortcutPackageItem {
     @Override
     protected void onRestoreBlocked() {
         // Can't restore due to version/signature mismatch.  Remove all shortcuts.
-        mShortcuts.clear();
+        getShortcutMap().clear();
     }
 
     @Override
@@ -168,7 +215,7 @@ class ShortcutPackage extends ShortcutPackageItem {
      */
     @Nullable
     public ShortcutInfo findShortcutById(String id) {
-        return mShortcuts.get(id);
+        return getShortcutMap().get(id);
     }
 
     private void ensureNotImmutable(@Nullable ShortcutInfo shortcut) {
@@ -180,7 +227,7 @@ class ShortcutPackage extends ShortcutPackageItem {
     }
 
     public void ensureNotImmutable(@NonNull String id) {
-        ensureNotImmutable(mShortcuts.get(id));
+        ensureNotImmutable(getShortcutMap().get(id));
     }
 
     public void ensureImmutableShortcutsNotIncludedWithIds(@NonNull List<String> shortcutIds) {
@@ -196,7 +243,7 @@ class ShortcutPackage extends ShortcutPackageItem {
     }
 
     private ShortcutInfo deleteShortcutInner(@NonNull String id) {
-        final ShortcutInfo shortcut = mShortcuts.remove(id);
+        final ShortcutInfo shortcut = getShortcutMap().remove(id);
         if (shortcut != null) {
             mShortcutUser.mService.removeIconLocked(shortcut);
             shortcut.clearFlags(ShortcutInfo.FLAG_DYNAMIC | ShortcutInfo.FLAG_PINNED
@@ -213,7 +260,7 @@ class ShortcutPackage extends ShortcutPackageItem {
         // Extract Icon and update the icon res ID and the bitmap path.
         s.saveIconAndFixUpShortcutLocked(newShortcut);
         s.fixUpShortcutResourceNamesAndValues(newShortcut);
-        mShortcuts.put(newShortcut.getId(), newShortcut);
+        getShortcutMap().put(newShortcut.getId(), newShortcut);
     }
 
     /**
@@ -228,7 +275,7 @@ class ShortcutPackage extends ShortcutPackageItem {
 
         newShortcut.addFlags(ShortcutInfo.FLAG_DYNAMIC);
 
-        final ShortcutInfo oldShortcut = mShortcuts.get(newShortcut.getId());
+        final ShortcutInfo oldShortcut = getShortcutMap().get(newShortcut.getId());
 
         final boolean wasPinned;
 
@@ -256,8 +303,9 @@ class ShortcutPackage extends ShortcutPackageItem {
     private void removeOrphans() {
         ArrayList<String> removeList = null; // Lazily initialize.
 
-        for (int i = mShortcuts.size() - 1; i >= 0; i--) {
-            final ShortcutInfo si = mShortcuts.valueAt(i);
+        final ArrayMap<String, ShortcutInfo> shortcuts = getShortcutMap();
+        for (int i = shortcuts.size() - 1; i >= 0; i--) {
+            final ShortcutInfo si = shortcuts.valueAt(i);
 
             if (si.isAlive()) continue;
 
@@ -280,8 +328,9 @@ class ShortcutPackage extends ShortcutPackageItem {
         final long now = mShortcutUser.mService.injectCurrentTimeMillis();
 
         boolean changed = false;
-        for (int i = mShortcuts.size() - 1; i >= 0; i--) {
-            final ShortcutInfo si = mShortcuts.valueAt(i);
+        final ArrayMap<String, ShortcutInfo> shortcuts = getShortcutMap();
+        for (int i = shortcuts.size() - 1; i >= 0; i--) {
+            final ShortcutInfo si = shortcuts.valueAt(i);
             if (si.isDynamic()) {
                 changed = true;
 
@@ -344,7 +393,7 @@ class ShortcutPackage extends ShortcutPackageItem {
     @Nullable
     private ShortcutInfo deleteOrDisableWithId(@NonNull String shortcutId, boolean disable,
             boolean overrideImmutable) {
-        final ShortcutInfo oldShortcut = mShortcuts.get(shortcutId);
+        final ShortcutInfo oldShortcut = getShortcutMap().get(shortcutId);
 
         if (oldShortcut == null || !oldShortcut.isEnabled()) {
             return null; // Doesn't exist or already disabled.
@@ -374,7 +423,7 @@ class ShortcutPackage extends ShortcutPackageItem {
     }
 
     public void enableWithId(@NonNull String shortcutId) {
-        final ShortcutInfo shortcut = mShortcuts.get(shortcutId);
+        final ShortcutInfo shortcut = getShortcutMap().get(shortcutId);
         if (shortcut != null) {
             ensureNotImmutable(shortcut);
             shortcut.clearFlags(ShortcutInfo.FLAG_DISABLED);
@@ -389,8 +438,9 @@ class ShortcutPackage extends ShortcutPackageItem {
      */
     public void refreshPinnedFlags() {
         // First, un-pin all shortcuts
-        for (int i = mShortcuts.size() - 1; i >= 0; i--) {
-            mShortcuts.valueAt(i).clearFlags(ShortcutInfo.FLAG_PINNED);
+        final ArrayMap<String, ShortcutInfo> shortcuts = getShortcutMap();
+        for (int i = shortcuts.size() - 1; i >= 0; i--) {
+            shortcuts.valueAt(i).clearFlags(ShortcutInfo.FLAG_PINNED);
         }
 
         // Then, for the pinned set for each launcher, set the pin flag one by one.
@@ -404,7 +454,7 @@ class ShortcutPackage extends ShortcutPackageItem {
             }
             for (int i = pinned.size() - 1; i >= 0; i--) {
                 final String id = pinned.valueAt(i);
-                final ShortcutInfo si = mShortcuts.get(id);
+                final ShortcutInfo si = shortcuts.get(id);
                 if (si == null) {
                     // This happens if a launcher pinned shortcuts from this package, then backup&
                     // restored, but this package doesn't allow backing up.
@@ -530,8 +580,8 @@ class ShortcutPackage extends ShortcutPackageItem {
                 : s.getLauncherShortcutsLocked(callingLauncher, getPackageUserId(), launcherUserId)
                     .getPinnedShortcutIds(getPackageName(), getPackageUserId());
 
-        for (int i = 0; i < mShortcuts.size(); i++) {
-            final ShortcutInfo si = mShortcuts.valueAt(i);
+        for (int i = 0; i < getShortcutMap().size(); i++) {
+            final ShortcutInfo si = getShortcutMap().valueAt(i);
 
             // Need to adjust PINNED flag depending on the caller.
             // Basically if the caller is a launcher (callingLauncher != null) and the launcher
@@ -565,10 +615,10 @@ class ShortcutPackage extends ShortcutPackageItem {
      * Return the filenames (excluding path names) of icon bitmap files from this package.
      */
     public ArraySet<String> getUsedBitmapFiles() {
-        final ArraySet<String> usedFiles = new ArraySet<>(mShortcuts.size());
+        final ArraySet<String> usedFiles = new ArraySet<>(getShortcutMap().size());
 
-        for (int i = mShortcuts.size() - 1; i >= 0; i--) {
-            final ShortcutInfo si = mShortcuts.valueAt(i);
+        for (int i = getShortcutMap().size() - 1; i >= 0; i--) {
+            final ShortcutInfo si = getShortcutMap().valueAt(i);
             if (si.getBitmapPath() != null) {
                 usedFiles.add(getFileName(si.getBitmapPath()));
             }
@@ -589,7 +639,7 @@ class ShortcutPackage extends ShortcutPackageItem {
      * @return false if any of the target activities are no longer enabled.
      */
     private boolean areAllActivitiesStillEnabled() {
-        if (mShortcuts.size() == 0) {
+        if (getShortcutMap().size() == 0) {
             return true;
         }
         final ShortcutService s = mShortcutUser.mService;
@@ -598,8 +648,8 @@ class ShortcutPackage extends ShortcutPackageItem {
         // structure like a set.
         final ArrayList<ComponentName> checked = new ArrayList<>(4);
 
-        for (int i = mShortcuts.size() - 1; i >= 0; i--) {
-            final ShortcutInfo si = mShortcuts.valueAt(i);
+        for (int i = getShortcutMap().size() - 1; i >= 0; i--) {
+            final ShortcutInfo si = getShortcutMap().valueAt(i);
             final ComponentName activity = si.getActivity();
 
             if (checked.contains(activity)) {
@@ -695,8 +745,8 @@ class ShortcutPackage extends ShortcutPackageItem {
         if (!isNewApp) {
             Resources publisherRes = null;
 
-            for (int i = mShortcuts.size() - 1; i >= 0; i--) {
-                final ShortcutInfo si = mShortcuts.valueAt(i);
+            for (int i = getShortcutMap().size() - 1; i >= 0; i--) {
+                final ShortcutInfo si = getShortcutMap().valueAt(i);
 
                 // Disable dynamic shortcuts whose target activity is gone.
                 if (si.isDynamic()) {
@@ -757,8 +807,8 @@ class ShortcutPackage extends ShortcutPackageItem {
 
         // Keep the previous IDs.
         ArraySet<String> toDisableList = null;
-        for (int i = mShortcuts.size() - 1; i >= 0; i--) {
-            final ShortcutInfo si = mShortcuts.valueAt(i);
+        for (int i = getShortcutMap().size() - 1; i >= 0; i--) {
+            final ShortcutInfo si = getShortcutMap().valueAt(i);
 
             if (si.isManifestShortcut()) {
                 if (toDisableList == null) {
@@ -779,7 +829,7 @@ class ShortcutPackage extends ShortcutPackageItem {
                 final boolean newDisabled = !newShortcut.isEnabled();
 
                 final String id = newShortcut.getId();
-                final ShortcutInfo oldShortcut = mShortcuts.get(id);
+                final ShortcutInfo oldShortcut = getShortcutMap().get(id);
 
                 boolean wasPinned = false;
 
@@ -901,8 +951,8 @@ class ShortcutPackage extends ShortcutPackageItem {
     private ArrayMap<ComponentName, ArrayList<ShortcutInfo>> sortShortcutsToActivities() {
         final ArrayMap<ComponentName, ArrayList<ShortcutInfo>> activitiesToShortcuts
                 = new ArrayMap<>();
-        for (int i = mShortcuts.size() - 1; i >= 0; i--) {
-            final ShortcutInfo si = mShortcuts.valueAt(i);
+        for (int i = getShortcutMap().size() - 1; i >= 0; i--) {
+            final ShortcutInfo si = getShortcutMap().valueAt(i);
             if (si.isFloating()) {
                 continue; // Ignore floating shortcuts, which are not tied to any activities.
             }
@@ -955,8 +1005,8 @@ class ShortcutPackage extends ShortcutPackageItem {
         // (If it's for update, then don't count dynamic shortcuts, since they'll be replaced
         // anyway.)
         final ArrayMap<ComponentName, Integer> counts = new ArrayMap<>(4);
-        for (int i = mShortcuts.size() - 1; i >= 0; i--) {
-            final ShortcutInfo shortcut = mShortcuts.valueAt(i);
+        for (int i = getShortcutMap().size() - 1; i >= 0; i--) {
+            final ShortcutInfo shortcut = getShortcutMap().valueAt(i);
 
             if (shortcut.isManifestShortcut()) {
                 incrementCountForActivity(counts, shortcut.getActivity(), 1);
@@ -976,7 +1026,7 @@ class ShortcutPackage extends ShortcutPackageItem {
                 continue; // Activity can be null for update.
             }
 
-            final ShortcutInfo original = mShortcuts.get(newShortcut.getId());
+            final ShortcutInfo original = getShortcutMap().get(newShortcut.getId());
             if (original == null) {
                 if (operation == ShortcutService.OPERATION_UPDATE) {
                     continue; // When updating, ignore if there's no target.
@@ -1017,8 +1067,8 @@ class ShortcutPackage extends ShortcutPackageItem {
         boolean changed = false;
 
         Resources publisherRes = null;
-        for (int i = mShortcuts.size() - 1; i >= 0; i--) {
-            final ShortcutInfo si = mShortcuts.valueAt(i);
+        for (int i = getShortcutMap().size() - 1; i >= 0; i--) {
+            final ShortcutInfo si = getShortcutMap().valueAt(i);
 
             if (si.hasStringResources()) {
                 changed = true;
@@ -1041,8 +1091,8 @@ class ShortcutPackage extends ShortcutPackageItem {
 
     /** Clears the implicit ranks for all shortcuts. */
     public void clearAllImplicitRanks() {
-        for (int i = mShortcuts.size() - 1; i >= 0; i--) {
-            final ShortcutInfo si = mShortcuts.valueAt(i);
+        for (int i = getShortcutMap().size() - 1; i >= 0; i--) {
+            final ShortcutInfo si = getShortcutMap().valueAt(i);
             si.clearImplicitRankAndRankChangedFlag();
         }
     }
@@ -1084,8 +1134,8 @@ class ShortcutPackage extends ShortcutPackageItem {
         final long now = s.injectCurrentTimeMillis();
 
         // First, clear ranks for floating shortcuts.
-        for (int i = mShortcuts.size() - 1; i >= 0; i--) {
-            final ShortcutInfo si = mShortcuts.valueAt(i);
+        for (int i = getShortcutMap().size() - 1; i >= 0; i--) {
+            final ShortcutInfo si = getShortcutMap().valueAt(i);
             if (si.isFloating()) {
                 if (si.getRank() != 0) {
                     si.setTimestamp(now);
@@ -1131,8 +1181,8 @@ class ShortcutPackage extends ShortcutPackageItem {
 
     /** @return true if there's any shortcuts that are not manifest shortcuts. */
     public boolean hasNonManifestShortcuts() {
-        for (int i = mShortcuts.size() - 1; i >= 0; i--) {
-            final ShortcutInfo si = mShortcuts.valueAt(i);
+        for (int i = getShortcutMap().size() - 1; i >= 0; i--) {
+            final ShortcutInfo si = getShortcutMap().valueAt(i);
             if (!si.isDeclaredInManifest()) {
                 return true;
             }
@@ -1178,7 +1228,7 @@ class ShortcutPackage extends ShortcutPackageItem {
         pw.print(prefix);
         pw.println("  Shortcuts:");
         long totalBitmapSize = 0;
-        final ArrayMap<String, ShortcutInfo> shortcuts = mShortcuts;
+        final ArrayMap<String, ShortcutInfo> shortcuts = getShortcutMap();
         final int size = shortcuts.size();
         for (int i = 0; i < size; i++) {
             final ShortcutInfo si = shortcuts.valueAt(i);
@@ -1214,7 +1264,7 @@ class ShortcutPackage extends ShortcutPackageItem {
         int numBitmaps = 0;
         long totalBitmapSize = 0;
 
-        final ArrayMap<String, ShortcutInfo> shortcuts = mShortcuts;
+        final ArrayMap<String, ShortcutInfo> shortcuts = getShortcutMap();
         final int size = shortcuts.size();
         for (int i = 0; i < size; i++) {
             final ShortcutInfo si = shortcuts.valueAt(i);
@@ -1243,9 +1293,10 @@ class ShortcutPackage extends ShortcutPackageItem {
     @Override
     public void saveToXml(@NonNull XmlSerializer out, boolean forBackup)
             throws IOException, XmlPullParserException {
-        final int size = mShortcuts.size();
-
-        if (size == 0 && mApiCallCount == 0) {
+        if (forBackup) {
+            getShortcutMap(); // Backups contain the shortcuts themselves.
+        }
+        if (!hasDataToSave()) {
             return; // nothing to write.
         }
 
@@ -1254,15 +1305,36 @@ class ShortcutPackage extends ShortcutPackageItem {
         ShortcutService.writeAttr(out, ATTR_NAME, getPackageName());
         ShortcutService.writeAttr(out, ATTR_CALL_COUNT, mApiCallCount);
         ShortcutService.writeAttr(out, ATTR_LAST_RESET, mLastResetTime);
+        // Otherwise the shortcuts are in the package's own file; see saveShortcutsToXml().
+        ShortcutService.writeAttr(out, ATTR_SHORTCUTS_FILE, !forBackup);
         getPackageInfo().saveToXml(out);
 
-        for (int j = 0; j < size; j++) {
-            saveShortcut(out, mShortcuts.valueAt(j), forBackup);
+        if (forBackup) {
+            final int size = mShortcuts.size();
+            for (int j = 0; j < size; j++) {
+                saveShortcut(out, mShortcuts.valueAt(j), forBackup);
+            }
         }
 
         out.endTag(null, TAG_ROOT);
     }
 
+    /**
+     * Write the shortcuts to the package's own shortcuts file.  Must only be called once they've
+     * been loaded.
+     */
+    public void saveShortcutsToXml(@NonNull XmlSerializer out)
+            throws IOException, XmlPullParserException {
+        out.startTag(null, TAG_SHORTCUTS);
+
+        final int size = mShortcuts.size();
+        for (int j = 0; j < size; j++) {
+            saveShortcut(out, mShortcuts.valueAt(j), /* forBackup= */ false);
+        }
+
+        out.endTag(null, TAG_SHORTCUTS);
+    }
+
     private void saveShortcut(XmlSerializer out, ShortcutInfo si, boolean forBackup)
             throws IOException, XmlPullParserException {
 
@@ -1352,6 +1424,10 @@ class ShortcutPackage extends ShortcutPackageItem {
                 ShortcutService.parseIntAttribute(parser, ATTR_CALL_COUNT);
         ret.mLastResetTime =
                 ShortcutService.parseLongAttribute(parser, ATTR_LAST_RESET);
+        if (!fromBackup && ShortcutService.parseBooleanAttribute(parser, ATTR_SHORTCUTS_FILE)) {
+            // Read lazily from the package's own file.  Older files have them inline.
+            ret.mShortcutsLoaded = false;
+        }
 
         final int outerDepth = parser.getDepth();
         int type;
@@ -1381,6 +1457,33 @@ class ShortcutPackage extends ShortcutPackageItem {
         return ret;
     }
 
+    /**
+     * Read the shortcuts written by {@link #saveShortcutsToXml}.  The parser must be on the
+     * {@link #TAG_SHORTCUTS} tag.
+     */
+    public void loadShortcutsFromXml(XmlPullParser parser)
+            throws IOException, XmlPullParserException {
+        final int outerDepth = parser.getDepth();
+        int type;
+        while ((type = parser.next()) != XmlPullParser.END_DOCUMENT
+                && (type != XmlPullParser.END_TAG || parser.getDepth() > outerDepth)) {
+            if (type != XmlPullParser.START_TAG) {
+                continue;
+            }
+            final int depth = parser.getDepth();
+            final String tag = parser.getName();
+            if (depth == outerDepth + 1 && TAG_SHORTCUT.equals(tag)) {
+                final ShortcutInfo si = parseShortcut(parser, getPackageName(),
+                        getPackageUserId());
+
+                // Don't use addShortcut(), we don't need to save the icon.
+                mShortcuts.put(si.getId(), si);
+                continue;
+            }
+            ShortcutService.warnForInvalidTag(depth, tag);
+        }
+    }
+
     private static ShortcutInfo parseShortcut(XmlPullParser parser, String packageName,
             @UserIdInt int userId) throws IOException, XmlPullParserException {
         String id;
@@ -1519,7 +1622,7 @@ class ShortcutPackage extends ShortcutPackageItem {
 
     @VisibleForTesting
     List<ShortcutInfo> getAllShortcutsForTest() {
-        return new ArrayList<>(mShortcuts.values());
+        return new ArrayList<>(getShortcutMap().values());
     }
 
     @Override
@@ -1557,8 +1660,8 @@ class ShortcutPackage extends ShortcutPackageItem {
         }
 
         // Verify each shortcut's status.
-        for (int i = mShortcuts.size() - 1; i >= 0; i--) {
-            final ShortcutInfo si = mShortcuts.valueAt(i);
+        for (int i = getShortcutMap().size() - 1; i >= 0; i--) {
+            final ShortcutInfo si = getShortcutMap().valueAt(i);
             if (!(si.isDeclaredInManifest() || si.isDynamic() || si.isPinned())) {
                 failed = true;
                 Log.e(TAG_VERIFY, "Package " + getPackageName() + ": shortcut " + si.getId()
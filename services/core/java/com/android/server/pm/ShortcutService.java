@@ -134,6 +134,7 @@ import java.util.List;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
+import java.util.zip.CRC32;
 
 /**
  * TODO:
@@ -185,6 +186,12 @@ public class ShortcutService extends IShortcutService.Stub {
 
     static final String DIRECTORY_BITMAPS = "bitmaps";
 
+    /** Each package's shortcuts are saved in their own file in this directory. */
+    static final String DIRECTORY_PACKAGES = "packages";
+
+    private static final String PACKAGE_FILE_SUFFIX = ".xml";
+    private static final String PACKAGE_FILE_BACKUP_SUFFIX = ".xml.bak";
+
     private static final String TAG_ROOT = "root";
     private static final String TAG_LAST_RESET_TIME = "last_reset_time";
 
@@ -348,8 +355,10 @@ public class ShortcutService extends IShortcutService.Stub {
         int PACKAGE_UPDATE_CHECK = 14;
         int ASYNC_PRELOAD_USER_DELAY = 15;
         int GET_DEFAULT_LAUNCHER = 16;
+        int LOAD_PACKAGE_SHORTCUTS = 17;
+        int SAVE_PACKAGE_SHORTCUTS = 18;
 
-        int COUNT = GET_DEFAULT_LAUNCHER + 1;
+        int COUNT = SAVE_PACKAGE_SHORTCUTS + 1;
     }
 
     private static final String[] STAT_LABELS = {
@@ -369,7 +378,9 @@ public class ShortcutService extends IShortcutService.Stub {
             "isActivityEnabled",
             "packageUpdateCheck",
             "asyncPreloadUserDelay",
-            "getDefaultLauncher()"
+            "getDefaultLauncher()",
+            "loadPackageShortcuts",
+            "savePackageShortcuts"
     };
 
     final Object mStatLock = new Object();
@@ -932,6 +943,10 @@ public class ShortcutService extends IShortcutService.Stub {
 
         mShortcutBitmapSaver.waitForAllSavesLocked();
 
+        // Write the packages' own files first, as the user file refers to them.
+        final ShortcutUser user = getUserShortcutsLocked(userId);
+        user.forAllPackages(this::savePackageShortcutsLocked);
+
         path.getParentFile().mkdirs();
         final AtomicFile file = new AtomicFile(path);
         FileOutputStream os = null;
@@ -942,7 +957,8 @@ public class ShortcutService extends IShortcutService.Stub {
 
             file.finishWrite(os);
 
-            // Remove all dangling bitmap files.
+            // Remove all dangling package and bitmap files.
+            cleanupDanglingPackageFilesLocked(userId, user);
             cleanupDanglingBitmapDirectoriesLocked(userId);
         } catch (XmlPullParserException | IOException e) {
             Slog.e(TAG, "Failed to write to file " + file.getBaseFile(), e);
@@ -950,6 +966,135 @@ public class ShortcutService extends IShortcutService.Stub {
         }
     }
 
+    @VisibleForTesting
+    final File getPackageShortcutsFile(@UserIdInt int userId, @NonNull String packageName) {
+        return new File(getUserPackagesPath(userId), packageName + PACKAGE_FILE_SUFFIX);
+    }
+
+    private File getUserPackagesPath(@UserIdInt int userId) {
+        return new File(injectUserDataPath(userId), DIRECTORY_PACKAGES);
+    }
+
+    /**
+     * Write a package's shortcuts to its own file, unless they haven't been loaded or haven't
+     * changed since the file was last read or written.
+     */
+    private void savePackageShortcutsLocked(@NonNull ShortcutPackage p) {
+        if (!p.isShortcutsLoaded() || !p.hasDataToSave()) {
+            return;
+        }
+        final long start = injectElapsedRealtime();
+        final byte[] data;
+        try {
+            final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            final XmlSerializer out = new FastXmlSerializer();
+            out.setOutput(bos, StandardCharsets.UTF_8.name());
+            out.startDocument(null, true);
+            p.saveShortcutsToXml(out);
+            out.endDocument();
+            data = bos.toByteArray();
+        } catch (XmlPullParserException | IOException e) {
+            Slog.e(TAG, "Failed to serialize shortcuts for " + p.getPackageName(), e);
+            return;
+        }
+        final long checksum = checksumOf(data);
+        if (checksum == p.getShortcutsFileChecksum()) {
+            return; // Not changed.
+        }
+
+        final File path = getPackageShortcutsFile(p.getPackageUserId(), p.getPackageName());
+        if (DEBUG) {
+            Slog.d(TAG, "Saving to " + path);
+        }
+        path.getParentFile().mkdirs();
+        final AtomicFile file = new AtomicFile(path);
+        FileOutputStream os = null;
+        try {
+            os = file.startWrite();
+            os.write(data);
+            file.finishWrite(os);
+            p.setShortcutsFileChecksum(checksum);
+        } catch (IOException e) {
+            Slog.e(TAG, "Failed to write to file " + file.getBaseFile(), e);
+            file.failWrite(os);
+        }
+        logDurationStat(Stats.SAVE_PACKAGE_SHORTCUTS, start);
+    }
+
+    /**
+     * Read a package's shortcuts from its own file.  Called by {@link ShortcutPackage} the first
+     * time they're accessed.
+     */
+    void loadPackageShortcutsLocked(@NonNull ShortcutPackage p) {
+        final long start = injectElapsedRealtime();
+        final File path = getPackageShortcutsFile(p.getPackageUserId(), p.getPackageName());
+        if (DEBUG) {
+            Slog.d(TAG, "Loading from " + path);
+        }
+        final AtomicFile file = new AtomicFile(path);
+        try {
+            final byte[] data = file.readFully();
+
+            final XmlPullParser parser = Xml.newPullParser();
+            parser.setInput(new ByteArrayInputStream(data), StandardCharsets.UTF_8.name());
+
+            int type;
+            while ((type = parser.next()) != XmlPullParser.END_DOCUMENT) {
+                if (type != XmlPullParser.START_TAG) {
+                    continue;
+                }
+                final int depth = parser.getDepth();
+                final String tag = parser.getName();
+                if ((depth == 1) && ShortcutPackage.TAG_SHORTCUTS.equals(tag)) {
+                    p.loadShortcutsFromXml(parser);
+                    continue;
+                }
+                throwForInvalidTag(depth, tag);
+            }
+            p.setShortcutsFileChecksum(checksumOf(data));
+        } catch (FileNotFoundException e) {
+            Slog.w(TAG, "Not found " + path);
+        } catch (IOException | XmlPullParserException | RuntimeException e) {
+            Slog.e(TAG, "Failed to read file " + file.getBaseFile(), e);
+        }
+        logDurationStat(Stats.LOAD_PACKAGE_SHORTCUTS, start);
+    }
+
+    private static long checksumOf(byte[] data) {
+        final CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+
+    /**
+     * Remove the shortcuts files of packages that are no longer known to the user.
+     */
+    private void cleanupDanglingPackageFilesLocked(@UserIdInt int userId,
+            @NonNull ShortcutUser user) {
+        final File[] children = getUserPackagesPath(userId).listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            final String name = child.getName();
+            final String packageName;
+            if (name.endsWith(PACKAGE_FILE_SUFFIX)) {
+                packageName = name.substring(0, name.length() - PACKAGE_FILE_SUFFIX.length());
+            } else if (name.endsWith(PACKAGE_FILE_BACKUP_SUFFIX)) {
+                packageName = name.substring(0,
+                        name.length() - PACKAGE_FILE_BACKUP_SUFFIX.length());
+            } else {
+                continue;
+            }
+            if (!user.hasPackage(packageName)) {
+                if (DEBUG) {
+                    Slog.d(TAG, "Removing dangling package file: " + child.getAbsolutePath());
+                }
+                child.delete();
+            }
+        }
+    }
+
     private void saveUserInternalLocked(@UserIdInt int userId, OutputStream os,
             boolean forBackup) throws IOException, XmlPullParserException {
 
@@ -1282,8 +1427,11 @@ public class ShortcutService extends IShortcutService.Stub {
      */
     private void cleanupDanglingBitmapFilesLocked(@UserIdInt int userId, @NonNull ShortcutUser user,
             @NonNull String packageName, @NonNull File path) {
-        final ArraySet<String> usedFiles =
-                user.getPackageShortcuts(packageName).getUsedBitmapFiles();
+        final ShortcutPackage p = user.getPackageShortcuts(packageName);
+        if (!p.isShortcutsLoaded()) {
+            return; // No icons have been saved for it since it was last written.
+        }
+        final ArraySet<String> usedFiles = p.getUsedBitmapFiles();
 
         for (File child : path.listFiles()) {
             if (!child.isFile()) {
@@ -1334,7 +1482,9 @@ public class ShortcutService extends IShortcutService.Stub {
         for (int suffix = 0; ; suffix++) {
             final String filename = (suffix == 0 ? baseName : baseName + "_" + suffix) + ".png";
             final File file = new File(packagePath, filename);
-            if (!file.exists()) {
+            // The name may be taken by an icon saved within the same millisecond, or by a file
+            // left over from before, so claim it atomically.
+            if (file.createNewFile()) {
                 if (DEBUG) {
                     Slog.d(TAG, "Saving icon to " + file.getAbsolutePath());
                 }
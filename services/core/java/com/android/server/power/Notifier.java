@@ -20,6 +20,7 @@ import android.app.ActivityManagerInternal;
 import android.app.AppOpsManager;
 import android.app.RetailDemoModeServiceInternal;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.app.IAppOpsService;
 import com.android.internal.app.IBatteryStats;
 import com.android.internal.logging.MetricsLogger;
@@ -53,6 +54,10 @@ import android.util.Slog;
 import android.view.WindowManagerPolicy;
 import android.view.inputmethod.InputMethodManagerInternal;
 
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Objects;
+
 /**
  * Sends broadcasts about important power state changes.
  * <p>
@@ -83,9 +88,20 @@ final class Notifier {
     private static final int MSG_BROADCAST = 2;
     private static final int MSG_WIRELESS_CHARGING_STARTED = 3;
     private static final int MSG_SCREEN_BRIGHTNESS_BOOST_CHANGED = 4;
+    private static final int MSG_FLUSH_WAKE_LOCK_RELEASES = 5;
+
+    // How long partial wake lock releases are held back before being reported to battery stats.
+    private static final long WAKE_LOCK_RELEASE_BATCH_DELAY_MS = 100;
+
+    // How many recently released and cycling wake locks are remembered.
+    private static final int MAX_TRACKED_WAKE_LOCK_CYCLES = 16;
 
     private final Object mLock = new Object();
 
+    // Held while held back wake lock releases are being reported, so that a flush does not
+    // return while another one is still telling battery stats about the releases it took.
+    private final Object mFlushLock = new Object();
+
     private final Context mContext;
     private final IBatteryStats mBatteryStats;
     private final IAppOpsService mAppOps;
@@ -129,6 +145,28 @@ final class Notifier {
     // True if a user activity message should be sent.
     private boolean mUserActivityPending;
 
+    // Partial wake lock releases not yet reported to battery stats. An app that keeps
+    // releasing and reacquiring a wake lock would otherwise cost a stop and a start for every
+    // cycle; a release that is followed by an identical acquire before it is reported is dropped
+    // together with that acquire, and the rest are reported in one batch.
+    //
+    // Battery stats times a release when it is told about it, so a release that is held back
+    // and then reported anyway is charged for up to WAKE_LOCK_RELEASE_BATCH_DELAY_MS it was
+    // not held. To keep that rare, only releases of wake locks in mCyclingWakeLocks are held
+    // back: ones that were acquired again right after their last release. A wake lock leaves
+    // that list as soon as one of its held back releases has to be reported.
+    @GuardedBy("mLock")
+    private final ArrayList<WakeLockRelease> mPendingWakeLockReleases = new ArrayList<>();
+    // Partial wake lock releases reported in the last WAKE_LOCK_RELEASE_BATCH_DELAY_MS.
+    @GuardedBy("mLock")
+    private final ArrayList<WakeLockRelease> mRecentWakeLockReleases = new ArrayList<>();
+    @GuardedBy("mLock")
+    private final ArrayList<WakeLockRelease> mCyclingWakeLocks = new ArrayList<>();
+    @GuardedBy("mLock")
+    private long mCoalescedWakeLockCycles;
+    @GuardedBy("mLock")
+    private long mBatchedWakeLockReleases;
+
     public Notifier(Looper looper, Context context, IBatteryStats batteryStats,
             IAppOpsService appOps, SuspendBlocker suspendBlocker,
             WindowManagerPolicy policy) {
@@ -179,6 +217,11 @@ final class Notifier {
 
         final int monitorType = getBatteryStatsWakeLockMonitorType(flags);
         if (monitorType >= 0) {
+            if (removePendingWakeLockRelease(flags, tag, packageName, ownerUid, ownerPid,
+                    workSource, historyTag)) {
+                // Battery stats never saw this wake lock released.
+                return;
+            }
             try {
                 final boolean unimportantForLogging = ownerUid == Process.SYSTEM_UID
                         && (flags & PowerManager.UNIMPORTANT_FOR_LOGGING) != 0;
@@ -289,18 +332,143 @@ final class Notifier {
 
         final int monitorType = getBatteryStatsWakeLockMonitorType(flags);
         if (monitorType >= 0) {
-            try {
-                if (workSource != null) {
-                    mBatteryStats.noteStopWakelockFromSource(workSource, ownerPid, tag,
-                            historyTag, monitorType);
-                } else {
-                    mBatteryStats.noteStopWakelock(ownerUid, ownerPid, tag,
-                            historyTag, monitorType);
-                    mAppOps.finishOperation(AppOpsManager.getToken(mAppOps),
-                            AppOpsManager.OP_WAKE_LOCK, ownerUid, packageName);
+            if ((flags & PowerManager.WAKE_LOCK_LEVEL_MASK) == PowerManager.PARTIAL_WAKE_LOCK
+                    && deferWakeLockRelease(new WakeLockRelease(flags, tag, packageName,
+                            ownerUid, ownerPid, workSource, historyTag, monitorType,
+                            SystemClock.uptimeMillis()))) {
+                return;
+            }
+            noteWakeLockReleased(flags, tag, packageName, ownerUid, ownerPid, workSource,
+                    historyTag, monitorType);
+        }
+    }
+
+    private void noteWakeLockReleased(int flags, String tag, String packageName,
+            int ownerUid, int ownerPid, WorkSource workSource, String historyTag,
+            int monitorType) {
+        try {
+            if (workSource != null) {
+                mBatteryStats.noteStopWakelockFromSource(workSource, ownerPid, tag,
+                        historyTag, monitorType);
+            } else {
+                mBatteryStats.noteStopWakelock(ownerUid, ownerPid, tag,
+                        historyTag, monitorType);
+                mAppOps.finishOperation(AppOpsManager.getToken(mAppOps),
+                        AppOpsManager.OP_WAKE_LOCK, ownerUid, packageName);
+            }
+        } catch (RemoteException ex) {
+            // Ignore
+        }
+    }
+
+    /**
+     * Holds a partial wake lock release back if the wake lock is likely to be acquired again
+     * soon, or else remembers it was released.
+     *
+     * @return true if the release was held back and must not be reported now.
+     */
+    private boolean deferWakeLockRelease(WakeLockRelease release) {
+        synchronized (mLock) {
+            if (indexOfWakeLock(mCyclingWakeLocks, release) < 0) {
+                pruneRecentWakeLockReleasesLocked(release.mTime);
+                addBoundedLocked(mRecentWakeLockReleases, release);
+                return false;
+            }
+            if (mPendingWakeLockReleases.isEmpty()) {
+                mHandler.sendEmptyMessageDelayed(MSG_FLUSH_WAKE_LOCK_RELEASES,
+                        WAKE_LOCK_RELEASE_BATCH_DELAY_MS);
+            }
+            mPendingWakeLockReleases.add(release);
+            return true;
+        }
+    }
+
+    /**
+     * Drops a held back release of the same wake lock, if there is one. Otherwise, if the wake
+     * lock was released only just now, starts holding back its releases.
+     *
+     * @return true if a release was dropped, so the acquire must not be reported either.
+     */
+    private boolean removePendingWakeLockRelease(int flags, String tag, String packageName,
+            int ownerUid, int ownerPid, WorkSource workSource, String historyTag) {
+        final WakeLockRelease acquire = new WakeLockRelease(flags, tag, packageName, ownerUid,
+                ownerPid, workSource, historyTag, -1, SystemClock.uptimeMillis());
+        synchronized (mLock) {
+            int index = indexOfWakeLock(mPendingWakeLockReleases, acquire);
+            if (index >= 0) {
+                mPendingWakeLockReleases.remove(index);
+                mCoalescedWakeLockCycles++;
+                if (mPendingWakeLockReleases.isEmpty()) {
+                    mHandler.removeMessages(MSG_FLUSH_WAKE_LOCK_RELEASES);
                 }
-            } catch (RemoteException ex) {
-                // Ignore
+                return true;
+            }
+            pruneRecentWakeLockReleasesLocked(acquire.mTime);
+            index = indexOfWakeLock(mRecentWakeLockReleases, acquire);
+            if (index >= 0) {
+                mRecentWakeLockReleases.remove(index);
+                if (indexOfWakeLock(mCyclingWakeLocks, acquire) < 0) {
+                    addBoundedLocked(mCyclingWakeLocks, acquire);
+                }
+            }
+        }
+        return false;
+    }
+
+    private void pruneRecentWakeLockReleasesLocked(long now) {
+        while (!mRecentWakeLockReleases.isEmpty() && mRecentWakeLockReleases.get(0).mTime
+                < now - WAKE_LOCK_RELEASE_BATCH_DELAY_MS) {
+            mRecentWakeLockReleases.remove(0);
+        }
+    }
+
+    private static void addBoundedLocked(ArrayList<WakeLockRelease> list,
+            WakeLockRelease wakeLock) {
+        if (list.size() >= MAX_TRACKED_WAKE_LOCK_CYCLES) {
+            list.remove(0);
+        }
+        list.add(wakeLock);
+    }
+
+    private static int indexOfWakeLock(ArrayList<WakeLockRelease> list,
+            WakeLockRelease wakeLock) {
+        for (int i = list.size() - 1; i >= 0; i--) {
+            if (list.get(i).isSameWakeLock(wakeLock)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reports the partial wake lock releases that are being held back to battery stats. Called
+     * before the device is allowed to suspend, so that no time asleep is blamed on them; when
+     * this returns, battery stats has been told about every release held back so far, including
+     * ones a concurrent flush took.
+     */
+    public void flushPendingWakeLockReleases() {
+        synchronized (mFlushLock) {
+            final WakeLockRelease[] releases;
+            synchronized (mLock) {
+                final int count = mPendingWakeLockReleases.size();
+                if (count == 0) {
+                    return;
+                }
+                mHandler.removeMessages(MSG_FLUSH_WAKE_LOCK_RELEASES);
+                releases = mPendingWakeLockReleases.toArray(new WakeLockRelease[count]);
+                mPendingWakeLockReleases.clear();
+                mBatchedWakeLockReleases += count;
+                // These were not acquired again in time, so stop holding their releases back.
+                for (WakeLockRelease r : releases) {
+                    final int index = indexOfWakeLock(mCyclingWakeLocks, r);
+                    if (index >= 0) {
+                        mCyclingWakeLocks.remove(index);
+                    }
+                }
+            }
+            for (WakeLockRelease r : releases) {
+                noteWakeLockReleased(r.mFlags, r.mTag, r.mPackageName, r.mOwnerUid, r.mOwnerPid,
+                        r.mWorkSource, r.mHistoryTag, r.mMonitorType);
             }
         }
     }
@@ -711,6 +879,50 @@ final class Notifier {
         mSuspendBlocker.release();
     }
 
+    public void dump(PrintWriter pw) {
+        synchronized (mLock) {
+            pw.println();
+            pw.println("Notifier:");
+            pw.println("  mPendingWakeLockReleases=" + mPendingWakeLockReleases.size());
+            pw.println("  mCyclingWakeLocks=" + mCyclingWakeLocks.size());
+            pw.println("  mCoalescedWakeLockCycles=" + mCoalescedWakeLockCycles);
+            pw.println("  mBatchedWakeLockReleases=" + mBatchedWakeLockReleases);
+        }
+    }
+
+    private static final class WakeLockRelease {
+        final int mFlags;
+        final String mTag;
+        final String mPackageName;
+        final int mOwnerUid;
+        final int mOwnerPid;
+        final WorkSource mWorkSource;
+        final String mHistoryTag;
+        final int mMonitorType;
+        final long mTime;
+
+        WakeLockRelease(int flags, String tag, String packageName, int ownerUid, int ownerPid,
+                WorkSource workSource, String historyTag, int monitorType, long time) {
+            mFlags = flags;
+            mTag = tag;
+            mPackageName = packageName;
+            mOwnerUid = ownerUid;
+            mOwnerPid = ownerPid;
+            mWorkSource = workSource;
+            mHistoryTag = historyTag;
+            mMonitorType = monitorType;
+            mTime = time;
+        }
+
+        boolean isSameWakeLock(WakeLockRelease o) {
+            return mFlags == o.mFlags && mOwnerUid == o.mOwnerUid && mOwnerPid == o.mOwnerPid
+                    && Objects.equals(mTag, o.mTag)
+                    && Objects.equals(mPackageName, o.mPackageName)
+                    && Objects.equals(mWorkSource, o.mWorkSource)
+                    && Objects.equals(mHistoryTag, o.mHistoryTag);
+        }
+    }
+
     private final class NotifierHandler extends Handler {
         public NotifierHandler(Looper looper) {
             super(looper, null, true /*async*/);
@@ -733,6 +945,9 @@ final class Notifier {
                 case MSG_SCREEN_BRIGHTNESS_BOOST_CHANGED:
                     sendBrightnessBoostChangedBroadcast();
                     break;
+                case MSG_FLUSH_WAKE_LOCK_RELEASES:
+                    flushPendingWakeLockReleases();
+                    break;
             }
         }
     }
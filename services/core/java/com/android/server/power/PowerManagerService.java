@@ -277,6 +277,16 @@ public final class PowerManagerService extends SystemService
     // A bitfield that summarizes the state of all active wakelocks.
     private int mWakeLockSummary;
 
+    // Number of wake locks contributing each WAKE_LOCK_* bit before the current wakefulness is
+    // taken into account, and the bits that have any. Kept up to date as wake locks come and go
+    // so that the summary does not have to be recomputed from all of mWakeLocks.
+    private final int[] mWakeLockSummaryCounts = new int[8];
+    private int mRawWakeLockSummary;
+
+    // Number of wake lock acquires and releases that left the summary unchanged, and so did not
+    // need a power state update.
+    private long mWakeLockChangesWithoutSummaryChange;
+
     // Have we scheduled a message to check for long wake locks?  This is when we will check.
     private long mNotifyLongScheduled;
 
@@ -1067,7 +1077,8 @@ public final class PowerManagerService extends SystemService
         updatePowerStateLocked();
     }
 
-    private void acquireWakeLockInternal(IBinder lock, int flags, String tag, String packageName,
+    @VisibleForTesting
+    void acquireWakeLockInternal(IBinder lock, int flags, String tag, String packageName,
             WorkSource ws, String historyTag, int uid, int pid) {
         synchronized (mLock) {
             if (DEBUG_SPEW) {
@@ -1079,13 +1090,18 @@ public final class PowerManagerService extends SystemService
             WakeLock wakeLock;
             int index = findWakeLockIndexLocked(lock);
             boolean notifyAcquire;
+            boolean summaryChanged = false;
             if (index >= 0) {
                 wakeLock = mWakeLocks.get(index);
                 if (!wakeLock.hasSameProperties(flags, tag, ws, uid, pid)) {
                     // Update existing wake lock.  This shouldn't happen but is harmless.
                     notifyWakeLockChangingLocked(wakeLock, flags, tag, packageName,
                             uid, pid, ws, historyTag);
+                    final int oldRawWakeLockSummary = mRawWakeLockSummary;
+                    adjustWakeLockSummaryCountsLocked(wakeLock, -1);
                     wakeLock.updateProperties(flags, tag, packageName, ws, historyTag, uid, pid);
+                    adjustWakeLockSummaryCountsLocked(wakeLock, 1);
+                    summaryChanged = mRawWakeLockSummary != oldRawWakeLockSummary;
                 }
                 notifyAcquire = false;
             } else {
@@ -1105,11 +1121,16 @@ public final class PowerManagerService extends SystemService
                 }
                 mWakeLocks.add(wakeLock);
                 setWakeLockDisabledStateLocked(wakeLock);
+                summaryChanged = adjustWakeLockSummaryCountsLocked(wakeLock, 1);
                 notifyAcquire = true;
             }
 
             applyWakeLockFlagsOnAcquireLocked(wakeLock, uid);
-            mDirty |= DIRTY_WAKE_LOCKS;
+            if (summaryChanged) {
+                mDirty |= DIRTY_WAKE_LOCKS;
+            } else {
+                mWakeLockChangesWithoutSummaryChange++;
+            }
             updatePowerStateLocked();
             if (notifyAcquire) {
                 // This needs to be done last so we are sure we have acquired the
@@ -1151,7 +1172,8 @@ public final class PowerManagerService extends SystemService
         }
     }
 
-    private void releaseWakeLockInternal(IBinder lock, int flags) {
+    @VisibleForTesting
+    void releaseWakeLockInternal(IBinder lock, int flags) {
         synchronized (mLock) {
             int index = findWakeLockIndexLocked(lock);
             if (index < 0) {
@@ -1170,6 +1192,7 @@ public final class PowerManagerService extends SystemService
 
             if ((flags & PowerManager.RELEASE_FLAG_WAIT_FOR_NO_PROXIMITY) != 0) {
                 mRequestWaitForNegativeProximity = true;
+                mDirty |= DIRTY_WAKE_LOCKS;
             }
 
             wakeLock.mLock.unlinkToDeath(wakeLock, 0);
@@ -1177,6 +1200,19 @@ public final class PowerManagerService extends SystemService
         }
     }
 
+    @VisibleForTesting
+    void simulateWakeLockDeath(IBinder lock) {
+        final WakeLock wakeLock;
+        synchronized (mLock) {
+            final int index = findWakeLockIndexLocked(lock);
+            if (index < 0) {
+                return;
+            }
+            wakeLock = mWakeLocks.get(index);
+        }
+        wakeLock.binderDied();
+    }
+
     private void handleWakeLockDeath(WakeLock wakeLock) {
         synchronized (mLock) {
             if (DEBUG_SPEW) {
@@ -1204,10 +1240,84 @@ public final class PowerManagerService extends SystemService
         notifyWakeLockReleasedLocked(wakeLock);
 
         applyWakeLockFlagsOnReleaseLocked(wakeLock);
-        mDirty |= DIRTY_WAKE_LOCKS;
+        if (adjustWakeLockSummaryCountsLocked(wakeLock, -1)) {
+            mDirty |= DIRTY_WAKE_LOCKS;
+        } else {
+            mWakeLockChangesWithoutSummaryChange++;
+        }
         updatePowerStateLocked();
     }
 
+    /**
+     * Returns the WAKE_LOCK_* bits the wake lock contributes to the summary, before the current
+     * wakefulness is taken into account.
+     */
+    @SuppressWarnings("deprecation")
+    private static int getWakeLockSummaryFlags(WakeLock wakeLock) {
+        switch (wakeLock.mFlags & PowerManager.WAKE_LOCK_LEVEL_MASK) {
+            case PowerManager.PARTIAL_WAKE_LOCK:
+                // We only respect this if the wake lock is not disabled.
+                return wakeLock.mDisabled ? 0 : WAKE_LOCK_CPU;
+            case PowerManager.FULL_WAKE_LOCK:
+                return WAKE_LOCK_SCREEN_BRIGHT | WAKE_LOCK_BUTTON_BRIGHT;
+            case PowerManager.SCREEN_BRIGHT_WAKE_LOCK:
+                return WAKE_LOCK_SCREEN_BRIGHT;
+            case PowerManager.SCREEN_DIM_WAKE_LOCK:
+                return WAKE_LOCK_SCREEN_DIM;
+            case PowerManager.PROXIMITY_SCREEN_OFF_WAKE_LOCK:
+                return WAKE_LOCK_PROXIMITY_SCREEN_OFF;
+            case PowerManager.DOZE_WAKE_LOCK:
+                return WAKE_LOCK_DOZE;
+            case PowerManager.DRAW_WAKE_LOCK:
+                return WAKE_LOCK_DRAW;
+        }
+        return 0;
+    }
+
+    /**
+     * Adds ({@param delta} 1) or removes ({@param delta} -1) the contribution of a wake lock to
+     * {@link #mRawWakeLockSummary}.
+     *
+     * @return True if the raw summary changed.
+     */
+    private boolean adjustWakeLockSummaryCountsLocked(WakeLock wakeLock, int delta) {
+        final int flags = getWakeLockSummaryFlags(wakeLock);
+        final int oldRawWakeLockSummary = mRawWakeLockSummary;
+        for (int i = 0; i < mWakeLockSummaryCounts.length; i++) {
+            final int bit = 1 << i;
+            if ((flags & bit) != 0) {
+                mWakeLockSummaryCounts[i] += delta;
+                if (mWakeLockSummaryCounts[i] > 0) {
+                    mRawWakeLockSummary |= bit;
+                } else {
+                    mRawWakeLockSummary &= ~bit;
+                }
+            }
+        }
+        return mRawWakeLockSummary != oldRawWakeLockSummary;
+    }
+
+    /** Returns the raw summary that is kept up to date as wake locks change. */
+    @VisibleForTesting
+    int getRawWakeLockSummary() {
+        synchronized (mLock) {
+            return mRawWakeLockSummary;
+        }
+    }
+
+    /** Recomputes the raw summary from all wake locks, to check the kept one against. */
+    @VisibleForTesting
+    int computeRawWakeLockSummary() {
+        synchronized (mLock) {
+            int summary = 0;
+            final int numWakeLocks = mWakeLocks.size();
+            for (int i = 0; i < numWakeLocks; i++) {
+                summary |= getWakeLockSummaryFlags(mWakeLocks.get(i));
+            }
+            return summary;
+        }
+    }
+
     private void applyWakeLockFlagsOnReleaseLocked(WakeLock wakeLock) {
         if ((wakeLock.mFlags & PowerManager.ON_AFTER_RELEASE) != 0
                 && isScreenLock(wakeLock)) {
@@ -1842,41 +1952,9 @@ public final class PowerManagerService extends SystemService
      *
      * This function must have no other side-effects.
      */
-    @SuppressWarnings("deprecation")
     private void updateWakeLockSummaryLocked(int dirty) {
         if ((dirty & (DIRTY_WAKE_LOCKS | DIRTY_WAKEFULNESS)) != 0) {
-            mWakeLockSummary = 0;
-
-            final int numWakeLocks = mWakeLocks.size();
-            for (int i = 0; i < numWakeLocks; i++) {
-                final WakeLock wakeLock = mWakeLocks.get(i);
-                switch (wakeLock.mFlags & PowerManager.WAKE_LOCK_LEVEL_MASK) {
-                    case PowerManager.PARTIAL_WAKE_LOCK:
-                        if (!wakeLock.mDisabled) {
-                            // We only respect this if the wake lock is not disabled.
-                            mWakeLockSummary |= WAKE_LOCK_CPU;
-                        }
-                        break;
-                    case PowerManager.FULL_WAKE_LOCK:
-                        mWakeLockSummary |= WAKE_LOCK_SCREEN_BRIGHT | WAKE_LOCK_BUTTON_BRIGHT;
-                        break;
-                    case PowerManager.SCREEN_BRIGHT_WAKE_LOCK:
-                        mWakeLockSummary |= WAKE_LOCK_SCREEN_BRIGHT;
-                        break;
-                    case PowerManager.SCREEN_DIM_WAKE_LOCK:
-                        mWakeLockSummary |= WAKE_LOCK_SCREEN_DIM;
-                        break;
-                    case PowerManager.PROXIMITY_SCREEN_OFF_WAKE_LOCK:
-                        mWakeLockSummary |= WAKE_LOCK_PROXIMITY_SCREEN_OFF;
-                        break;
-                    case PowerManager.DOZE_WAKE_LOCK:
-                        mWakeLockSummary |= WAKE_LOCK_DOZE;
-                        break;
-                    case PowerManager.DRAW_WAKE_LOCK:
-                        mWakeLockSummary |= WAKE_LOCK_DRAW;
-                        break;
-                }
-            }
+            mWakeLockSummary = mRawWakeLockSummary;
 
             // Cancel wake locks that make no sense based on the current state.
             if (mWakefulness != WAKEFULNESS_DOZING) {
@@ -2627,6 +2705,8 @@ public final class PowerManagerService extends SystemService
 
         // Then release suspend blockers if needed.
         if (!needWakeLockSuspendBlocker && mHoldingWakeLockSuspendBlocker) {
+            // Battery stats must see the wake locks released before the device may suspend.
+            mNotifier.flushPendingWakeLockReleases();
             mWakeLockSuspendBlocker.release();
             mHoldingWakeLockSuspendBlocker = false;
         }
@@ -2976,7 +3056,10 @@ public final class PowerManagerService extends SystemService
             final WakeLock wakeLock = mWakeLocks.get(i);
             if ((wakeLock.mFlags & PowerManager.WAKE_LOCK_LEVEL_MASK)
                     == PowerManager.PARTIAL_WAKE_LOCK) {
-                if (setWakeLockDisabledStateLocked(wakeLock)) {
+                adjustWakeLockSummaryCountsLocked(wakeLock, -1);
+                final boolean disabledChanged = setWakeLockDisabledStateLocked(wakeLock);
+                adjustWakeLockSummaryCountsLocked(wakeLock, 1);
+                if (disabledChanged) {
                     changed = true;
                     if (wakeLock.mDisabled) {
                         // This wake lock is no longer being respected.
@@ -3240,6 +3323,8 @@ public final class PowerManagerService extends SystemService
             pw.println("  mHalAutoSuspendModeEnabled=" + mHalAutoSuspendModeEnabled);
             pw.println("  mHalInteractiveModeEnabled=" + mHalInteractiveModeEnabled);
             pw.println("  mWakeLockSummary=0x" + Integer.toHexString(mWakeLockSummary));
+            pw.println("  mWakeLockChangesWithoutSummaryChange="
+                    + mWakeLockChangesWithoutSummaryChange);
             pw.print("  mNotifyLongScheduled=");
             if (mNotifyLongScheduled == 0) {
                 pw.print("(none)");
@@ -3404,6 +3489,10 @@ public final class PowerManagerService extends SystemService
 
             mBatterySaverPolicy.dump(pw);
 
+            if (mNotifier != null) {
+                mNotifier.dump(pw);
+            }
+
             wcd = mWirelessChargerDetector;
         }
 
@@ -70,6 +70,7 @@ import static com.android.server.wm.WindowManagerDebugConfig.DEBUG_ORIENTATION;
 import static com.android.server.wm.WindowManagerDebugConfig.DEBUG_SCREENSHOT;
 import static com.android.server.wm.WindowManagerDebugConfig.DEBUG_SCREEN_ON;
 import static com.android.server.wm.WindowManagerDebugConfig.DEBUG_STACK;
+import static com.android.server.wm.WindowManagerDebugConfig.DEBUG_SURFACE_PLACEMENT_SKIPS;
 import static com.android.server.wm.WindowManagerDebugConfig.DEBUG_TOKEN_MOVEMENT;
 import static com.android.server.wm.WindowManagerDebugConfig.DEBUG_WALLPAPER;
 import static com.android.server.wm.WindowManagerDebugConfig.DEBUG_WALLPAPER_LIGHT;
@@ -132,6 +133,7 @@ import com.android.internal.view.IInputMethodClient;
 import java.io.FileDescriptor;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -174,6 +176,14 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
     private WindowState mTmpWindow2;
     private WindowAnimator mTmpWindowAnimator;
     private boolean mTmpRecoveringMemory;
+    private boolean mTmpPlaceAllSurfaces;
+    // Number of window surfaces placed and skipped as clean in surface placement passes.
+    private long mSurfacePlacementsDone;
+    private long mSurfacePlacementsSkipped;
+    private final float[] mTmpSurfacePlacementState =
+            new float[WindowStateAnimator.SURFACE_PLACEMENT_STATE_SIZE];
+    private final float[] mTmpSurfacePlacementState2 =
+            new float[WindowStateAnimator.SURFACE_PLACEMENT_STATE_SIZE];
     private boolean mUpdateImeTarget;
     private boolean mTmpInitial;
     private int mMaxUiWidth;
@@ -528,6 +538,7 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
                 final boolean firstLayout = !w.isLaidOut();
                 mService.mPolicy.layoutWindowLw(w, null);
                 w.mLayoutSeq = mService.mLayoutSeq;
+                w.setSurfacePlacementNeeded();
 
                 // If this is the first layout, we need to initialize the last inset values as
                 // otherwise we'd immediately cause an unnecessary resize.
@@ -569,6 +580,7 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
                 w.prelayout();
                 mService.mPolicy.layoutWindowLw(w, w.getParentWindow());
                 w.mLayoutSeq = mService.mLayoutSeq;
+                w.setSurfacePlacementNeeded();
                 if (DEBUG_LAYOUT) Slog.v(TAG, " LAYOUT: mFrame=" + w.mFrame
                         + " mContainingFrame=" + w.mContainingFrame
                         + " mDisplayFrame=" + w.mDisplayFrame);
@@ -650,6 +662,11 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
         //Slog.i(TAG, "Window " + this + " clearing mContentChanged - done placing");
         w.mContentChanged = false;
 
+        // Nothing the surface of a clean window depends on has changed since it was last placed,
+        // so it can be skipped. See WindowState#isSurfacePlacementNeeded.
+        final boolean placeSurface = mTmpPlaceAllSurfaces || w.isSurfacePlacementNeeded();
+        w.onSurfacePlaced();
+
         // Moved from updateWindowsAndWallpaperLocked().
         if (w.mHasSurface) {
             // Take care of the window being ready to display.
@@ -678,23 +695,22 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
                     }
                 }
             }
-            final TaskStack stack = w.getStack();
-            if ((!winAnimator.isAnimationStarting() && !winAnimator.isWaitingForOpening())
-                    || (stack != null && stack.isAnimatingBounds())) {
-                // Updates the shown frame before we set up the surface. This is needed
-                // because the resizing could change the top-left position (in addition to
-                // size) of the window. setSurfaceBoundariesLocked uses mShownPosition to
-                // position the surface.
-                //
-                // If an animation is being started, we can't call this method because the
-                // animation hasn't processed its initial transformation yet, but in general
-                // we do want to update the position if the window is animating. We make an exception
-                // for the bounds animating state, where an application may have been waiting
-                // for an exit animation to start, but instead enters PiP. We need to ensure
-                // we always recompute the top-left in this case.
-                winAnimator.computeShownFrameLocked();
-            }
-            winAnimator.setSurfaceBoundariesLocked(mTmpRecoveringMemory /* recoveringMemory */);
+            if (placeSurface) {
+                placeSurfaceLocked(w);
+                mSurfacePlacementsDone++;
+            } else if (DEBUG_SURFACE_PLACEMENT_SKIPS) {
+                winAnimator.getSurfacePlacementState(mTmpSurfacePlacementState);
+                placeSurfaceLocked(w);
+                winAnimator.getSurfacePlacementState(mTmpSurfacePlacementState2);
+                if (!Arrays.equals(mTmpSurfacePlacementState, mTmpSurfacePlacementState2)) {
+                    Slog.wtf(TAG, "Skipped surface placement of " + w + " would have changed "
+                            + Arrays.toString(mTmpSurfacePlacementState) + " to "
+                            + Arrays.toString(mTmpSurfacePlacementState2));
+                }
+                mSurfacePlacementsSkipped++;
+            } else {
+                mSurfacePlacementsSkipped++;
+            }
         }
 
         final AppWindowToken atoken = w.mAppToken;
@@ -2152,6 +2168,9 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
             pw.println(subPrefix
                     + "mInputMethodAnimLayerAdjustment=" + mInputMethodAnimLayerAdjustment);
         }
+        pw.print(subPrefix); pw.print("Surface placements: placed=");
+            pw.print(mSurfacePlacementsDone);
+            pw.print(" skipped="); pw.println(mSurfacePlacementsSkipped);
     }
 
     @Override
@@ -2696,6 +2715,42 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
         }, true /* traverseTopToBottom */);
     }
 
+    /** Updates the shown frame of the window and applies it to its surface. */
+    private void placeSurfaceLocked(WindowState w) {
+        final WindowStateAnimator winAnimator = w.mWinAnimator;
+        final TaskStack stack = w.getStack();
+        if ((!winAnimator.isAnimationStarting() && !winAnimator.isWaitingForOpening())
+                || (stack != null && stack.isAnimatingBounds())) {
+            // Updates the shown frame before we set up the surface. This is needed
+            // because the resizing could change the top-left position (in addition to
+            // size) of the window. setSurfaceBoundariesLocked uses mShownPosition to
+            // position the surface.
+            //
+            // If an animation is being started, we can't call this method because the
+            // animation hasn't processed its initial transformation yet, but in general
+            // we do want to update the position if the window is animating. We make an exception
+            // for the bounds animating state, where an application may have been waiting
+            // for an exit animation to start, but instead enters PiP. We need to ensure
+            // we always recompute the top-left in this case.
+            winAnimator.computeShownFrameLocked();
+        }
+        winAnimator.setSurfaceBoundariesLocked(mTmpRecoveringMemory /* recoveringMemory */);
+    }
+
+    /**
+     * Returns true if the surfaces of all windows on the display have to be placed in this
+     * traversal, regardless of which windows asked for it.
+     */
+    private boolean shouldPlaceAllSurfaces(boolean recoveringMemory) {
+        return recoveringMemory
+                || mService.mAnimator.isAnimating()
+                || mService.mAppTransition.isTransitionSet()
+                || mService.mAppTransition.isRunning()
+                || mService.mDisplayFrozen
+                || mService.mAccessibilityController != null
+                || mService.mAnimator.getScreenRotationAnimationLocked(mDisplayId) != null;
+    }
+
     // TODO: Super crazy long method that should be broken down...
     boolean applySurfaceChangesTransaction(boolean recoveringMemory) {
 
@@ -2760,6 +2815,7 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
         resetDimming();
 
         mTmpRecoveringMemory = recoveringMemory;
+        mTmpPlaceAllSurfaces = shouldPlaceAllSurfaces(recoveringMemory);
         forAllWindows(mApplySurfaceChangesTransaction, true /* traverseTopToBottom */);
 
         mService.mDisplayManagerInternal.setDisplayProperties(mDisplayId,
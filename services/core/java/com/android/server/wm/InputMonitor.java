@@ -34,6 +34,7 @@ import static com.android.server.wm.WindowManagerDebugConfig.TAG_WM;
 
 import android.app.ActivityManager;
 import android.graphics.Rect;
+import android.graphics.Region;
 import android.os.Debug;
 import android.os.Looper;
 import android.os.RemoteException;
@@ -47,12 +48,15 @@ import android.view.WindowManager;
 
 import android.view.WindowManagerPolicy;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.server.input.InputApplicationHandle;
 import com.android.server.input.InputManagerService;
 import com.android.server.input.InputWindowHandle;
 
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Objects;
 import java.util.Set;
 import java.util.function.Consumer;
 
@@ -81,6 +85,17 @@ final class InputMonitor implements InputManagerService.WindowManagerCallbacks {
     private int mInputWindowHandleCount;
     private InputWindowHandle mFocusedInputWindowHandle;
 
+    // The window handles as last sent to the input dispatcher, so that the same windows aren't
+    // sent again when nothing changed since.
+    private final ArrayList<SentInputWindowHandle> mSentInputWindowHandles = new ArrayList<>();
+    private int mSentInputWindowHandleCount;
+    private InputWindowHandle mSentFocusedInputWindowHandle;
+    private boolean mForceSendInputWindows = true;
+
+    // Number of input window updates sent to the input dispatcher, and skipped as unchanged.
+    private int mSentInputWindowUpdates;
+    private int mSkippedInputWindowUpdates;
+
     private boolean mAddInputConsumerHandle;
     private boolean mAddPipInputConsumerHandle;
     private boolean mAddWallpaperInputConsumerHandle;
@@ -352,12 +367,54 @@ final class InputMonitor implements InputManagerService.WindowManagerCallbacks {
         mUpdateInputWindowsNeeded = true;
     }
 
+    /**
+     * @return true if the window handles to provide to the input dispatcher differ from the ones
+     * last sent, in their order or in any of their values.
+     */
+    private boolean inputWindowsChangedLw() {
+        if (mInputWindowHandleCount != mSentInputWindowHandleCount
+                || mFocusedInputWindowHandle != mSentFocusedInputWindowHandle) {
+            return true;
+        }
+        for (int i = 0; i < mInputWindowHandleCount; i++) {
+            if (!mSentInputWindowHandles.get(i).matches(mInputWindowHandles[i])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void recordSentInputWindowsLw() {
+        for (int i = 0; i < mInputWindowHandleCount; i++) {
+            if (i == mSentInputWindowHandles.size()) {
+                mSentInputWindowHandles.add(new SentInputWindowHandle());
+            }
+            mSentInputWindowHandles.get(i).set(mInputWindowHandles[i]);
+        }
+        for (int i = mInputWindowHandleCount; i < mSentInputWindowHandleCount; i++) {
+            mSentInputWindowHandles.get(i).clear();
+        }
+        mSentInputWindowHandleCount = mInputWindowHandleCount;
+        mSentFocusedInputWindowHandle = mFocusedInputWindowHandle;
+    }
+
+    @VisibleForTesting
+    int getSentInputWindowUpdatesForTest() {
+        return mSentInputWindowUpdates;
+    }
+
+    @VisibleForTesting
+    int getSkippedInputWindowUpdatesForTest() {
+        return mSkippedInputWindowUpdates;
+    }
+
     /* Updates the cached window information provided to the input dispatcher. */
     void updateInputWindowsLw(boolean force) {
         if (!force && !mUpdateInputWindowsNeeded) {
             return;
         }
         mUpdateInputWindowsNeeded = false;
+        mForceSendInputWindows |= force;
 
         if (false) Slog.d(TAG_WM, ">>>>>> ENTERED updateInputWindowsLw");
 
@@ -589,6 +646,8 @@ final class InputMonitor implements InputManagerService.WindowManagerCallbacks {
         if (mInputFreezeReason != null) {
             pw.println(prefix + "mInputFreezeReason=" + mInputFreezeReason);
         }
+        pw.println(prefix + "Input window updates: sent=" + mSentInputWindowUpdates
+                + " skipped=" + mSkippedInputWindowUpdates);
         final Set<String> inputConsumerKeys = mInputConsumers.keySet();
         if (!inputConsumerKeys.isEmpty()) {
             pw.println(prefix + "InputConsumers:");
@@ -628,8 +687,16 @@ final class InputMonitor implements InputManagerService.WindowManagerCallbacks {
                 addInputWindowHandle(wallpaperInputConsumer.mWindowHandle);
             }
 
-            // Send windows to native code.
-            mService.mInputManager.setInputWindows(mInputWindowHandles, mFocusedInputWindowHandle);
+            // Send windows to native code, unless they're the same as last time.
+            if (mForceSendInputWindows || inputWindowsChangedLw()) {
+                mService.mInputManager.setInputWindows(mInputWindowHandles,
+                        mFocusedInputWindowHandle);
+                recordSentInputWindowsLw();
+                mForceSendInputWindows = false;
+                mSentInputWindowUpdates++;
+            } else {
+                mSkippedInputWindowUpdates++;
+            }
 
             clearInputWindowHandlesLw();
         }
@@ -697,4 +764,85 @@ final class InputMonitor implements InputManagerService.WindowManagerCallbacks {
                     inputWindowHandle, w, flags, type, isVisible, hasFocus, hasWallpaper);
         }
     }
+
+    /**
+     * The values of an {@link InputWindowHandle} as last sent to the input dispatcher.  Handles
+     * are updated in place, so the values have to be copied.
+     */
+    private static final class SentInputWindowHandle {
+        private InputWindowHandle mHandle;
+        private InputChannel mInputChannel;
+        private String mName;
+        private int mLayoutParamsFlags;
+        private int mLayoutParamsType;
+        private long mDispatchingTimeoutNanos;
+        private int mFrameLeft;
+        private int mFrameTop;
+        private int mFrameRight;
+        private int mFrameBottom;
+        private float mScaleFactor;
+        private final Region mTouchableRegion = new Region();
+        private boolean mVisible;
+        private boolean mCanReceiveKeys;
+        private boolean mHasFocus;
+        private boolean mHasWallpaper;
+        private boolean mPaused;
+        private int mLayer;
+        private int mOwnerPid;
+        private int mOwnerUid;
+        private int mInputFeatures;
+
+        void set(InputWindowHandle handle) {
+            mHandle = handle;
+            mInputChannel = handle.inputChannel;
+            mName = handle.name;
+            mLayoutParamsFlags = handle.layoutParamsFlags;
+            mLayoutParamsType = handle.layoutParamsType;
+            mDispatchingTimeoutNanos = handle.dispatchingTimeoutNanos;
+            mFrameLeft = handle.frameLeft;
+            mFrameTop = handle.frameTop;
+            mFrameRight = handle.frameRight;
+            mFrameBottom = handle.frameBottom;
+            mScaleFactor = handle.scaleFactor;
+            mTouchableRegion.set(handle.touchableRegion);
+            mVisible = handle.visible;
+            mCanReceiveKeys = handle.canReceiveKeys;
+            mHasFocus = handle.hasFocus;
+            mHasWallpaper = handle.hasWallpaper;
+            mPaused = handle.paused;
+            mLayer = handle.layer;
+            mOwnerPid = handle.ownerPid;
+            mOwnerUid = handle.ownerUid;
+            mInputFeatures = handle.inputFeatures;
+        }
+
+        void clear() {
+            mHandle = null;
+            mInputChannel = null;
+        }
+
+        boolean matches(InputWindowHandle handle) {
+            return mHandle == handle
+                    && mInputChannel == handle.inputChannel
+                    && mLayoutParamsFlags == handle.layoutParamsFlags
+                    && mLayoutParamsType == handle.layoutParamsType
+                    && mDispatchingTimeoutNanos == handle.dispatchingTimeoutNanos
+                    && mFrameLeft == handle.frameLeft
+                    && mFrameTop == handle.frameTop
+                    && mFrameRight == handle.frameRight
+                    && mFrameBottom == handle.frameBottom
+                    && mScaleFactor == handle.scaleFactor
+                    && mVisible == handle.visible
+                    && mCanReceiveKeys == handle.canReceiveKeys
+                    && mHasFocus == handle.hasFocus
+                    && mHasWallpaper == handle.hasWallpaper
+                    && mPaused == handle.paused
+                    && mLayer == handle.layer
+                    && mOwnerPid == handle.ownerPid
+                    && mOwnerUid == handle.ownerUid
+                    && mInputFeatures == handle.inputFeatures
+                    && Objects.equals(mName, handle.name)
+                    && mTouchableRegion.equals(handle.touchableRegion);
+        }
+    }
 }
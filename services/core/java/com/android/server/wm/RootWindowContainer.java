@@ -799,6 +799,7 @@ class RootWindowContainer extends WindowContainer<DisplayContent> {
         // be enabled, because the window obscured flags have changed.
         mService.enableScreenIfNeededLocked();
 
+        mService.publishQuerySnapshotLocked();
         mService.scheduleAnimationLocked();
         mService.mWindowPlacerLocked.destroyPendingSurfaces();
 
@@ -18,8 +18,11 @@ package com.android.server.wm;
 
 import android.annotation.Nullable;
 import android.app.ActivityManager.TaskSnapshot;
+import android.graphics.GraphicBuffer;
+import android.os.SystemClock;
 import android.util.ArrayMap;
 import android.util.LruCache;
+import android.util.SparseIntArray;
 
 import java.io.PrintWriter;
 import java.util.Map;
@@ -28,18 +31,55 @@ import java.util.Map.Entry;
 /**
  * Caches snapshots. See {@link TaskSnapshotController}.
  * <p>
+ * Snapshots of running apps are kept in the running cache. Snapshots restored from disk are kept
+ * in a second tier: reduced resolution ones within a memory budget, and full resolution ones only
+ * for the most recently restored tasks.
+ * <p>
  * Access to this class should be guarded by the global window manager lock.
  */
 class TaskSnapshotCache {
 
+    private static final int MAX_RESTORED_REDUCED_BYTES = 12 * 1024 * 1024;
+    private static final int MAX_RESTORED_FULL_SNAPSHOTS = 1;
+
     private final WindowManagerService mService;
     private final TaskSnapshotLoader mLoader;
+    private final TaskSnapshotPersister mPersister;
     private final ArrayMap<AppWindowToken, Integer> mAppTaskMap = new ArrayMap<>();
     private final ArrayMap<Integer, CacheEntry> mRunningCache = new ArrayMap<>();
+    private final LruCache<Integer, TaskSnapshot> mRestoredReducedCache =
+            new LruCache<Integer, TaskSnapshot>(MAX_RESTORED_REDUCED_BYTES) {
+                @Override
+                protected int sizeOf(Integer taskId, TaskSnapshot snapshot) {
+                    final GraphicBuffer buffer = snapshot.getSnapshot();
+                    return buffer.getWidth() * buffer.getHeight() * 4;
+                }
+            };
+    private final LruCache<Integer, TaskSnapshot> mRestoredFullCache =
+            new LruCache<>(MAX_RESTORED_FULL_SNAPSHOTS);
 
-    TaskSnapshotCache(WindowManagerService service, TaskSnapshotLoader loader) {
+    /**
+     * Bumped whenever the restored snapshots of a task are dropped while restores are in flight.
+     * The task is noted in {@link #mRestoredInvalidations} with the new value, so that a restore
+     * of it that started before doesn't put a stale snapshot back. Restores of other tasks are
+     * not affected.
+     */
+    private int mRestoredGeneration;
+    private final SparseIntArray mRestoredInvalidations = new SparseIntArray();
+    private int mRestoresInFlight;
+
+    private int mRunningHits;
+    private int mRestoredHits;
+    private int mMisses;
+    private int mDecodeCount;
+    private long mTotalDecodeMs;
+    private long mMaxDecodeMs;
+
+    TaskSnapshotCache(WindowManagerService service, TaskSnapshotLoader loader,
+            TaskSnapshotPersister persister) {
         mService = service;
         mLoader = loader;
+        mPersister = persister;
     }
 
     void putSnapshot(Task task, TaskSnapshot snapshot) {
@@ -50,6 +90,7 @@ class TaskSnapshotCache {
         final AppWindowToken top = task.getTopChild();
         mAppTaskMap.put(top, task.mTaskId);
         mRunningCache.put(task.mTaskId, new CacheEntry(snapshot, task.getTopChild()));
+        removeRestoredEntries(task.mTaskId);
     }
 
     /**
@@ -62,8 +103,17 @@ class TaskSnapshotCache {
             // Try the running cache.
             final CacheEntry entry = mRunningCache.get(taskId);
             if (entry != null) {
+                mRunningHits++;
                 return entry.snapshot;
             }
+
+            // Try what was restored from disk before.
+            final TaskSnapshot restored = getRestoredSnapshotLocked(taskId, reducedResolution);
+            if (restored != null) {
+                mRestoredHits++;
+                return restored;
+            }
+            mMisses++;
         }
 
         // Try to restore from disk if asked.
@@ -73,13 +123,67 @@ class TaskSnapshotCache {
         return tryRestoreFromDisk(taskId, userId, reducedResolution);
     }
 
+    /**
+     * Restores the reduced resolution snapshots of the given tasks from disk, unless they are
+     * cached already, so that they are ready by the time they are asked for.
+     * <p>
+     * DO NOT HOLD THE WINDOW MANAGER LOCK WHEN CALLING THIS METHOD!
+     */
+    void preloadReducedSnapshots(int[] taskIds, int[] userIds) {
+        for (int i = 0; i < taskIds.length; i++) {
+            synchronized (mService.mWindowMap) {
+                if (mRunningCache.containsKey(taskIds[i])
+                        || getRestoredSnapshotLocked(taskIds[i], true /* reduced */) != null) {
+                    continue;
+                }
+            }
+            tryRestoreFromDisk(taskIds[i], userIds[i], true /* reducedResolution */);
+        }
+    }
+
+    private TaskSnapshot getRestoredSnapshotLocked(int taskId, boolean reducedResolution) {
+        // A full resolution snapshot will do if a reduced one is asked for, like it does for
+        // running apps.
+        final TaskSnapshot full = mRestoredFullCache.get(taskId);
+        if (full != null || !reducedResolution) {
+            return full;
+        }
+        return mRestoredReducedCache.get(taskId);
+    }
+
     /**
      * DO NOT HOLD THE WINDOW MANAGER LOCK WHEN CALLING THIS METHOD!
      */
     private TaskSnapshot tryRestoreFromDisk(int taskId, int userId, boolean reducedResolution) {
+        final int generation;
+        synchronized (mService.mWindowMap) {
+            generation = mRestoredGeneration;
+            mRestoresInFlight++;
+        }
+        // A newer snapshot that is still queued for writing will replace what is read here, and
+        // nothing would drop the copy cached from it when it does.
+        final boolean storePending = mPersister.isStorePending(taskId, userId);
+        final long startMs = SystemClock.elapsedRealtime();
         final TaskSnapshot snapshot = mLoader.loadTask(taskId, userId, reducedResolution);
-        if (snapshot == null) {
-            return null;
+        final long decodeMs = SystemClock.elapsedRealtime() - startMs;
+        synchronized (mService.mWindowMap) {
+            final boolean invalidated = mRestoredInvalidations.get(taskId) > generation;
+            if (--mRestoresInFlight == 0) {
+                mRestoredInvalidations.clear();
+            }
+            mDecodeCount++;
+            mTotalDecodeMs += decodeMs;
+            mMaxDecodeMs = Math.max(mMaxDecodeMs, decodeMs);
+            if (snapshot == null) {
+                return null;
+            }
+            if (!invalidated && !storePending) {
+                if (reducedResolution) {
+                    mRestoredReducedCache.put(taskId, snapshot);
+                } else {
+                    mRestoredFullCache.put(taskId, snapshot);
+                }
+            }
         }
         return snapshot;
     }
@@ -106,6 +210,15 @@ class TaskSnapshotCache {
 
     void onTaskRemoved(int taskId) {
         removeRunningEntry(taskId);
+        removeRestoredEntries(taskId);
+    }
+
+    private void removeRestoredEntries(int taskId) {
+        mRestoredReducedCache.remove(taskId);
+        mRestoredFullCache.remove(taskId);
+        if (mRestoresInFlight > 0) {
+            mRestoredInvalidations.put(taskId, ++mRestoredGeneration);
+        }
     }
 
     private void removeRunningEntry(int taskId) {
@@ -126,6 +239,15 @@ class TaskSnapshotCache {
             pw.println(triplePrefix + "topApp=" + entry.topApp);
             pw.println(triplePrefix + "snapshot=" + entry.snapshot);
         }
+        pw.println(doublePrefix + "restoredReduced=" + mRestoredReducedCache.size() / 1024
+                + "/" + mRestoredReducedCache.maxSize() / 1024 + "KB"
+                + " restoredFull=" + mRestoredFullCache.size()
+                + "/" + mRestoredFullCache.maxSize());
+        pw.println(doublePrefix + "runningHits=" + mRunningHits
+                + " restoredHits=" + mRestoredHits + " misses=" + mMisses);
+        pw.println(doublePrefix + "decoded=" + mDecodeCount
+                + " avgDecodeMs=" + (mDecodeCount > 0 ? mTotalDecodeMs / mDecodeCount : 0)
+                + " maxDecodeMs=" + mMaxDecodeMs);
     }
 
     private static final class CacheEntry {
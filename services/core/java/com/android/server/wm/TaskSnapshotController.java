@@ -39,6 +39,7 @@ import android.view.WindowManagerPolicy.StartingSurface;
 import com.google.android.collect.Sets;
 
 import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.os.BackgroundThread;
 import com.android.server.wm.TaskSnapshotSurface.SystemBarBackgroundPainter;
 
 import java.io.PrintWriter;
@@ -94,7 +95,7 @@ class TaskSnapshotController {
 
     TaskSnapshotController(WindowManagerService service) {
         mService = service;
-        mCache = new TaskSnapshotCache(mService, mLoader);
+        mCache = new TaskSnapshotCache(mService, mLoader, mPersister);
         mIsRunningOnTv = mService.mContext.getPackageManager().hasSystemFeature(
                 PackageManager.FEATURE_LEANBACK);
     }
@@ -285,6 +286,14 @@ class TaskSnapshotController {
         mCache.onAppDied(wtoken);
     }
 
+    /**
+     * Restores the reduced resolution snapshots of the given tasks in the background, so that
+     * they are cached by the time they are asked for.
+     */
+    void preloadSnapshots(int[] taskIds, int[] userIds) {
+        BackgroundThread.getHandler().post(() -> mCache.preloadReducedSnapshots(taskIds, userIds));
+    }
+
     void notifyTaskRemovedFromRecents(int taskId, int userId) {
         mCache.onTaskRemoved(taskId);
         mPersister.onTaskRemovedFromRecents(taskId, userId);
@@ -335,5 +344,6 @@ class TaskSnapshotController {
 
     void dump(PrintWriter pw, String prefix) {
         mCache.dump(pw, prefix);
+        mPersister.dump(pw, prefix);
     }
 }
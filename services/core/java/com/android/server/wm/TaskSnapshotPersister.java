@@ -38,8 +38,16 @@ import com.android.server.wm.nano.WindowManagerProtos.TaskSnapshotProto;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Persists {@link TaskSnapshot}s to disk.
@@ -62,6 +70,9 @@ class TaskSnapshotPersister {
     private final ArrayDeque<WriteQueueItem> mWriteQueue = new ArrayDeque<>();
     @GuardedBy("mLock")
     private final ArrayDeque<StoreWriteQueueItem> mStoreQueueItems = new ArrayDeque<>();
+    /** The store being written right now, if any. */
+    @GuardedBy("mLock")
+    private StoreWriteQueueItem mStoreInProgress;
     @GuardedBy("mLock")
     private boolean mQueueIdling;
     @GuardedBy("mLock")
@@ -70,6 +81,29 @@ class TaskSnapshotPersister {
     private final Object mLock = new Object();
     private final DirectoryResolver mDirectoryResolver;
 
+    /**
+     * Encodes the reduced resolution bitmap while the persister thread encodes the full one. The
+     * thread goes away when no snapshot was written for a while.
+     */
+    private final ExecutorService mEncoder = new ThreadPoolExecutor(0, 1, 60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), r -> new Thread(() -> {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                r.run();
+            }, "TaskSnapshotEncoder"));
+
+    @GuardedBy("mLock")
+    private int mMaxWriteQueueDepth;
+    @GuardedBy("mLock")
+    private int mSupersededCount;
+    @GuardedBy("mLock")
+    private int mPurgedCount;
+    @GuardedBy("mLock")
+    private int mEncodeCount;
+    @GuardedBy("mLock")
+    private long mTotalEncodeMs;
+    @GuardedBy("mLock")
+    private long mMaxEncodeMs;
+
     /**
      * The list of ids of the tasks that have been persisted since {@link #removeObsoleteFiles} was
      * called.
@@ -133,6 +167,24 @@ class TaskSnapshotPersister {
         }
     }
 
+    /**
+     * Returns whether a snapshot of the task is waiting to be written or being written, so that
+     * what is on disk for it is about to be replaced.
+     */
+    boolean isStorePending(int taskId, int userId) {
+        synchronized (mLock) {
+            if (mStoreInProgress != null && mStoreInProgress.isForTask(taskId, userId)) {
+                return true;
+            }
+            for (StoreWriteQueueItem item : mStoreQueueItems) {
+                if (item.isForTask(taskId, userId)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
     void setPaused(boolean paused) {
         synchronized (mLock) {
             mPaused = paused;
@@ -154,11 +206,26 @@ class TaskSnapshotPersister {
         }
     }
 
+    void dump(PrintWriter pw, String prefix) {
+        synchronized (mLock) {
+            pw.println(prefix + "SnapshotPersister");
+            final String doublePrefix = prefix + "  ";
+            pw.println(doublePrefix + "queueDepth=" + mWriteQueue.size()
+                    + " maxQueueDepth=" + mMaxWriteQueueDepth);
+            pw.println(doublePrefix + "superseded=" + mSupersededCount
+                    + " purged=" + mPurgedCount);
+            pw.println(doublePrefix + "encoded=" + mEncodeCount
+                    + " avgEncodeMs=" + (mEncodeCount > 0 ? mTotalEncodeMs / mEncodeCount : 0)
+                    + " maxEncodeMs=" + mMaxEncodeMs);
+        }
+    }
+
     @GuardedBy("mLock")
     private void sendToQueueLocked(WriteQueueItem item) {
         mWriteQueue.offer(item);
         item.onQueuedLocked();
         ensureStoreQueueDepthLocked();
+        mMaxWriteQueueDepth = Math.max(mMaxWriteQueueDepth, mWriteQueue.size());
         if (!mPaused) {
             mLock.notifyAll();
         }
@@ -169,6 +236,7 @@ class TaskSnapshotPersister {
         while (mStoreQueueItems.size() > MAX_STORE_QUEUE_DEPTH) {
             final StoreWriteQueueItem item = mStoreQueueItems.poll();
             mWriteQueue.remove(item);
+            mPurgedCount++;
             Slog.i(TAG, "Queue is too deep! Purged item with taskid=" + item.mTaskId);
         }
     }
@@ -271,16 +339,43 @@ class TaskSnapshotPersister {
 
         @Override
         void onQueuedLocked() {
+            // Nobody will ever load an older snapshot of the same task, so don't encode it.
+            final Iterator<StoreWriteQueueItem> it = mStoreQueueItems.iterator();
+            while (it.hasNext()) {
+                final StoreWriteQueueItem item = it.next();
+                if (item.isForTask(mTaskId, mUserId)) {
+                    it.remove();
+                    mWriteQueue.remove(item);
+                    mSupersededCount++;
+                }
+            }
             mStoreQueueItems.offer(this);
         }
 
         @Override
         void onDequeuedLocked() {
             mStoreQueueItems.remove(this);
+            mStoreInProgress = this;
+        }
+
+        boolean isForTask(int taskId, int userId) {
+            return mTaskId == taskId && mUserId == userId;
         }
 
         @Override
         void write() {
+            try {
+                writeSnapshot();
+            } finally {
+                synchronized (mLock) {
+                    if (mStoreInProgress == this) {
+                        mStoreInProgress = null;
+                    }
+                }
+            }
+        }
+
+        private void writeSnapshot() {
             if (!createDirectory(mUserId)) {
                 Slog.e(TAG, "Unable to create snapshot directory for user dir="
                         + getDirectory(mUserId));
@@ -329,15 +424,30 @@ class TaskSnapshotPersister {
             final Bitmap reduced = Bitmap.createScaledBitmap(swBitmap,
                     (int) (bitmap.getWidth() * REDUCED_SCALE),
                     (int) (bitmap.getHeight() * REDUCED_SCALE), true /* filter */);
+            final long startMs = SystemClock.elapsedRealtime();
+            final Future<Boolean> reducedWritten =
+                    mEncoder.submit(() -> writeBitmap(reduced, reducedFile));
+            boolean written = writeBitmap(swBitmap, file);
             try {
-                FileOutputStream fos = new FileOutputStream(file);
-                swBitmap.compress(JPEG, QUALITY, fos);
-                fos.close();
-                FileOutputStream reducedFos = new FileOutputStream(reducedFile);
-                reduced.compress(JPEG, QUALITY, reducedFos);
-                reducedFos.close();
+                written &= reducedWritten.get();
+            } catch (InterruptedException | ExecutionException e) {
+                Slog.e(TAG, "Unable to persist " + reducedFile, e);
+                written = false;
+            }
+            final long encodeMs = SystemClock.elapsedRealtime() - startMs;
+            synchronized (mLock) {
+                mEncodeCount++;
+                mTotalEncodeMs += encodeMs;
+                mMaxEncodeMs = Math.max(mMaxEncodeMs, encodeMs);
+            }
+            return written;
+        }
+
+        private boolean writeBitmap(Bitmap bitmap, File file) {
+            try (FileOutputStream fos = new FileOutputStream(file)) {
+                bitmap.compress(JPEG, QUALITY, fos);
             } catch (IOException e) {
-                Slog.e(TAG, "Unable to open " + file + " or " + reducedFile +" for persisting.", e);
+                Slog.e(TAG, "Unable to open " + file + " for persisting.", e);
                 return false;
             }
             return true;
@@ -218,6 +218,7 @@ public class TaskStack extends WindowContainer<Task> implements DimLayer.DimLaye
         }
 
         mAdjustedBounds.set(bounds);
+        setSurfacePlacementNeededForAllWindows();
         final boolean adjusted = !mAdjustedBounds.isEmpty();
         Rect insetBounds = null;
         if (adjusted && isAdjustedForMinimizedDockedStack()) {
@@ -277,6 +278,7 @@ public class TaskStack extends WindowContainer<Task> implements DimLayer.DimLaye
         mBounds.set(bounds);
         mRotation = rotation;
         mDensity = density;
+        setSurfacePlacementNeededForAllWindows();
 
         updateAdjustedBounds();
 
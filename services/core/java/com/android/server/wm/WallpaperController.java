@@ -288,6 +288,9 @@ class WallpaperController {
             changed = true;
             wallpaperWin.mYOffset = offset;
         }
+        if (changed) {
+            wallpaperWin.setSurfacePlacementNeeded();
+        }
         if (wallpaperWin.mWallpaperY != wpy || wallpaperWin.mWallpaperYStep != wpys) {
             wallpaperWin.mWallpaperY = wpy;
             wallpaperWin.mWallpaperYStep = wpys;
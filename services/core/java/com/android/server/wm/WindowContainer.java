@@ -85,6 +85,10 @@ class WindowContainer<E extends WindowContainer> implements Comparable<WindowCon
 
     final protected void setParent(WindowContainer parent) {
         mParent = parent;
+        if (mParent != null) {
+            // Everything below is placed somewhere new.
+            setSurfacePlacementNeededForAllWindows();
+        }
         // Removing parent usually means that we've detached this entity to destroy it or to attach
         // to another parent. In both cases we don't need to update the configuration now.
         if (mParent != null) {
@@ -303,6 +307,16 @@ class WindowContainer<E extends WindowContainer> implements Comparable<WindowCon
         }
     }
 
+    /**
+     * Requests surface placement for every window in this subtree, for changes that affect all of
+     * them like bounds or configuration.
+     */
+    void setSurfacePlacementNeededForAllWindows() {
+        for (int i = mChildren.size() - 1; i >= 0; --i) {
+            mChildren.get(i).setSurfacePlacementNeededForAllWindows();
+        }
+    }
+
     /** Returns override configuration applied to this window container. */
     Configuration getOverrideConfiguration() {
         return mOverrideConfiguration;
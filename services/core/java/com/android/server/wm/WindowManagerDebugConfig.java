@@ -75,6 +75,9 @@ public class WindowManagerDebugConfig {
     static final boolean SHOW_STACK_CRAWLS = false;
     static final boolean DEBUG_WINDOW_CROP = false;
     static final boolean DEBUG_UNKNOWN_APP_VISIBILITY = false;
+    // Places the surfaces of all windows in every traversal, and reports the windows that would
+    // have been skipped but ended up with a different surface.
+    static final boolean DEBUG_SURFACE_PLACEMENT_SKIPS = false;
 
     static final String TAG_KEEP_SCREEN_ON = "DebugKeepScreenOn";
     static final boolean DEBUG_KEEP_SCREEN_ON = false;
@@ -621,6 +621,12 @@ public class WindowManagerService extends IWindowManager.Stub
     WindowState mCurrentFocus = null;
     WindowState mLastFocus = null;
 
+    /**
+     * Copy of the window state that read-only queries from other services are answered from,
+     * without taking {@link #mWindowMap}. Only written with {@link #mWindowMap} held.
+     */
+    private volatile WindowQuerySnapshot mQuerySnapshot = WindowQuerySnapshot.EMPTY;
+
     /** Windows added since {@link #mCurrentFocus} was set to null. Used for ANR blaming. */
     private final ArrayList<WindowState> mWinAddedSinceNullFocus = new ArrayList<>();
     /** Windows removed since {@link #mCurrentFocus} was set to null. Used for ANR blaming. */
@@ -1445,6 +1451,8 @@ public class WindowManagerService extends IWindowManager.Stub
             boolean imMayMove = true;
 
             win.mToken.addWindow(win);
+            // Make the window known to snapshot readers before its first surface placement.
+            publishQuerySnapshotLocked();
             if (type == TYPE_INPUT_METHOD) {
                 win.mGivenInsetsPending = true;
                 setInputMethodWindowLocked(win);
@@ -1699,6 +1707,7 @@ public class WindowManagerService extends IWindowManager.Stub
     void postWindowRemoveCleanupLocked(WindowState win) {
         if (DEBUG_ADD_REMOVE) Slog.v(TAG_WM, "postWindowRemoveCleanupLocked: " + win);
         mWindowMap.remove(win.mClient.asBinder());
+        publishQuerySnapshotLocked();
         if (win.mAppOp != AppOpsManager.OP_NONE) {
             mAppOps.finishOp(win.mAppOp, win.getOwningUid(), win.getOwningPackage());
         }
@@ -1843,14 +1852,13 @@ public class WindowManagerService extends IWindowManager.Stub
 
     public void getWindowDisplayFrame(Session session, IWindow client,
             Rect outDisplayFrame) {
-        synchronized(mWindowMap) {
-            WindowState win = windowForClientLocked(session, client, false);
-            if (win == null) {
-                outDisplayFrame.setEmpty();
-                return;
-            }
-            outDisplayFrame.set(win.mDisplayFrame);
+        final WindowQuerySnapshot.Window win =
+                mQuerySnapshot.getWindow(client.asBinder(), session);
+        if (win == null) {
+            outDisplayFrame.setEmpty();
+            return;
         }
+        win.getDisplayFrame(outDisplayFrame);
     }
 
     public void onRectangleOnScreenRequested(IBinder token, Rect rectangle) {
@@ -1901,6 +1909,7 @@ public class WindowManagerService extends IWindowManager.Stub
                 return 0;
             }
             displayId = win.getDisplayId();
+            win.setSurfacePlacementNeeded();
 
             WindowStateAnimator winAnimator = win.mWinAnimator;
             if (viewVisibility != View.GONE) {
@@ -3740,6 +3749,14 @@ public class WindowManagerService extends IWindowManager.Stub
                 reducedResolution);
     }
 
+    /**
+     * Restores the reduced resolution snapshots of tasks that are likely to be shown next, so that
+     * {@link #getTaskSnapshot} doesn't have to wait for them to be decoded.
+     */
+    public void preloadTaskSnapshots(int[] taskIds, int[] userIds) {
+        mTaskSnapshotController.preloadSnapshots(taskIds, userIds);
+    }
+
     /**
      * In case a task write/delete operation was lost because the system crashed, this makes sure to
      * clean up the directory to remove obsolete files.
@@ -5723,6 +5740,11 @@ public class WindowManagerService extends IWindowManager.Stub
         return win;
     }
 
+    /** Publishes the current window frames and focus for {@link #mQuerySnapshot} readers. */
+    void publishQuerySnapshotLocked() {
+        mQuerySnapshot = WindowQuerySnapshot.create(mWindowMap, mCurrentFocus, mQuerySnapshot);
+    }
+
     void makeWindowFreezingScreenIfNeededLocked(WindowState w) {
         // If the screen is currently frozen or off, then keep
         // it frozen/off until this window draws at its new
@@ -5884,6 +5906,7 @@ public class WindowManagerService extends IWindowManager.Stub
                     mCurrentFocus + " to " + newFocus + " Callers=" + Debug.getCallers(4));
             final WindowState oldFocus = mCurrentFocus;
             mCurrentFocus = newFocus;
+            mQuerySnapshot = mQuerySnapshot.withFocus(newFocus);
             mLosingFocus.remove(newFocus);
 
             if (mCurrentFocus != null) {
@@ -6514,6 +6537,7 @@ public class WindowManagerService extends IWindowManager.Stub
         pw.print("  mGlobalConfiguration="); pw.println(mRoot.getConfiguration());
         pw.print("  mHasPermanentDpad="); pw.println(mHasPermanentDpad);
         pw.print("  mCurrentFocus="); pw.println(mCurrentFocus);
+        mQuerySnapshot.dump(pw, "  ");
         if (mLastFocus != mCurrentFocus) {
             pw.print("  mLastFocus="); pw.println(mLastFocus);
         }
@@ -7283,13 +7307,7 @@ public class WindowManagerService extends IWindowManager.Stub
 
         @Override
         public IBinder getFocusedWindowToken() {
-            synchronized (mWindowMap) {
-                WindowState windowState = getFocusedWindowLocked();
-                if (windowState != null) {
-                    return windowState.mClient.asBinder();
-                }
-                return null;
-            }
+            return mQuerySnapshot.getFocusedWindowToken();
         }
 
         @Override
@@ -7309,13 +7327,12 @@ public class WindowManagerService extends IWindowManager.Stub
 
         @Override
         public void getWindowFrame(IBinder token, Rect outBounds) {
-            synchronized (mWindowMap) {
-                WindowState windowState = mWindowMap.get(token);
-                if (windowState != null) {
-                    outBounds.set(windowState.mFrame);
-                } else {
-                    outBounds.setEmpty();
-                }
+            final WindowQuerySnapshot.Window window =
+                    mQuerySnapshot.getWindow(token, null /* session */);
+            if (window != null) {
+                window.getFrame(outBounds);
+            } else {
+                outBounds.setEmpty();
             }
         }
 
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.wm;
+
+import android.graphics.Rect;
+import android.os.IBinder;
+import android.util.ArrayMap;
+
+import java.io.PrintWriter;
+import java.util.Map;
+
+/**
+ * Immutable copy of the window frames, visibility and focus that read-only queries from outside
+ * the window manager need. One is published when a window is added or removed and after every
+ * surface placement pass that changed it, so these queries can be answered without waiting for
+ * {@link WindowManagerService#mWindowMap}, at the cost of seeing frames as of the last pass.
+ */
+final class WindowQuerySnapshot {
+
+    static final WindowQuerySnapshot EMPTY =
+            new WindowQuerySnapshot(new ArrayMap<>(), null /* focusedWindowToken */, 0 /* seq */);
+
+    /** Windows by client binder, as in {@link WindowManagerService#mWindowMap}. */
+    private final ArrayMap<IBinder, Window> mWindows;
+    private final IBinder mFocusedWindowToken;
+    private final int mSeq;
+
+    private WindowQuerySnapshot(ArrayMap<IBinder, Window> windows, IBinder focusedWindowToken,
+            int seq) {
+        mWindows = windows;
+        mFocusedWindowToken = focusedWindowToken;
+        mSeq = seq;
+    }
+
+    /**
+     * Takes a snapshot of the current window hierarchy. Returns {@param previous} if nothing it
+     * holds has changed; otherwise its entries that did not change are reused.
+     */
+    static WindowQuerySnapshot create(WindowHashMap windowMap, WindowState focus,
+            WindowQuerySnapshot previous) {
+        final IBinder focusedWindowToken = focus != null ? focus.mClient.asBinder() : null;
+        if (focusedWindowToken == previous.mFocusedWindowToken
+                && previous.matches(windowMap)) {
+            return previous;
+        }
+        final ArrayMap<IBinder, Window> windows = new ArrayMap<>(windowMap.size());
+        for (Map.Entry<IBinder, WindowState> entry : windowMap.entrySet()) {
+            final IBinder client = entry.getKey();
+            final WindowState w = entry.getValue();
+            final Window old = previous.mWindows.get(client);
+            windows.put(client, old != null && old.matches(w) ? old : new Window(w));
+        }
+        return new WindowQuerySnapshot(windows, focusedWindowToken, previous.mSeq + 1);
+    }
+
+    /** Returns whether this snapshot holds exactly the windows of {@param windowMap}, unchanged. */
+    private boolean matches(WindowHashMap windowMap) {
+        if (windowMap.size() != mWindows.size()) {
+            return false;
+        }
+        for (Map.Entry<IBinder, WindowState> entry : windowMap.entrySet()) {
+            final Window old = mWindows.get(entry.getKey());
+            if (old == null || !old.matches(entry.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Returns a copy of this snapshot with the focused window replaced. */
+    WindowQuerySnapshot withFocus(WindowState focus) {
+        final IBinder focusedWindowToken = focus != null ? focus.mClient.asBinder() : null;
+        if (focusedWindowToken == mFocusedWindowToken) {
+            return this;
+        }
+        return new WindowQuerySnapshot(mWindows, focusedWindowToken, mSeq + 1);
+    }
+
+    IBinder getFocusedWindowToken() {
+        return mFocusedWindowToken;
+    }
+
+    /**
+     * @param session If not null, the window is only returned if it belongs to this session.
+     */
+    Window getWindow(IBinder client, Session session) {
+        final Window w = mWindows.get(client);
+        if (w == null || (session != null && w.mSession != session)) {
+            return null;
+        }
+        return w;
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        pw.print(prefix); pw.print("mQuerySnapshot: seq="); pw.print(mSeq);
+        pw.print(" windows="); pw.print(mWindows.size());
+        pw.print(" focus="); pw.println(mFocusedWindowToken);
+    }
+
+    static final class Window {
+        final Session mSession;
+        final int mDisplayId;
+        final boolean mVisible;
+        private final Rect mFrame;
+        private final Rect mDisplayFrame;
+
+        Window(WindowState w) {
+            mSession = w.mSession;
+            mDisplayId = w.getDisplayId();
+            mVisible = w.isVisibleLw();
+            mFrame = new Rect(w.mFrame);
+            mDisplayFrame = new Rect(w.mDisplayFrame);
+        }
+
+        boolean matches(WindowState w) {
+            return mSession == w.mSession && mVisible == w.isVisibleLw()
+                    && mDisplayId == w.getDisplayId()
+                    && mFrame.equals(w.mFrame) && mDisplayFrame.equals(w.mDisplayFrame);
+        }
+
+        void getFrame(Rect outFrame) {
+            outFrame.set(mFrame);
+        }
+
+        void getDisplayFrame(Rect outDisplayFrame) {
+            outDisplayFrame.set(mDisplayFrame);
+        }
+    }
+}
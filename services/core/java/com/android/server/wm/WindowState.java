@@ -246,6 +246,13 @@ class WindowState extends WindowContainer<WindowState> implements WindowManagerP
      */
     final Point mShownPosition = new Point();
 
+    /**
+     * Set when something the surface position, size or crop of this window depends on has
+     * changed, and cleared once the surface has been placed in a traversal.
+     * See {@link #isSurfacePlacementNeeded}.
+     */
+    private boolean mSurfacePlacementNeeded = true;
+
     /**
      * Insets that determine the actually visible area.  These are in the application's
      * coordinate space (without compatibility scale applied).
@@ -1911,6 +1918,9 @@ class WindowState extends WindowContainer<WindowState> implements WindowManagerP
 
     void setHasSurface(boolean hasSurface) {
         mHasSurface = hasSurface;
+        if (hasSurface) {
+            setSurfacePlacementNeeded();
+        }
     }
 
     int getAnimLayerAdjustment() {
@@ -2375,6 +2385,7 @@ class WindowState extends WindowContainer<WindowState> implements WindowManagerP
             // Already showing.
             return false;
         }
+        setSurfacePlacementNeeded();
         if (DEBUG_VISIBILITY) Slog.v(TAG, "Policy visibility true: " + this);
         if (doAnimation) {
             if (DEBUG_VISIBILITY) Slog.v(TAG, "doAnimation: mPolicyVisibility="
@@ -2418,6 +2429,7 @@ class WindowState extends WindowContainer<WindowState> implements WindowManagerP
             // Already hiding.
             return false;
         }
+        setSurfacePlacementNeeded();
         if (doAnimation) {
             mWinAnimator.applyAnimationLocked(WindowManagerPolicy.TRANSIT_EXIT, false);
             if (mWinAnimator.mAnimation == null) {
@@ -3170,6 +3182,46 @@ class WindowState extends WindowContainer<WindowState> implements WindowManagerP
         return mDragResizing != computeDragResizing();
     }
 
+    /** Requests that the surface of this window and its child windows is placed again. */
+    void setSurfacePlacementNeeded() {
+        mSurfacePlacementNeeded = true;
+        // Child windows are positioned relative to this one.
+        for (int i = mChildren.size() - 1; i >= 0; --i) {
+            mChildren.get(i).setSurfacePlacementNeeded();
+        }
+    }
+
+    @Override
+    void setSurfacePlacementNeededForAllWindows() {
+        setSurfacePlacementNeeded();
+    }
+
+    /**
+     * Returns true if the surface of this window has to be placed in the current traversal, either
+     * because it was requested or because the window is in a state where the shown frame changes
+     * on its own.
+     */
+    boolean isSurfacePlacementNeeded() {
+        if (mSurfacePlacementNeeded || isAnimating() || mSeamlesslyRotated
+                || mWinAnimator.mDrawState != HAS_DRAWN || mWinAnimator.isForceScaled()
+                || isDragResizing() || isDragResizeChanged()) {
+            return true;
+        }
+        final Task task = getTask();
+        return task != null && task.mStack.isAnimatingBounds();
+    }
+
+    /** Called when the surface of this window has been placed in a traversal. */
+    void onSurfacePlaced() {
+        mSurfacePlacementNeeded = false;
+    }
+
+    @Override
+    void onConfigurationChanged(Configuration newParentConfig) {
+        super.onConfigurationChanged(newParentConfig);
+        setSurfacePlacementNeeded();
+    }
+
     @Override
     void setWaitingForDrawnIfResizingChanged() {
         if (isDragResizeChanged()) {
@@ -97,6 +97,9 @@ class WindowStateAnimator {
      */
     static final int STACK_CLIP_NONE = 2;
 
+    /** Size of the array filled by {@link #getSurfacePlacementState}. */
+    static final int SURFACE_PLACEMENT_STATE_SIZE = 21;
+
     // Unchanging local convenience fields.
     final WindowManagerService mService;
     final WindowState mWin;
@@ -2050,6 +2053,35 @@ class WindowStateAnimator {
         }
     }
 
+    /**
+     * Fills {@param out} with the shown frame and surface geometry, crops and layer from the last
+     * time the surface of the window was placed, so that two placements can be compared.
+     */
+    void getSurfacePlacementState(float[] out) {
+        out[0] = mWin.mShownPosition.x;
+        out[1] = mWin.mShownPosition.y;
+        out[2] = mShownAlpha;
+        out[3] = mDsDx;
+        out[4] = mDtDx;
+        out[5] = mDsDy;
+        out[6] = mDtDy;
+        out[7] = mSurfaceController.getX();
+        out[8] = mSurfaceController.getY();
+        out[9] = mSurfaceController.getWidth();
+        out[10] = mSurfaceController.getHeight();
+        // The crops depend on stack bounds, the docked divider, IME adjustment and insets.
+        out[11] = mLastClipRect.left;
+        out[12] = mLastClipRect.top;
+        out[13] = mLastClipRect.right;
+        out[14] = mLastClipRect.bottom;
+        out[15] = mLastFinalClipRect.left;
+        out[16] = mLastFinalClipRect.top;
+        out[17] = mLastFinalClipRect.right;
+        out[18] = mLastFinalClipRect.bottom;
+        out[19] = mLastLayer;
+        out[20] = mSurfaceController.getLayer();
+    }
+
     /** The force-scaled state for a given window can persist past
      * the state for it's stack as the windows complete resizing
      * independently of one another.
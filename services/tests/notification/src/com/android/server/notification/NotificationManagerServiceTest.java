@@ -393,6 +393,55 @@ public class NotificationManagerServiceTest extends NotificationTestCase {
         waitForIdle();
     }
 
+    @Test
+    public void testCancelGroupSummaryCancelsPostedChildren() throws Exception {
+        final NotificationRecord parent = generateNotificationRecord(
+                mTestNotificationChannel, 1, "group1", true);
+        final NotificationRecord child = generateNotificationRecord(
+                mTestNotificationChannel, 2, "group1", false);
+        final NotificationRecord child2 = generateNotificationRecord(
+                mTestNotificationChannel, 3, "group1", false);
+        for (NotificationRecord r : new NotificationRecord[] {parent, child, child2}) {
+            mBinderService.enqueueNotificationWithTag(PKG, "opPkg", "tag",
+                    r.sbn.getId(), r.sbn.getNotification(), r.sbn.getUserId());
+        }
+        waitForIdle();
+        assertEquals(3, mBinderService.getActiveNotifications(PKG).length);
+
+        mBinderService.cancelNotificationWithTag(PKG, "tag", parent.sbn.getId(),
+                parent.sbn.getUserId());
+        waitForIdle();
+        assertEquals(0, mBinderService.getActiveNotifications(PKG).length);
+        assertTrue(mNotificationManagerService.mNotificationsByPackage.isEmpty());
+        assertTrue(mNotificationManagerService.mNotificationsByGroupKey.isEmpty());
+    }
+
+    @Test
+    public void testPackageNotificationLimitAllowsUpdates() throws Exception {
+        final StatusBarNotification sbn = generateNotificationRecord(null).sbn;
+        final int max = NotificationManagerService.MAX_PACKAGE_NOTIFICATIONS;
+        for (int i = 0; i < max; i++) {
+            mBinderService.enqueueNotificationWithTag(PKG, "opPkg", "tag",
+                    i, sbn.getNotification(), sbn.getUserId());
+        }
+        waitForIdle();
+        assertEquals(max, mBinderService.getActiveNotifications(PKG).length);
+
+        // One more is refused, but an existing one can still be updated.
+        mBinderService.enqueueNotificationWithTag(PKG, "opPkg", "tag",
+                max, sbn.getNotification(), sbn.getUserId());
+        mBinderService.enqueueNotificationWithTag(PKG, "opPkg", "tag",
+                0, sbn.getNotification(), sbn.getUserId());
+        waitForIdle();
+        assertEquals(max, mBinderService.getActiveNotifications(PKG).length);
+        verify(mUsageStats, times(1)).registerOverCountQuota(PKG);
+
+        mBinderService.cancelAllNotifications(PKG, sbn.getUserId());
+        waitForIdle();
+        assertEquals(0, mBinderService.getActiveNotifications(PKG).length);
+        assertTrue(mNotificationManagerService.mNotificationsByPackage.isEmpty());
+    }
+
     @Test
     public void testCancelAllNotifications_IgnoreForegroundService() throws Exception {
         final StatusBarNotification sbn = generateNotificationRecord(null).sbn;
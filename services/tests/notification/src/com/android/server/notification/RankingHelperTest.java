@@ -65,6 +65,7 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -289,6 +290,79 @@ public class RankingHelperTest extends NotificationTestCase {
         mHelper.sort(notificationList);
     }
 
+    private NotificationRecord newStreamRecord(int id, long when, int importance, String group,
+            String sortKey) {
+        final Notification n = new Notification.Builder(mContext, TEST_CHANNEL_ID)
+                .setContentTitle("stream " + id)
+                .setGroup(group)
+                .setSortKey(sortKey)
+                .setWhen(when)
+                .build();
+        return new NotificationRecord(mContext, new StatusBarNotification(
+                PKG, PKG, id, null, 0, 0, n, UserHandle.ALL, null, when),
+                new NotificationChannel(TEST_CHANNEL_ID, "name", importance));
+    }
+
+    @Test
+    public void testIncrementalSortMatchesFullSort() throws Exception {
+        final int[] importances = {IMPORTANCE_LOW, IMPORTANCE_DEFAULT, IMPORTANCE_HIGH};
+        final String[] groups = {null, "G1", "G2"};
+        final String[] sortKeys = {null, "", "A", "B"};
+        final RankingHelper reference = new RankingHelper(getContext(), mPm, mHandler,
+                mUsageStats, new String[] {ImportanceExtractor.class.getName()});
+        mHelper.setVerifyIncrementalSort(true);
+
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final ArrayList<NotificationRecord> notificationList = new ArrayList<>();
+        mHelper.sort(notificationList);
+        long when = 1000;
+        for (int step = 0; step < 500; step++) {
+            final int op = random.nextInt(10);
+            if (op == 0 && !notificationList.isEmpty()) {
+                // Cancels don't sort.
+                notificationList.remove(random.nextInt(notificationList.size()));
+                continue;
+            }
+            final NotificationRecord r = newStreamRecord(random.nextInt(40), when++,
+                    importances[random.nextInt(importances.length)],
+                    groups[random.nextInt(groups.length)],
+                    sortKeys[random.nextInt(sortKeys.length)]);
+            int index = -1;
+            for (int i = 0; i < notificationList.size(); i++) {
+                if (notificationList.get(i).getKey().equals(r.getKey())) {
+                    index = i;
+                    break;
+                }
+            }
+            if (index < 0) {
+                notificationList.add(r);
+            } else {
+                notificationList.set(index, r);
+            }
+            mHelper.sort(notificationList, r);
+            final ArrayList<NotificationRecord> incremental = new ArrayList<>(notificationList);
+
+            final ArrayList<NotificationRecord> full = new ArrayList<>(notificationList);
+            Collections.shuffle(full);
+            reference.sort(full);
+            assertEquals(full, incremental);
+        }
+    }
+
+    @Test
+    public void testExtractSignalsForManyRecords() throws Exception {
+        final ArrayList<NotificationRecord> notificationList = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            final NotificationRecord r = newStreamRecord(i, 1000 + i, IMPORTANCE_LOW, null, null);
+            r.getChannel().setImportance(IMPORTANCE_HIGH);
+            notificationList.add(r);
+        }
+        mHelper.extractSignals(notificationList);
+        for (NotificationRecord r : notificationList) {
+            assertEquals(IMPORTANCE_HIGH, r.getImportance());
+        }
+    }
+
     @Test
     public void testChannelXml() throws Exception {
         NotificationChannelGroup ncg = new NotificationChannelGroup("1", "bye");
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.server.notification;
+
+import static android.app.NotificationManager.IMPORTANCE_DEFAULT;
+import static android.app.NotificationManager.IMPORTANCE_HIGH;
+import static android.app.NotificationManager.IMPORTANCE_LOW;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.UserHandle;
+import android.service.notification.NotificationRankingUpdate;
+import android.service.notification.SnoozeCriterion;
+import android.service.notification.StatusBarNotification;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class RankingUpdateTrackerTest extends NotificationTestCase {
+    private static final String PKG = "com.android.server.notification";
+
+    private int mNextId;
+
+    private NotificationRecord newRecord() {
+        final int id = mNextId++;
+        final NotificationChannel channel =
+                new NotificationChannel("channel" + id, "name", IMPORTANCE_DEFAULT);
+        final Notification n = new Notification.Builder(mContext, channel.getId())
+                .setContentTitle("title " + id)
+                .build();
+        return new NotificationRecord(mContext, new StatusBarNotification(PKG, PKG, id, null, 0,
+                0, n, UserHandle.ALL, null, System.currentTimeMillis()), channel);
+    }
+
+    private static NotificationRankingUpdate parcelAndUnparcel(NotificationRankingUpdate update) {
+        final Parcel parcel = Parcel.obtain();
+        try {
+            update.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            return NotificationRankingUpdate.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static void assertSameBundle(Bundle expected, Bundle actual) {
+        assertEquals(expected.keySet(), actual.keySet());
+        for (String key : expected.keySet()) {
+            final Object e = expected.get(key);
+            final Object a = actual.get(key);
+            if (e instanceof CharSequence) {
+                assertEquals(e.toString(), a.toString());
+            } else {
+                assertEquals(e, a);
+            }
+        }
+    }
+
+    private static void assertSameRanking(NotificationRankingUpdate expected,
+            NotificationRankingUpdate actual) {
+        assertArrayEquals(expected.getOrderedKeys(), actual.getOrderedKeys());
+        assertArrayEquals(expected.getInterceptedKeys(), actual.getInterceptedKeys());
+        assertArrayEquals(expected.getImportance(), actual.getImportance());
+        assertSameBundle(expected.getVisibilityOverrides(), actual.getVisibilityOverrides());
+        assertSameBundle(expected.getSuppressedVisualEffects(),
+                actual.getSuppressedVisualEffects());
+        assertSameBundle(expected.getImportanceExplanation(), actual.getImportanceExplanation());
+        assertSameBundle(expected.getOverrideGroupKeys(), actual.getOverrideGroupKeys());
+        assertSameBundle(expected.getChannels(), actual.getChannels());
+        assertSameBundle(expected.getOverridePeople(), actual.getOverridePeople());
+        assertSameBundle(expected.getSnoozeCriteria(), actual.getSnoozeCriteria());
+        assertSameBundle(expected.getShowBadge(), actual.getShowBadge());
+    }
+
+    @Test
+    public void testFirstUpdateIsFull() {
+        final ArrayList<NotificationRecord> records = new ArrayList<>();
+        records.add(newRecord());
+        final RankingUpdateTracker tracker = new RankingUpdateTracker();
+
+        final NotificationRankingUpdate update = tracker.makeUpdate(records);
+        assertFalse(update.isDelta());
+        assertEquals(1, update.getVersion());
+
+        final NotificationRankingUpdate delta = tracker.makeUpdate(records);
+        assertTrue(delta.isDelta());
+        assertEquals(1, delta.getBaseVersion());
+        assertEquals(0, delta.getChangedKeys().length);
+        assertTrue(delta.getChannels().isEmpty());
+
+        tracker.reset();
+        assertFalse(tracker.makeUpdate(records).isDelta());
+    }
+
+    @Test
+    public void testDeltaOnlyCarriesChangedEntries() {
+        final ArrayList<NotificationRecord> records = new ArrayList<>();
+        final NotificationRecord unchanged = newRecord();
+        final NotificationRecord changed = newRecord();
+        records.add(unchanged);
+        records.add(changed);
+        final RankingUpdateTracker tracker = new RankingUpdateTracker();
+        tracker.makeUpdate(records);
+
+        // Channels can be changed in place, which must still be noticed.
+        changed.getChannel().setImportance(IMPORTANCE_HIGH);
+        final NotificationRankingUpdate delta = tracker.makeUpdate(records);
+        assertArrayEquals(new String[] {changed.getKey()}, delta.getChangedKeys());
+        assertEquals(1, delta.getChannels().size());
+        assertNotNull(delta.getChannels().getParcelable(changed.getKey()));
+    }
+
+    @Test
+    public void testDeltaDoesNotApplyToOtherVersion() {
+        final ArrayList<NotificationRecord> records = new ArrayList<>();
+        records.add(newRecord());
+        final RankingUpdateTracker tracker = new RankingUpdateTracker();
+        final NotificationRankingUpdate first = tracker.makeUpdate(records);
+        tracker.makeUpdate(records);
+        final NotificationRankingUpdate third = tracker.makeUpdate(records);
+
+        assertNull(third.applyTo(first));
+        assertNull(third.applyTo(null));
+    }
+
+    @Test
+    public void testListenerConvergesWithFullSnapshot() {
+        final Random random = new Random(42);
+        final int[] importances = {IMPORTANCE_LOW, IMPORTANCE_DEFAULT, IMPORTANCE_HIGH};
+        final ArrayList<NotificationRecord> records = new ArrayList<>();
+        final RankingUpdateTracker tracker = new RankingUpdateTracker();
+        NotificationRankingUpdate listenerState = null;
+
+        for (int step = 0; step < 300; step++) {
+            final NotificationRecord target =
+                    records.isEmpty() ? null : records.get(random.nextInt(records.size()));
+            switch (target == null ? 0 : random.nextInt(10)) {
+                case 0:
+                    records.add(random.nextInt(records.size() + 1), newRecord());
+                    break;
+                case 1:
+                    records.remove(target);
+                    break;
+                case 2:
+                    target.setImportance(importances[random.nextInt(importances.length)],
+                            "explanation " + step);
+                    break;
+                case 3:
+                    target.getChannel().setImportance(
+                            importances[random.nextInt(importances.length)]);
+                    break;
+                case 4:
+                    target.setOverrideGroupKey(random.nextBoolean() ? "group" : null);
+                    break;
+                case 5:
+                    target.setShowBadge(!target.canShowBadge());
+                    break;
+                case 6:
+                    final ArrayList<String> people = new ArrayList<>();
+                    people.add("person " + step);
+                    target.setPeopleOverride(random.nextBoolean() ? people : null);
+                    break;
+                case 7:
+                    final ArrayList<SnoozeCriterion> criteria = new ArrayList<>();
+                    criteria.add(new SnoozeCriterion("id" + step, "explanation", "confirmation"));
+                    target.setSnoozeCriteria(random.nextBoolean() ? criteria : null);
+                    break;
+                case 8:
+                    target.setIntercepted(!target.isIntercepted());
+                    target.setPackageVisibilityOverride(random.nextInt(3) - 1);
+                    break;
+                default:
+                    // Reorder only.
+                    records.remove(target);
+                    records.add(target);
+                    break;
+            }
+
+            final NotificationRankingUpdate update =
+                    parcelAndUnparcel(tracker.makeUpdate(records));
+            listenerState = update.applyTo(listenerState);
+            assertNotNull(listenerState);
+
+            final NotificationRankingUpdate snapshot =
+                    new RankingUpdateTracker().makeUpdate(records);
+            assertSameRanking(snapshot, listenerState);
+        }
+    }
+}
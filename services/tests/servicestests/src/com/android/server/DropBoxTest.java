@@ -331,8 +331,8 @@ public class DropBoxTest extends AndroidTestCase {
         File dir = getEmptyDir("testSizeLimits");
         int blockSize =  new StatFs(dir.getPath()).getBlockSize();
 
-        // Limit storage to 10 blocks
-        int kb = blockSize * 10 / 1024;
+        // Limit storage to 11 blocks, one of which holds the tombstones of DropBoxTest1
+        int kb = blockSize * 11 / 1024;
         ContentResolver cr = getContext().getContentResolver();
         Settings.Global.putString(cr, Settings.Global.DROPBOX_QUOTA_KB, Integer.toString(kb));
 
@@ -517,6 +517,110 @@ public class DropBoxTest extends AndroidTestCase {
         f2.close();
     }
 
+    public void testSmallEntriesShareSegment() throws Exception {
+        File dir = getEmptyDir("testSmallEntriesShareSegment");
+        long before = System.currentTimeMillis();
+
+        DropBoxManagerService service = new DropBoxManagerService(getContext(), dir);
+        DropBoxManager dropbox = new DropBoxManager(getContext(), service.getServiceStub());
+        dropbox.addText("DropBoxTest", "TEST0");
+        dropbox.addText("DropBoxTest", "TEST1");
+        dropbox.addData("DropBoxTest", "TEST2".getBytes(), 0);
+
+        // Reading waits for queued entries to be written out
+        dropbox.getNextEntry("DropBoxTest", before).close();
+
+        // All three entries are packed into one segment file
+        File[] files = dir.listFiles();
+        assertEquals(1, files.length);
+        assertTrue(files[0].getName().endsWith(".seg"));
+
+        // Simulate a write torn by a crash; the partial record should be discarded
+        FileOutputStream os = new FileOutputStream(files[0], true);
+        os.write(new byte[] { 0, 0, 0 });
+        os.close();
+
+        service = new DropBoxManagerService(getContext(), dir);
+        dropbox = new DropBoxManager(getContext(), service.getServiceStub());
+
+        DropBoxManager.Entry e0 = dropbox.getNextEntry("DropBoxTest", before);
+        DropBoxManager.Entry e1 = dropbox.getNextEntry("DropBoxTest", e0.getTimeMillis());
+        DropBoxManager.Entry e2 = dropbox.getNextEntry("DropBoxTest", e1.getTimeMillis());
+        assertTrue(null == dropbox.getNextEntry("DropBoxTest", e2.getTimeMillis()));
+
+        assertEquals("TEST0", e0.getText(80));
+        assertEquals("TEST1", e1.getText(80));
+        assertEquals(null, e2.getText(80));
+        assertEquals(5, getEntrySize(e2));
+
+        e0.close();
+        e1.close();
+        e2.close();
+
+        // New entries keep filling the same segment after the restart
+        dropbox.addText("DropBoxTest", "TEST3");
+        DropBoxManager.Entry e3 = dropbox.getNextEntry("DropBoxTest", e2.getTimeMillis());
+        assertEquals("TEST3", e3.getText(80));
+        assertEquals(1, dir.listFiles().length);
+        e3.close();
+    }
+
+    public void testTrimmedSegmentsAreDeleted() throws Exception {
+        File dir = getEmptyDir("testTrimmedSegmentsAreDeleted");
+        int blockSize = new StatFs(dir.getPath()).getBlockSize();
+
+        // Limit storage to 2 blocks
+        int kb = blockSize * 2 / 1024;
+        ContentResolver cr = getContext().getContentResolver();
+        Settings.Global.putString(cr, Settings.Global.DROPBOX_QUOTA_KB, Integer.toString(kb));
+
+        // Each entry fills a segment of its own
+        long before = System.currentTimeMillis();
+        DropBoxManagerService service = new DropBoxManagerService(getContext(), dir);
+        DropBoxManager dropbox = new DropBoxManager(getContext(), service.getServiceStub());
+        for (int i = 0; i < 10; i++) {
+            addRandomEntry(dropbox, "DropBoxTest", blockSize - 64);
+        }
+        dropbox.getNextEntry(null, before).close();
+
+        // The segments of trimmed entries are gone, tombstones and all.  What's left is
+        // the last entry kept within quota, the segment holding the tombstones, and the
+        // entry written after the last trim.
+        int blocks = 0;
+        for (File file : dir.listFiles()) {
+            blocks += (file.length() + blockSize - 1) / blockSize;
+        }
+        assertTrue("Using " + blocks + " blocks", blocks <= 3);
+    }
+
+    public void testDuplicateEntriesCoalesced() throws Exception {
+        File dir = getEmptyDir("testDuplicateEntriesCoalesced");
+        long before = System.currentTimeMillis();
+
+        DropBoxManagerService service = new DropBoxManagerService(getContext(), dir);
+        DropBoxManager dropbox = new DropBoxManager(getContext(), service.getServiceStub());
+
+        // Repeats that only differ in their headers may be folded into one entry
+        for (int i = 0; i < 10; i++) {
+            dropbox.addText("DropBoxTest", "PID: " + i + "\n\nSTACK");
+        }
+
+        int total = 0;
+        long millis = before;
+        DropBoxManager.Entry e;
+        while ((e = dropbox.getNextEntry("DropBoxTest", millis)) != null) {
+            String text = e.getText(200);
+            total++;
+            if (text.startsWith("Dropped-Duplicates: ")) {
+                total += Integer.parseInt(text.substring(20, text.indexOf('\n')));
+            }
+            assertTrue(text.endsWith("\n\nSTACK"));
+            millis = e.getTimeMillis();
+            e.close();
+        }
+        assertEquals(10, total);
+    }
+
     public void testCreateDropBoxManagerWithInvalidDirectory() throws Exception {
         // If created with an invalid directory, the DropBoxManager should suffer quietly
         // and fail all operations (this is how it survives a full disk).
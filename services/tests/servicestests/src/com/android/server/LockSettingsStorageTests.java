@@ -30,6 +30,7 @@ import android.os.FileUtils;
 import android.os.UserManager;
 import android.os.storage.StorageManager;
 import android.test.AndroidTestCase;
+import android.util.ArrayMap;
 
 import com.android.internal.widget.LockPatternUtils;
 import com.android.server.LockSettingsStorage.CredentialHash;
@@ -185,6 +186,124 @@ public class LockSettingsStorageTests extends AndroidTestCase {
         assertEquals("Cached value didn't match stored value", storage, cached);
     }
 
+    public void testKeyValue_MissLoadsWholeUser() {
+        LockSettingsStorage storage = new LockSettingsStorage(getContext(), null /* in-memory */);
+        try {
+            storage.writeKeyValue("key1", "value1", 0);
+            storage.writeKeyValue("key2", "value2", 0);
+            storage.writeKeyValue("key1", "other", 1);
+            storage.clearCache();
+
+            assertEquals("value1", storage.readKeyValue("key1", "default", 0));
+            assertEquals(1, storage.getCacheMissCount());
+
+            // The first miss cached all of user 0, including which keys don't exist
+            assertEquals("value2", storage.readKeyValue("key2", "default", 0));
+            assertEquals("default", storage.readKeyValue("absent", "default", 0));
+            assertEquals(2, storage.getCacheHitCount());
+            assertEquals(1, storage.getCacheMissCount());
+
+            // Other users are loaded separately
+            assertEquals("other", storage.readKeyValue("key1", "default", 1));
+            assertEquals(2, storage.getCacheMissCount());
+        } finally {
+            storage.closeDatabase();
+        }
+    }
+
+    public void testKeyValue_WriteAfterFetch() {
+        LockSettingsStorage storage = new LockSettingsStorage(getContext(), null /* in-memory */);
+        try {
+            storage.prefetchUser(0);
+            assertEquals("default", storage.readKeyValue("key", "default", 0));
+            storage.writeKeyValue("key", "value", 0);
+            assertEquals("value", storage.readKeyValue("key", "default", 0));
+        } finally {
+            storage.closeDatabase();
+        }
+    }
+
+    public void testKeyValue_WriteMultiple() {
+        LockSettingsStorage storage = new LockSettingsStorage(getContext(), null /* in-memory */);
+        try {
+            ArrayMap<String, String> values = new ArrayMap<>();
+            values.put("key1", "value1");
+            values.put("key2", "value2");
+            storage.writeKeyValues(values, 0);
+            storage.clearCache();
+
+            assertEquals("value1", storage.readKeyValue("key1", "default", 0));
+            assertEquals("value2", storage.readKeyValue("key2", "default", 0));
+        } finally {
+            storage.closeDatabase();
+        }
+    }
+
+    public void testKeyValue_ConcurrentWritersAllStored() throws Exception {
+        final LockSettingsStorage storage =
+                new LockSettingsStorage(getContext(), null /* in-memory */);
+        try {
+            final CountDownLatch latch = new CountDownLatch(1);
+            List<Thread> threads = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                final int threadId = i;
+                threads.add(new Thread() {
+                    @Override
+                    public void run() {
+                        try {
+                            latch.await();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        storage.writeKeyValue("key" + threadId, "value" + threadId, 0);
+                    }
+                });
+                threads.get(i).start();
+            }
+            latch.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            storage.clearCache();
+            for (int i = 0; i < threads.size(); i++) {
+                assertEquals("value" + i, storage.readKeyValue("key" + i, "default", 0));
+            }
+        } finally {
+            storage.closeDatabase();
+        }
+    }
+
+    public void testKeyValue_FailedWriteDropped() {
+        final LockSettingsStorage storage =
+                new LockSettingsStorage(getContext(), null /* in-memory */);
+        final boolean[] failed = new boolean[1];
+        storage.setDatabaseOnCreateCallback(new LockSettingsStorage.Callback() {
+            @Override
+            public void initialize(SQLiteDatabase db) {
+                if (!failed[0]) {
+                    failed[0] = true;
+                    throw new IllegalStateException("injected failure");
+                }
+            }
+        });
+        try {
+            try {
+                storage.writeKeyValue("key1", "value1", 0);
+                fail("expected the write to fail");
+            } catch (IllegalStateException expected) {
+            }
+            // Neither cached nor stored with the next write.
+            assertEquals("default", storage.readKeyValue("key1", "default", 0));
+            storage.writeKeyValue("key2", "value2", 0);
+            storage.clearCache();
+            assertEquals("default", storage.readKeyValue("key1", "default", 0));
+            assertEquals("value2", storage.readKeyValue("key2", "default", 0));
+        } finally {
+            storage.closeDatabase();
+        }
+    }
+
     public void testRemoveUser() {
         mStorage.writeKeyValue("key", "value", 0);
         writePasswordBytes(PASSWORD_0, 0);
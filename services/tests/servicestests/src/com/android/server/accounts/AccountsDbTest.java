@@ -32,8 +32,10 @@ import org.junit.runner.RunWith;
 
 import java.io.File;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
@@ -195,6 +197,24 @@ public class AccountsDbTest {
         assertEquals(-1, actualExtraId);
     }
 
+    @Test
+    public void testFindAllUserExtras() {
+        mAccountsDb.attachCeDatabase(ceDb);
+        Account account = new Account("name", "example.com");
+        long accId = mAccountsDb.insertCeAccount(account, "password");
+        mAccountsDb.insertDeAccount(account, accId);
+        Account account2 = new Account("name2", "example.com");
+        long accId2 = mAccountsDb.insertCeAccount(account2, "password");
+        mAccountsDb.insertDeAccount(account2, accId2);
+        mAccountsDb.insertExtra(accId, "key1", "value1");
+        mAccountsDb.insertExtra(accId, "key2", "value2");
+
+        Map<Account, Map<String, String>> extras = mAccountsDb.findAllUserExtras();
+        assertEquals(1, extras.size());
+        assertEquals(mAccountsDb.findUserExtrasForAccount(account), extras.get(account));
+        assertNull("Accounts without extras should not be returned", extras.get(account2));
+    }
+
     @Test
     public void testGrantsInsertFindDelete() {
         mAccountsDb.attachCeDatabase(ceDb);
@@ -224,6 +244,10 @@ public class AccountsDbTest {
         assertEquals(account.name, allAccountGrants.get(0).first);
         assertEquals(testUid, (int)allAccountGrants.get(0).second);
 
+        Map<Account, Map<Integer, Set<String>>> allGrants = mAccountsDb.findAllGrants();
+        assertEquals(1, allGrants.size());
+        assertEquals(Collections.singleton("tokenType"), allGrants.get(account).get(testUid));
+
         mAccountsDb.deleteGrantsByUid(testUid);
         allUidGrants = mAccountsDb.findAllUidGrants();
         assertTrue("Test grants should be removed", allUidGrants.isEmpty());
@@ -139,6 +139,30 @@ public class SyncStorageEngineTest extends AndroidTestCase {
         assertEquals(0, engine.getIsSyncable(account2, 0, authority2));
     }
 
+    @SmallTest
+    public void testStatusJournalPersistence() throws Exception {
+        engine.setIsSyncable(account1, 0, authority1, 1);
+        engine.writeAllState();
+
+        SyncOperation op = new SyncOperation(account1, 0, 0, "foo",
+                SyncOperation.REASON_PERIODIC,
+                SyncStorageEngine.SOURCE_LOCAL,
+                authority1,
+                Bundle.EMPTY, true);
+        long historyId = engine.insertStartSyncEvent(op, 1000);
+        engine.stopSyncEvent(historyId, 100, SyncStorageEngine.MESG_SUCCESS, 0, 0);
+
+        // The first success is written right away, as a journal record.
+        File journal = new File(getSyncDir(), "status.journal");
+        assertTrue(journal.exists());
+
+        engine.clearAndReadState();
+
+        EndPoint target = new EndPoint(account1, authority1, 0);
+        assertEquals(1100, engine.getStatusByAuthority(target).lastSuccessTime);
+        assertFalse("Journal should be compacted into the status file", journal.exists());
+    }
+
     @MediumTest
     public void testListenForTicklesParsing() throws Exception {
         byte[] accountsFileData = ("<?xml version='1.0' encoding='utf-8' standalone='yes' ?>\n"
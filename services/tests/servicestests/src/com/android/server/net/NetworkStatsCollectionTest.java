@@ -217,6 +217,51 @@ public class NetworkStatsCollectionTest extends AndroidTestCase {
                 0, NetworkStatsAccess.Level.DEVICE);
     }
 
+    public void testReadMatching() throws Exception {
+        final NetworkStatsCollection collection = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        final NetworkStats.Entry entry = new NetworkStats.Entry();
+        final NetworkIdentitySet identSet = new NetworkIdentitySet();
+        identSet.add(new NetworkIdentity(TYPE_MOBILE, TelephonyManager.NETWORK_TYPE_UNKNOWN,
+                TEST_IMSI, null, false, true));
+        final int myUid = Process.myUid();
+        final int otherUid = Process.myUid() + 1;
+
+        entry.rxBytes = 32;
+        collection.recordData(identSet, myUid, SET_DEFAULT, TAG_NONE, 0, HOUR_IN_MILLIS, entry);
+        entry.rxBytes = 64;
+        collection.recordData(identSet, myUid, SET_DEFAULT, TAG_NONE, 2 * HOUR_IN_MILLIS,
+                3 * HOUR_IN_MILLIS, entry);
+        entry.rxBytes = 128;
+        collection.recordData(identSet, otherUid, SET_DEFAULT, TAG_NONE, 0, HOUR_IN_MILLIS,
+                entry);
+
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        collection.write(new DataOutputStream(bos));
+
+        // only the requested UID should be loaded
+        final NetworkStatsCollection matching = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        matching.readMatching(new ByteArrayInputStream(bos.toByteArray()),
+                buildTemplateMobileAll(TEST_IMSI), myUid, SET_DEFAULT, TAG_NONE,
+                Long.MIN_VALUE, Long.MAX_VALUE);
+        MoreAsserts.assertEquals(new int[] { myUid },
+                matching.getRelevantUids(NetworkStatsAccess.Level.DEVICE));
+        assertSummaryTotal(matching, buildTemplateMobileAll(TEST_IMSI), 32 + 64, 0, 0, 0,
+                NetworkStatsAccess.Level.DEVICE);
+
+        // and histories entirely outside the requested range are skipped
+        matching.reset();
+        matching.readMatching(new ByteArrayInputStream(bos.toByteArray()),
+                buildTemplateMobileAll(TEST_IMSI), otherUid, SET_DEFAULT, TAG_NONE,
+                2 * HOUR_IN_MILLIS, 3 * HOUR_IN_MILLIS);
+        assertTrue(matching.isEmpty());
+
+        // while a full read still sees everything
+        final NetworkStatsCollection full = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        full.read(new ByteArrayInputStream(bos.toByteArray()));
+        assertSummaryTotal(full, buildTemplateMobileAll(TEST_IMSI), 32 + 64 + 128, 0, 0, 0,
+                NetworkStatsAccess.Level.DEVICE);
+    }
+
     /**
      * Copy a {@link Resources#openRawResource(int)} into {@link File} for
      * testing purposes.
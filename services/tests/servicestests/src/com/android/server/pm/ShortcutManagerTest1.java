@@ -3249,6 +3249,62 @@ public class ShortcutManagerTest1 extends BaseShortcutManagerTest {
         // TODO Check all other fields
     }
 
+    /**
+     * Each package's shortcuts are saved in their own file, which is only read when the package
+     * is accessed and only rewritten when its shortcuts change.
+     */
+    public void testSaveAndLoadUser_perPackageFiles() {
+        runWithCaller(CALLING_PACKAGE_1, USER_0, () -> {
+            assertTrue(mManager.setDynamicShortcuts(list(makeShortcut("s1"))));
+        });
+        runWithCaller(CALLING_PACKAGE_2, USER_0, () -> {
+            assertTrue(mManager.setDynamicShortcuts(list(makeShortcut("s1"),
+                    makeShortcut("s2"))));
+        });
+        mService.saveDirtyInfo();
+
+        final File file1 = mService.getPackageShortcutsFile(USER_0, CALLING_PACKAGE_1);
+        final File file2 = mService.getPackageShortcutsFile(USER_0, CALLING_PACKAGE_2);
+        assertTrue(file1.exists());
+        assertTrue(file2.exists());
+        assertTrue(file1.setLastModified(0));
+        assertTrue(file2.setLastModified(0));
+
+        // Restore.
+        initService();
+        mService.getUserShortcutsLocked(USER_0);
+
+        assertFalse(mService.getPackageShortcutForTest(CALLING_PACKAGE_1, USER_0)
+                .isShortcutsLoaded());
+        assertFalse(mService.getPackageShortcutForTest(CALLING_PACKAGE_2, USER_0)
+                .isShortcutsLoaded());
+
+        runWithCaller(CALLING_PACKAGE_1, USER_0, () -> {
+            assertShortcutIds(mManager.getDynamicShortcuts(), "s1");
+            assertTrue(mManager.addDynamicShortcuts(list(makeShortcut("s3"))));
+        });
+        assertTrue(mService.getPackageShortcutForTest(CALLING_PACKAGE_1, USER_0)
+                .isShortcutsLoaded());
+        assertFalse(mService.getPackageShortcutForTest(CALLING_PACKAGE_2, USER_0)
+                .isShortcutsLoaded());
+
+        mService.saveDirtyInfo();
+
+        // Only the changed package has been written.
+        assertTrue(file1.lastModified() != 0);
+        assertEquals(0, file2.lastModified());
+
+        // Restore again.
+        initService();
+
+        runWithCaller(CALLING_PACKAGE_1, USER_0, () -> {
+            assertShortcutIds(mManager.getDynamicShortcuts(), "s1", "s3");
+        });
+        runWithCaller(CALLING_PACKAGE_2, USER_0, () -> {
+            assertShortcutIds(mManager.getDynamicShortcuts(), "s1", "s2");
+        });
+    }
+
     public void testCleanupPackage() {
         runWithCaller(CALLING_PACKAGE_1, USER_0, () -> {
             assertTrue(mManager.setDynamicShortcuts(list(
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.power;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.os.PowerManager;
+import android.os.test.TestLooper;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.view.WindowManagerPolicy;
+
+import com.android.internal.app.IAppOpsService;
+import com.android.internal.app.IBatteryStats;
+
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests for how {@link com.android.server.power.Notifier} reports partial wake lock releases.
+ */
+public class NotifierTest extends AndroidTestCase {
+    private static final int UID = 10050;
+    private static final int PID = 1234;
+    private static final String TAG = "tag";
+    private static final String PACKAGE = "com.example";
+
+    private @Mock IBatteryStats mBatteryStats;
+    private @Mock IAppOpsService mAppOps;
+    private @Mock SuspendBlocker mSuspendBlocker;
+    private @Mock WindowManagerPolicy mPolicy;
+    private TestLooper mLooper;
+    private Notifier mNotifier;
+
+    public void setUp() throws Exception {
+        super.setUp();
+        MockitoAnnotations.initMocks(this);
+
+        final Context context = mock(Context.class);
+        final Resources resources = mock(Resources.class);
+        when(context.getResources()).thenReturn(resources);
+        mLooper = new TestLooper();
+        mNotifier = new Notifier(mLooper.getLooper(), context, mBatteryStats, mAppOps,
+                mSuspendBlocker, mPolicy);
+    }
+
+    @SmallTest
+    public void testSingleCycleIsReported() throws Exception {
+        acquire();
+        release();
+        verify(mBatteryStats, times(1)).noteStartWakelock(eq(UID), eq(PID), eq(TAG), any(),
+                anyInt(), anyBoolean());
+        verify(mBatteryStats, times(1)).noteStopWakelock(eq(UID), eq(PID), eq(TAG), any(),
+                anyInt());
+    }
+
+    @SmallTest
+    public void testCyclingWakeLockIsCoalesced() throws Exception {
+        acquire();
+        release();
+        // Acquired again right away, so its releases are held back from now on.
+        acquire();
+        release();
+        verify(mBatteryStats, times(1)).noteStopWakelock(eq(UID), eq(PID), eq(TAG), any(),
+                anyInt());
+
+        // A release followed by an acquire cancel out.
+        acquire();
+        release();
+        acquire();
+        verify(mBatteryStats, times(2)).noteStartWakelock(eq(UID), eq(PID), eq(TAG), any(),
+                anyInt(), anyBoolean());
+        verify(mBatteryStats, times(1)).noteStopWakelock(eq(UID), eq(PID), eq(TAG), any(),
+                anyInt());
+    }
+
+    @SmallTest
+    public void testHeldBackReleaseIsFlushed() throws Exception {
+        acquire();
+        release();
+        acquire();
+        release();
+        verify(mBatteryStats, times(1)).noteStopWakelock(eq(UID), eq(PID), eq(TAG), any(),
+                anyInt());
+
+        // The delayed flush reports it.
+        mLooper.moveTimeForward(1000);
+        mLooper.dispatchAll();
+        verify(mBatteryStats, times(2)).noteStopWakelock(eq(UID), eq(PID), eq(TAG), any(),
+                anyInt());
+
+        // Once flushed, the wake lock is no longer treated as cycling.
+        acquire();
+        release();
+        verify(mBatteryStats, times(3)).noteStopWakelock(eq(UID), eq(PID), eq(TAG), any(),
+                anyInt());
+        mNotifier.flushPendingWakeLockReleases();
+        verify(mBatteryStats, times(3)).noteStopWakelock(eq(UID), eq(PID), eq(TAG), any(),
+                anyInt());
+    }
+
+    @SmallTest
+    public void testOtherWakeLocksAreNotHeldBack() throws Exception {
+        acquire();
+        release();
+        acquire();
+        mNotifier.onWakeLockAcquired(PowerManager.PARTIAL_WAKE_LOCK, "other", PACKAGE, UID, PID,
+                null /* workSource */, null /* historyTag */);
+        mNotifier.onWakeLockReleased(PowerManager.PARTIAL_WAKE_LOCK, "other", PACKAGE, UID, PID,
+                null /* workSource */, null /* historyTag */);
+        verify(mBatteryStats, times(1)).noteStopWakelock(eq(UID), eq(PID), eq("other"), any(),
+                anyInt());
+    }
+
+    @SmallTest
+    public void testFlushWaitsForConcurrentFlush() throws Exception {
+        acquire();
+        release();
+        acquire();
+        release();
+
+        final CountDownLatch reporting = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            reporting.countDown();
+            proceed.await();
+            return null;
+        }).when(mBatteryStats).noteStopWakelock(anyInt(), anyInt(), anyString(), any(),
+                anyInt());
+
+        final Thread handlerFlush = new Thread(() -> mNotifier.flushPendingWakeLockReleases());
+        handlerFlush.start();
+        assertTrue(reporting.await(5, TimeUnit.SECONDS));
+
+        // Nothing is pending any more, but the release taken by the other flush has not been
+        // reported yet, so a flush before suspending must wait for it.
+        final CountDownLatch flushed = new CountDownLatch(1);
+        final Thread suspendFlush = new Thread(() -> {
+            mNotifier.flushPendingWakeLockReleases();
+            flushed.countDown();
+        });
+        suspendFlush.start();
+        assertFalse(flushed.await(100, TimeUnit.MILLISECONDS));
+
+        proceed.countDown();
+        assertTrue(flushed.await(5, TimeUnit.SECONDS));
+        handlerFlush.join();
+        suspendFlush.join();
+    }
+
+    private void acquire() {
+        mNotifier.onWakeLockAcquired(PowerManager.PARTIAL_WAKE_LOCK, TAG, PACKAGE, UID, PID,
+                null /* workSource */, null /* historyTag */);
+    }
+
+    private void release() {
+        mNotifier.onWakeLockReleased(PowerManager.PARTIAL_WAKE_LOCK, TAG, PACKAGE, UID, PID,
+                null /* workSource */, null /* historyTag */);
+    }
+}
@@ -16,10 +16,15 @@
 
 package com.android.server.power;
 
+import android.app.ActivityManager;
 import android.content.Context;
 import android.hardware.display.DisplayManagerInternal.DisplayPowerRequest;
+import android.os.Binder;
+import android.os.IBinder;
 import android.os.PowerManager;
 import android.os.PowerSaveState;
+import android.os.UserHandle;
+import android.os.WorkSource;
 import android.test.AndroidTestCase;
 import android.test.suitebuilder.annotation.SmallTest;
 import android.text.TextUtils;
@@ -45,6 +50,8 @@ public class PowerManagerServiceTest extends AndroidTestCase {
     private static final float BRIGHTNESS_FACTOR = 0.7f;
     private static final boolean BATTERY_SAVER_ENABLED = true;
     private static final String LAST_REBOOT_REASON = "last_reboot_reason";
+    private static final int APP_UID = 10050;
+    private static final int APP_PID = 1234;
 
     private @Mock BatterySaverPolicy mBatterySaverPolicy;
     private PowerManagerService mService;
@@ -92,4 +99,121 @@ public class PowerManagerServiceTest extends AndroidTestCase {
         int reason = mService.getLastShutdownReasonInternal(mTempReason);
         assertThat(reason).isEqualTo(PowerManager.SHUTDOWN_REASON_THERMAL_SHUTDOWN);
     }
+
+    @SmallTest
+    public void testWakeLockSummary_AcquireAndRelease() {
+        final IBinder partial = new Binder();
+        final IBinder bright = new Binder();
+        final IBinder dim = new Binder();
+        assertThat(mService.getRawWakeLockSummary()).isEqualTo(0);
+
+        acquire(partial, PowerManager.PARTIAL_WAKE_LOCK);
+        final int partialSummary = mService.getRawWakeLockSummary();
+        assertThat(partialSummary).isNotEqualTo(0);
+        assertWakeLockSummaryConsistent();
+
+        acquire(bright, PowerManager.SCREEN_BRIGHT_WAKE_LOCK);
+        acquire(dim, PowerManager.SCREEN_DIM_WAKE_LOCK);
+        assertWakeLockSummaryConsistent();
+
+        // A second wake lock of the same level keeps the bit when the first goes away.
+        final IBinder partial2 = new Binder();
+        acquire(partial2, PowerManager.PARTIAL_WAKE_LOCK);
+        mService.releaseWakeLockInternal(partial, 0);
+        assertThat(mService.getRawWakeLockSummary() & partialSummary).isEqualTo(partialSummary);
+        assertWakeLockSummaryConsistent();
+
+        mService.releaseWakeLockInternal(bright, 0);
+        mService.releaseWakeLockInternal(dim, 0);
+        mService.releaseWakeLockInternal(partial2, 0);
+        assertThat(mService.getRawWakeLockSummary()).isEqualTo(0);
+
+        // Releasing an unknown wake lock changes nothing.
+        mService.releaseWakeLockInternal(partial, 0);
+        assertThat(mService.getRawWakeLockSummary()).isEqualTo(0);
+    }
+
+    @SmallTest
+    public void testWakeLockSummary_UpdateProperties() {
+        final IBinder lock = new Binder();
+        acquire(lock, PowerManager.PARTIAL_WAKE_LOCK);
+        final int partialSummary = mService.getRawWakeLockSummary();
+
+        // Acquiring the same binder with other flags updates the wake lock in place.
+        acquire(lock, PowerManager.SCREEN_BRIGHT_WAKE_LOCK);
+        assertThat(mService.getRawWakeLockSummary()).isNotEqualTo(partialSummary);
+        assertWakeLockSummaryConsistent();
+
+        acquire(lock, PowerManager.PARTIAL_WAKE_LOCK);
+        assertThat(mService.getRawWakeLockSummary()).isEqualTo(partialSummary);
+        assertWakeLockSummaryConsistent();
+
+        mService.releaseWakeLockInternal(lock, 0);
+        assertThat(mService.getRawWakeLockSummary()).isEqualTo(0);
+    }
+
+    @SmallTest
+    public void testWakeLockSummary_DisabledToggles() {
+        final IBinder lock = new Binder();
+        acquire(lock, PowerManager.PARTIAL_WAKE_LOCK);
+        mService.updateUidProcStateInternal(APP_UID, ActivityManager.PROCESS_STATE_CACHED_EMPTY);
+        assertThat(mService.getRawWakeLockSummary()).isNotEqualTo(0);
+
+        // Partial wake locks of cached apps are ignored in device idle.
+        mService.setDeviceIdleModeInternal(true);
+        assertThat(mService.getRawWakeLockSummary()).isEqualTo(0);
+        assertWakeLockSummaryConsistent();
+
+        // Unless the app is whitelisted.
+        mService.setDeviceIdleWhitelistInternal(new int[] {UserHandle.getAppId(APP_UID)});
+        assertThat(mService.getRawWakeLockSummary()).isNotEqualTo(0);
+        assertWakeLockSummaryConsistent();
+
+        mService.setDeviceIdleWhitelistInternal(new int[0]);
+        assertThat(mService.getRawWakeLockSummary()).isEqualTo(0);
+
+        // Or comes to the foreground.
+        mService.updateUidProcStateInternal(APP_UID, ActivityManager.PROCESS_STATE_TOP);
+        assertThat(mService.getRawWakeLockSummary()).isNotEqualTo(0);
+        assertWakeLockSummaryConsistent();
+
+        // Releasing a disabled wake lock must not take away what other wake locks contribute.
+        final IBinder other = new Binder();
+        mService.acquireWakeLockInternal(other, PowerManager.PARTIAL_WAKE_LOCK, "other",
+                "android", null /* ws */, null /* historyTag */, 1000 /* uid */, APP_PID);
+        mService.updateUidProcStateInternal(APP_UID, ActivityManager.PROCESS_STATE_CACHED_EMPTY);
+        assertWakeLockSummaryConsistent();
+        mService.releaseWakeLockInternal(lock, 0);
+        assertThat(mService.getRawWakeLockSummary()).isNotEqualTo(0);
+        assertWakeLockSummaryConsistent();
+        mService.releaseWakeLockInternal(other, 0);
+        assertThat(mService.getRawWakeLockSummary()).isEqualTo(0);
+    }
+
+    @SmallTest
+    public void testWakeLockSummary_Death() {
+        final IBinder partial = new Binder();
+        final IBinder bright = new Binder();
+        acquire(partial, PowerManager.PARTIAL_WAKE_LOCK);
+        acquire(bright, PowerManager.SCREEN_BRIGHT_WAKE_LOCK);
+
+        mService.simulateWakeLockDeath(bright);
+        assertWakeLockSummaryConsistent();
+        mService.simulateWakeLockDeath(partial);
+        assertThat(mService.getRawWakeLockSummary()).isEqualTo(0);
+
+        // A release after the death is ignored.
+        mService.releaseWakeLockInternal(partial, 0);
+        assertThat(mService.getRawWakeLockSummary()).isEqualTo(0);
+    }
+
+    private void acquire(IBinder lock, int flags) {
+        mService.acquireWakeLockInternal(lock, flags, "tag", "com.example",
+                new WorkSource(APP_UID), null /* historyTag */, APP_UID, APP_PID);
+    }
+
+    private void assertWakeLockSummaryConsistent() {
+        assertThat(mService.getRawWakeLockSummary())
+                .isEqualTo(mService.computeRawWakeLockSummary());
+    }
 }
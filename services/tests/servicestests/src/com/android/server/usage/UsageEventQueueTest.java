@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.usage;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.app.usage.UsageEvents;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Tests for {@link UsageEventQueue}.
+ *
+ * Build/Install/Run:
+ *  bit FrameworksServicesTests:com.android.server.usage.UsageEventQueueTest
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class UsageEventQueueTest {
+
+    private static UsageEvents.Event newEvent(long timeStamp) {
+        final UsageEvents.Event event = new UsageEvents.Event();
+        event.mPackage = "com.android.test";
+        event.mTimeStamp = timeStamp;
+        return event;
+    }
+
+    @Test
+    public void testCapacityRoundsUpToPowerOfTwo() {
+        assertEquals(1, new UsageEventQueue(1).capacity());
+        assertEquals(8, new UsageEventQueue(5).capacity());
+        assertEquals(1024, new UsageEventQueue(1024).capacity());
+    }
+
+    @Test
+    public void testDrainPreservesOrderAndUser() {
+        final UsageEventQueue queue = new UsageEventQueue(4);
+        final UsageEvents.Event first = newEvent(1);
+        final UsageEvents.Event second = newEvent(2);
+        assertTrue(queue.offer(first, 0));
+        assertTrue(queue.offer(second, 10));
+
+        final ArrayList<UsageEvents.Event> events = new ArrayList<>();
+        final ArrayList<Integer> users = new ArrayList<>();
+        assertEquals(2, queue.drain((event, userId) -> {
+            events.add(event);
+            users.add(userId);
+        }));
+        assertSame(first, events.get(0));
+        assertSame(second, events.get(1));
+        assertEquals(0, (int) users.get(0));
+        assertEquals(10, (int) users.get(1));
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void testOfferFailsWhenFull() {
+        final UsageEventQueue queue = new UsageEventQueue(2);
+        assertTrue(queue.offer(newEvent(1), 0));
+        assertTrue(queue.offer(newEvent(2), 0));
+        assertFalse(queue.offer(newEvent(3), 0));
+
+        assertEquals(2, queue.drain((event, userId) -> {}));
+        assertTrue(queue.offer(newEvent(4), 0));
+    }
+
+    @Test
+    public void testAddSpillsInOrderWhenFull() {
+        final UsageEventQueue queue = new UsageEventQueue(2);
+        assertTrue(queue.add(newEvent(1), 0));
+        assertTrue(queue.add(newEvent(2), 0));
+        assertFalse(queue.add(newEvent(3), 0));
+        assertFalse(queue.add(newEvent(4), 10));
+        assertEquals(2, queue.getSpillCount());
+        // Nothing may pass the spilled events.
+        assertFalse(queue.offer(newEvent(5), 0));
+        assertFalse(queue.isEmpty());
+
+        final ArrayList<UsageEvents.Event> events = new ArrayList<>();
+        final ArrayList<Integer> users = new ArrayList<>();
+        assertEquals(4, queue.drain((event, userId) -> {
+            events.add(event);
+            users.add(userId);
+        }));
+        for (int i = 0; i < 4; i++) {
+            assertEquals(i + 1, events.get(i).mTimeStamp);
+        }
+        assertEquals(10, (int) users.get(3));
+        assertTrue(queue.isEmpty());
+
+        // Once drained, events go to the ring again.
+        assertTrue(queue.add(newEvent(6), 0));
+        assertEquals(2, queue.getSpillCount());
+    }
+
+    @Test
+    public void testConcurrentProducersWithSpill() throws Exception {
+        final int producers = 4;
+        final int perProducer = 10000;
+        final UsageEventQueue queue = new UsageEventQueue(16);
+        final CountDownLatch done = new CountDownLatch(producers);
+        final int[] lastSeen = new int[producers];
+        final int[] drained = new int[1];
+
+        for (int p = 0; p < producers; p++) {
+            final int userId = p;
+            new Thread(() -> {
+                for (int i = 1; i <= perProducer; i++) {
+                    queue.add(newEvent(i), userId);
+                }
+                done.countDown();
+            }).start();
+        }
+
+        final UsageEventQueue.Consumer consumer = (event, userId) -> {
+            // Spilled or not, events from a single producer must come out in order.
+            assertEquals(lastSeen[userId] + 1, event.mTimeStamp);
+            lastSeen[userId] = (int) event.mTimeStamp;
+            drained[0]++;
+        };
+        while (done.getCount() > 0 || !queue.isEmpty()) {
+            queue.drain(consumer);
+        }
+        assertEquals(producers * perProducer, drained[0]);
+    }
+
+    @Test
+    public void testConcurrentProducers() throws Exception {
+        final int producers = 4;
+        final int perProducer = 10000;
+        final UsageEventQueue queue = new UsageEventQueue(256);
+        final CountDownLatch done = new CountDownLatch(producers);
+        final int[] lastSeen = new int[producers];
+        final int[] drained = new int[1];
+
+        for (int p = 0; p < producers; p++) {
+            final int userId = p;
+            new Thread(() -> {
+                for (int i = 1; i <= perProducer; i++) {
+                    final UsageEvents.Event event = newEvent(i);
+                    while (!queue.offer(event, userId)) {
+                        Thread.yield();
+                    }
+                }
+                done.countDown();
+            }).start();
+        }
+
+        final UsageEventQueue.Consumer consumer = (event, userId) -> {
+            // Events from a single producer must come out in the order they went in.
+            assertEquals(lastSeen[userId] + 1, event.mTimeStamp);
+            lastSeen[userId] = (int) event.mTimeStamp;
+            drained[0]++;
+        };
+        while (done.getCount() > 0 || !queue.isEmpty()) {
+            queue.drain(consumer);
+        }
+        assertEquals(producers * perProducer, drained[0]);
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.wm;
+
+import static android.view.WindowManager.INPUT_CONSUMER_WALLPAPER;
+import static org.junit.Assert.assertEquals;
+
+import android.platform.test.annotations.Presubmit;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Tests for the {@link InputMonitor} class.
+ *
+ * runtest frameworks-services -c com.android.server.wm.InputMonitorTests
+ */
+@SmallTest
+@Presubmit
+@RunWith(AndroidJUnit4.class)
+public class InputMonitorTests extends WindowTestsBase {
+
+    @Test
+    public void testUnchangedInputWindowsAreNotSentAgain() throws Exception {
+        final InputMonitor inputMonitor = sWm.mInputMonitor;
+        synchronized (sWm.mWindowMap) {
+            inputMonitor.updateInputWindowsLw(true /* force */);
+            final int sent = inputMonitor.getSentInputWindowUpdatesForTest();
+            final int skipped = inputMonitor.getSkippedInputWindowUpdatesForTest();
+
+            inputMonitor.setUpdateInputWindowsNeededLw();
+            inputMonitor.updateInputWindowsLw(false /* force */);
+
+            assertEquals(sent, inputMonitor.getSentInputWindowUpdatesForTest());
+            assertEquals(skipped + 1, inputMonitor.getSkippedInputWindowUpdatesForTest());
+        }
+    }
+
+    @Test
+    public void testChangedInputWindowIsSent() throws Exception {
+        final InputMonitor inputMonitor = sWm.mInputMonitor;
+        synchronized (sWm.mWindowMap) {
+            inputMonitor.createInputConsumer(INPUT_CONSUMER_WALLPAPER, null /* inputChannel */);
+            try {
+                inputMonitor.layoutInputConsumers(100, 200);
+                inputMonitor.updateInputWindowsLw(true /* force */);
+                final int sent = inputMonitor.getSentInputWindowUpdatesForTest();
+
+                // Same frame, nothing to send.
+                inputMonitor.layoutInputConsumers(100, 200);
+                inputMonitor.setUpdateInputWindowsNeededLw();
+                inputMonitor.updateInputWindowsLw(false /* force */);
+                assertEquals(sent, inputMonitor.getSentInputWindowUpdatesForTest());
+
+                // The handle is updated in place, which still has to be sent.
+                inputMonitor.layoutInputConsumers(200, 100);
+                inputMonitor.setUpdateInputWindowsNeededLw();
+                inputMonitor.updateInputWindowsLw(false /* force */);
+                assertEquals(sent + 1, inputMonitor.getSentInputWindowUpdatesForTest());
+            } finally {
+                inputMonitor.destroyInputConsumer(INPUT_CONSUMER_WALLPAPER);
+            }
+        }
+    }
+}
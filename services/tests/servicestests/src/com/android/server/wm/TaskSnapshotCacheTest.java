@@ -43,7 +43,7 @@ public class TaskSnapshotCacheTest extends TaskSnapshotPersisterTestBase {
     @Before
     public void setUp() throws Exception {
         super.setUp();
-        mCache = new TaskSnapshotCache(sWm, mLoader);
+        mCache = new TaskSnapshotCache(sWm, mLoader, mPersister);
     }
 
     @Test
@@ -108,4 +108,58 @@ public class TaskSnapshotCacheTest extends TaskSnapshotPersisterTestBase {
         assertNotNull(mCache.getSnapshot(window.getTask().mTaskId, sWm.mCurrentUserId,
                 true /* restoreFromDisk */, false /* reducedResolution */));
     }
+
+    @Test
+    public void testRestoredReducedCached() throws Exception {
+        final WindowState window = createWindow(null, FIRST_APPLICATION_WINDOW, "window");
+        mPersister.persistSnapshot(window.getTask().mTaskId, sWm.mCurrentUserId, createSnapshot());
+        mPersister.waitForQueueEmpty();
+
+        // Load it from disk
+        assertNotNull(mCache.getSnapshot(window.getTask().mTaskId, sWm.mCurrentUserId,
+                true /* restoreFromDisk */, true /* reducedResolution */));
+
+        // It is served from memory now, but only when a reduced one will do.
+        assertNotNull(mCache.getSnapshot(window.getTask().mTaskId, sWm.mCurrentUserId,
+                false /* restoreFromDisk */, true /* reducedResolution */));
+        assertNull(mCache.getSnapshot(window.getTask().mTaskId, sWm.mCurrentUserId,
+                false /* restoreFromDisk */, false /* reducedResolution */));
+
+        mCache.onTaskRemoved(window.getTask().mTaskId);
+        assertNull(mCache.getSnapshot(window.getTask().mTaskId, sWm.mCurrentUserId,
+                false /* restoreFromDisk */, true /* reducedResolution */));
+    }
+
+    @Test
+    public void testRestoreNotCachedWhileStorePending() throws Exception {
+        final WindowState window = createWindow(null, FIRST_APPLICATION_WINDOW, "window");
+        mPersister.persistSnapshot(window.getTask().mTaskId, sWm.mCurrentUserId, createSnapshot());
+        mPersister.waitForQueueEmpty();
+
+        // A newer snapshot is queued, but not written yet.
+        mPersister.setPaused(true);
+        mPersister.persistSnapshot(window.getTask().mTaskId, sWm.mCurrentUserId, createSnapshot());
+        try {
+            // The older one on disk is returned, but not kept.
+            assertNotNull(mCache.getSnapshot(window.getTask().mTaskId, sWm.mCurrentUserId,
+                    true /* restoreFromDisk */, true /* reducedResolution */));
+            assertNull(mCache.getSnapshot(window.getTask().mTaskId, sWm.mCurrentUserId,
+                    false /* restoreFromDisk */, true /* reducedResolution */));
+        } finally {
+            mPersister.setPaused(false);
+        }
+        mPersister.waitForQueueEmpty();
+    }
+
+    @Test
+    public void testPreloadReduced() throws Exception {
+        final WindowState window = createWindow(null, FIRST_APPLICATION_WINDOW, "window");
+        mPersister.persistSnapshot(window.getTask().mTaskId, sWm.mCurrentUserId, createSnapshot());
+        mPersister.waitForQueueEmpty();
+
+        mCache.preloadReducedSnapshots(new int[] { window.getTask().mTaskId },
+                new int[] { sWm.mCurrentUserId });
+        assertNotNull(mCache.getSnapshot(window.getTask().mTaskId, sWm.mCurrentUserId,
+                false /* restoreFromDisk */, true /* reducedResolution */));
+    }
 }
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.wm;
+
+import static android.view.WindowManager.LayoutParams.TYPE_APPLICATION;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.graphics.Rect;
+import android.os.IBinder;
+import android.platform.test.annotations.Presubmit;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for the {@link WindowQuerySnapshot} class.
+ *
+ * runtest frameworks-services -c com.android.server.wm.WindowQuerySnapshotTests
+ */
+@SmallTest
+@Presubmit
+@RunWith(AndroidJUnit4.class)
+public class WindowQuerySnapshotTests extends WindowTestsBase {
+
+    @Test
+    public void testFrameIsServedFromLastPublishedSnapshot() throws Exception {
+        final WindowState win = createWindow(null, TYPE_APPLICATION, "win");
+        final IBinder client = win.mClient.asBinder();
+        final Rect frame = new Rect();
+        synchronized (sWm.mWindowMap) {
+            sWm.mWindowMap.put(client, win);
+        }
+        try {
+            synchronized (sWm.mWindowMap) {
+                win.mDisplayFrame.set(10, 20, 30, 40);
+                sWm.publishQuerySnapshotLocked();
+                // Not visible to queries until the next snapshot is published.
+                win.mDisplayFrame.set(0, 0, 50, 50);
+            }
+            sWm.getWindowDisplayFrame(win.mSession, win.mClient, frame);
+            assertEquals(new Rect(10, 20, 30, 40), frame);
+
+            synchronized (sWm.mWindowMap) {
+                sWm.publishQuerySnapshotLocked();
+            }
+            sWm.getWindowDisplayFrame(win.mSession, win.mClient, frame);
+            assertEquals(new Rect(0, 0, 50, 50), frame);
+        } finally {
+            synchronized (sWm.mWindowMap) {
+                sWm.mWindowMap.remove(client);
+                sWm.publishQuerySnapshotLocked();
+            }
+        }
+        sWm.getWindowDisplayFrame(win.mSession, win.mClient, frame);
+        assertTrue(frame.isEmpty());
+    }
+
+    @Test
+    public void testQueryDoesNotWaitForWindowLock() throws Exception {
+        final WindowState win = createWindow(null, TYPE_APPLICATION, "win");
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Thread holder = new Thread(() -> {
+            synchronized (sWm.mWindowMap) {
+                locked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                }
+            }
+        });
+        holder.start();
+        try {
+            assertTrue(locked.await(5, TimeUnit.SECONDS));
+            final CountDownLatch queried = new CountDownLatch(1);
+            new Thread(() -> {
+                sWm.getWindowDisplayFrame(win.mSession, win.mClient, new Rect());
+                queried.countDown();
+            }).start();
+            // The lock is only released below, so a query that took it couldn't finish.
+            assertTrue(queried.await(5, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            holder.join();
+        }
+    }
+}
@@ -37,6 +37,7 @@ import static android.view.WindowManager.LayoutParams.TYPE_APPLICATION_MEDIA;
 import static android.view.WindowManager.LayoutParams.TYPE_APPLICATION_MEDIA_OVERLAY;
 import static android.view.WindowManager.LayoutParams.TYPE_APPLICATION_SUB_PANEL;
 import static android.view.WindowManager.LayoutParams.TYPE_INPUT_METHOD;
+import static com.android.server.wm.WindowStateAnimator.HAS_DRAWN;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
@@ -207,6 +208,30 @@ public class WindowStateTests extends WindowTestsBase {
         assertTrue(windows.isEmpty());
     }
 
+    @Test
+    public void testSurfacePlacementNeeded() throws Exception {
+        final WindowState parentWindow = createWindow(null, TYPE_APPLICATION, "parentWindow");
+        final WindowState child = createWindow(parentWindow, FIRST_SUB_WINDOW, "child");
+        assertTrue(parentWindow.isSurfacePlacementNeeded());
+        assertTrue(child.isSurfacePlacementNeeded());
+
+        parentWindow.mWinAnimator.mDrawState = HAS_DRAWN;
+        child.mWinAnimator.mDrawState = HAS_DRAWN;
+        parentWindow.onSurfacePlaced();
+        child.onSurfacePlaced();
+        assertFalse(parentWindow.isSurfacePlacementNeeded());
+        assertFalse(child.isSurfacePlacementNeeded());
+
+        child.setSurfacePlacementNeeded();
+        assertTrue(child.isSurfacePlacementNeeded());
+        assertFalse(parentWindow.isSurfacePlacementNeeded());
+        child.onSurfacePlaced();
+
+        // Child windows are placed relative to their parent.
+        parentWindow.setSurfacePlacementNeeded();
+        assertTrue(child.isSurfacePlacementNeeded());
+    }
+
     @Test
     public void testPrepareWindowToDisplayDuringRelayout() throws Exception {
         testPrepareWindowToDisplayDuringRelayout(false /*wasVisible*/);
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+package com.android.server.usage;
+
+import android.app.usage.UsageEvents;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free ring of usage events that any number of threads can report into
+ * and that a single consumer drains in batches.
+ *
+ * Producers claim a slot by advancing the tail sequence and publish the event with a volatile
+ * write, so reporting never blocks on the service lock. The consumer must be externally
+ * serialized; {@link UsageStatsService} only drains while holding its lock.
+ *
+ * Events {@link #add added} while the ring is full are spilled into a list under a small lock
+ * of its own. Until that list has been drained, later events are spilled behind them rather
+ * than put in the ring, and the list is only drained once the ring is empty, so that events
+ * from one thread still come out in the order they were added.
+ */
+class UsageEventQueue {
+
+    /**
+     * Receives events drained from the queue, in the order they were claimed.
+     */
+    interface Consumer {
+        void onEvent(UsageEvents.Event event, int userId);
+    }
+
+    private final int mMask;
+    private final AtomicReferenceArray<UsageEvents.Event> mEvents;
+    private final int[] mUserIds;
+
+    /** Next sequence number to be claimed by a producer. */
+    private final AtomicLong mTail = new AtomicLong();
+
+    /** Next sequence number to be consumed. Only written by the consumer. */
+    private volatile long mHead;
+
+    private final Object mSpillLock = new Object();
+    @GuardedBy("mSpillLock")
+    private final ArrayList<UsageEvents.Event> mSpilledEvents = new ArrayList<>();
+    @GuardedBy("mSpillLock")
+    private final ArrayList<Integer> mSpilledUserIds = new ArrayList<>();
+    /** Whether there are spilled events; read without the lock to keep offering lock-free. */
+    private volatile boolean mSpilled;
+    @GuardedBy("mSpillLock")
+    private long mSpillCount;
+
+    /**
+     * @param capacity the maximum number of undrained events, rounded up to a power of two.
+     */
+    UsageEventQueue(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        final int actual = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        mMask = actual - 1;
+        mEvents = new AtomicReferenceArray<>(actual);
+        mUserIds = new int[actual];
+    }
+
+    int capacity() {
+        return mMask + 1;
+    }
+
+    /**
+     * Adds an event to the queue, spilling it if the ring is full. Safe to call from any thread;
+     * only takes a lock while events are being spilled.
+     *
+     * @return {@code false} if the event was spilled.
+     */
+    boolean add(UsageEvents.Event event, int userId) {
+        if (offer(event, userId)) {
+            return true;
+        }
+        synchronized (mSpillLock) {
+            mSpilledEvents.add(event);
+            mSpilledUserIds.add(userId);
+            mSpilled = true;
+            mSpillCount++;
+        }
+        return false;
+    }
+
+    /**
+     * Adds an event to the ring. Safe to call from any thread.
+     *
+     * @return {@code false} if the ring is full or events are spilled, in which case the caller
+     *         must report the event some other way.
+     */
+    boolean offer(UsageEvents.Event event, int userId) {
+        if (mSpilled) {
+            return false;
+        }
+        long seq;
+        do {
+            seq = mTail.get();
+            if (seq - mHead > mMask) {
+                return false;
+            }
+        } while (!mTail.compareAndSet(seq, seq + 1));
+
+        final int index = (int) (seq & mMask);
+        mUserIds[index] = userId;
+        // The volatile write publishes the user id written above.
+        mEvents.set(index, event);
+        return true;
+    }
+
+    boolean isEmpty() {
+        return mTail.get() == mHead && !mSpilled;
+    }
+
+    /** Returns how many events have been spilled so far. */
+    long getSpillCount() {
+        synchronized (mSpillLock) {
+            return mSpillCount;
+        }
+    }
+
+    /**
+     * Hands every published event to {@code consumer} and removes it from the queue. Stops at
+     * the first slot that has been claimed but not yet published; that event, and any spilled
+     * events, will be picked up by the next drain.
+     *
+     * @return the number of events drained.
+     */
+    int drain(Consumer consumer) {
+        int count = drainRing(consumer);
+        if (!mSpilled || mTail.get() != mHead) {
+            return count;
+        }
+        // Nothing was put in the ring after the events were spilled, and everything before
+        // them has been consumed.
+        final UsageEvents.Event[] events;
+        final Integer[] userIds;
+        synchronized (mSpillLock) {
+            events = mSpilledEvents.toArray(new UsageEvents.Event[mSpilledEvents.size()]);
+            userIds = mSpilledUserIds.toArray(new Integer[mSpilledUserIds.size()]);
+            mSpilledEvents.clear();
+            mSpilledUserIds.clear();
+            mSpilled = false;
+        }
+        for (int i = 0; i < events.length; i++) {
+            consumer.onEvent(events[i], userIds[i]);
+        }
+        return count + events.length;
+    }
+
+    private int drainRing(Consumer consumer) {
+        long head = mHead;
+        int count = 0;
+        while (true) {
+            final int index = (int) (head & mMask);
+            final UsageEvents.Event event = mEvents.get(index);
+            if (event == null) {
+                break;
+            }
+            final int userId = mUserIds[index];
+            mEvents.set(index, null);
+            mHead = ++head;
+            count++;
+            consumer.onEvent(event, userId);
+        }
+        return count;
+    }
+}
@@ -112,6 +112,9 @@ public class UsageStatsService extends SystemService implements
     private static final long FLUSH_INTERVAL = COMPRESS_TIME ? TEN_SECONDS : TWENTY_MINUTES;
     private static final long TIME_CHANGE_THRESHOLD_MILLIS = 2 * 1000; // Two seconds.
 
+    /** Maximum number of reported events waiting to be drained by the handler. */
+    private static final int PENDING_EVENT_QUEUE_SIZE = 1024;
+
     private static final boolean ENABLE_KERNEL_UPDATES = true;
     private static final File KERNEL_COUNTER_FILE = new File("/proc/uid_procstat/set");
 
@@ -135,6 +138,8 @@ public class UsageStatsService extends SystemService implements
     static final int MSG_ONE_TIME_CHECK_IDLE_STATES = 10;
 
     private final Object mLock = new Object();
+    private final UsageEventQueue mPendingEvents = new UsageEventQueue(PENDING_EVENT_QUEUE_SIZE);
+    private final UsageEventQueue.Consumer mPendingEventConsumer = this::reportEventLocked;
     Handler mHandler;
     AppOpsManager mAppOps;
     UserManager mUserManager;
@@ -699,44 +704,73 @@ public class UsageStatsService extends SystemService implements
     void shutdown() {
         synchronized (mLock) {
             mHandler.removeMessages(MSG_REPORT_EVENT);
+            drainPendingEventsLocked();
             flushToDiskLocked();
         }
     }
 
     /**
-     * Called by the Binder stub.
+     * Queues an event to be reported on the handler thread. May be called from any thread,
+     * including with the activity manager lock held, and never takes {@link #mLock}.
+     */
+    void postEvent(UsageEvents.Event event, int userId) {
+        // If the handler has fallen far behind, the queue keeps the event in order behind the
+        // ones it already holds.
+        mPendingEvents.add(event, userId);
+        // A pending drain message will pick this event up, since the message is only removed
+        // from the queue right before it is handled.
+        if (!mHandler.hasMessages(MSG_REPORT_EVENT)) {
+            mHandler.sendEmptyMessage(MSG_REPORT_EVENT);
+        }
+    }
+
+    /**
+     * Called on the handler thread to report every queued event under a single acquisition of
+     * the lock.
      */
-    void reportEvent(UsageEvents.Event event, int userId) {
+    void reportEvents() {
         synchronized (mLock) {
-            final long timeNow = checkAndGetTimeLocked();
-            final long elapsedRealtime = SystemClock.elapsedRealtime();
-            convertToSystemTimeLocked(event);
+            drainPendingEventsLocked();
+        }
+    }
 
-            if (event.getPackageName() != null
-                    && mPackageManagerInternal.isPackageEphemeral(userId, event.getPackageName())) {
-                event.mFlags |= Event.FLAG_IS_PACKAGE_INSTANT_APP;
-            }
+    /**
+     * Reports all events that have been posted so far, so that the stats seen by the caller
+     * reflect every event reported before it took the lock.
+     */
+    private void drainPendingEventsLocked() {
+        mPendingEvents.drain(mPendingEventConsumer);
+    }
 
-            final UserUsageStatsService service =
-                    getUserDataAndInitializeIfNeededLocked(userId, timeNow);
-            service.reportEvent(event);
+    private void reportEventLocked(UsageEvents.Event event, int userId) {
+        final long timeNow = checkAndGetTimeLocked();
+        final long elapsedRealtime = SystemClock.elapsedRealtime();
+        convertToSystemTimeLocked(event);
 
-            synchronized (mAppIdleLock) {
-                // TODO: Ideally this should call isAppIdleFiltered() to avoid calling back
-                // about apps that are on some kind of whitelist anyway.
-                final boolean previouslyIdle = mAppIdleHistory.isIdle(
-                        event.mPackage, userId, elapsedRealtime);
-                // Inform listeners if necessary
-                if ((event.mEventType == Event.MOVE_TO_FOREGROUND
-                        || event.mEventType == Event.MOVE_TO_BACKGROUND
-                        || event.mEventType == Event.SYSTEM_INTERACTION
-                        || event.mEventType == Event.USER_INTERACTION)) {
-                    mAppIdleHistory.reportUsage(event.mPackage, userId, elapsedRealtime);
-                    if (previouslyIdle) {
-                        mHandler.sendMessage(mHandler.obtainMessage(MSG_INFORM_LISTENERS, userId,
-                                /* idle = */ 0, event.mPackage));
-                        notifyBatteryStats(event.mPackage, userId, false);
-                    }
+        if (event.getPackageName() != null
+                && mPackageManagerInternal.isPackageEphemeral(userId, event.getPackageName())) {
+            event.mFlags |= Event.FLAG_IS_PACKAGE_INSTANT_APP;
+        }
+
+        final UserUsageStatsService service =
+                getUserDataAndInitializeIfNeededLocked(userId, timeNow);
+        service.reportEvent(event);
+
+        synchronized (mAppIdleLock) {
+            // TODO: Ideally this should call isAppIdleFiltered() to avoid calling back
+            // about apps that are on some kind of whitelist anyway.
+            final boolean previouslyIdle = mAppIdleHistory.isIdle(
+                    event.mPackage, userId, elapsedRealtime);
+            // Inform listeners if necessary
+            if ((event.mEventType == Event.MOVE_TO_FOREGROUND
+                    || event.mEventType == Event.MOVE_TO_BACKGROUND
+                    || event.mEventType == Event.SYSTEM_INTERACTION
+                    || event.mEventType == Event.USER_INTERACTION)) {
+                mAppIdleHistory.reportUsage(event.mPackage, userId, elapsedRealtime);
+                if (previouslyIdle) {
+                    mHandler.sendMessage(mHandler.obtainMessage(MSG_INFORM_LISTENERS, userId,
+                            /* idle = */ 0, event.mPackage));
+                    notifyBatteryStats(event.mPackage, userId, false);
                 }
             }
         }
@@ -799,6 +833,7 @@ public class UsageStatsService extends SystemService implements
      */
     void flushToDisk() {
         synchronized (mLock) {
+            drainPendingEventsLocked();
             flushToDiskLocked();
         }
     }
@@ -809,6 +844,7 @@ public class UsageStatsService extends SystemService implements
     void onUserRemoved(int userId) {
         synchronized (mLock) {
             Slog.i(TAG, "Removing user " + userId + " and all data.");
+            drainPendingEventsLocked();
             mUserState.remove(userId);
             synchronized (mAppIdleLock) {
                 mAppIdleHistory.onUserRemoved(userId);
@@ -823,6 +859,7 @@ public class UsageStatsService extends SystemService implements
     List<UsageStats> queryUsageStats(int userId, int bucketType, long beginTime, long endTime,
             boolean obfuscateInstantApps) {
         synchronized (mLock) {
+            drainPendingEventsLocked();
             final long timeNow = checkAndGetTimeLocked();
             if (!validRange(timeNow, beginTime, endTime)) {
                 return null;
@@ -856,6 +893,7 @@ public class UsageStatsService extends SystemService implements
     List<ConfigurationStats> queryConfigurationStats(int userId, int bucketType, long beginTime,
             long endTime) {
         synchronized (mLock) {
+            drainPendingEventsLocked();
             final long timeNow = checkAndGetTimeLocked();
             if (!validRange(timeNow, beginTime, endTime)) {
                 return null;
@@ -873,6 +911,7 @@ public class UsageStatsService extends SystemService implements
     UsageEvents queryEvents(int userId, long beginTime, long endTime,
             boolean shouldObfuscateInstantApps) {
         synchronized (mLock) {
+            drainPendingEventsLocked();
             final long timeNow = checkAndGetTimeLocked();
             if (!validRange(timeNow, beginTime, endTime)) {
                 return null;
@@ -1217,6 +1256,8 @@ public class UsageStatsService extends SystemService implements
             TimeUtils.formatDuration(mAppIdleParoleDurationMillis, pw);
             pw.println();
 
+            pw.println();
+            pw.print("mPendingEventSpillCount="); pw.print(mPendingEvents.getSpillCount());
             pw.println();
             pw.print("mAppIdleEnabled="); pw.print(mAppIdleEnabled);
             pw.print(" mAppIdleTempParoled="); pw.print(mAppIdleTempParoled);
@@ -1236,7 +1277,7 @@ public class UsageStatsService extends SystemService implements
         public void handleMessage(Message msg) {
             switch (msg.what) {
                 case MSG_REPORT_EVENT:
-                    reportEvent((UsageEvents.Event) msg.obj, msg.arg1);
+                    reportEvents();
                     break;
 
                 case MSG_FLUSH_TO_DISK:
@@ -1537,7 +1578,7 @@ public class UsageStatsService extends SystemService implements
 
             event.mContentAnnotations = annotations;
 
-            mHandler.obtainMessage(MSG_REPORT_EVENT, userId, 0, event).sendToTarget();
+            postEvent(event, userId);
         }
     }
 
@@ -1563,7 +1604,7 @@ public class UsageStatsService extends SystemService implements
             event.mTimeStamp = SystemClock.elapsedRealtime();
 
             event.mEventType = eventType;
-            mHandler.obtainMessage(MSG_REPORT_EVENT, userId, 0, event).sendToTarget();
+            postEvent(event, userId);
         }
 
         @Override
@@ -1580,7 +1621,7 @@ public class UsageStatsService extends SystemService implements
             event.mTimeStamp = SystemClock.elapsedRealtime();
 
             event.mEventType = eventType;
-            mHandler.obtainMessage(MSG_REPORT_EVENT, userId, 0, event).sendToTarget();
+            postEvent(event, userId);
         }
 
         @Override
@@ -1598,7 +1639,7 @@ public class UsageStatsService extends SystemService implements
 
             event.mEventType = UsageEvents.Event.CONFIGURATION_CHANGE;
             event.mConfiguration = new Configuration(config);
-            mHandler.obtainMessage(MSG_REPORT_EVENT, userId, 0, event).sendToTarget();
+            postEvent(event, userId);
         }
 
         @Override
@@ -1616,7 +1657,7 @@ public class UsageStatsService extends SystemService implements
             event.mTimeStamp = SystemClock.elapsedRealtime();
 
             event.mEventType = Event.SHORTCUT_INVOCATION;
-            mHandler.obtainMessage(MSG_REPORT_EVENT, userId, 0, event).sendToTarget();
+            postEvent(event, userId);
         }
 
         @Override
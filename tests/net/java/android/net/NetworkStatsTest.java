@@ -116,6 +116,55 @@ public class NetworkStatsTest extends TestCase {
         }
     }
 
+    public void testFindIndexLargeTable() throws Exception {
+        final NetworkStats stats = new NetworkStats(TEST_START, 4);
+        for (int uid = 0; uid < 100; uid++) {
+            stats.addValues(TEST_IFACE, uid, SET_DEFAULT, TAG_NONE, METERED_NO, ROAMING_NO, 1L,
+                    1L, 1L, 1L, 0);
+        }
+        // duplicate key must still resolve to the first matching row
+        stats.addValues(TEST_IFACE, 50, SET_DEFAULT, TAG_NONE, METERED_NO, ROAMING_NO, 2L, 2L,
+                2L, 2L, 0);
+
+        for (int uid = 0; uid < 100; uid++) {
+            assertEquals(uid, stats.findIndex(TEST_IFACE, uid, SET_DEFAULT, TAG_NONE, METERED_NO,
+                    ROAMING_NO));
+        }
+        assertEquals(-1, stats.findIndex(TEST_IFACE2, 50, SET_DEFAULT, TAG_NONE, METERED_NO,
+                ROAMING_NO));
+
+        // rows appended after a lookup are found too
+        stats.addValues(TEST_IFACE2, 50, SET_DEFAULT, TAG_NONE, METERED_NO, ROAMING_NO, 1L, 1L,
+                1L, 1L, 0);
+        assertEquals(101, stats.findIndex(TEST_IFACE2, 50, SET_DEFAULT, TAG_NONE, METERED_NO,
+                ROAMING_NO));
+    }
+
+    public void testSubtractRecycledLargeTable() throws Exception {
+        final NetworkStats before = new NetworkStats(TEST_START, 100);
+        final NetworkStats after = new NetworkStats(TEST_START + 1000, 100);
+        for (int uid = 0; uid < 100; uid++) {
+            before.addValues(TEST_IFACE, uid, SET_DEFAULT, TAG_NONE, METERED_NO, ROAMING_NO, 10L,
+                    1L, 10L, 1L, 0);
+            // list rows in the opposite order to defeat position hints
+            after.addValues(TEST_IFACE, 99 - uid, SET_DEFAULT, TAG_NONE, METERED_NO, ROAMING_NO,
+                    15L + uid, 2L, 20L, 2L, 0);
+        }
+
+        NetworkStats result = NetworkStats.subtract(after, before, null, null, null);
+        for (int i = 0; i < 2; i++) {
+            assertEquals(100, result.size());
+            for (int uid = 0; uid < 100; uid++) {
+                final int j = result.findIndex(TEST_IFACE, uid, SET_DEFAULT, TAG_NONE,
+                        METERED_NO, ROAMING_NO);
+                assertValues(result, j, TEST_IFACE, uid, SET_DEFAULT, TAG_NONE, METERED_NO,
+                        ROAMING_NO, 5L + (99 - uid), 1L, 10L, 1L, 0);
+            }
+            // recycling must not leave stale lookups behind
+            result = NetworkStats.subtract(after, before, null, null, result);
+        }
+    }
+
     public void testAddEntryGrow() throws Exception {
         final NetworkStats stats = new NetworkStats(TEST_START, 4);
 
@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity;
+
+import static android.net.NetworkCapabilities.NET_CAPABILITY_FOREGROUND;
+import static android.net.NetworkCapabilities.NET_CAPABILITY_IMS;
+import static android.net.NetworkCapabilities.NET_CAPABILITY_INTERNET;
+import static android.net.NetworkCapabilities.NET_CAPABILITY_MMS;
+import static android.net.NetworkCapabilities.NET_CAPABILITY_NOT_METERED;
+import static android.net.NetworkCapabilities.TRANSPORT_CELLULAR;
+import static android.net.NetworkCapabilities.TRANSPORT_WIFI;
+import static android.net.NetworkCapabilities.TRANSPORT_WIFI_AWARE;
+
+import android.net.ConnectivityManager;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.os.SystemClock;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.util.ArraySet;
+import android.util.Log;
+import java.util.ArrayList;
+import java.util.Random;
+import junit.framework.TestCase;
+
+public class NetworkRequestIndexTest extends TestCase {
+    private static final String TAG = "NetworkRequestIndexTest";
+
+    private int mNextRequestId = 1;
+
+    private NetworkRequest request(int[] transports, int... capabilities) {
+        final NetworkCapabilities nc = new NetworkCapabilities();
+        nc.clearAll();
+        for (int t : transports) nc.addTransportType(t);
+        for (int c : capabilities) nc.addCapability(c);
+        return new NetworkRequest(nc, ConnectivityManager.TYPE_NONE, mNextRequestId++,
+                NetworkRequest.Type.REQUEST);
+    }
+
+    private static NetworkCapabilities network(int transport, int... capabilities) {
+        final NetworkCapabilities nc = new NetworkCapabilities();
+        nc.clearAll();
+        nc.addTransportType(transport);
+        for (int c : capabilities) nc.addCapability(c);
+        return nc;
+    }
+
+    private static ArraySet<NetworkRequest> candidates(NetworkRequestIndex index,
+            NetworkCapabilities nc) {
+        final ArraySet<NetworkRequest> out = new ArraySet<>();
+        index.getCandidates(nc, out);
+        return out;
+    }
+
+    @SmallTest
+    public void testCandidates() {
+        final NetworkRequestIndex index = new NetworkRequestIndex();
+        final NetworkRequest any = request(new int[0], NET_CAPABILITY_INTERNET);
+        final NetworkRequest wifi = request(new int[] {TRANSPORT_WIFI}, NET_CAPABILITY_INTERNET);
+        final NetworkRequest cell = request(new int[] {TRANSPORT_CELLULAR},
+                NET_CAPABILITY_INTERNET);
+        final NetworkRequest mms = request(new int[] {TRANSPORT_CELLULAR}, NET_CAPABILITY_MMS);
+        final NetworkRequest unmetered = request(new int[] {TRANSPORT_CELLULAR, TRANSPORT_WIFI},
+                NET_CAPABILITY_INTERNET, NET_CAPABILITY_NOT_METERED);
+        index.add(any);
+        index.add(wifi);
+        index.add(cell);
+        index.add(mms);
+        index.add(unmetered);
+        assertEquals(5, index.size());
+
+        final ArraySet<NetworkRequest> wifiCandidates =
+                candidates(index, network(TRANSPORT_WIFI, NET_CAPABILITY_INTERNET));
+        assertEquals(2, wifiCandidates.size());
+        assertTrue(wifiCandidates.contains(any));
+        assertTrue(wifiCandidates.contains(wifi));
+
+        final ArraySet<NetworkRequest> cellCandidates = candidates(index, network(
+                TRANSPORT_CELLULAR, NET_CAPABILITY_INTERNET, NET_CAPABILITY_NOT_METERED));
+        assertEquals(3, cellCandidates.size());
+        assertTrue(cellCandidates.contains(any));
+        assertTrue(cellCandidates.contains(cell));
+        assertTrue(cellCandidates.contains(unmetered));
+
+        index.remove(any);
+        index.remove(unmetered);
+        assertEquals(3, index.size());
+        assertEquals(2, candidates(index, network(TRANSPORT_CELLULAR,
+                NET_CAPABILITY_INTERNET, NET_CAPABILITY_MMS, NET_CAPABILITY_NOT_METERED)).size());
+    }
+
+    @SmallTest
+    public void testRequestsWithSameCapabilitiesShareGroup() {
+        final NetworkRequestIndex index = new NetworkRequestIndex();
+        for (int i = 0; i < 100; i++) {
+            index.add(request(new int[0], NET_CAPABILITY_INTERNET));
+            index.add(request(new int[] {TRANSPORT_WIFI}, NET_CAPABILITY_INTERNET));
+        }
+        assertEquals(200, index.size());
+        assertEquals(2, index.numGroups());
+    }
+
+    @SmallTest
+    public void testRemoveAfterCapabilitiesChangedInPlace() {
+        final NetworkRequestIndex index = new NetworkRequestIndex();
+        final NetworkRequest nr = request(new int[] {TRANSPORT_WIFI}, NET_CAPABILITY_INTERNET);
+        index.add(nr);
+        nr.networkCapabilities.addCapability(NET_CAPABILITY_NOT_METERED);
+        index.remove(nr);
+        assertEquals(0, index.size());
+        assertEquals(0, index.numGroups());
+    }
+
+    @SmallTest
+    public void testEverySatisfiedRequestIsCandidate() {
+        final Random random = new Random(42);
+        final NetworkRequestIndex index = new NetworkRequestIndex();
+        final ArrayList<NetworkRequest> requests = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            final NetworkRequest nr = request(randomBits(random, TRANSPORT_WIFI_AWARE),
+                    randomBits(random, NET_CAPABILITY_FOREGROUND));
+            requests.add(nr);
+            index.add(nr);
+        }
+        for (int i = 0; i < 200; i++) {
+            final NetworkCapabilities nc = network(random.nextInt(TRANSPORT_WIFI_AWARE + 1),
+                    randomBits(random, NET_CAPABILITY_FOREGROUND));
+            final ArraySet<NetworkRequest> candidates = candidates(index, nc);
+            for (NetworkRequest nr : requests) {
+                if (nr.networkCapabilities.satisfiedByNetworkCapabilities(nc)) {
+                    assertTrue(nr + " not a candidate for " + nc, candidates.contains(nr));
+                }
+            }
+        }
+    }
+
+    /**
+     * Requests that a network cannot satisfy should not make looking up its candidates slower.
+     * Logs the lookup time against the number of unrelated requests.
+     */
+    @SmallTest
+    public void testUnrelatedRequestsAreNotCandidates() {
+        final NetworkRequestIndex index = new NetworkRequestIndex();
+        final NetworkRequest wifi = request(new int[] {TRANSPORT_WIFI}, NET_CAPABILITY_INTERNET);
+        index.add(wifi);
+        final NetworkCapabilities nc = network(TRANSPORT_WIFI, NET_CAPABILITY_INTERNET);
+        for (int count : new int[] {10, 100, 1000, 10000}) {
+            while (index.size() < count + 1) {
+                index.add(request(new int[] {TRANSPORT_CELLULAR}, NET_CAPABILITY_INTERNET));
+            }
+            final ArraySet<NetworkRequest> out = new ArraySet<>();
+            final int iterations = 1000;
+            final long start = SystemClock.elapsedRealtimeNanos();
+            for (int i = 0; i < iterations; i++) {
+                out.clear();
+                index.getCandidates(nc, out);
+            }
+            final long elapsed = SystemClock.elapsedRealtimeNanos() - start;
+            Log.d(TAG, count + " unrelated requests: " + (elapsed / iterations) + "ns per lookup");
+            assertEquals(1, out.size());
+            assertTrue(out.contains(wifi));
+        }
+    }
+
+    @SmallTest
+    public void testIsCandidate() {
+        final NetworkRequestIndex index = new NetworkRequestIndex();
+        final NetworkRequest wifi = request(new int[] {TRANSPORT_WIFI}, NET_CAPABILITY_INTERNET);
+        final NetworkRequest cell = request(new int[] {TRANSPORT_CELLULAR},
+                NET_CAPABILITY_INTERNET);
+        final NetworkRequest notIndexed = request(new int[0], NET_CAPABILITY_INTERNET);
+        index.add(wifi);
+        index.add(cell);
+        final NetworkCapabilities nc = network(TRANSPORT_WIFI, NET_CAPABILITY_INTERNET);
+        assertTrue(index.isCandidate(wifi, nc));
+        assertFalse(index.isCandidate(cell, nc));
+        assertFalse(index.isCandidate(notIndexed, nc));
+    }
+
+    /**
+     * Logs how long gathering and checking the requests of a rematch takes against the number of
+     * requests, with a mix like that of a device: most apps file a default request, some ask for
+     * wifi or for an unmetered network, and telephony asks for MMS and IMS. The network is the
+     * default wifi network and satisfies a third of the requests already, as it does when its
+     * capabilities change.
+     */
+    @SmallTest
+    public void testRematchCandidatesLatency() {
+        final NetworkCapabilities nc = network(TRANSPORT_WIFI, NET_CAPABILITY_INTERNET,
+                NET_CAPABILITY_NOT_METERED);
+        for (int count : new int[] {10, 100, 1000, 5000}) {
+            final NetworkRequestIndex index = new NetworkRequestIndex();
+            final ArrayList<NetworkRequest> requests = new ArrayList<>();
+            final ArrayList<NetworkRequest> served = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                final NetworkRequest nr;
+                switch (i % 10) {
+                    case 0:
+                        nr = request(new int[] {TRANSPORT_WIFI}, NET_CAPABILITY_INTERNET);
+                        break;
+                    case 1:
+                        nr = request(new int[0], NET_CAPABILITY_INTERNET,
+                                NET_CAPABILITY_NOT_METERED);
+                        break;
+                    case 2:
+                        nr = request(new int[] {TRANSPORT_CELLULAR}, NET_CAPABILITY_MMS);
+                        break;
+                    case 3:
+                        nr = request(new int[] {TRANSPORT_CELLULAR}, NET_CAPABILITY_IMS);
+                        break;
+                    default:
+                        nr = request(new int[0], NET_CAPABILITY_INTERNET);
+                        break;
+                }
+                requests.add(nr);
+                index.add(nr);
+                if (i % 3 == 0 && nr.networkCapabilities.satisfiedByNetworkCapabilities(nc)) {
+                    served.add(nr);
+                }
+            }
+
+            final int iterations = 100;
+            final ArrayList<NetworkRequest> candidates = new ArrayList<>();
+            int satisfied = 0;
+            long start = SystemClock.elapsedRealtimeNanos();
+            for (int i = 0; i < iterations; i++) {
+                candidates.clear();
+                index.getCandidates(nc, candidates);
+                for (int j = 0; j < served.size(); j++) {
+                    final NetworkRequest nr = served.get(j);
+                    if (!index.isCandidate(nr, nc)) candidates.add(nr);
+                }
+                satisfied = 0;
+                for (int j = 0; j < candidates.size(); j++) {
+                    if (candidates.get(j).networkCapabilities.satisfiedByNetworkCapabilities(nc)) {
+                        satisfied++;
+                    }
+                }
+            }
+            final long indexed = (SystemClock.elapsedRealtimeNanos() - start) / iterations;
+
+            int scanned = 0;
+            start = SystemClock.elapsedRealtimeNanos();
+            for (int i = 0; i < iterations; i++) {
+                scanned = 0;
+                for (int j = 0; j < requests.size(); j++) {
+                    if (requests.get(j).networkCapabilities.satisfiedByNetworkCapabilities(nc)) {
+                        scanned++;
+                    }
+                }
+            }
+            final long full = (SystemClock.elapsedRealtimeNanos() - start) / iterations;
+
+            Log.d(TAG, count + " requests: " + indexed + "ns per rematch with the index, "
+                    + full + "ns checking every request");
+            // Every request is looked at once, and none that the network satisfies is missed.
+            assertEquals(scanned, satisfied);
+            assertTrue(candidates.size() <= count);
+        }
+    }
+
+    private static int[] randomBits(Random random, int max) {
+        final ArrayList<Integer> bits = new ArrayList<>();
+        for (int b = 0; b <= max; b++) {
+            if (random.nextInt(4) == 0) bits.add(b);
+        }
+        final int[] out = new int[bits.size()];
+        for (int i = 0; i < out.length; i++) out[i] = bits.get(i);
+        return out;
+    }
+}